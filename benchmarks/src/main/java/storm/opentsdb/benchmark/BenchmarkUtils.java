@@ -0,0 +1,96 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.benchmark;
+
+import backtype.storm.Testing;
+import backtype.storm.generated.StormTopology;
+import backtype.storm.task.IOutputCollector;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.testing.MkTupleParam;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+import clojure.lang.Atom;
+import storm.opentsdb.utils.OpenTsdbClientFactory;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Helpers to run bolts and mappers outside of a topology.
+ */
+public class BenchmarkUtils {
+    public static final String CLUSTER = "stub-cluster";
+    public static final String NAME = "stub-tsdb";
+
+    /**
+     * @return A topology config using the StubTsdbProvider.
+     */
+    public static Map<String, Object> newConfig() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(OpenTsdbClientFactory.PROVIDER, StubTsdbProvider.class.getName());
+        conf.put(NAME, new HashMap<String, String>());
+        return conf;
+    }
+
+    /**
+     * @param fields Tuple fields.
+     * @param values Tuple values.
+     * @return A standalone Storm tuple.
+     */
+    public static Tuple newTuple(Fields fields, Object... values) {
+        MkTupleParam param = new MkTupleParam();
+        param.setFields(fields.toList().toArray(new String[fields.size()]));
+        return Testing.testTuple(Arrays.asList(values), param);
+    }
+
+    /**
+     * @param conf Topology config.
+     * @return A topology context accepting metric registration.
+     */
+    public static TopologyContext newTopologyContext(Map conf) {
+        return new TopologyContext(
+            new StormTopology(), conf,
+            Collections.singletonMap(1, "opentsdb"),
+            Collections.singletonMap("opentsdb", Collections.singletonList(1)),
+            new HashMap<String, Map<String, Fields>>(),
+            "benchmark-1-1", null, null, 1, 6700,
+            Collections.singletonList(1),
+            new HashMap<String, Object>(), new HashMap<String, Object>(), new HashMap<String, Object>(),
+            new HashMap(), new Atom(false));
+    }
+
+    /**
+     * @return An OutputCollector dropping everything.
+     */
+    public static OutputCollector newOutputCollector() {
+        return new OutputCollector(new IOutputCollector() {
+            @Override
+            public List<Integer> emit(String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+                return null;
+            }
+
+            @Override
+            public void emitDirect(int taskId, String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+            }
+
+            @Override
+            public void ack(Tuple input) {
+            }
+
+            @Override
+            public void fail(Tuple input) {
+            }
+
+            @Override
+            public void reportError(Throwable error) {
+            }
+        });
+    }
+}
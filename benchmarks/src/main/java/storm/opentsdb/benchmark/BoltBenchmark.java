@@ -0,0 +1,82 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.benchmark;
+
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import storm.opentsdb.bolt.OpenTsdbBolt;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Full OpenTsdbBolt.execute path against a StubTsdb.
+ * </p>
+ * <p>
+ * The tuples cycle over a fixed number of series so that the series
+ * cache and row coalescing are exercised as in a real topology.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BoltBenchmark {
+    private static final Fields FIELDS = new Fields("metric", "timestamp", "value", "tags");
+    private static final int SERIES = 1024;
+
+    @Param({"0", "10000"})
+    public int seriesCacheSize;
+
+    @Param({"0", "1000"})
+    public int batchSize;
+
+    @Param({"false", "true"})
+    public boolean coalesceRows;
+
+    private OpenTsdbBolt bolt;
+    private Tuple[] tuples;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Map<String, Object> conf = BenchmarkUtils.newConfig();
+        this.bolt = new OpenTsdbBolt(BenchmarkUtils.CLUSTER, BenchmarkUtils.NAME)
+            .setSeriesCacheSize(this.seriesCacheSize)
+            .setBatchSize(this.batchSize)
+            .setCoalesceRows(this.coalesceRows);
+        this.bolt.prepare(conf, BenchmarkUtils.newTopologyContext(conf), BenchmarkUtils.newOutputCollector());
+
+        this.tuples = new Tuple[SERIES];
+        for (int i = 0; i < SERIES; i++) {
+            Map<String, String> tags = new HashMap<>();
+            tags.put("host", "host-" + i);
+            tags.put("dc", "rbx");
+            this.tuples[i] = BenchmarkUtils.newTuple(FIELDS, "sys.cpu.user", 1420070400L + i, (double) i, tags);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        this.bolt.cleanup();
+    }
+
+    @Benchmark
+    public void execute() {
+        this.bolt.execute(this.tuples[this.next]);
+        this.next = (this.next + 1) % SERIES;
+    }
+}
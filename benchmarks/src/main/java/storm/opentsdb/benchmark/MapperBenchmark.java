@@ -0,0 +1,90 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.benchmark;
+
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import storm.opentsdb.bolt.mapper.OpenTsdbEventFieldMapper;
+import storm.opentsdb.bolt.mapper.OpenTsdbTupleFieldMapper;
+import storm.opentsdb.model.OpenTsdbEvent;
+import storm.opentsdb.trident.mapper.OpenTsdbTridentTupleFieldMapper;
+import storm.trident.tuple.TridentTuple;
+import storm.trident.tuple.TridentTupleView;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Extraction of the OpenTSDB put params from a tuple by the field mappers.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MapperBenchmark {
+    private static final Fields FIELDS = new Fields("metric", "timestamp", "value", "tags");
+
+    private Tuple tuple;
+    private Tuple eventTuple;
+    private TridentTuple tridentTuple;
+
+    private OpenTsdbTupleFieldMapper tupleMapper;
+    private OpenTsdbEventFieldMapper eventMapper;
+    private OpenTsdbTridentTupleFieldMapper tridentMapper;
+
+    @Setup
+    public void setup() {
+        Map<String, String> tags = new HashMap<>();
+        tags.put("host", "host-1");
+        tags.put("dc", "rbx");
+
+        this.tuple = BenchmarkUtils.newTuple(FIELDS, "sys.cpu.user", 1420070400L, 42.5, tags);
+        this.eventTuple = BenchmarkUtils.newTuple(new Fields("event"),
+            new OpenTsdbEvent("sys.cpu.user", 1420070400L, 42.5, tags));
+        this.tridentTuple = TridentTupleView.createFreshTuple(FIELDS, "sys.cpu.user", 1420070400L, 42.5, tags);
+
+        this.tupleMapper = new OpenTsdbTupleFieldMapper();
+        this.tupleMapper.prepare(new HashMap());
+        this.eventMapper = new OpenTsdbEventFieldMapper("event");
+        this.eventMapper.prepare(new HashMap());
+        this.tridentMapper = new OpenTsdbTridentTupleFieldMapper();
+        this.tridentMapper.prepare(new HashMap());
+    }
+
+    @Benchmark
+    public void tupleFieldMapper(Blackhole bh) {
+        bh.consume(this.tupleMapper.getMetric(this.tuple));
+        bh.consume(this.tupleMapper.getTimestamp(this.tuple));
+        bh.consume(this.tupleMapper.getValue(this.tuple));
+        bh.consume(this.tupleMapper.getTags(this.tuple));
+    }
+
+    @Benchmark
+    public void eventFieldMapper(Blackhole bh) {
+        bh.consume(this.eventMapper.getMetric(this.eventTuple));
+        bh.consume(this.eventMapper.getTimestamp(this.eventTuple));
+        bh.consume(this.eventMapper.getValue(this.eventTuple));
+        bh.consume(this.eventMapper.getTags(this.eventTuple));
+    }
+
+    @Benchmark
+    public void tridentTupleFieldMapper(Blackhole bh) {
+        bh.consume(this.tridentMapper.isFiltered(this.tridentTuple));
+        bh.consume(this.tridentMapper.getMetric(this.tridentTuple));
+        bh.consume(this.tridentMapper.getTimestamp(this.tridentTuple));
+        bh.consume(this.tridentMapper.getValue(this.tridentTuple));
+        bh.consume(this.tridentMapper.getTags(this.tridentTuple));
+    }
+}
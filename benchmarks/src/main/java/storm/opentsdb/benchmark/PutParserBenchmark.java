@@ -0,0 +1,51 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import storm.opentsdb.model.OpenTsdbPoint;
+import storm.opentsdb.utils.OpenTsdbPointWriter;
+import storm.opentsdb.utils.OpenTsdbPutParser;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Telnet put line parsing : OpenTsdbPutParser against String splitting.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PutParserBenchmark {
+    private final String line = "put sys.cpu.user 1356998400 42.5 host=web01 dc=rbx cpu=0";
+    private final byte[] bytes = line.getBytes(OpenTsdbPointWriter.CHARSET);
+    private final OpenTsdbPutParser parser = new OpenTsdbPutParser();
+    private final OpenTsdbPoint point = new OpenTsdbPoint();
+
+    @Benchmark
+    public OpenTsdbPoint parser() {
+        this.parser.parse(this.bytes, 0, this.bytes.length, this.point);
+        return this.point;
+    }
+
+    @Benchmark
+    public OpenTsdbPoint split() {
+        String[] words = new String(this.bytes, OpenTsdbPointWriter.CHARSET).split(" +");
+        Map<String, String> tags = new HashMap<>();
+        for (int i = 4; i < words.length; i++) {
+            int equal = words[i].indexOf('=');
+            tags.put(words[i].substring(0, equal), words[i].substring(equal + 1));
+        }
+        return this.point.set(words[1], Long.parseLong(words[2]), Double.parseDouble(words[3]), tags);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import storm.opentsdb.utils.serializer.FloatToDoubleSerializer;
+import storm.opentsdb.utils.serializer.IntegerToDoubleSerializer;
+import storm.opentsdb.utils.serializer.LongToDoubleSerializer;
+import storm.opentsdb.utils.serializer.ShortToDoubleSerializer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * Value serializers from boxed tuple values.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SerializerBenchmark {
+    private final Object shortValue = (short) 42;
+    private final Object intValue = 42424242;
+    private final Object longValue = 4242424242L;
+    private final Object floatValue = 42.42f;
+
+    private final ShortToDoubleSerializer shortSerializer = new ShortToDoubleSerializer();
+    private final IntegerToDoubleSerializer intSerializer = new IntegerToDoubleSerializer();
+    private final LongToDoubleSerializer longSerializer = new LongToDoubleSerializer();
+    private final FloatToDoubleSerializer floatSerializer = new FloatToDoubleSerializer();
+
+    @Benchmark
+    public double shortToDouble() {
+        return this.shortSerializer.serialize(this.shortValue);
+    }
+
+    @Benchmark
+    public double integerToDouble() {
+        return this.intSerializer.serialize(this.intValue);
+    }
+
+    @Benchmark
+    public double longToDouble() {
+        return this.longSerializer.serialize(this.longValue);
+    }
+
+    @Benchmark
+    public double floatToDouble() {
+        return this.floatSerializer.serialize(this.floatValue);
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.benchmark;
+
+import com.stumbleupon.async.Deferred;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.PutRequest;
+
+/**
+ * <p>
+ * HBase client completing all puts immediately without any network access.
+ * </p>
+ */
+public class StubHBaseClient extends HBaseClient {
+    public StubHBaseClient() {
+        super("localhost");
+    }
+
+    @Override
+    public Deferred<Object> put(PutRequest request) {
+        return Deferred.fromResult(null);
+    }
+
+    @Override
+    public Deferred<Object> flush() {
+        return Deferred.fromResult(null);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.benchmark;
+
+import com.stumbleupon.async.Deferred;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+import org.hbase.async.HBaseClient;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * OpenTSDB client completing all points immediately.
+ * </p>
+ * <p>
+ * UIDs are derived from the name hash so that the series cache
+ * path can be benchmarked without the UID table.
+ * </p>
+ */
+public class StubTsdb extends TSDB {
+    /**
+     * @param client The HBase client to use.
+     * @param config The OpenTSDB config.
+     */
+    public StubTsdb(HBaseClient client, Config config) {
+        super(client, config);
+    }
+
+    @Override
+    public Deferred<Object> addPoint(String metric, long timestamp, long value, Map<String, String> tags) {
+        return Deferred.fromResult(null);
+    }
+
+    @Override
+    public Deferred<Object> addPoint(String metric, long timestamp, double value, Map<String, String> tags) {
+        return Deferred.fromResult(null);
+    }
+
+    @Override
+    public byte[] getUID(UniqueId.UniqueIdType type, String name) {
+        short width;
+        switch (type) {
+            case METRIC:
+                width = TSDB.metrics_width();
+                break;
+            case TAGK:
+                width = TSDB.tagk_width();
+                break;
+            default:
+                width = TSDB.tagv_width();
+        }
+        int hash = name.hashCode();
+        byte[] uid = new byte[width];
+        for (int i = 0; i < width; i++) {
+            uid[width - 1 - i] = (byte) (hash >>> (i * 8));
+        }
+        return uid;
+    }
+
+    @Override
+    public Deferred<Object> flush() {
+        return Deferred.fromResult(null);
+    }
+}
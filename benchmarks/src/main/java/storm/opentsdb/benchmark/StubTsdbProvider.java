@@ -0,0 +1,33 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.benchmark;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+import storm.opentsdb.utils.IOpenTsdbClientProvider;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * <p>
+ * Provide StubTsdb clients to OpenTsdbClientFactory.
+ * </p>
+ */
+public class StubTsdbProvider implements IOpenTsdbClientProvider {
+    @Override
+    public TSDB getTsdbClient(Map config, Map<String, String> conf, String hBaseCluster, String name) {
+        try {
+            Config openTsdbConfig = new Config(false);
+            openTsdbConfig.overrideConfig("tsd.storage.enable_compaction", "false");
+            for (String key : conf.keySet()) {
+                openTsdbConfig.overrideConfig(key, conf.get(key));
+            }
+            return new StubTsdb(new StubHBaseClient(), openTsdbConfig);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.testing;
+
+import com.stumbleupon.async.Deferred;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.HBaseException;
+import org.hbase.async.HBaseRpc;
+import org.hbase.async.NotServingRegionException;
+import org.hbase.async.PleaseThrottleException;
+import org.hbase.async.PutRequest;
+
+import java.lang.reflect.Constructor;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * In memory HBase client stand in for load tests.
+ * </p>
+ * <p>
+ * Puts are not stored, they are completed by a timer after a latency drawn
+ * from a FakeLatency distribution. The client simulates a server with a
+ * limited throughput : when more points are sent than it can absorb the
+ * RPCs queue up and the latency grows. Errors can be injected :
+ * <ul>
+ * <li>fake.nsre.rate : probability of a NotServingRegionException</li>
+ * <li>fake.throttle.rate : probability of a PleaseThrottleException</li>
+ * <li>fake.capacity.rpcs : maximum outstanding RPCs, PleaseThrottleException above ( default unlimited )</li>
+ * <li>fake.capacity.points : points per second the server can absorb ( default unlimited )</li>
+ * <li>fake.seed : random seed to make a run deterministic</li>
+ * </ul>
+ * The totals of all the fake clients of the JVM are available through static getters.
+ * </p>
+ */
+public class FakeHBaseClient extends HBaseClient {
+    private static final AtomicLong points = new AtomicLong();
+    private static final AtomicLong rpcs = new AtomicLong();
+    private static final AtomicLong errors = new AtomicLong();
+
+    private static final ScheduledExecutorService timer = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "fake-hbase-timer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final FakeLatency latency;
+    private final double nsreRate;
+    private final double throttleRate;
+    private final int capacityRpcs;
+    private final double nanosPerPoint;
+    private final Random random;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private long serverFreeAt = 0;
+
+    /**
+     * @param conf The HBase cluster config.
+     */
+    public FakeHBaseClient(Map<String, String> conf) {
+        super("localhost");
+        this.latency = FakeLatency.fromConfig(conf);
+        this.nsreRate = Double.parseDouble(FakeLatency.get(conf, "fake.nsre.rate", "0"));
+        this.throttleRate = Double.parseDouble(FakeLatency.get(conf, "fake.throttle.rate", "0"));
+        this.capacityRpcs = Integer.parseInt(FakeLatency.get(conf, "fake.capacity.rpcs", "0"));
+        double capacityPoints = Double.parseDouble(FakeLatency.get(conf, "fake.capacity.points", "0"));
+        this.nanosPerPoint = capacityPoints > 0 ? 1e9 / capacityPoints : 0;
+        String seed = FakeLatency.get(conf, "fake.seed", null);
+        this.random = seed != null ? new Random(Long.parseLong(seed)) : new Random();
+    }
+
+    @Override
+    public Deferred<Object> put(PutRequest request) {
+        rpcs.incrementAndGet();
+        int n = request.qualifiers().length;
+
+        double draw;
+        synchronized (this) {
+            draw = this.random.nextDouble();
+        }
+        if (draw < this.throttleRate ||
+            (this.capacityRpcs > 0 && this.outstanding.get() >= this.capacityRpcs)) {
+            errors.addAndGet(n);
+            return Deferred.fromError(newException(PleaseThrottleException.class,
+                new Class[]{String.class, HBaseException.class, HBaseRpc.class, Deferred.class},
+                "Fake HBase throttle", null, request, null));
+        }
+
+        long delay;
+        synchronized (this) {
+            long now = System.nanoTime();
+            long start = Math.max(now, this.serverFreeAt);
+            this.serverFreeAt = start + (long) (n * this.nanosPerPoint);
+            delay = this.serverFreeAt - now + this.latency.next(this.random);
+        }
+
+        final Exception error = draw < this.throttleRate + this.nsreRate ?
+            newException(NotServingRegionException.class,
+                new Class[]{String.class, HBaseRpc.class}, "Fake HBase NSRE", request) : null;
+        final int count = n;
+        final Deferred<Object> result = new Deferred<>();
+        this.outstanding.incrementAndGet();
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                outstanding.decrementAndGet();
+                if (error != null) {
+                    errors.addAndGet(count);
+                    result.callback(error);
+                } else {
+                    points.addAndGet(count);
+                    result.callback(null);
+                }
+            }
+        }, delay, TimeUnit.NANOSECONDS);
+        return result;
+    }
+
+    @Override
+    public Deferred<Object> flush() {
+        return Deferred.fromResult(null);
+    }
+
+    @Override
+    public Deferred<Object> shutdown() {
+        return Deferred.fromResult(null);
+    }
+
+    /**
+     * @return Number of RPCs currently waiting for completion.
+     */
+    public int getOutstanding() {
+        return this.outstanding.get();
+    }
+
+    /**
+     * @return Points successfully written by all the fake clients.
+     */
+    public static long getPoints() {
+        return points.get();
+    }
+
+    /**
+     * @return Put RPCs received by all the fake clients.
+     */
+    public static long getRpcs() {
+        return rpcs.get();
+    }
+
+    /**
+     * @return Points in error for all the fake clients.
+     */
+    public static long getErrors() {
+        return errors.get();
+    }
+
+    /**
+     * AsyncHBase exceptions have package private constructors.
+     */
+    private static Exception newException(Class<? extends Exception> type, Class<?>[] signature, Object... args) {
+        try {
+            Constructor<? extends Exception> constructor = type.getDeclaredConstructor(signature);
+            constructor.setAccessible(true);
+            return constructor.newInstance(args);
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Unable to create " + type.getSimpleName(), ex);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.testing;
+
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * <p>
+ * Latency distribution of the FakeHBaseClient RPCs.
+ * </p>
+ * <p>
+ * Configured from the HBase cluster config map :
+ * <ul>
+ * <li>fake.latency : constant, uniform or lognormal ( default constant )</li>
+ * <li>fake.latency.ms : constant latency, uniform minimum or lognormal median ( default 1 )</li>
+ * <li>fake.latency.max.ms : uniform maximum ( default 10 )</li>
+ * <li>fake.latency.sigma : lognormal shape ( default 0.5 )</li>
+ * </ul>
+ * </p>
+ */
+public class FakeLatency {
+    public enum Type {CONSTANT, UNIFORM, LOGNORMAL}
+
+    private final Type type;
+    private final double latency;
+    private final double max;
+    private final double sigma;
+
+    /**
+     * @param type    Distribution type.
+     * @param latency Constant latency, uniform minimum or lognormal median in milliseconds.
+     * @param max     Uniform maximum in milliseconds.
+     * @param sigma   Lognormal shape.
+     */
+    public FakeLatency(Type type, double latency, double max, double sigma) {
+        this.type = type;
+        this.latency = latency;
+        this.max = max;
+        this.sigma = sigma;
+    }
+
+    /**
+     * @param conf The HBase cluster config.
+     * @return The configured latency distribution.
+     */
+    public static FakeLatency fromConfig(Map<String, String> conf) {
+        return new FakeLatency(
+            Type.valueOf(get(conf, "fake.latency", "constant").toUpperCase()),
+            Double.parseDouble(get(conf, "fake.latency.ms", "1")),
+            Double.parseDouble(get(conf, "fake.latency.max.ms", "10")),
+            Double.parseDouble(get(conf, "fake.latency.sigma", "0.5")));
+    }
+
+    /**
+     * @param random The random generator to use.
+     * @return A latency sample in nanoseconds.
+     */
+    public long next(Random random) {
+        double ms;
+        switch (this.type) {
+            case UNIFORM:
+                ms = this.latency + random.nextDouble() * (this.max - this.latency);
+                break;
+            case LOGNORMAL:
+                ms = this.latency * Math.exp(this.sigma * random.nextGaussian());
+                break;
+            default:
+                ms = this.latency;
+        }
+        return (long) (ms * 1000000);
+    }
+
+    static String get(Map<String, String> conf, String key, String defaultValue) {
+        String value = conf == null ? null : conf.get(key);
+        return value == null ? defaultValue : value;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.testing;
+
+import com.stumbleupon.async.Deferred;
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+import org.hbase.async.Bytes;
+import org.hbase.async.PutRequest;
+import storm.opentsdb.utils.OpenTsdbPointWriter;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * OpenTSDB client writing to a FakeHBaseClient.
+ * </p>
+ * <p>
+ * UIDs are derived from the name hash instead of being looked up
+ * in the UID table. Points written with addPoint are sent as a single
+ * cell PutRequest like the real client does.
+ * </p>
+ */
+public class FakeTsdb extends TSDB {
+    private final FakeHBaseClient client;
+    private final byte[] table;
+
+    /**
+     * @param client The fake HBase client.
+     * @param config The OpenTSDB config.
+     */
+    public FakeTsdb(FakeHBaseClient client, Config config) {
+        super(client, config);
+        this.client = client;
+        this.table = config.getString("tsd.storage.hbase.data_table").getBytes(OpenTsdbPointWriter.CHARSET);
+    }
+
+    @Override
+    public Deferred<Object> addPoint(String metric, long timestamp, long value, Map<String, String> tags) {
+        byte[] encoded = OpenTsdbPointWriter.encode(value);
+        return this.put(metric, timestamp, tags, (short) (encoded.length - 1), encoded);
+    }
+
+    @Override
+    public Deferred<Object> addPoint(String metric, long timestamp, double value, Map<String, String> tags) {
+        return this.put(metric, timestamp, tags, OpenTsdbPointWriter.DOUBLE_FLAGS, OpenTsdbPointWriter.encode(value));
+    }
+
+    private Deferred<Object> put(String metric, long timestamp, Map<String, String> tags, short flags, byte[] value) {
+        try {
+            byte[] row = Bytes.fromLong((long) (metric.hashCode() * 31 + tags.hashCode()) << 32 |
+                OpenTsdbPointWriter.baseTime(timestamp));
+            return this.client.put(new PutRequest(this.table, row, OpenTsdbPointWriter.FAMILY,
+                Internal.buildQualifier(timestamp, flags), value));
+        } catch (Exception ex) {
+            return Deferred.fromError(ex);
+        }
+    }
+
+    @Override
+    public byte[] getUID(UniqueId.UniqueIdType type, String name) {
+        short width;
+        switch (type) {
+            case METRIC:
+                width = TSDB.metrics_width();
+                break;
+            case TAGK:
+                width = TSDB.tagk_width();
+                break;
+            default:
+                width = TSDB.tagv_width();
+        }
+        int hash = name.hashCode();
+        byte[] uid = new byte[width];
+        for (int i = 0; i < width; i++) {
+            uid[width - 1 - i] = (byte) (hash >>> (i * 8));
+        }
+        return uid;
+    }
+
+    @Override
+    public Deferred<Object> flush() {
+        return Deferred.fromResult(null);
+    }
+
+    /**
+     * @return The fake HBase client.
+     */
+    public FakeHBaseClient getFakeClient() {
+        return this.client;
+    }
+}
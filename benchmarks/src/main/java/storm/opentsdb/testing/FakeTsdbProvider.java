@@ -0,0 +1,39 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.testing;
+
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+import storm.opentsdb.utils.IOpenTsdbClientProvider;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * <p>
+ * Provide FakeTsdb clients to OpenTsdbClientFactory.
+ * </p>
+ * <p>
+ * Set the "storm.opentsdb.client.provider" topology config key to this class
+ * name. The fake HBase client is configured by the HBase cluster config map,
+ * see FakeHBaseClient and FakeLatency for the available keys.
+ * </p>
+ */
+public class FakeTsdbProvider implements IOpenTsdbClientProvider {
+    @Override
+    @SuppressWarnings("unchecked")
+    public TSDB getTsdbClient(Map config, Map<String, String> conf, String hBaseCluster, String name) {
+        try {
+            Config openTsdbConfig = new Config(false);
+            openTsdbConfig.overrideConfig("tsd.storage.enable_compaction", "false");
+            for (String key : conf.keySet()) {
+                openTsdbConfig.overrideConfig(key, conf.get(key));
+            }
+            return new FakeTsdb(new FakeHBaseClient((Map<String, String>) config.get(hBaseCluster)), openTsdbConfig);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.testing;
+
+import backtype.storm.spout.SpoutOutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.topology.base.BaseRichSpout;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Values;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Spout emitting anchored points as fast as max spout pending allows.
+ * </p>
+ * <p>
+ * Emits metric, timestamp, value and tags fields cycling over a fixed
+ * number of series. The ack latency of every tuple is recorded in a JVM
+ * wide histogram with a millisecond resolution so that a LocalCluster
+ * harness can report percentiles.
+ * </p>
+ */
+public class LoadTestSpout extends BaseRichSpout {
+    private static final long[] histogram = new long[60001];
+
+    private final String metric;
+    private final int series;
+    private final int burst;
+
+    private transient SpoutOutputCollector collector;
+    private transient Map<String, String>[] tags;
+    private transient int next;
+
+    /**
+     * @param metric The metric to write.
+     * @param series Number of distinct series.
+     * @param burst  Number of tuples to emit per nextTuple call.
+     */
+    public LoadTestSpout(String metric, int series, int burst) {
+        this.metric = metric;
+        this.series = series;
+        this.burst = burst;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void open(Map conf, TopologyContext context, SpoutOutputCollector collector) {
+        this.collector = collector;
+        this.tags = new Map[this.series];
+        for (int i = 0; i < this.series; i++) {
+            this.tags[i] = new HashMap<>();
+            this.tags[i].put("host", "host-" + i);
+            this.tags[i].put("task", Integer.toString(context.getThisTaskId()));
+        }
+    }
+
+    @Override
+    public void nextTuple() {
+        long timestamp = System.currentTimeMillis() / 1000;
+        for (int i = 0; i < this.burst; i++) {
+            this.collector.emit(
+                new Values(this.metric, timestamp, (double) this.next, this.tags[this.next]),
+                System.nanoTime());
+            this.next = (this.next + 1) % this.series;
+        }
+    }
+
+    @Override
+    public void ack(Object msgId) {
+        record(System.nanoTime() - (Long) msgId);
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+        declarer.declare(new Fields("metric", "timestamp", "value", "tags"));
+    }
+
+    private static synchronized void record(long nanos) {
+        histogram[(int) Math.min(histogram.length - 1, nanos / 1000000)]++;
+    }
+
+    /**
+     * <p>
+     * Compute a percentile of the ack latencies recorded since the last call
+     * and reset the histogram.
+     * </p>
+     *
+     * @param percentile The percentile between 0 and 100.
+     * @return The latency in milliseconds, -1 if nothing was acked.
+     */
+    public static synchronized long getAndResetPercentile(double percentile) {
+        long count = 0;
+        for (long bucket : histogram) {
+            count += bucket;
+        }
+        long result = -1;
+        long target = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (result < 0 && count > 0 && seen >= target) {
+                result = i;
+            }
+            histogram[i] = 0;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.testing;
+
+import backtype.storm.Config;
+import backtype.storm.LocalCluster;
+import backtype.storm.generated.StormTopology;
+import backtype.storm.topology.TopologyBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.opentsdb.bolt.OpenTsdbBolt;
+import storm.opentsdb.example.topology.OpenTsdbTridentExampleTopology;
+import storm.opentsdb.utils.OpenTsdbClientFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Run a topology in a LocalCluster against the FakeTsdbProvider and
+ * report the sustained points/s and the p99 ack latency.
+ * </p>
+ * <p>
+ * Usage : OpenTsdbLoadTest [bolt|trident] [duration in seconds]<br/>
+ * The bolt mode drives an OpenTsdbBolt with a LoadTestSpout, the trident
+ * mode runs the OpenTsdbTridentExampleTopology ( no ack latency ).
+ * The fake backend is configured with "fake.*" system properties, see
+ * FakeHBaseClient. The bolt is configured with the following system properties :
+ * load.series, load.pending, load.batch, load.coalesce and load.cache.
+ * </p>
+ */
+public class OpenTsdbLoadTest {
+    public static final Logger log = LoggerFactory.getLogger(OpenTsdbLoadTest.class);
+
+    public static StormTopology buildBoltTopology() {
+        int series = Integer.getInteger("load.series", 10000);
+        int batch = Integer.getInteger("load.batch", 0);
+
+        TopologyBuilder builder = new TopologyBuilder();
+        builder.setSpout("spout", new LoadTestSpout("load.test", series, 100), 1);
+        builder
+            .setBolt("opentsdb", new OpenTsdbBolt("hbase-cluster", "test-tsdb")
+                .setBatchSize(batch)
+                .setFlushInterval(batch > 0 ? 1 : 0)
+                .setCoalesceRows(Boolean.getBoolean("load.coalesce"))
+                .setSeriesCacheSize(Integer.getInteger("load.cache", 0)), 1)
+            .shuffleGrouping("spout");
+        return builder.createTopology();
+    }
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "bolt";
+        int duration = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+
+        Config conf = new Config();
+        conf.setMaxSpoutPending(Integer.getInteger("load.pending", 10000));
+        conf.put(OpenTsdbClientFactory.PROVIDER, FakeTsdbProvider.class.getName());
+
+        Map<String, String> hBaseConfig = new HashMap<>();
+        for (String key : System.getProperties().stringPropertyNames()) {
+            if (key.startsWith("fake.")) {
+                hBaseConfig.put(key, System.getProperty(key));
+            }
+        }
+        conf.put("hbase-cluster", hBaseConfig);
+
+        Map<String, String> openTsdbConfig = new HashMap<>();
+        openTsdbConfig.put("tsd.core.auto_create_metrics", "true");
+        conf.put("test-tsdb", openTsdbConfig);
+
+        StormTopology topology = "trident".equals(mode) ?
+            OpenTsdbTridentExampleTopology.buildTopology(null) : buildBoltTopology();
+
+        LocalCluster cluster = new LocalCluster();
+        cluster.submitTopology("OpenTsdbLoadTest", conf, topology);
+
+        long start = System.currentTimeMillis();
+        long startPoints = FakeHBaseClient.getPoints();
+        long lastPoints = startPoints;
+        for (int elapsed = 10; elapsed <= duration; elapsed += 10) {
+            Thread.sleep(10000);
+            long points = FakeHBaseClient.getPoints();
+            log.info("Load test : " + (points - lastPoints) / 10 + " points/s, " +
+                FakeHBaseClient.getErrors() + " errors, p99 ack latency " +
+                LoadTestSpout.getAndResetPercentile(99) + "ms");
+            lastPoints = points;
+        }
+        double seconds = (System.currentTimeMillis() - start) / 1000.0;
+        log.info("Load test done : " + (long) ((FakeHBaseClient.getPoints() - startPoints) / seconds) +
+            " points/s sustained over " + (long) seconds + "s, " +
+            FakeHBaseClient.getRpcs() + " RPCs, " + FakeHBaseClient.getErrors() + " errors");
+
+        cluster.killTopology("OpenTsdbLoadTest");
+        cluster.shutdown();
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.bolt;
+
+import backtype.storm.tuple.Tuple;
+import storm.opentsdb.model.OpenTsdbPoint;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Open addressing hash table of the running aggregates ( count, sum,
+ * min, max, last ) of each series and window for the OpenTsdbAggregatingBolt.
+ * </p>
+ * <p>
+ * Keys and aggregates are stored in parallel primitive arrays so adding
+ * a point to a known series and window allocates nothing. Series are
+ * compared by identity first, interned metrics and OpenTsdbTagSet make
+ * this the common case.<br/>
+ * Each slot has a deadline, the time in seconds after which its window
+ * can be closed. Closed slots are removed by moving the remaining ones
+ * to a spare set of arrays which is swapped with the current one, so no
+ * tombstone is ever left behind.<br/>
+ * This class is not thread safe, it is meant to be used by the
+ * executor thread only.
+ * </p>
+ */
+public class OpenTsdbAggregateTable {
+    private Slots slots;
+    private Slots spare;
+
+    /**
+     * @param capacity Initial number of series and windows.
+     */
+    public OpenTsdbAggregateTable(int capacity) {
+        int slots = Integer.highestOneBit(Math.max(capacity, 8) * 2 - 1) << 1;
+        this.slots = new Slots(slots);
+        this.spare = new Slots(slots);
+    }
+
+    /**
+     * @param point    The point to aggregate.
+     * @param window   Start of the point window.
+     * @param deadline Time in seconds after which the window can be closed.
+     * @return The slot of the series and window.
+     */
+    public int add(OpenTsdbPoint point, long window, long deadline) {
+        if ((this.slots.size + 1) * 2 > this.slots.capacity()) {
+            this.grow();
+        }
+        Slots s = this.slots;
+        String metric = point.getMetric();
+        Map<String, String> tags = point.getTags();
+        int hash = hash(metric, tags, window);
+        int i = s.find(metric, tags, window, hash);
+
+        boolean integer = point.isInteger();
+        double value = integer ? point.getLongValue() : point.getValue();
+        long timestamp = point.getTimestamp();
+        if (s.metrics[i] == null) {
+            s.metrics[i] = metric;
+            s.tags[i] = tags;
+            s.windows[i] = window;
+            s.hashes[i] = hash;
+            s.deadlines[i] = deadline;
+            s.counts[i] = 1;
+            s.sums[i] = value;
+            s.mins[i] = value;
+            s.maxs[i] = value;
+            s.lasts[i] = value;
+            s.timestamps[i] = timestamp;
+            s.integers[i] = integer;
+            s.size++;
+            return i;
+        }
+
+        s.counts[i]++;
+        s.sums[i] += value;
+        if (value < s.mins[i]) {
+            s.mins[i] = value;
+        }
+        if (value > s.maxs[i]) {
+            s.maxs[i] = value;
+        }
+        if (timestamp >= s.timestamps[i]) {
+            s.lasts[i] = value;
+            s.timestamps[i] = timestamp;
+        }
+        s.integers[i] &= integer;
+        return i;
+    }
+
+    /**
+     * <p>
+     * Anchor the aggregate of a slot to a tuple.
+     * </p>
+     *
+     * @param i     The slot.
+     * @param tuple The tuple the aggregate comes from.
+     */
+    public void anchor(int i, Tuple tuple) {
+        ArrayList<Tuple> anchors = this.slots.anchors[i];
+        if (anchors == null) {
+            anchors = new ArrayList<>();
+            this.slots.anchors[i] = anchors;
+        }
+        // Most tuples only add one point to a given slot
+        if (anchors.isEmpty() || anchors.get(anchors.size() - 1) != tuple) {
+            anchors.add(tuple);
+        }
+    }
+
+    /**
+     * <p>
+     * Remove every slot whose deadline is passed, the caller is
+     * expected to have read them with isClosed before.
+     * </p>
+     *
+     * @param now Current time in seconds.
+     * @return Number of removed slots.
+     */
+    public int removeClosed(long now) {
+        Slots s = this.slots;
+        int removed = 0;
+        for (int i = 0; i < s.capacity(); i++) {
+            if (s.metrics[i] == null) {
+                continue;
+            }
+            if (s.deadlines[i] <= now) {
+                removed++;
+            } else {
+                this.spare.move(s, i);
+            }
+            s.release(i);
+        }
+        s.size = 0;
+        this.slots = this.spare;
+        this.spare = s;
+        return removed;
+    }
+
+    private void grow() {
+        Slots s = this.slots;
+        Slots grown = new Slots(s.capacity() * 2);
+        for (int i = 0; i < s.capacity(); i++) {
+            if (s.metrics[i] != null) {
+                grown.move(s, i);
+            }
+        }
+        this.slots = grown;
+        this.spare = new Slots(grown.capacity());
+    }
+
+    private static int hash(String metric, Map<String, String> tags, long window) {
+        int hash = (31 * metric.hashCode() + tags.hashCode()) * 31 + (int) (window ^ (window >>> 32));
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return Number of slots to iterate over.
+     */
+    public int capacity() {
+        return this.slots.capacity();
+    }
+
+    /**
+     * @return Number of series and windows.
+     */
+    public int size() {
+        return this.slots.size;
+    }
+
+    /**
+     * @param i   The slot.
+     * @param now Current time in seconds.
+     * @return Whether the slot is used and its deadline is passed.
+     */
+    public boolean isClosed(int i, long now) {
+        return this.slots.metrics[i] != null && this.slots.deadlines[i] <= now;
+    }
+
+    /**
+     * @param i The slot.
+     * @return The metric of the slot.
+     */
+    public String getMetric(int i) {
+        return this.slots.metrics[i];
+    }
+
+    /**
+     * @param i The slot.
+     * @return The tags of the slot.
+     */
+    public Map<String, String> getTags(int i) {
+        return this.slots.tags[i];
+    }
+
+    /**
+     * @param i The slot.
+     * @return Start of the slot window.
+     */
+    public long getWindow(int i) {
+        return this.slots.windows[i];
+    }
+
+    /**
+     * @param i The slot.
+     * @return Number of aggregated points.
+     */
+    public long getCount(int i) {
+        return this.slots.counts[i];
+    }
+
+    /**
+     * @param i The slot.
+     * @return Sum of the aggregated values.
+     */
+    public double getSum(int i) {
+        return this.slots.sums[i];
+    }
+
+    /**
+     * @param i The slot.
+     * @return Minimum of the aggregated values.
+     */
+    public double getMin(int i) {
+        return this.slots.mins[i];
+    }
+
+    /**
+     * @param i The slot.
+     * @return Maximum of the aggregated values.
+     */
+    public double getMax(int i) {
+        return this.slots.maxs[i];
+    }
+
+    /**
+     * @param i The slot.
+     * @return Value of the point with the latest timestamp.
+     */
+    public double getLast(int i) {
+        return this.slots.lasts[i];
+    }
+
+    /**
+     * @param i The slot.
+     * @return Whether all the aggregated values were integers.
+     */
+    public boolean isInteger(int i) {
+        return this.slots.integers[i];
+    }
+
+    /**
+     * @param i The slot.
+     * @return The tuples the aggregate comes from, empty if not anchored.
+     */
+    public List<Tuple> getAnchors(int i) {
+        ArrayList<Tuple> anchors = this.slots.anchors[i];
+        if (anchors == null) {
+            return new ArrayList<>(0);
+        }
+        return anchors;
+    }
+
+    /**
+     * One set of parallel arrays.
+     */
+    static final class Slots {
+        final String[] metrics;
+        final Map<String, String>[] tags;
+        final long[] windows;
+        final int[] hashes;
+        final long[] deadlines;
+        final long[] counts;
+        final double[] sums;
+        final double[] mins;
+        final double[] maxs;
+        final double[] lasts;
+        final long[] timestamps;
+        final boolean[] integers;
+        final ArrayList<Tuple>[] anchors;
+        final int mask;
+        int size = 0;
+
+        @SuppressWarnings("unchecked")
+        Slots(int capacity) {
+            this.metrics = new String[capacity];
+            this.tags = new Map[capacity];
+            this.windows = new long[capacity];
+            this.hashes = new int[capacity];
+            this.deadlines = new long[capacity];
+            this.counts = new long[capacity];
+            this.sums = new double[capacity];
+            this.mins = new double[capacity];
+            this.maxs = new double[capacity];
+            this.lasts = new double[capacity];
+            this.timestamps = new long[capacity];
+            this.integers = new boolean[capacity];
+            this.anchors = new ArrayList[capacity];
+            this.mask = capacity - 1;
+        }
+
+        int capacity() {
+            return this.metrics.length;
+        }
+
+        /**
+         * @return The slot of the key or the free slot where to insert it.
+         */
+        int find(String metric, Map<String, String> tags, long window, int hash) {
+            int i = hash & this.mask;
+            while (this.metrics[i] != null) {
+                if (this.hashes[i] == hash && this.windows[i] == window &&
+                    (this.metrics[i] == metric || this.metrics[i].equals(metric)) &&
+                    (this.tags[i] == tags || this.tags[i].equals(tags))) {
+                    return i;
+                }
+                i = (i + 1) & this.mask;
+            }
+            return i;
+        }
+
+        /**
+         * Copy slot j of from into a free slot, the anchor lists are swapped.
+         */
+        void move(Slots from, int j) {
+            int i = from.hashes[j] & this.mask;
+            while (this.metrics[i] != null) {
+                i = (i + 1) & this.mask;
+            }
+            this.metrics[i] = from.metrics[j];
+            this.tags[i] = from.tags[j];
+            this.windows[i] = from.windows[j];
+            this.hashes[i] = from.hashes[j];
+            this.deadlines[i] = from.deadlines[j];
+            this.counts[i] = from.counts[j];
+            this.sums[i] = from.sums[j];
+            this.mins[i] = from.mins[j];
+            this.maxs[i] = from.maxs[j];
+            this.lasts[i] = from.lasts[j];
+            this.timestamps[i] = from.timestamps[j];
+            this.integers[i] = from.integers[j];
+            ArrayList<Tuple> anchors = this.anchors[i];
+            this.anchors[i] = from.anchors[j];
+            from.anchors[j] = anchors;
+            this.size++;
+        }
+
+        /**
+         * Free the slot, the anchor list is kept for reuse.
+         */
+        void release(int i) {
+            this.metrics[i] = null;
+            this.tags[i] = null;
+            if (this.anchors[i] != null) {
+                this.anchors[i].clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.bolt;
+
+import backtype.storm.Config;
+import backtype.storm.Constants;
+import backtype.storm.metric.api.CountMetric;
+import backtype.storm.metric.api.MultiCountMetric;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.IRichBolt;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.Values;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.opentsdb.bolt.mapper.IOpenTsdbMapper;
+import storm.opentsdb.bolt.mapper.IOpenTsdbMultiPointMapper;
+import storm.opentsdb.bolt.mapper.IOpenTsdbPointMapper;
+import storm.opentsdb.bolt.mapper.OpenTsdbMapper;
+import storm.opentsdb.bolt.mapper.OpenTsdbTupleFieldMapper;
+import storm.opentsdb.model.OpenTsdbAggregate;
+import storm.opentsdb.model.OpenTsdbPoint;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * This bolt pre-aggregates OpenTSDB points over tumbling windows before
+ * they are written, to cut the write load of high frequency series
+ * queried at a lower resolution.
+ * </p>
+ * <p>
+ * Tuples are mapped with the same mappers as the OpenTsdbBolt. The count,
+ * sum, min, max and last value of each series and window are kept in an
+ * OpenTsdbAggregateTable. On close the bolt emits one point per configured
+ * aggregate, named metric.aggregate ( ie : sys.cpu.user.avg ) and
+ * timestamped at the window start, in the metric, timestamp, value and
+ * tags fields expected by the default OpenTsdbBolt constructor.
+ * </p>
+ * <p>
+ * Event time and wall clock :<br/>
+ * Windows are aligned on the point timestamps ( seconds or milliseconds )
+ * but are closed on wall clock time, on the first tick tuple once the
+ * window end plus the allowed lateness is passed. A point is late when
+ * its window end plus the lateness is before the last close, which is
+ * the case of backfilled points and of producers whose clock lags by
+ * more than the lateness.
+ * </p>
+ * <p>
+ * Reliability :<br/>
+ * By default each aggregate is anchored to the tuples it comes from and
+ * the input tuples are acked once all the windows they contribute to are
+ * closed. Tuples are held for the window size plus the lateness, make sure
+ * topology.message.timeout.secs is larger. A tuple that fails to map is
+ * failed, the points it already added stay in their windows.<br/>
+ * A failed write fails the input tuples of the window and the spout
+ * replays them. The replayed points are late, they re-open their window
+ * which is closed and emitted again once the lateness ( at least one tick
+ * interval ) is passed. The emitted aggregates overwrite the written ones
+ * with those of the points received since the window was re-opened : this
+ * is exact for a replayed window whose tuples are all replayed, but a late
+ * point that is not a replay replaces the aggregates of its window with
+ * its own. Set the lateness above the expected event time lag.<br/>
+ * With setAnchored(false) the input tuples are acked right away, the
+ * aggregates are emitted unanchored and late points are dropped.
+ * </p>
+ * <p>
+ * Metrics :<br/>
+ * The bolt registers an "opentsdb-aggregator" Storm metric reporting the
+ * number of points received, late points ( re-opening their window or
+ * dropped ) and aggregates emitted.
+ * </p>
+ * <pre>
+ *     builder.setBolt("aggregator", new OpenTsdbAggregatingBolt(mapper, 60)
+ *            .setAggregates(OpenTsdbAggregate.AVG, OpenTsdbAggregate.MAX), 4)
+ *            .fieldsGrouping("events", new Fields("metric"));
+ *     builder.setBolt("opentsdb", new OpenTsdbBolt("hbase-cluster", "test-tsdb"), 4)
+ *            .shuffleGrouping("aggregator");
+ * </pre>
+ * Use a fields grouping so all the points of a series reach the same task.
+ */
+public class OpenTsdbAggregatingBolt implements IRichBolt {
+    public static final Logger log = LoggerFactory.getLogger(OpenTsdbAggregatingBolt.class);
+    public static final String METRIC = "opentsdb-aggregator";
+
+    // Same test as OpenTSDB to tell milliseconds from seconds
+    private static final long SECOND_MASK = 0xFFFFFFFF00000000L;
+
+    private final IOpenTsdbMapper mapper;
+    private final int windowSize;
+    private int lateness = 0;
+    private boolean anchored = true;
+    private int tickInterval = 1;
+    private int capacity = 1024;
+    private OpenTsdbAggregate[] aggregates = {
+        OpenTsdbAggregate.AVG, OpenTsdbAggregate.MIN, OpenTsdbAggregate.MAX, OpenTsdbAggregate.COUNT};
+
+    private transient OutputCollector collector;
+    private transient OpenTsdbAggregateTable table;
+    private transient OpenTsdbPoint point;
+    private transient List<IOpenTsdbPointMapper> pointMappers;
+    private transient List<IOpenTsdbMultiPointMapper> multiPointMappers;
+    private transient HashMap<String, String[]> names;
+    private transient ArrayList<Tuple> pending;
+    private transient long[] deadlines;
+    private transient MultiCountMetric metric;
+    private transient CountMetric received;
+    private transient CountMetric emitted;
+    private transient CountMetric late;
+    private transient long closed;
+
+    /**
+     * @param mapper     Mapper containing mapping from storm tuple to
+     *                   one or more OpenTSDB points.
+     * @param windowSize Size of the tumbling windows in seconds.
+     */
+    public OpenTsdbAggregatingBolt(IOpenTsdbMapper mapper, int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Invalid window size " + windowSize);
+        }
+        this.mapper = mapper;
+        this.windowSize = windowSize;
+    }
+
+    /**
+     * @param windowSize Size of the tumbling windows in seconds.
+     *                   <p/>
+     *                   Constructor for a tuple containing 4 standards fields
+     *                   named metric, timestamp, value, tags
+     */
+    public OpenTsdbAggregatingBolt(int windowSize) {
+        this(new OpenTsdbMapper()
+                .addFieldMapper(new OpenTsdbTupleFieldMapper("metric", "timestamp", "value", "tags")),
+            windowSize);
+    }
+
+    /**
+     * @param aggregates The aggregates to emit for each series and window.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbAggregatingBolt setAggregates(OpenTsdbAggregate... aggregates) {
+        if (aggregates.length == 0) {
+            throw new IllegalArgumentException("At least one aggregate is required");
+        }
+        this.aggregates = aggregates;
+        return this;
+    }
+
+    /**
+     * @param lateness How long to wait for late points after the window end
+     *                 (in seconds).
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbAggregatingBolt setLateness(int lateness) {
+        this.lateness = lateness;
+        return this;
+    }
+
+    /**
+     * @param anchored Whether to anchor the aggregates to the input tuples.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbAggregatingBolt setAnchored(boolean anchored) {
+        this.anchored = anchored;
+        return this;
+    }
+
+    /**
+     * @param tickInterval How often to close the windows using tick tuples
+     *                     (in seconds).
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbAggregatingBolt setTickInterval(int tickInterval) {
+        this.tickInterval = tickInterval;
+        return this;
+    }
+
+    /**
+     * @param capacity Initial number of series and windows of the table.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbAggregatingBolt setCapacity(int capacity) {
+        this.capacity = capacity;
+        return this;
+    }
+
+    @Override
+    public void prepare(Map conf, TopologyContext context, OutputCollector collector) {
+        this.prepare(conf, collector);
+        context.registerMetric(METRIC, this.metric, 60);
+    }
+
+    /**
+     * @param conf      Topology configuration.
+     * @param collector The output collector.
+     */
+    void prepare(Map conf, OutputCollector collector) {
+        this.collector = collector;
+        this.mapper.prepare(conf);
+        this.pointMappers = OpenTsdbMapper.pointMappersOf(this.mapper);
+        this.multiPointMappers = OpenTsdbMapper.multiPointMappersOf(this.mapper);
+        this.table = new OpenTsdbAggregateTable(this.capacity);
+        this.point = new OpenTsdbPoint();
+        this.names = new HashMap<>();
+        this.pending = new ArrayList<>();
+        this.deadlines = new long[16];
+        this.metric = new MultiCountMetric();
+        this.received = this.metric.scope("points");
+        this.emitted = this.metric.scope("aggregates");
+        this.late = this.metric.scope("late");
+        this.closed = Long.MIN_VALUE;
+    }
+
+    @Override
+    public void execute(Tuple tuple) {
+        if (isTickTuple(tuple)) {
+            this.close(System.currentTimeMillis() / 1000);
+            return;
+        }
+
+        long deadline = Long.MIN_VALUE;
+        try {
+            for (IOpenTsdbPointMapper pointMapper : this.pointMappers) {
+                if (pointMapper.map(tuple, this.point)) {
+                    deadline = Math.max(deadline, this.aggregate(tuple));
+                }
+            }
+            for (IOpenTsdbMultiPointMapper multiPointMapper : this.multiPointMappers) {
+                if (multiPointMapper.start(tuple)) {
+                    while (multiPointMapper.next(this.point)) {
+                        deadline = Math.max(deadline, this.aggregate(tuple));
+                    }
+                }
+            }
+        } catch (Exception ex) {
+            log.error("OpenTSDB mapping exception : " + ex.toString());
+            this.collector.fail(tuple);
+            return;
+        } finally {
+            this.point.clear();
+        }
+
+        if (!this.anchored || deadline == Long.MIN_VALUE) {
+            this.collector.ack(tuple);
+            return;
+        }
+        int n = this.pending.size();
+        if (n == this.deadlines.length) {
+            long[] grown = new long[n * 2];
+            System.arraycopy(this.deadlines, 0, grown, 0, n);
+            this.deadlines = grown;
+        }
+        this.pending.add(tuple);
+        this.deadlines[n] = deadline;
+    }
+
+    /**
+     * <p>
+     * Add the current point to its series window. If the window was
+     * already closed it is re-opened when anchored, the point is dropped
+     * otherwise.
+     * </p>
+     *
+     * @param tuple The tuple the point comes from.
+     * @return The window deadline in seconds, Long.MIN_VALUE if the point is dropped.
+     */
+    private long aggregate(Tuple tuple) {
+        long timestamp = this.point.getTimestamp();
+        boolean millis = (timestamp & SECOND_MASK) != 0;
+        long size = millis ? this.windowSize * 1000L : this.windowSize;
+        long window = timestamp - ((timestamp % size) + size) % size;
+        long deadline = (millis ? (window + size) / 1000 : window + size) + this.lateness;
+        if (deadline <= this.closed) {
+            this.late.incr();
+            if (!this.anchored) {
+                return Long.MIN_VALUE;
+            }
+            // Most likely a replay after a failed write, wait for the rest of the window
+            deadline = this.closed + Math.max(this.lateness, this.tickInterval);
+        }
+
+        int slot = this.table.add(this.point, window, deadline);
+        if (this.anchored) {
+            this.table.anchor(slot, tuple);
+        }
+        this.received.incr();
+        return deadline;
+    }
+
+    /**
+     * <p>
+     * Emit the aggregates of every window whose deadline is passed,
+     * then ack the input tuples whose windows are all closed.
+     * </p>
+     *
+     * @param now Current time in seconds.
+     */
+    void close(long now) {
+        this.closed = Math.max(this.closed, now);
+        OpenTsdbAggregateTable table = this.table;
+        for (int i = 0; i < table.capacity(); i++) {
+            if (table.isClosed(i, now)) {
+                this.emit(i);
+            }
+        }
+        table.removeClosed(now);
+
+        int kept = 0;
+        for (int i = 0; i < this.pending.size(); i++) {
+            Tuple tuple = this.pending.get(i);
+            if (this.deadlines[i] <= now) {
+                this.collector.ack(tuple);
+            } else {
+                this.pending.set(kept, tuple);
+                this.deadlines[kept] = this.deadlines[i];
+                kept++;
+            }
+        }
+        for (int i = this.pending.size() - 1; i >= kept; i--) {
+            this.pending.remove(i);
+        }
+    }
+
+    /**
+     * @param i The table slot to emit.
+     */
+    private void emit(int i) {
+        OpenTsdbAggregateTable table = this.table;
+        String[] names = this.names(table.getMetric(i));
+        boolean integer = table.isInteger(i);
+        for (int j = 0; j < this.aggregates.length; j++) {
+            Object value;
+            switch (this.aggregates[j]) {
+                case COUNT:
+                    value = table.getCount(i);
+                    break;
+                case SUM:
+                    value = integer ? (Object) (long) table.getSum(i) : (Object) table.getSum(i);
+                    break;
+                case MIN:
+                    value = integer ? (Object) (long) table.getMin(i) : (Object) table.getMin(i);
+                    break;
+                case MAX:
+                    value = integer ? (Object) (long) table.getMax(i) : (Object) table.getMax(i);
+                    break;
+                case LAST:
+                    value = integer ? (Object) (long) table.getLast(i) : (Object) table.getLast(i);
+                    break;
+                default:
+                    value = table.getSum(i) / table.getCount(i);
+            }
+            Values values = new Values(names[j], table.getWindow(i), value, table.getTags(i));
+            if (this.anchored) {
+                this.collector.emit(table.getAnchors(i), values);
+            } else {
+                this.collector.emit(values);
+            }
+            this.emitted.incr();
+        }
+    }
+
+    /**
+     * @param metric The raw metric.
+     * @return The aggregate metric names in aggregate order.
+     */
+    private String[] names(String metric) {
+        String[] names = this.names.get(metric);
+        if (names == null) {
+            names = new String[this.aggregates.length];
+            for (int j = 0; j < names.length; j++) {
+                names[j] = metric + this.aggregates[j].getSuffix();
+            }
+            this.names.put(metric, names);
+        }
+        return names;
+    }
+
+    /**
+     * @param tuple The tuple to check.
+     * @return Whether the tuple is a system tick tuple.
+     */
+    private static boolean isTickTuple(Tuple tuple) {
+        return Constants.SYSTEM_COMPONENT_ID.equals(tuple.getSourceComponent()) &&
+            Constants.SYSTEM_TICK_STREAM_ID.equals(tuple.getSourceStreamId());
+    }
+
+    @Override
+    public void cleanup() {
+        // Emit what we have, the input tuples are replayed anyway if the emits get lost
+        this.close(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+        declarer.declare(new Fields("metric", "timestamp", "value", "tags"));
+    }
+
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        Map<String, Object> conf = new HashMap<>();
+        conf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, this.tickInterval);
+        return conf;
+    }
+}
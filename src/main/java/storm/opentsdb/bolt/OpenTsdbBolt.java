@@ -4,6 +4,8 @@
 
 package storm.opentsdb.bolt;
 
+import backtype.storm.Config;
+import backtype.storm.Constants;
 import backtype.storm.task.OutputCollector;
 import backtype.storm.task.TopologyContext;
 import backtype.storm.topology.IRichBolt;
@@ -12,16 +14,26 @@ import backtype.storm.tuple.Tuple;
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 import net.opentsdb.core.TSDB;
-import org.hbase.async.PleaseThrottleException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import storm.opentsdb.bolt.mapper.IOpenTsdbFieldMapper;
 import storm.opentsdb.bolt.mapper.IOpenTsdbMapper;
+import storm.opentsdb.bolt.mapper.IOpenTsdbMultiPointMapper;
+import storm.opentsdb.bolt.mapper.IOpenTsdbPointMapper;
 import storm.opentsdb.bolt.mapper.OpenTsdbMapper;
 import storm.opentsdb.bolt.mapper.OpenTsdbTupleFieldMapper;
+import storm.opentsdb.model.OpenTsdbPoint;
 import storm.opentsdb.utils.OpenTsdbClientFactory;
+import storm.opentsdb.utils.OpenTsdbConcurrencyLimiter;
+import storm.opentsdb.utils.OpenTsdbDeferredCounter;
+import storm.opentsdb.utils.OpenTsdbMetrics;
+import storm.opentsdb.utils.OpenTsdbPointCompressor;
+import storm.opentsdb.utils.OpenTsdbPointWriter;
+import storm.opentsdb.utils.OpenTsdbRowBatch;
+import storm.opentsdb.utils.OpenTsdbSeriesCache;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -33,12 +45,14 @@ import java.util.Map;
  * You have to provide some OpenTSDB field mappers to map tuple fields to
  * OpenTSDB metric, timestamp, value and tags.
  * </p>
- * By default the bolt is asynchronous ie: the tuples are acked or failed in
- * the Callback when the result is available. So the thread won't block waiting
- * for the response. But callback may be executed by another thread and unfortunately
- * the OuputCollector object is no longer thread safe, so the calls to ack/fail/emit
- * are synchronized. It should be ok as long as you have one tasks per executor
- * thread ( this is the default behaviour of storm ).<br/>
+ * By default the bolt is asynchronous ie: the thread won't block waiting
+ * for the response. The callbacks are executed by AsyncHBase I/O threads and
+ * the OuputCollector object is not thread safe, so the callbacks only push the
+ * tuple outcome to a lock free OpenTsdbCompletionQueue. The executor thread
+ * acks or fails the completed tuples on its next execute call or tick tuple.
+ * In asynchronous mode the bolt requests a tick tuple every second ( or every
+ * flush interval in batch mode ) so that completions are drained even when no
+ * more tuples come in.<br/>
  * You may make the bolt synchronous by calling setAsync(false) but of course it's
  * killing performance.<br/>
  * Note : Even in synchronous mode multiple RPCs for the same tuple will run in parallel.
@@ -49,13 +63,55 @@ import java.util.Map;
  * "There are now N RPCs pending due to NSRE on..." in the logs and the AsyncHBase
  * client will trigger a PleaseThrottleException when reaching 10k pending requests
  * on a specific region. This appends especially when HBase is splitting regions.<br/>
- * This bolt will try to throttle stream speed by turning some execute calls to
- * synchronous mode and sleeping a little.<br/>
+ * This bolt limits the number of points in flight with an adaptive
+ * OpenTsdbConcurrencyLimiter. The limit shrinks on PleaseThrottleException
+ * or when the latency increases and slowly grows back otherwise. The execute
+ * method blocks only as long as needed for in flight points to complete.<br/>
  * Please verify that your spout ack tuples and use conf.setMaxSpoutPending
  * to control stream speed.
  * Tuple failed due to PleaseThrottleExecption have to be replayed by the spout if
  * needed.<br/>
- * Note: the throttle code comes from net.opentsdb.tools.TextImporter
+ * </p>
+ * <p>
+ * Batching :<br/>
+ * By default each tuple is written and acked on its own. You may enable
+ * the batch mode by calling setBatchSize, setBatchBytes and/or setFlushInterval.
+ * Points from many tuples are then buffered and written all at once when
+ * the buffer reaches N points, M bytes or when a tick tuple is received.
+ * All the tuples of a batch are acked or failed together when the whole batch
+ * is written.<br/>
+ * In batch mode setCoalesceRows(true) groups the points of the batch by
+ * OpenTSDB row and writes each row with a single PutRequest. This requires
+ * a series cache, otherwise the points are written one by one on flush.
+ * </p>
+ * <p>
+ * Metrics :<br/>
+ * The bolt registers an "opentsdb" Storm metric reporting the points written
+ * per second, a latency histogram, the errors by exception class and the
+ * concurrency limiter state ( in flight points, throttle count and time ).
+ * </p>
+ * <p>
+ * Shutdown :<br/>
+ * On cleanup the bolt stops accepting tuples, flushes the pending batch and
+ * the HBase client, then waits up to the shutdown timeout for the points in
+ * flight to complete. The number of flushed and abandoned points is logged.
+ * </p>
+ * <p>
+ * Compression :<br/>
+ * By calling setCompressor the points of flat series are suppressed with a
+ * deadband or swinging door compression before they are written. See
+ * OpenTsdbPointCompressor for details.<br/>
+ * In asynchronous mode the tuple of a point held by the swinging door is
+ * acked once the held point is written or superseded by a later point of
+ * the series. Held points are written by the next point of the series, or
+ * on tick tuples once held for the compressor maxHoldTime, and on cleanup.
+ * In synchronous mode the tuples of held points are acked right away.
+ * </p>
+ * <p>
+ * Series cache :<br/>
+ * By calling setSeriesCacheSize the bolt will cache the resolved row key of
+ * the most recent series and write the points directly to HBase instead of
+ * using TSDB.addPoint. See OpenTsdbPointWriter for details.
  * </p>
  * <p>
  * Look at storm.opentsdb.example.topology.OpenTsdbBoltEventExampleTopology and
@@ -70,9 +126,28 @@ public class OpenTsdbBolt implements IRichBolt {
     private final IOpenTsdbMapper mapper;
     private OutputCollector collector;
     private TSDB tsdb;
+    private OpenTsdbPointWriter writer;
+    private int seriesCacheSize = 0;
     private boolean async = true;
     private long timeout = 0;
-    private volatile boolean throttle = false;
+    private long shutdownTimeout = 10000;
+    private volatile boolean closing = false;
+    private OpenTsdbConcurrencyLimiter limiter = new OpenTsdbConcurrencyLimiter();
+    private int batchSize = 0;
+    private long batchBytes = 0;
+    private int flushInterval = 0;
+    private boolean coalesceRows = false;
+    private OpenTsdbPointCompressor compressor;
+    private OpenTsdbPointBuffer buffer;
+    private OpenTsdbRowBatch rowBatch;
+    private OpenTsdbCompletionQueue completions;
+    private transient OpenTsdbMetrics metrics;
+    private transient OpenTsdbPoint point;
+    private transient List<IOpenTsdbPointMapper> pointMappers;
+    private transient List<IOpenTsdbMultiPointMapper> multiPointMappers;
+    private transient Deferred<Object> hold;
+    private transient ArrayList<Deferred<Object>> holds;
+    private transient ArrayList<Deferred<Object>> writtenHolds;
 
     /**
      * @param cluster HBaseCluster to use
@@ -118,85 +193,451 @@ public class OpenTsdbBolt implements IRichBolt {
         return this;
     }
 
+    /**
+     * @param shutdownTimeout how long to wait for in flight points on cleanup
+     *                        (in millisecond).
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbBolt setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+        return this;
+    }
+
+    /**
+     * @param limiter The limiter to use to control the number of points in flight.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbBolt setLimiter(OpenTsdbConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+        return this;
+    }
+
+    /**
+     * @param seriesCacheSize Number of series row keys to cache.
+     *                        Use 0 to write with TSDB.addPoint.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbBolt setSeriesCacheSize(int seriesCacheSize) {
+        this.seriesCacheSize = seriesCacheSize;
+        return this;
+    }
+
+    /**
+     * @param batchSize Flush the batch when it contains this many points.
+     *                  Use 0 to disable.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbBolt setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+        return this;
+    }
+
+    /**
+     * @param batchBytes Flush the batch when its estimated size reaches
+     *                   this many bytes. Use 0 to disable.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbBolt setBatchBytes(long batchBytes) {
+        this.batchBytes = batchBytes;
+        return this;
+    }
+
+    /**
+     * @param flushInterval Flush the batch every flushInterval seconds
+     *                      using tick tuples. Use 0 to disable.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbBolt setFlushInterval(int flushInterval) {
+        this.flushInterval = flushInterval;
+        return this;
+    }
+
+    /**
+     * @param coalesceRows Whether to write one PutRequest per OpenTSDB
+     *                     row in batch mode.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbBolt setCoalesceRows(boolean coalesceRows) {
+        this.coalesceRows = coalesceRows;
+        return this;
+    }
+
+    /**
+     * @param compressor Suppress points per series before they are written.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbBolt setCompressor(OpenTsdbPointCompressor compressor) {
+        this.compressor = compressor;
+        return this;
+    }
+
+    /**
+     * @return Whether the batch mode is enabled.
+     */
+    public boolean isBatching() {
+        return this.batchSize > 0 || this.batchBytes > 0 || this.flushInterval > 0;
+    }
+
     @Override
     public void prepare(Map conf, TopologyContext context, OutputCollector collector) {
         this.collector = collector;
         this.tsdb = OpenTsdbClientFactory.getTsdbClient(conf, this.cluster, this.name);
         this.mapper.prepare(conf);
+        this.pointMappers = OpenTsdbMapper.pointMappersOf(this.mapper);
+        this.multiPointMappers = OpenTsdbMapper.multiPointMappersOf(this.mapper);
+        if (this.seriesCacheSize > 0) {
+            OpenTsdbSeriesCache seriesCache = new OpenTsdbSeriesCache(this.tsdb, this.seriesCacheSize);
+            context.registerMetric("opentsdb-series-cache", seriesCache, 60);
+            this.writer = new OpenTsdbPointWriter(this.tsdb, seriesCache);
+        } else {
+            this.writer = new OpenTsdbPointWriter(this.tsdb);
+        }
+        this.completions = new OpenTsdbCompletionQueue();
+        this.point = new OpenTsdbPoint();
+        this.limiter.prepare();
+        this.metrics = new OpenTsdbMetrics(this.limiter).register(context, 60);
+        if (this.compressor != null) {
+            this.compressor.prepare();
+            context.registerMetric("opentsdb-compressor", this.compressor, 60);
+            this.hold = new Deferred<>();
+            this.holds = new ArrayList<>();
+            this.writtenHolds = new ArrayList<>();
+        }
+        if (this.isBatching()) {
+            this.buffer = new OpenTsdbPointBuffer(this.batchSize);
+            if (this.coalesceRows) {
+                this.rowBatch = new OpenTsdbRowBatch(this.writer);
+            }
+        }
     }
 
     @Override
     public void execute(final Tuple tuple) {
-        List<IOpenTsdbFieldMapper> mappers = this.mapper.getFieldMappers();
+        this.completions.drain(this.collector);
+
+        if (this.closing) {
+            this.collector.fail(tuple);
+            return;
+        }
+
+        if (isTickTuple(tuple)) {
+            this.writeHeld(System.currentTimeMillis());
+            if (this.buffer != null) {
+                this.flush();
+            }
+            return;
+        }
+
+        if (this.buffer != null) {
+            this.buffer(tuple);
+            return;
+        }
+
+        List<IOpenTsdbPointMapper> mappers = this.pointMappers;
+        this.acquire(mappers.size());
+        long start = System.nanoTime();
+
         ArrayList<Deferred<Object>> requests = new ArrayList<>(mappers.size());
-        for (IOpenTsdbFieldMapper fieldMapper : mappers) {
-            double value = fieldMapper.getValue(tuple);
-            if (value == (long) value) {
-                try {
-                    requests.add(this.tsdb.addPoint(
-                        fieldMapper.getMetric(tuple),
-                        fieldMapper.getTimestamp(tuple),
-                        (long) value,
-                        fieldMapper.getTags(tuple)
-                    ));
-                } catch (Exception ex) {
-                    requests.add(Deferred.fromError(ex));
+        for (IOpenTsdbPointMapper pointMapper : mappers) {
+            try {
+                if (pointMapper.map(tuple, this.point) && this.compress()) {
+                    requests.add(this.write());
                 }
-            } else {
-                try {
-                    requests.add(this.tsdb.addPoint(
-                        fieldMapper.getMetric(tuple),
-                        fieldMapper.getTimestamp(tuple),
-                        value,
-                        fieldMapper.getTags(tuple)
-                    ));
-                } catch (Exception ex) {
-                    requests.add(Deferred.fromError(ex));
+            } catch (Exception ex) {
+                requests.add(Deferred.<Object>fromError(ex));
+            }
+        }
+        this.limiter.cancel(mappers.size() - requests.size());
+
+        // Multi point mappers : always hold one point for the next request
+        for (IOpenTsdbMultiPointMapper multiPointMapper : this.multiPointMappers) {
+            this.acquire(1);
+            try {
+                if (multiPointMapper.start(tuple)) {
+                    while (multiPointMapper.next(this.point)) {
+                        if (this.compress()) {
+                            requests.add(this.write());
+                            this.acquire(1);
+                        }
+                    }
                 }
+                this.limiter.cancel(1);
+            } catch (Exception ex) {
+                requests.add(Deferred.<Object>fromError(ex));
             }
         }
+        this.point.clear();
+        List<Deferred<Object>> holds = this.takeHolds();
 
         Deferred<ArrayList<Object>> results = Deferred.group(requests);
 
-        if (throttle) {
-            log.warn("Throttling...");
-            long throttle_time = System.nanoTime();
+        if (!this.async) {
             try {
-                results.joinUninterruptibly(this.timeout);
+                ArrayList<Object> result = results.joinUninterruptibly(this.timeout);
+                this.limiter.release(requests.size(), start, false);
+                this.metrics.record(requests.size(), start, null);
+                this.collector.emit(result);
                 this.collector.ack(tuple);
             } catch (Exception ex) {
                 log.error("AsyncHBase exception : " + ex.toString());
+                this.limiter.release(requests.size(), start, OpenTsdbConcurrencyLimiter.isThrottle(ex));
+                this.metrics.record(requests.size(), start, ex);
                 this.collector.fail(tuple);
-            } finally {
-                throttle_time = System.nanoTime() - throttle_time;
-                if (throttle_time < 1000000000L) {
-                    log.info("Got throttled for only " + throttle_time + "ns, sleeping a bit now");
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException ex) {
-                        log.error("AsyncHBase exception : " + ex.toString());
+            }
+        } else {
+            results.addCallbacks(
+                new SuccessCallback(tuple, requests.size(), start, holds),
+                new ErrorCallback(tuple, requests.size(), start));
+        }
+    }
+
+    /**
+     * <p>
+     * Map the tuple to the batch buffer and flush it if it is full.
+     * </p>
+     *
+     * @param tuple The tuple to buffer.
+     */
+    private void buffer(Tuple tuple) {
+        int mark = this.buffer.size();
+        long bytesMark = this.buffer.bytes();
+        int holdMark = this.holds != null ? this.holds.size() : 0;
+        int writtenMark = this.writtenHolds != null ? this.writtenHolds.size() : 0;
+        try {
+            for (IOpenTsdbPointMapper pointMapper : this.pointMappers) {
+                if (pointMapper.map(tuple, this.point) && this.compress()) {
+                    this.buffer.add(this.point, this.batchBytes > 0);
+                }
+            }
+            for (IOpenTsdbMultiPointMapper multiPointMapper : this.multiPointMappers) {
+                if (multiPointMapper.start(tuple)) {
+                    while (multiPointMapper.next(this.point)) {
+                        if (this.compress()) {
+                            this.buffer.add(this.point, this.batchBytes > 0);
+                        }
                     }
                 }
-                log.info("Done throttling...");
-                this.throttle = false;
             }
-        } else if (!this.async) {
+        } catch (Exception ex) {
+            log.error("OpenTSDB mapping exception : " + ex.toString());
+            this.buffer.truncate(mark, bytesMark);
+            if (this.compressor != null) {
+                // The truncated held points will not be written, fail their tuples
+                for (int i = this.writtenHolds.size() - 1; i >= writtenMark; i--) {
+                    this.writtenHolds.remove(i).callback(ex);
+                }
+                for (int i = this.holds.size() - 1; i >= holdMark; i--) {
+                    this.holds.remove(i);
+                }
+            }
+            this.collector.fail(tuple);
+            return;
+        } finally {
+            this.point.clear();
+        }
+        this.buffer.addTuple(tuple);
+
+        if ((this.batchSize > 0 && this.buffer.size() >= this.batchSize) ||
+            (this.batchBytes > 0 && this.buffer.bytes() >= this.batchBytes)) {
+            this.flush();
+        }
+    }
+
+    /**
+     * <p>
+     * Write all buffered points and ack/fail the buffered
+     * tuples once the whole batch is completed.
+     * </p>
+     */
+    private void flush() {
+        if (this.buffer.tuples() == 0 && this.buffer.size() == 0) {
+            return;
+        }
+
+        int points = this.buffer.size();
+        this.acquire(points);
+        long start = System.nanoTime();
+
+        Deferred<Object> result;
+        if (this.rowBatch != null) {
+            for (int i = 0; i < points; i++) {
+                this.rowBatch.add(this.buffer.get(i, this.point));
+            }
+            result = this.rowBatch.flush();
+        } else {
+            OpenTsdbDeferredCounter counter = new OpenTsdbDeferredCounter();
+            for (int i = 0; i < points; i++) {
+                counter.add(this.writer.addPoint(this.buffer.get(i, this.point)));
+            }
+            result = counter.seal();
+        }
+        this.point.clear();
+        List<Tuple> tuples = this.buffer.clear();
+        List<Deferred<Object>> holds = this.takeHolds();
+        if (this.writtenHolds != null) {
+            for (Deferred<Object> writtenHold : this.writtenHolds) {
+                result.chain(writtenHold);
+            }
+            this.writtenHolds.clear();
+        }
+
+        if (!this.async) {
             try {
-                this.collector.emit(results.joinUninterruptibly(this.timeout));
-                this.collector.ack(tuple);
+                result.joinUninterruptibly(this.timeout);
+                this.limiter.release(points, start, false);
+                this.metrics.record(points, start, null);
+                for (Tuple tuple : tuples) {
+                    this.collector.ack(tuple);
+                }
             } catch (Exception ex) {
                 log.error("AsyncHBase exception : " + ex.toString());
-                this.collector.fail(tuple);
+                this.limiter.release(points, start, OpenTsdbConcurrencyLimiter.isThrottle(ex));
+                this.metrics.record(points, start, ex);
+                for (Tuple tuple : tuples) {
+                    this.collector.fail(tuple);
+                }
             }
         } else {
-            results.addCallbacks(new SuccessCallback(tuple), new ErrorCallback(tuple));
+            result.addCallbacks(
+                new BatchSuccessCallback(tuples, points, start, holds),
+                new BatchErrorCallback(tuples, points, start));
+        }
+    }
+
+    /**
+     * <p>
+     * In asynchronous mode the hold Deferred of a held point is kept for
+     * the current tuple or batch, and in batch mode the hold Deferred of
+     * a written held point is kept to be chained to the batch result.
+     * </p>
+     *
+     * @return False if the compressor suppressed the current point.
+     */
+    private boolean compress() {
+        if (this.compressor == null) {
+            return true;
+        }
+        if (!this.async) {
+            return this.compressor.compress(this.point);
+        }
+        boolean write = this.compressor.compress(this.point, this.hold);
+        if (this.compressor.isHeld()) {
+            this.holds.add(this.hold);
+            this.hold = new Deferred<>();
+        }
+        if (write && this.buffer != null && this.compressor.getWrittenHold() != null) {
+            this.writtenHolds.add(this.compressor.getWrittenHold());
+        }
+        return write;
+    }
+
+    /**
+     * @return The write result of the current point, chained to
+     * the hold Deferred of the point if it was held.
+     */
+    private Deferred<Object> write() {
+        Deferred<Object> result = this.writer.addPoint(this.point);
+        Deferred<Object> writtenHold = this.compressor != null ? this.compressor.getWrittenHold() : null;
+        if (writtenHold != null) {
+            result.chain(writtenHold);
         }
+        return result;
+    }
+
+    /**
+     * @return The hold Deferreds of the current tuple or batch, null if none.
+     */
+    private List<Deferred<Object>> takeHolds() {
+        if (this.holds == null || this.holds.isEmpty()) {
+            return null;
+        }
+        List<Deferred<Object>> holds = this.holds;
+        this.holds = new ArrayList<>();
+        return holds;
+    }
+
+    /**
+     * <p>
+     * Write the points held by the compressor for longer than its
+     * maxHoldTime and the held points of evicted series.
+     * </p>
+     *
+     * @param now Current time in milliseconds, Long.MAX_VALUE to write all held points.
+     */
+    private void writeHeld(long now) {
+        if (this.compressor == null) {
+            return;
+        }
+        if (this.buffer != null) {
+            while (this.compressor.pollExpired(now, this.point)) {
+                this.buffer.add(this.point, this.batchBytes > 0);
+                if (this.compressor.getWrittenHold() != null) {
+                    this.writtenHolds.add(this.compressor.getWrittenHold());
+                }
+            }
+            this.point.clear();
+            return;
+        }
+
+        OpenTsdbDeferredCounter counter = null;
+        int points = 0;
+        long start = System.nanoTime();
+        while (this.compressor.pollExpired(now, this.point)) {
+            this.acquire(1);
+            if (counter == null) {
+                counter = new OpenTsdbDeferredCounter();
+            }
+            counter.add(this.write());
+            points++;
+        }
+        this.point.clear();
+        if (counter != null) {
+            List<Tuple> none = Collections.emptyList();
+            counter.seal().addCallbacks(
+                new BatchSuccessCallback(none, points, start, null),
+                new BatchErrorCallback(none, points, start));
+        }
+    }
+
+    /**
+     * <p>
+     * Wait for the limiter to admit n more points, acking
+     * and failing completed tuples in the meantime.
+     * </p>
+     *
+     * @param n Number of points to dispatch.
+     */
+    private void acquire(int n) {
+        try {
+            while (!this.limiter.acquire(n, 10)) {
+                this.completions.drain(this.collector);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            this.limiter.acquireUninterruptibly(n);
+        }
+    }
+
+    /**
+     * @param tuple The tuple to check.
+     * @return Whether the tuple is a system tick tuple.
+     */
+    private static boolean isTickTuple(Tuple tuple) {
+        return Constants.SYSTEM_COMPONENT_ID.equals(tuple.getSourceComponent()) &&
+            Constants.SYSTEM_TICK_STREAM_ID.equals(tuple.getSourceStreamId());
     }
 
     @Override
     public void cleanup() {
-        // TODO gracefully shutdown HBaseClient.
-        // TODO gracefully shutdown OpenTSDB Client
+        this.closing = true;
+        this.writeHeld(Long.MAX_VALUE);
+        if (this.buffer != null) {
+            this.flush();
+        }
+
+        this.limiter.drain(this.tsdb, this.shutdownTimeout);
+        this.completions.drain(this.collector);
+        OpenTsdbClientFactory.releaseTsdbClient(this.tsdb);
     }
 
     @Override
@@ -206,48 +647,151 @@ public class OpenTsdbBolt implements IRichBolt {
 
     @Override
     public Map<String, Object> getComponentConfiguration() {
+        if (this.flushInterval > 0 || this.async || this.compressor != null) {
+            Map<String, Object> conf = new HashMap<>();
+            conf.put(Config.TOPOLOGY_TICK_TUPLE_FREQ_SECS, this.flushInterval > 0 ? this.flushInterval : 1);
+            return conf;
+        }
         return null;
     }
 
     /**
-     * Called on success in async mode to asynchronously ack the tuple.
+     * Called on success in async mode to hand the tuple over to the executor thread for ack.
      */
     class SuccessCallback implements Callback<Object, ArrayList<Object>> {
         final Tuple tuple;
+        final int points;
+        final long start;
+        final List<Deferred<Object>> holds;
 
-        SuccessCallback(Tuple tuple) {
+        SuccessCallback(Tuple tuple, int points, long start, List<Deferred<Object>> holds) {
             this.tuple = tuple;
+            this.points = points;
+            this.start = start;
+            this.holds = holds;
         }
 
         @Override
         public Object call(ArrayList<Object> results) throws Exception {
-            synchronized (collector) {
-                collector.ack(tuple);
+            limiter.release(points, start, false);
+            metrics.record(points, start, null);
+            if (holds == null) {
+                completions.ack(tuple);
+            } else {
+                List<Tuple> tuples = Collections.singletonList(tuple);
+                Deferred.group(holds).addCallbacks(new HoldCallback(tuples), new HoldErrback(tuples));
             }
             return null;
         }
     }
 
     /**
-     * Called on failure in async mode to asynchronously fail the tuple.
+     * Called on failure in async mode to hand the tuple over to the executor thread for fail.
      */
     class ErrorCallback implements Callback<Object, Exception> {
         final Tuple tuple;
+        final int points;
+        final long start;
 
-        ErrorCallback(Tuple tuple) {
+        ErrorCallback(Tuple tuple, int points, long start) {
             this.tuple = tuple;
+            this.points = points;
+            this.start = start;
         }
 
         @Override
         public Object call(Exception ex) throws Exception {
             log.error("AsyncHBase exception : " + ex.toString());
-            if (ex instanceof PleaseThrottleException) {
-                throttle = true;
-                return ex;
-            }
-            synchronized (collector) {
-                collector.fail(tuple);
+            limiter.release(points, start, OpenTsdbConcurrencyLimiter.isThrottle(ex));
+            metrics.record(points, start, ex);
+            completions.fail(tuple);
+            return ex;
+        }
+    }
+
+    /**
+     * Called on success in batch mode to hand the batch tuples over to the executor thread for ack.
+     */
+    class BatchSuccessCallback implements Callback<Object, Object> {
+        final List<Tuple> tuples;
+        final int points;
+        final long start;
+        final List<Deferred<Object>> holds;
+
+        BatchSuccessCallback(List<Tuple> tuples, int points, long start, List<Deferred<Object>> holds) {
+            this.tuples = tuples;
+            this.points = points;
+            this.start = start;
+            this.holds = holds;
+        }
+
+        @Override
+        public Object call(Object result) throws Exception {
+            limiter.release(points, start, false);
+            metrics.record(points, start, null);
+            if (holds == null) {
+                completions.ack(tuples);
+            } else {
+                Deferred.group(holds).addCallbacks(new HoldCallback(tuples), new HoldErrback(tuples));
             }
+            return null;
+        }
+    }
+
+    /**
+     * Called on failure in batch mode to hand the batch tuples over to the executor thread for fail.
+     */
+    class BatchErrorCallback implements Callback<Object, Exception> {
+        final List<Tuple> tuples;
+        final int points;
+        final long start;
+
+        BatchErrorCallback(List<Tuple> tuples, int points, long start) {
+            this.tuples = tuples;
+            this.points = points;
+            this.start = start;
+        }
+
+        @Override
+        public Object call(Exception ex) throws Exception {
+            log.error("AsyncHBase exception : " + ex.toString());
+            limiter.release(points, start, OpenTsdbConcurrencyLimiter.isThrottle(ex));
+            metrics.record(points, start, ex);
+            completions.fail(tuples);
+            return ex;
+        }
+    }
+
+    /**
+     * Called once the held points of tuples are written or superseded to hand the tuples over for ack.
+     */
+    class HoldCallback implements Callback<Object, ArrayList<Object>> {
+        final List<Tuple> tuples;
+
+        HoldCallback(List<Tuple> tuples) {
+            this.tuples = tuples;
+        }
+
+        @Override
+        public Object call(ArrayList<Object> results) throws Exception {
+            completions.ack(tuples);
+            return null;
+        }
+    }
+
+    /**
+     * Called when a held point of tuples could not be written to hand the tuples over for fail.
+     */
+    class HoldErrback implements Callback<Object, Exception> {
+        final List<Tuple> tuples;
+
+        HoldErrback(List<Tuple> tuples) {
+            this.tuples = tuples;
+        }
+
+        @Override
+        public Object call(Exception ex) throws Exception {
+            completions.fail(tuples);
             return ex;
         }
     }
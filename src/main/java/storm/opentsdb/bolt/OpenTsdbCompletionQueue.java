@@ -0,0 +1,102 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.bolt;
+
+import backtype.storm.task.OutputCollector;
+import backtype.storm.tuple.Tuple;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * <p>
+ * Lock free hand off of tuple outcomes from the AsyncHBase
+ * callbacks to the bolt executor thread.
+ * </p>
+ * <p>
+ * Callbacks running on AsyncHBase I/O threads only enqueue the
+ * tuple ( or the list of tuples of a batch ) to ack or to fail.
+ * The executor thread drains the queue on its next execute or tick
+ * call so that the OutputCollector is never touched by another thread
+ * and no lock is needed anymore.
+ * </p>
+ */
+public class OpenTsdbCompletionQueue {
+    private final ConcurrentLinkedQueue<Object> acks = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Object> fails = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param tuple The tuple to ack.
+     */
+    public void ack(Tuple tuple) {
+        this.acks.offer(tuple);
+    }
+
+    /**
+     * @param tuples The tuples to ack.
+     */
+    public void ack(List<Tuple> tuples) {
+        this.acks.offer(tuples);
+    }
+
+    /**
+     * @param tuple The tuple to fail.
+     */
+    public void fail(Tuple tuple) {
+        this.fails.offer(tuple);
+    }
+
+    /**
+     * @param tuples The tuples to fail.
+     */
+    public void fail(List<Tuple> tuples) {
+        this.fails.offer(tuples);
+    }
+
+    /**
+     * @return Whether there is nothing to drain.
+     */
+    public boolean isEmpty() {
+        return this.acks.isEmpty() && this.fails.isEmpty();
+    }
+
+    /**
+     * <p>
+     * Ack and fail all the completed tuples.<br/>
+     * Must only be called by the executor thread.
+     * </p>
+     *
+     * @param collector The bolt output collector.
+     * @return Number of tuples acked or failed.
+     */
+    @SuppressWarnings("unchecked")
+    public int drain(OutputCollector collector) {
+        int count = 0;
+        Object completion;
+        while ((completion = this.acks.poll()) != null) {
+            if (completion instanceof Tuple) {
+                collector.ack((Tuple) completion);
+                count++;
+            } else {
+                for (Tuple tuple : (List<Tuple>) completion) {
+                    collector.ack(tuple);
+                    count++;
+                }
+            }
+        }
+        while ((completion = this.fails.poll()) != null) {
+            if (completion instanceof Tuple) {
+                collector.fail((Tuple) completion);
+                count++;
+            } else {
+                for (Tuple tuple : (List<Tuple>) completion) {
+                    collector.fail(tuple);
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.bolt;
+
+import backtype.storm.tuple.Tuple;
+import storm.opentsdb.model.OpenTsdbPoint;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Buffer OpenTSDB points and the tuples they come from until
+ * the OpenTsdbBolt flushes them in a single batch.
+ * </p>
+ * <p>
+ * Points are stored in parallel arrays that are reused from one
+ * batch to the next. The tuple list is handed over to the caller
+ * on flush so that it can be acked once the batch is written.<br/>
+ * Integer values are stored as long and decimal values as the raw
+ * bits of the double so both survive the buffer unchanged.<br/>
+ * This class is not thread safe, it is meant to be used by the
+ * executor thread only.
+ * </p>
+ */
+public class OpenTsdbPointBuffer {
+    private String[] metrics;
+    private long[] timestamps;
+    private long[] values;
+    private boolean[] integers;
+    private Map[] tags;
+    private int size = 0;
+    private long bytes = 0;
+    private ArrayList<Tuple> tuples;
+
+    /**
+     * @param capacity Initial number of points.
+     */
+    public OpenTsdbPointBuffer(int capacity) {
+        capacity = Math.max(capacity, 16);
+        this.metrics = new String[capacity];
+        this.timestamps = new long[capacity];
+        this.values = new long[capacity];
+        this.integers = new boolean[capacity];
+        this.tags = new Map[capacity];
+        this.tuples = new ArrayList<>();
+    }
+
+    /**
+     * @param point    The point to copy.
+     * @param estimate Whether to update the size estimation in bytes.
+     */
+    public void add(OpenTsdbPoint point, boolean estimate) {
+        if (this.size == this.metrics.length) {
+            int capacity = this.size * 2;
+            this.metrics = Arrays.copyOf(this.metrics, capacity);
+            this.timestamps = Arrays.copyOf(this.timestamps, capacity);
+            this.values = Arrays.copyOf(this.values, capacity);
+            this.integers = Arrays.copyOf(this.integers, capacity);
+            this.tags = Arrays.copyOf(this.tags, capacity);
+        }
+        this.metrics[this.size] = point.getMetric();
+        this.timestamps[this.size] = point.getTimestamp();
+        if (point.isInteger()) {
+            this.values[this.size] = point.getLongValue();
+            this.integers[this.size] = true;
+        } else {
+            this.values[this.size] = Double.doubleToRawLongBits(point.getValue());
+            this.integers[this.size] = false;
+        }
+        this.tags[this.size] = point.getTags();
+        this.size++;
+
+        if (estimate) {
+            // metric + timestamp + value + tags
+            long bytes = point.getMetric().length() + 16;
+            for (Map.Entry<String, String> tag : point.getTags().entrySet()) {
+                bytes += tag.getKey().length() + tag.getValue().length();
+            }
+            this.bytes += bytes;
+        }
+    }
+
+    /**
+     * @param tuple The tuple to ack or fail with this batch.
+     */
+    public void addTuple(Tuple tuple) {
+        this.tuples.add(tuple);
+    }
+
+    /**
+     * <p>
+     * Drop every point added after the given mark ( ie : when a
+     * tuple could only be partially mapped ). The size estimation
+     * is restored too as the dropped points may not all have been
+     * estimated.
+     * </p>
+     *
+     * @param mark      Number of points to keep, size() at the mark.
+     * @param bytesMark Estimated size to restore, bytes() at the mark.
+     */
+    public void truncate(int mark, long bytesMark) {
+        for (int i = mark; i < this.size; i++) {
+            this.metrics[i] = null;
+            this.tags[i] = null;
+        }
+        this.size = Math.min(mark, this.size);
+        this.bytes = Math.min(bytesMark, this.bytes);
+    }
+
+    /**
+     * @return Number of buffered points.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return Estimated size of the buffered points in bytes.
+     */
+    public long bytes() {
+        return this.bytes;
+    }
+
+    /**
+     * @return Number of buffered tuples.
+     */
+    public int tuples() {
+        return this.tuples.size();
+    }
+
+    /**
+     * @param i     Index of the point.
+     * @param point The point to fill.
+     * @return The point so you can do method chaining.
+     */
+    @SuppressWarnings("unchecked")
+    public OpenTsdbPoint get(int i, OpenTsdbPoint point) {
+        if (this.integers[i]) {
+            return point.set(this.metrics[i], this.timestamps[i], this.values[i], this.tags[i]);
+        }
+        return point.set(this.metrics[i], this.timestamps[i], Double.longBitsToDouble(this.values[i]), this.tags[i]);
+    }
+
+    /**
+     * <p>
+     * Reset the point arrays and hand over the buffered tuples.
+     * </p>
+     *
+     * @return The tuples of the batch.
+     */
+    public List<Tuple> clear() {
+        Arrays.fill(this.metrics, 0, this.size, null);
+        Arrays.fill(this.tags, 0, this.size, null);
+        this.size = 0;
+        this.bytes = 0;
+
+        List<Tuple> tuples = this.tuples;
+        this.tuples = new ArrayList<>(tuples.size());
+        return tuples;
+    }
+}
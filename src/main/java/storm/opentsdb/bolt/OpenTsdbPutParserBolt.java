@@ -0,0 +1,120 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.bolt;
+
+import backtype.storm.task.OutputCollector;
+import backtype.storm.task.TopologyContext;
+import backtype.storm.topology.IRichBolt;
+import backtype.storm.topology.OutputFieldsDeclarer;
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+import backtype.storm.tuple.Values;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.opentsdb.model.IOpenTsdbEvent;
+import storm.opentsdb.utils.OpenTsdbPutParser;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * <p>
+ * Parse OpenTSDB telnet "put" lines and emit one OpenTsdbEvent per line
+ * in the "event" field, ready for an OpenTsdbEventFieldMapper.
+ * </p>
+ * <p>
+ * The input field holds a byte[], a ByteBuffer or a String with one or
+ * more lines separated by '\n'. Lines are parsed with OpenTsdbPutParser
+ * without splitting them into Strings. Malformed lines are dropped and
+ * counted, the input tuple is always acked once its events are emitted.
+ * </p>
+ * <p>
+ * The parser registers an "opentsdb-parser" Storm metric reporting the
+ * number of parsed and malformed lines.
+ * </p>
+ * <pre>
+ *     builder.setBolt("parser", new OpenTsdbPutParserBolt("line"), 4)
+ *            .shuffleGrouping("spout");
+ *     builder.setBolt("opentsdb", new OpenTsdbBolt("hbase-cluster", "test-tsdb",
+ *            new OpenTsdbMapper().addFieldMapper(new OpenTsdbEventFieldMapper("event"))), 4)
+ *            .shuffleGrouping("parser");
+ * </pre>
+ */
+public class OpenTsdbPutParserBolt implements IRichBolt {
+    public static final Logger log = LoggerFactory.getLogger(OpenTsdbPutParserBolt.class);
+    public static final String METRIC = "opentsdb-parser";
+
+    private final String lineField;
+    private int stringCacheSize = 4096;
+    private int tagSetCacheSize = 10000;
+
+    private transient OutputCollector collector;
+    private transient OpenTsdbPutParser parser;
+    private transient ArrayList<IOpenTsdbEvent> events;
+
+    /**
+     * @param lineField Name of the tuple field containing the lines.
+     */
+    public OpenTsdbPutParserBolt(String lineField) {
+        this.lineField = lineField;
+    }
+
+    /**
+     * @param stringCacheSize Number of metric and tag strings to cache.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbPutParserBolt setStringCacheSize(int stringCacheSize) {
+        this.stringCacheSize = stringCacheSize;
+        return this;
+    }
+
+    /**
+     * @param tagSetCacheSize Number of distinct tag sets to intern.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbPutParserBolt setTagSetCacheSize(int tagSetCacheSize) {
+        this.tagSetCacheSize = tagSetCacheSize;
+        return this;
+    }
+
+    @Override
+    public void prepare(Map conf, TopologyContext context, OutputCollector collector) {
+        this.collector = collector;
+        this.parser = new OpenTsdbPutParser(this.stringCacheSize, this.tagSetCacheSize);
+        this.events = new ArrayList<>();
+        context.registerMetric(METRIC, this.parser, 60);
+    }
+
+    @Override
+    public void execute(Tuple tuple) {
+        try {
+            this.parser.parseLines(tuple.getValueByField(this.lineField), this.events);
+            for (IOpenTsdbEvent event : this.events) {
+                this.collector.emit(tuple, new Values(event));
+            }
+            this.collector.ack(tuple);
+        } catch (IllegalArgumentException ex) {
+            log.warn("Unable to parse tuple : " + ex.getMessage());
+            this.collector.reportError(ex);
+            this.collector.ack(tuple);
+        } finally {
+            this.events.clear();
+        }
+    }
+
+    @Override
+    public void cleanup() {
+    }
+
+    @Override
+    public void declareOutputFields(OutputFieldsDeclarer declarer) {
+        declarer.declare(new Fields("event"));
+    }
+
+    @Override
+    public Map<String, Object> getComponentConfiguration() {
+        return null;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.bolt.mapper;
+
+import backtype.storm.tuple.Tuple;
+import storm.opentsdb.model.OpenTsdbPoint;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * <p>
+ * This interface describes a mapper that maps a storm
+ * tuple to any number of OpenTSDB points.
+ * </p>
+ * <p>
+ * Points are pulled one at a time in the point owned and reused
+ * by the caller :
+ * <pre>
+ *     if (mapper.start(tuple)) {
+ *         while (mapper.next(point)) {
+ *             ...
+ *         }
+ *     }
+ * </pre>
+ * </p>
+ */
+public interface IOpenTsdbMultiPointMapper extends Serializable {
+    /**
+     * @param tuple The storm tuple to process.
+     * @return False if the tuple has no point for this mapper.
+     */
+    boolean start(Tuple tuple);
+
+    /**
+     * @param point The point to fill.
+     * @return False when the tuple has no more point.
+     * @throws IllegalArgumentException If the tuple is malformed.
+     */
+    boolean next(OpenTsdbPoint point);
+
+    /**
+     * <p>
+     * Initialize the mapper.
+     * </p>
+     *
+     * @param conf Topology configuration.
+     */
+    void prepare(Map conf);
+}
@@ -0,0 +1,24 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.bolt.mapper;
+
+import java.util.List;
+
+/**
+ * <p>
+ * This interface describes a mapper which provides multi point mappers.
+ * </p>
+ * <p>
+ * The bolts only run multi point mappers of mappers which implement
+ * this interface, see OpenTsdbMapper.multiPointMappersOf.
+ * </p>
+ */
+public interface IOpenTsdbMultiPointMapperProvider extends IOpenTsdbMapper {
+
+    /**
+     * @return List of multi point mappers to execute, each tuple may map to any number of points.
+     */
+    List<IOpenTsdbMultiPointMapper> getMultiPointMappers();
+}
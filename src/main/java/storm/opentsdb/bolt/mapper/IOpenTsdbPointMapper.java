@@ -0,0 +1,38 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.bolt.mapper;
+
+import backtype.storm.tuple.Tuple;
+import storm.opentsdb.model.OpenTsdbPoint;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * <p>
+ * This interface describes a mapper that maps a storm
+ * tuple to an OpenTSDB point in a single call.
+ * </p>
+ * <p>
+ * The point is owned and reused by the caller.
+ * </p>
+ */
+public interface IOpenTsdbPointMapper extends Serializable {
+    /**
+     * @param tuple The storm tuple to process.
+     * @param point The point to fill.
+     * @return False if the tuple has no point for this mapper.
+     */
+    boolean map(Tuple tuple, OpenTsdbPoint point);
+
+    /**
+     * <p>
+     * Initialize the mapper.
+     * </p>
+     *
+     * @param conf Topology configuration.
+     */
+    void prepare(Map conf);
+}
@@ -4,12 +4,14 @@
 
 package storm.opentsdb.bolt.mapper;
 
+import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Tuple;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import storm.opentsdb.model.IOpenTsdbEvent;
+import storm.opentsdb.model.OpenTsdbPoint;
+import storm.opentsdb.utils.OpenTsdbTagSetCache;
 
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -23,15 +25,25 @@ import java.util.Map;
  * It can clean the tags map to keep only those you need.<br/>
  * As of OpenTSDB v2.1 you still need to have at least one tag
  * so providing an empty map will result in this mapper to add
- * a foo=bar tag to your put.
+ * a foo=bar tag to your put.<br/>
+ * The tags are never modified in place, the cleaned tags are interned
+ * as a shared immutable OpenTsdbTagSet.
+ * </p>
+ * <p>
+ * Use OpenTsdbKryoFactory to serialize the OpenTsdbEvent and its
+ * OpenTsdbTagSet compactly between the workers.
  * </p>
- * TODO implements serializers
  */
-public class OpenTsdbEventFieldMapper implements IOpenTsdbFieldMapper {
+public class OpenTsdbEventFieldMapper implements IOpenTsdbFieldMapper, IOpenTsdbPointMapper {
     public static final Logger log = LoggerFactory.getLogger(OpenTsdbEventFieldMapper.class);
 
     private String eventField;
     private List<String> validTags;
+    private int tagSetCacheSize = 10000;
+    private transient OpenTsdbTagSetCache tagSets;
+
+    private transient Fields fields;
+    private transient int index;
 
     /**
      * @param eventField The tuple field containing the event
@@ -49,12 +61,22 @@ public class OpenTsdbEventFieldMapper implements IOpenTsdbFieldMapper {
         return this;
     }
 
+    /**
+     * @param tagSetCacheSize Number of distinct tag sets to intern, 0 to disable interning.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbEventFieldMapper setTagSetCacheSize(int tagSetCacheSize) {
+        this.tagSetCacheSize = tagSetCacheSize;
+        this.tagSets = null;
+        return this;
+    }
+
     /**
      * @param tuple The storm tuple to process.
      * @return The metric from the OpenTsdbEvent.
      */
     public String getMetric(Tuple tuple) {
-        IOpenTsdbEvent event = (IOpenTsdbEvent) tuple.getValueByField(this.eventField);
+        IOpenTsdbEvent event = this.getEvent(tuple);
         return event.getMetric();
     }
 
@@ -63,7 +85,7 @@ public class OpenTsdbEventFieldMapper implements IOpenTsdbFieldMapper {
      * @return The timestamp from the OpenTsdbEvent.
      */
     public long getTimestamp(Tuple tuple) {
-        IOpenTsdbEvent event = (IOpenTsdbEvent) tuple.getValueByField(this.eventField);
+        IOpenTsdbEvent event = this.getEvent(tuple);
         return event.getTimestamp();
     }
 
@@ -72,7 +94,7 @@ public class OpenTsdbEventFieldMapper implements IOpenTsdbFieldMapper {
      * @return The value from the OpenTsdbEvent.
      */
     public double getValue(Tuple tuple) {
-        IOpenTsdbEvent event = (IOpenTsdbEvent) tuple.getValueByField(this.eventField);
+        IOpenTsdbEvent event = this.getEvent(tuple);
         return event.getValue();
     }
 
@@ -81,25 +103,47 @@ public class OpenTsdbEventFieldMapper implements IOpenTsdbFieldMapper {
      * @return the tags from the OpenTsdbEvent.
      */
     public Map<String, String> getTags(Tuple tuple) {
-        IOpenTsdbEvent event = (IOpenTsdbEvent) tuple.getValueByField(this.eventField);
-        Map<String, String> tags = event.getTags();
+        return this.cleanTags(this.getEvent(tuple).getTags());
+    }
 
-        if (tags.size() == 0) {
-            tags.put("foo", "bar");
-        }
+    /**
+     * <p>
+     * Fetch the event once and fill the point.
+     * </p>
+     *
+     * @param tuple The storm tuple to process.
+     * @param point The point to fill.
+     * @return Always true.
+     */
+    @Override
+    public boolean map(Tuple tuple, OpenTsdbPoint point) {
+        IOpenTsdbEvent event = this.getEvent(tuple);
+        point.set(event.getMetric(), event.getTimestamp(), event.getValue(), this.cleanTags(event.getTags()));
+        return true;
+    }
 
-        if (this.validTags != null) {
-            for (Iterator<Map.Entry<String, String>> it = tags.entrySet().iterator(); it.hasNext(); ) {
-                Map.Entry<String, String> tag = it.next();
-                if (validTags.contains(tag.getKey())) {
-                    if (tag.getValue() == null || tag.getValue().isEmpty()) {
-                        it.remove();
-                    }
-                }
-            }
+    private Map<String, String> cleanTags(Map<String, String> tags) {
+        if (this.tagSets == null) {
+            this.tagSets = new OpenTsdbTagSetCache(this.tagSetCacheSize);
         }
+        return this.tagSets.intern(tags, this.validTags);
+    }
 
-        return tags;
+    /**
+     * <p>
+     * The event field position is resolved once per tuple schema.
+     * </p>
+     *
+     * @param tuple The storm tuple to process.
+     * @return The event.
+     */
+    private IOpenTsdbEvent getEvent(Tuple tuple) {
+        Fields fields = tuple.getFields();
+        if (fields != this.fields) {
+            this.index = fields.fieldIndex(this.eventField);
+            this.fields = fields;
+        }
+        return (IOpenTsdbEvent) tuple.getValue(this.index);
     }
 
     /**
@@ -0,0 +1,52 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.bolt.mapper;
+
+import backtype.storm.tuple.Tuple;
+import storm.opentsdb.model.OpenTsdbPoint;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * Adapt an IOpenTsdbFieldMapper to the IOpenTsdbPointMapper interface.
+ * </p>
+ */
+public class OpenTsdbFieldPointMapper implements IOpenTsdbPointMapper {
+    private final IOpenTsdbFieldMapper mapper;
+
+    /**
+     * @param mapper The field mapper to adapt.
+     */
+    public OpenTsdbFieldPointMapper(IOpenTsdbFieldMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    /**
+     * @param mapper A field mapper.
+     * @return The mapper itself if it is already a point mapper, an adapter otherwise.
+     */
+    public static IOpenTsdbPointMapper adapt(IOpenTsdbFieldMapper mapper) {
+        if (mapper instanceof IOpenTsdbPointMapper) {
+            return (IOpenTsdbPointMapper) mapper;
+        }
+        return new OpenTsdbFieldPointMapper(mapper);
+    }
+
+    @Override
+    public boolean map(Tuple tuple, OpenTsdbPoint point) {
+        point.set(
+            this.mapper.getMetric(tuple),
+            this.mapper.getTimestamp(tuple),
+            this.mapper.getValue(tuple),
+            this.mapper.getTags(tuple));
+        return true;
+    }
+
+    @Override
+    public void prepare(Map conf) {
+        this.mapper.prepare(conf);
+    }
+}
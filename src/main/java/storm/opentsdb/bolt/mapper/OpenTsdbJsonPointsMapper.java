@@ -0,0 +1,121 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.bolt.mapper;
+
+import backtype.storm.tuple.Fields;
+import backtype.storm.tuple.Tuple;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.opentsdb.model.OpenTsdbPoint;
+import storm.opentsdb.utils.OpenTsdbJsonDecoder;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * A mapper to map a storm tuple field holding an OpenTSDB HTTP API
+ * /api/put JSON payload ( byte[], ByteBuffer or String ) to all the
+ * data points of the payload.
+ * </p>
+ * <p>
+ * The payload is decoded lazily by an OpenTsdbJsonDecoder as points are
+ * pulled so no intermediate list of points is ever built. One tuple may
+ * carry thousands of points, only the tuple is acked.
+ * </p>
+ */
+public class OpenTsdbJsonPointsMapper implements IOpenTsdbMultiPointMapper {
+    public static final Logger log = LoggerFactory.getLogger(OpenTsdbJsonPointsMapper.class);
+
+    private String payloadField;
+    private int stringCacheSize = 4096;
+    private int tagSetCacheSize = 10000;
+
+    private transient OpenTsdbJsonDecoder decoder;
+    private transient Fields fields;
+    private transient int index;
+
+    /**
+     * @param payloadField The tuple field containing the JSON payload.
+     */
+    public OpenTsdbJsonPointsMapper(String payloadField) {
+        this.payloadField = payloadField;
+    }
+
+    /**
+     * @param stringCacheSize Number of metric and tag strings to cache.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbJsonPointsMapper setStringCacheSize(int stringCacheSize) {
+        this.stringCacheSize = stringCacheSize;
+        this.decoder = null;
+        return this;
+    }
+
+    /**
+     * @param tagSetCacheSize Number of distinct tag sets to intern, 0 to disable interning.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbJsonPointsMapper setTagSetCacheSize(int tagSetCacheSize) {
+        this.tagSetCacheSize = tagSetCacheSize;
+        this.decoder = null;
+        return this;
+    }
+
+    /**
+     * @param tuple The storm tuple to process.
+     * @return False if the tuple has no payload.
+     */
+    @Override
+    public boolean start(Tuple tuple) {
+        Object payload = this.getPayload(tuple);
+        if (payload == null) {
+            return false;
+        }
+        if (this.decoder == null) {
+            this.decoder = new OpenTsdbJsonDecoder(this.stringCacheSize, this.tagSetCacheSize);
+        }
+        this.decoder.reset(payload);
+        return true;
+    }
+
+    /**
+     * @param point The point to fill.
+     * @return False when the payload has no more point.
+     * @throws IllegalArgumentException If the payload is malformed.
+     */
+    @Override
+    public boolean next(OpenTsdbPoint point) {
+        return this.decoder != null && this.decoder.next(point);
+    }
+
+    /**
+     * <p>
+     * The payload field position is resolved once per tuple schema.
+     * </p>
+     *
+     * @param tuple The storm tuple to process.
+     * @return The payload.
+     */
+    private Object getPayload(Tuple tuple) {
+        Fields fields = tuple.getFields();
+        if (fields != this.fields) {
+            this.index = fields.fieldIndex(this.payloadField);
+            this.fields = fields;
+        }
+        return tuple.getValue(this.index);
+    }
+
+    /**
+     * <p>
+     * Initialize the mapper.
+     * </p>
+     *
+     * @param conf Topology configuration.
+     */
+    @Override
+    public void prepare(Map conf) {
+        this.decoder = new OpenTsdbJsonDecoder(this.stringCacheSize, this.tagSetCacheSize);
+    }
+}
@@ -8,16 +8,21 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 /**
  * This mapper maps a storm tuple to
- * one or more fields mappers
+ * one or more fields mappers<br/>
+ * Field mappers which are not point mappers are adapted
+ * with an OpenTsdbFieldPointMapper.
  */
-public class OpenTsdbMapper implements IOpenTsdbMapper {
+public class OpenTsdbMapper implements IOpenTsdbPointMapperProvider, IOpenTsdbMultiPointMapperProvider {
     public static final Logger log = LoggerFactory.getLogger(OpenTsdbMapper.class);
     private ArrayList<IOpenTsdbFieldMapper> fieldMappers;
+    private ArrayList<IOpenTsdbPointMapper> pointMappers = new ArrayList<>();
+    private ArrayList<IOpenTsdbMultiPointMapper> multiPointMappers = new ArrayList<>();
 
     /**
      * @param fieldMapper Add a FieldMapper to the mapper list.
@@ -28,6 +33,25 @@ public class OpenTsdbMapper implements IOpenTsdbMapper {
             this.fieldMappers = new ArrayList<>();
         }
         this.fieldMappers.add(fieldMapper);
+        this.pointMappers.add(OpenTsdbFieldPointMapper.adapt(fieldMapper));
+        return this;
+    }
+
+    /**
+     * @param pointMapper Add a PointMapper to the mapper list.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbMapper addPointMapper(IOpenTsdbPointMapper pointMapper) {
+        this.pointMappers.add(pointMapper);
+        return this;
+    }
+
+    /**
+     * @param multiPointMapper Add a MultiPointMapper to the mapper list.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbMapper addMultiPointMapper(IOpenTsdbMultiPointMapper multiPointMapper) {
+        this.multiPointMappers.add(multiPointMapper);
         return this;
     }
 
@@ -39,6 +63,52 @@ public class OpenTsdbMapper implements IOpenTsdbMapper {
         return fieldMappers;
     }
 
+    /**
+     * @return The list of point mappers to execute.
+     */
+    @Override
+    public List<IOpenTsdbPointMapper> getPointMappers() {
+        return pointMappers;
+    }
+
+    /**
+     * @return The list of multi point mappers to execute.
+     */
+    @Override
+    public List<IOpenTsdbMultiPointMapper> getMultiPointMappers() {
+        return multiPointMappers;
+    }
+
+    /**
+     * @param mapper A mapper.
+     * @return The point mappers of the mapper if it provides some,
+     * its field mappers adapted otherwise.
+     */
+    public static List<IOpenTsdbPointMapper> pointMappersOf(IOpenTsdbMapper mapper) {
+        if (mapper instanceof IOpenTsdbPointMapperProvider) {
+            return ((IOpenTsdbPointMapperProvider) mapper).getPointMappers();
+        }
+        List<IOpenTsdbPointMapper> pointMappers = new ArrayList<>();
+        if (mapper.getFieldMappers() != null) {
+            for (IOpenTsdbFieldMapper fieldMapper : mapper.getFieldMappers()) {
+                pointMappers.add(OpenTsdbFieldPointMapper.adapt(fieldMapper));
+            }
+        }
+        return pointMappers;
+    }
+
+    /**
+     * @param mapper A mapper.
+     * @return The multi point mappers of the mapper if it provides some,
+     * an empty list otherwise.
+     */
+    public static List<IOpenTsdbMultiPointMapper> multiPointMappersOf(IOpenTsdbMapper mapper) {
+        if (mapper instanceof IOpenTsdbMultiPointMapperProvider) {
+            return ((IOpenTsdbMultiPointMapperProvider) mapper).getMultiPointMappers();
+        }
+        return Collections.emptyList();
+    }
+
     /**
      * <p>
      * This method will initialize all mappers and serializers.<br/>
@@ -49,7 +119,10 @@ public class OpenTsdbMapper implements IOpenTsdbMapper {
      */
     @Override
     public void prepare(Map conf) {
-        for (IOpenTsdbFieldMapper mapper : this.fieldMappers) {
+        for (IOpenTsdbPointMapper mapper : this.pointMappers) {
+            mapper.prepare(conf);
+        }
+        for (IOpenTsdbMultiPointMapper mapper : this.multiPointMappers) {
             mapper.prepare(conf);
         }
     }
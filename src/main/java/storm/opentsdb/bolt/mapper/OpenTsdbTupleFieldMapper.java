@@ -4,15 +4,21 @@
 
 package storm.opentsdb.bolt.mapper;
 
+import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Tuple;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import storm.opentsdb.model.OpenTsdbPoint;
+import storm.opentsdb.utils.OpenTsdbTagSetCache;
+import storm.opentsdb.utils.serializer.OpenTsdbDoubleValueSerializer;
+import storm.opentsdb.utils.serializer.OpenTsdbLongTimestampSerializer;
+import storm.opentsdb.utils.serializer.OpenTsdbLongValueSerializer;
 import storm.opentsdb.utils.serializer.OpenTsdbMetricSerializer;
 import storm.opentsdb.utils.serializer.OpenTsdbTagsSerializer;
 import storm.opentsdb.utils.serializer.OpenTsdbTimestampSerializer;
 import storm.opentsdb.utils.serializer.OpenTsdbValueSerializer;
 
-import java.util.Iterator;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -25,12 +31,33 @@ import java.util.Map;
  * It can clean the tags map to keep only those you need.<br/>
  * As of OpenTSDB v2.1 you still need to have at least one tag
  * so providing an empty map will result in this mapper to add
- * a foo=bar tag to your put.
+ * a foo=bar tag to your put.<br/>
+ * The tags are never modified in place, the cleaned tags are interned
+ * as a shared immutable OpenTsdbTagSet.
+ * </p>
+ * <p>
+ * The field positions are resolved once per tuple schema ( the Fields
+ * instance shared by all the tuples of a stream ) so that the values
+ * are read by index instead of by name. The positions of up to
+ * MAX_SCHEMAS schemas are kept so a bolt fed by several streams does
+ * not resolve them again when the streams alternate.
+ * </p>
+ * <p>
+ * Integer values ( Long, Integer, Short, Byte ) are written as OpenTSDB
+ * integers without going through a double. The long and double value
+ * serializers read the value field with the typed tuple accessors so
+ * that no intermediate Object is involved.
  * </p>
  */
-public class OpenTsdbTupleFieldMapper implements IOpenTsdbFieldMapper {
+public class OpenTsdbTupleFieldMapper implements IOpenTsdbFieldMapper, IOpenTsdbPointMapper {
     public static final Logger log = LoggerFactory.getLogger(OpenTsdbTupleFieldMapper.class);
 
+    private static final int METRIC = 0;
+    private static final int TIMESTAMP = 1;
+    private static final int VALUE = 2;
+    private static final int TAGS = 3;
+    private static final int MAX_SCHEMAS = 16;
+
     private String metric;
     private String metricField;
     private OpenTsdbMetricSerializer metricSerializer;
@@ -38,16 +65,26 @@ public class OpenTsdbTupleFieldMapper implements IOpenTsdbFieldMapper {
     private Long timestamp;
     private String timestampField;
     private OpenTsdbTimestampSerializer timestampSerializer;
+    private OpenTsdbLongTimestampSerializer longTimestampSerializer;
 
     private Double value;
+    private Long longValue;
     private String valueField;
     private OpenTsdbValueSerializer valueSerializer;
+    private OpenTsdbLongValueSerializer longValueSerializer;
+    private OpenTsdbDoubleValueSerializer doubleValueSerializer;
 
     private Map<String, String> tags;
     private String tagsField;
     private OpenTsdbTagsSerializer tagsSerializer;
 
     private List<String> validTags;
+    private int tagSetCacheSize = 10000;
+    private transient OpenTsdbTagSetCache tagSets;
+
+    private transient Fields fields;
+    private transient int[] indexes;
+    private transient IdentityHashMap<Fields, int[]> schemas;
 
     /**
      * @param metricField    Metric field name.
@@ -81,6 +118,16 @@ public class OpenTsdbTupleFieldMapper implements IOpenTsdbFieldMapper {
         return this;
     }
 
+    /**
+     * @param tagSetCacheSize Number of distinct tag sets to intern, 0 to disable interning.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbTupleFieldMapper setTagSetCacheSize(int tagSetCacheSize) {
+        this.tagSetCacheSize = tagSetCacheSize;
+        this.tagSets = null;
+        return this;
+    }
+
     /**
      * @param metric The metric to set.
      * @return This so you can do method chaining.
@@ -100,6 +147,8 @@ public class OpenTsdbTupleFieldMapper implements IOpenTsdbFieldMapper {
      */
     public OpenTsdbTupleFieldMapper setMetricField(String metricField) {
         this.metricField = metricField;
+        this.fields = null;
+        this.schemas = null;
         return this;
     }
 
@@ -127,9 +176,9 @@ public class OpenTsdbTupleFieldMapper implements IOpenTsdbFieldMapper {
             return this.metric;
         }
         if (this.metricSerializer != null) {
-            return this.metricSerializer.serialize(tuple.getValueByField(this.metricField));
+            return this.metricSerializer.serialize(tuple.getValue(this.index(tuple, METRIC)));
         }
-        return tuple.getStringByField(this.metricField);
+        return tuple.getString(this.index(tuple, METRIC));
     }
 
     /**
@@ -151,6 +200,8 @@ public class OpenTsdbTupleFieldMapper implements IOpenTsdbFieldMapper {
      */
     public OpenTsdbTupleFieldMapper setTimestampField(String timestampField) {
         this.timestampField = timestampField;
+        this.fields = null;
+        this.schemas = null;
         return this;
     }
 
@@ -169,6 +220,20 @@ public class OpenTsdbTupleFieldMapper implements IOpenTsdbFieldMapper {
         return this;
     }
 
+    /**
+     * <p>
+     * The timestamp field is read as a long and given to this serializer.
+     * It takes precedence over setTimestampSerializer.
+     * </p>
+     *
+     * @param longTimestampSerializer The long timestamp serializer to use.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbTupleFieldMapper setLongTimestampSerializer(OpenTsdbLongTimestampSerializer longTimestampSerializer) {
+        this.longTimestampSerializer = longTimestampSerializer;
+        return this;
+    }
+
     /**
      * @param tuple The storm tuple to process.
      * @return The timestamp to use.
@@ -177,10 +242,13 @@ public class OpenTsdbTupleFieldMapper implements IOpenTsdbFieldMapper {
         if (this.timestamp != null) {
             return this.timestamp;
         }
+        if (this.longTimestampSerializer != null) {
+            return this.longTimestampSerializer.serialize(tuple.getLong(this.index(tuple, TIMESTAMP)));
+        }
         if (this.timestampSerializer != null) {
-            return this.timestampSerializer.serialize(tuple.getValueByField(this.timestampField));
+            return this.timestampSerializer.serialize(tuple.getValue(this.index(tuple, TIMESTAMP)));
         }
-        return tuple.getLongByField(this.timestampField);
+        return tuple.getLong(this.index(tuple, TIMESTAMP));
     }
 
     /**
@@ -188,22 +256,16 @@ public class OpenTsdbTupleFieldMapper implements IOpenTsdbFieldMapper {
      * @return This so you can do method chaining.
      */
     public OpenTsdbTupleFieldMapper setValue(Object value) {
+        this.longValue = null;
         if (this.valueSerializer != null) {
             this.value = this.valueSerializer.serialize(value);
+        } else if (isInteger(value)) {
+            this.longValue = ((Number) value).longValue();
+            this.value = this.longValue.doubleValue();
+        } else if (value instanceof Float || value instanceof Double) {
+            this.value = ((Number) value).doubleValue();
         } else {
-            if( value instanceof Short) {
-                this.value = new Double((Short)value);
-            } else if( value instanceof Integer) {
-                this.value = new Double((Integer)value);
-            } else if( value instanceof Long ) {
-                this.value = new Double((Long)value);
-            } else if( value instanceof Float) {
-                this.value = new Double((Float)value);
-            } else if ( value instanceof Double) {
-                this.value = (Double) value;
-            } else {
-                throw new IllegalArgumentException("Invalid value type");
-            }
+            throw new IllegalArgumentException("Invalid value type");
         }
         return this;
     }
@@ -214,6 +276,8 @@ public class OpenTsdbTupleFieldMapper implements IOpenTsdbFieldMapper {
      */
     public OpenTsdbTupleFieldMapper setValueField(String valueField) {
         this.valueField = valueField;
+        this.fields = null;
+        this.schemas = null;
         return this;
     }
 
@@ -232,19 +296,81 @@ public class OpenTsdbTupleFieldMapper implements IOpenTsdbFieldMapper {
         return this;
     }
 
+    /**
+     * <p>
+     * The value field is read as a long and the result is written as an
+     * OpenTSDB integer. It takes precedence over the other value serializers.
+     * </p>
+     *
+     * @param longValueSerializer The long value serializer to use.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbTupleFieldMapper setLongValueSerializer(OpenTsdbLongValueSerializer longValueSerializer) {
+        this.longValueSerializer = longValueSerializer;
+        return this;
+    }
+
+    /**
+     * <p>
+     * The value field is read as a double and the result is written as an
+     * OpenTSDB float. It takes precedence over setValueSerializer.
+     * </p>
+     *
+     * @param doubleValueSerializer The double value serializer to use.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbTupleFieldMapper setDoubleValueSerializer(OpenTsdbDoubleValueSerializer doubleValueSerializer) {
+        this.doubleValueSerializer = doubleValueSerializer;
+        return this;
+    }
+
     /**
      * @param tuple The storm tuple to process.
      * @return The value to use.
      */
     public double getValue(Tuple tuple) {
-        if( this.value != null) {
+        if (this.value != null) {
             return this.value;
         }
+        if (this.longValueSerializer != null) {
+            return this.longValueSerializer.serialize(tuple.getLong(this.index(tuple, VALUE)));
+        }
+        if (this.doubleValueSerializer != null) {
+            return this.doubleValueSerializer.serialize(tuple.getDouble(this.index(tuple, VALUE)));
+        }
         if (this.valueSerializer != null) {
-            return this.valueSerializer.serialize(tuple.getValueByField(this.valueField));
+            return this.valueSerializer.serialize(tuple.getValue(this.index(tuple, VALUE)));
+        }
+        return ((Number) tuple.getValue(this.index(tuple, VALUE))).doubleValue();
+    }
+
+    /**
+     * @param tuple The storm tuple to process.
+     * @param point The point to set the value of.
+     */
+    private void mapValue(Tuple tuple, OpenTsdbPoint point) {
+        if (this.longValue != null) {
+            point.setValue(this.longValue.longValue());
+        } else if (this.value != null) {
+            point.setValue(this.value.doubleValue());
+        } else if (this.longValueSerializer != null) {
+            point.setValue(this.longValueSerializer.serialize(tuple.getLong(this.index(tuple, VALUE))));
+        } else if (this.doubleValueSerializer != null) {
+            point.setValue(this.doubleValueSerializer.serialize(tuple.getDouble(this.index(tuple, VALUE))));
+        } else if (this.valueSerializer != null) {
+            point.setValue(this.valueSerializer.serialize(tuple.getValue(this.index(tuple, VALUE))));
+        } else {
+            Object value = tuple.getValue(this.index(tuple, VALUE));
+            if (isInteger(value)) {
+                point.setValue(((Number) value).longValue());
+            } else {
+                point.setValue(((Number) value).doubleValue());
+            }
         }
+    }
 
-        return tuple.getDoubleByField(this.valueField);
+    private static boolean isInteger(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
     }
 
     /**
@@ -267,6 +393,8 @@ public class OpenTsdbTupleFieldMapper implements IOpenTsdbFieldMapper {
      */
     public OpenTsdbTupleFieldMapper setTagsField(String tagsField) {
         this.tagsField = tagsField;
+        this.fields = null;
+        this.schemas = null;
         return this;
     }
 
@@ -296,28 +424,68 @@ public class OpenTsdbTupleFieldMapper implements IOpenTsdbFieldMapper {
             tags = this.tags;
         } else {
             if (this.tagsSerializer != null) {
-                tags = this.tagsSerializer.serialize(tuple.getValueByField(this.tagsField));
+                tags = this.tagsSerializer.serialize(tuple.getValue(this.index(tuple, TAGS)));
             } else {
-                tags = (Map<String, String>) tuple.getValueByField(this.tagsField);
+                tags = (Map<String, String>) tuple.getValue(this.index(tuple, TAGS));
             }
         }
 
-        if (this.validTags != null) {
-            for (Iterator<Map.Entry<String, String>> it = tags.entrySet().iterator(); it.hasNext(); ) {
-                Map.Entry<String, String> tag = it.next();
-                if (validTags.contains(tag.getKey())) {
-                    if (tag.getValue() == null || tag.getValue().isEmpty()) {
-                        it.remove();
-                    }
+        if (this.tagSets == null) {
+            this.tagSets = new OpenTsdbTagSetCache(this.tagSetCacheSize);
+        }
+        return this.tagSets.intern(tags, this.validTags);
+    }
+
+    /**
+     * @param tuple The storm tuple to process.
+     * @param field The field to resolve.
+     * @return The position of the field in the tuple.
+     */
+    private int index(Tuple tuple, int field) {
+        Fields fields = tuple.getFields();
+        if (fields != this.fields) {
+            if (this.schemas == null) {
+                this.schemas = new IdentityHashMap<>();
+            }
+            int[] indexes = this.schemas.get(fields);
+            if (indexes == null) {
+                if (this.schemas.size() >= MAX_SCHEMAS) {
+                    this.schemas.clear();
                 }
+                indexes = new int[]{
+                    index(fields, this.metricField),
+                    index(fields, this.timestampField),
+                    index(fields, this.valueField),
+                    index(fields, this.tagsField)
+                };
+                this.schemas.put(fields, indexes);
             }
+            this.indexes = indexes;
+            this.fields = fields;
         }
-
-        if (tags.size() == 0) {
-            tags.put("foo", "bar");
+        int index = this.indexes[field];
+        if (index < 0) {
+            throw new IllegalArgumentException("Missing field in tuple " + fields.toList());
         }
+        return index;
+    }
 
-        return tags;
+    private static int index(Fields fields, String name) {
+        return name != null && fields.contains(name) ? fields.fieldIndex(name) : -1;
+    }
+
+    /**
+     * @param tuple The storm tuple to process.
+     * @param point The point to fill.
+     * @return Always true.
+     */
+    @Override
+    public boolean map(Tuple tuple, OpenTsdbPoint point) {
+        point.setMetric(this.getMetric(tuple));
+        point.setTimestamp(this.getTimestamp(tuple));
+        this.mapValue(tuple, point);
+        point.setTags(this.getTags(tuple));
+        return true;
     }
 
     /**
@@ -335,9 +503,18 @@ public class OpenTsdbTupleFieldMapper implements IOpenTsdbFieldMapper {
         if (this.timestampSerializer != null) {
             this.timestampSerializer.prepare(conf);
         }
+        if (this.longTimestampSerializer != null) {
+            this.longTimestampSerializer.prepare(conf);
+        }
         if (this.valueSerializer != null) {
             this.valueSerializer.prepare(conf);
         }
+        if (this.longValueSerializer != null) {
+            this.longValueSerializer.prepare(conf);
+        }
+        if (this.doubleValueSerializer != null) {
+            this.doubleValueSerializer.prepare(conf);
+        }
         if (this.tagsSerializer != null) {
             this.tagsSerializer.prepare(conf);
         }
@@ -10,6 +10,7 @@ import backtype.storm.topology.base.BaseBasicBolt;
 import backtype.storm.tuple.Fields;
 import backtype.storm.tuple.Tuple;
 import backtype.storm.tuple.Values;
+import storm.opentsdb.model.OpenTsdbTagSet;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -36,7 +37,7 @@ public class OpenTsdbTupleAdadptatorBolt extends BaseBasicBolt {
     public OpenTsdbTupleAdadptatorBolt(String metric, String valueField, Map<String, String> tags) {
         this.metric = metric;
         this.valueField = valueField;
-        this.tags = tags;
+        this.tags = OpenTsdbTagSet.of(tags);
     }
 
     /**
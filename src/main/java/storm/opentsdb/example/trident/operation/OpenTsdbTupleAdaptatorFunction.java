@@ -5,6 +5,7 @@
 package storm.opentsdb.example.trident.operation;
 
 import backtype.storm.tuple.Values;
+import storm.opentsdb.model.OpenTsdbTagSet;
 import storm.trident.operation.BaseFunction;
 import storm.trident.operation.TridentCollector;
 import storm.trident.tuple.TridentTuple;
@@ -34,7 +35,7 @@ public class OpenTsdbTupleAdaptatorFunction extends BaseFunction {
     public OpenTsdbTupleAdaptatorFunction(String metric, String valueField, Map<String, String> tags) {
         this.metric = metric;
         this.valueField = valueField;
-        this.tags = tags;
+        this.tags = OpenTsdbTagSet.of(tags);
     }
 
     /**
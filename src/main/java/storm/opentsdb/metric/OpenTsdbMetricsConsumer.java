@@ -0,0 +1,156 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.metric;
+
+import backtype.storm.Config;
+import backtype.storm.metric.api.IMetricsConsumer;
+import backtype.storm.task.IErrorReporter;
+import backtype.storm.task.TopologyContext;
+import com.stumbleupon.async.Callback;
+import net.opentsdb.core.TSDB;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.opentsdb.utils.OpenTsdbClientFactory;
+import storm.opentsdb.utils.OpenTsdbPointWriter;
+import storm.opentsdb.utils.OpenTsdbRowBatch;
+import storm.opentsdb.utils.OpenTsdbSeriesCache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Storm metrics consumer writing the topology metrics to OpenTSDB.
+ * </p>
+ * <p>
+ * Each data point is written as prefix.metric_name tagged with the topology,
+ * worker host, worker port, component and task that reported it. Map values
+ * are flattened as prefix.metric_name.key, non numeric values are ignored.
+ * Characters OpenTSDB does not accept are replaced by '_'.
+ * </p>
+ * <p>
+ * The registration argument is a map with the following keys :
+ * <ul>
+ * <li>cluster : the HBase cluster to use ( required )</li>
+ * <li>name : the OpenTSDB instance config key ( required )</li>
+ * <li>prefix : the metric name prefix, default "storm"</li>
+ * <li>seriesCacheSize : number of series row keys to cache, default 10000</li>
+ * </ul>
+ * The data points of each handleDataPoints call are coalesced by OpenTSDB row
+ * and written asynchronously.
+ * </p>
+ * <pre>
+ *     Map<String, Object> argument = new HashMap<>();
+ *     argument.put("cluster", "hbase-cluster");
+ *     argument.put("name", "test-tsdb");
+ *     conf.registerMetricsConsumer(OpenTsdbMetricsConsumer.class, argument, 1);
+ * </pre>
+ */
+public class OpenTsdbMetricsConsumer implements IMetricsConsumer {
+    public static final Logger log = LoggerFactory.getLogger(OpenTsdbMetricsConsumer.class);
+
+    private TSDB tsdb;
+    private OpenTsdbRowBatch batch;
+    private String prefix;
+    private String topology;
+    private IErrorReporter errorReporter;
+    private final Map<String, String> tags = new HashMap<>();
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void prepare(Map stormConf, Object registrationArgument, TopologyContext context,
+                        IErrorReporter errorReporter) {
+        if (!(registrationArgument instanceof Map)) {
+            throw new IllegalArgumentException("OpenTsdbMetricsConsumer argument must be a map");
+        }
+        Map<String, Object> argument = (Map<String, Object>) registrationArgument;
+        String cluster = (String) argument.get("cluster");
+        String name = (String) argument.get("name");
+        if (cluster == null || name == null) {
+            throw new IllegalArgumentException("OpenTsdbMetricsConsumer argument must define cluster and name");
+        }
+        this.prefix = argument.containsKey("prefix") ? (String) argument.get("prefix") : "storm";
+        int seriesCacheSize = argument.containsKey("seriesCacheSize") ?
+            ((Number) argument.get("seriesCacheSize")).intValue() : 10000;
+
+        Object topologyName = stormConf.get(Config.TOPOLOGY_NAME);
+        this.topology = sanitize(topologyName != null ? topologyName.toString() : context.getStormId());
+        this.errorReporter = errorReporter;
+
+        this.tsdb = OpenTsdbClientFactory.getTsdbClient(stormConf, cluster, name);
+        this.batch = new OpenTsdbRowBatch(
+            new OpenTsdbPointWriter(this.tsdb, new OpenTsdbSeriesCache(this.tsdb, seriesCacheSize)));
+    }
+
+    @Override
+    public void handleDataPoints(TaskInfo taskInfo, Collection<DataPoint> dataPoints) {
+        this.tags.clear();
+        this.tags.put("topology", this.topology);
+        this.tags.put("host", sanitize(taskInfo.srcWorkerHost));
+        this.tags.put("port", Integer.toString(taskInfo.srcWorkerPort));
+        this.tags.put("component", sanitize(taskInfo.srcComponentId));
+        this.tags.put("task", Integer.toString(taskInfo.srcTaskId));
+
+        for (DataPoint dataPoint : dataPoints) {
+            this.add(this.prefix + "." + sanitize(dataPoint.name), taskInfo.timestamp, dataPoint.value);
+        }
+
+        if (this.batch.size() > 0) {
+            this.batch.flush().addErrback(new Callback<Object, Exception>() {
+                @Override
+                public Object call(Exception ex) throws Exception {
+                    log.warn("OpenTSDB metrics failure : " + ex.toString());
+                    errorReporter.reportError(ex);
+                    return null;
+                }
+            });
+        }
+    }
+
+    private void add(String metric, long timestamp, Object value) {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            this.batch.add(metric, timestamp, ((Number) value).longValue(), this.tags);
+        } else if (value instanceof Number) {
+            double number = ((Number) value).doubleValue();
+            if (!Double.isNaN(number) && !Double.isInfinite(number)) {
+                this.batch.add(metric, timestamp, number, this.tags);
+            }
+        } else if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                this.add(metric + "." + sanitize(String.valueOf(entry.getKey())), timestamp, entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @param name A metric, tag name or tag value.
+     * @return The name with characters not allowed by OpenTSDB replaced by '_'.
+     */
+    static String sanitize(String name) {
+        if (name == null || name.isEmpty()) {
+            return "_";
+        }
+        char[] chars = null;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z') || ('0' <= c && c <= '9') ||
+                c == '-' || c == '_' || c == '.' || c == '/')) {
+                if (chars == null) {
+                    chars = name.toCharArray();
+                }
+                chars[i] = '_';
+            }
+        }
+        return chars == null ? name : new String(chars);
+    }
+
+    @Override
+    public void cleanup() {
+        if (this.tsdb != null) {
+            OpenTsdbClientFactory.releaseTsdbClient(this.tsdb);
+        }
+    }
+}
@@ -26,6 +26,11 @@ public interface IOpenTsdbEvent {
     double getValue();
 
     /**
+     * <p>
+     * Returning a shared OpenTsdbTagSet for identical tags saves
+     * a map per event.
+     * </p>
+     *
      * @return The tags.
      */
     Map<String, String> getTags();
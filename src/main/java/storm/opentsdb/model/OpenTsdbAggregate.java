@@ -0,0 +1,24 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.model;
+
+/**
+ * <p>
+ * Aggregates of the points of a series, emitted on window close by the
+ * OpenTsdbAggregatingBolt and computed over a range by the state queries.
+ * </p>
+ */
+public enum OpenTsdbAggregate {
+    COUNT, SUM, MIN, MAX, AVG, LAST;
+
+    private final String suffix = "." + name().toLowerCase();
+
+    /**
+     * @return The suffix appended to the metric name.
+     */
+    public String getSuffix() {
+        return suffix;
+    }
+}
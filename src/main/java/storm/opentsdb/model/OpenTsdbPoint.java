@@ -0,0 +1,159 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.model;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * A mutable OpenTSDB point.
+ * </p>
+ * <p>
+ * Point mappers fill a point owned by the caller in a single pass over the
+ * tuple. The caller reuses the same point for every tuple so that extraction
+ * does not allocate. Don't keep a reference to a point given to a mapper.
+ * </p>
+ * <p>
+ * The value is either an integer or a decimal. Integer values are kept as
+ * long so they reach TSDB.addPoint(long) without a round trip through double.
+ * </p>
+ */
+public class OpenTsdbPoint implements IOpenTsdbEvent {
+    private String metric;
+    private long timestamp;
+    private double value;
+    private long longValue;
+    private boolean integer;
+    private Map<String, String> tags;
+
+    /**
+     * @param metric    The metric.
+     * @param timestamp The timestamp.
+     * @param value     The value.
+     * @param tags      The tags.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbPoint set(String metric, long timestamp, double value, Map<String, String> tags) {
+        this.metric = metric;
+        this.timestamp = timestamp;
+        this.setValue(value);
+        this.tags = tags;
+        return this;
+    }
+
+    /**
+     * @param metric    The metric.
+     * @param timestamp The timestamp.
+     * @param value     The integer value.
+     * @param tags      The tags.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbPoint set(String metric, long timestamp, long value, Map<String, String> tags) {
+        this.metric = metric;
+        this.timestamp = timestamp;
+        this.setValue(value);
+        this.tags = tags;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Forget the previous point references.
+     * </p>
+     */
+    public void clear() {
+        this.metric = null;
+        this.timestamp = 0;
+        this.value = 0;
+        this.longValue = 0;
+        this.integer = false;
+        this.tags = null;
+    }
+
+    /**
+     * @return The metric.
+     */
+    public String getMetric() {
+        return this.metric;
+    }
+
+    /**
+     * @param metric The metric.
+     */
+    public void setMetric(String metric) {
+        this.metric = metric;
+    }
+
+    /**
+     * @return The timestamp.
+     */
+    public long getTimestamp() {
+        return this.timestamp;
+    }
+
+    /**
+     * @param timestamp The timestamp.
+     */
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return The value as a double.
+     */
+    public double getValue() {
+        return this.integer ? this.longValue : this.value;
+    }
+
+    /**
+     * @param value The decimal value.
+     */
+    public void setValue(double value) {
+        this.value = value;
+        this.integer = false;
+    }
+
+    /**
+     * @return The value as a long, only exact if isInteger().
+     */
+    public long getLongValue() {
+        return this.integer ? this.longValue : (long) this.value;
+    }
+
+    /**
+     * @param value The integer value.
+     */
+    public void setValue(long value) {
+        this.longValue = value;
+        this.integer = true;
+    }
+
+    /**
+     * @return Whether the value is an integer.
+     */
+    public boolean isInteger() {
+        return this.integer;
+    }
+
+    /**
+     * @return The tags.
+     */
+    public Map<String, String> getTags() {
+        return this.tags;
+    }
+
+    /**
+     * @param tags The tags.
+     */
+    public void setTags(Map<String, String> tags) {
+        this.tags = tags;
+    }
+
+    @Override
+    public String toString() {
+        return this.timestamp + " " + this.metric + " " +
+            (this.integer ? Long.toString(this.longValue) : Double.toString(this.value)) + " " + this.tags;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.model;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * A query for the points of a series over a time range and its result :
+ * the count, sum, min and max of the values and the latest point.
+ * </p>
+ * <p>
+ * The time range is kept in milliseconds, the latest point timestamp is
+ * returned as stored by OpenTSDB ( seconds or milliseconds ).
+ * </p>
+ */
+public class OpenTsdbSeriesQuery {
+    private final String metric;
+    private final Map<String, String> tags;
+    private final long start;
+    private final long end;
+
+    private long count = 0;
+    private double sum = 0;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+    private boolean integer = true;
+    private long lastTime = Long.MIN_VALUE;
+    private long lastTimestamp;
+    private long lastValue;
+    private boolean lastInteger;
+
+    /**
+     * @param metric The metric.
+     * @param tags   The tags.
+     * @param start  Start of the range in milliseconds ( inclusive ).
+     * @param end    End of the range in milliseconds ( inclusive ).
+     */
+    public OpenTsdbSeriesQuery(String metric, Map<String, String> tags, long start, long end) {
+        this.metric = metric;
+        this.tags = tags;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * <p>
+     * Aggregate a point if it is in the range.
+     * </p>
+     *
+     * @param time      The point time in milliseconds.
+     * @param timestamp The point timestamp as stored.
+     * @param value     The value, the raw bits of the double if not integer.
+     * @param integer   Whether the value is an integer.
+     */
+    public void add(long time, long timestamp, long value, boolean integer) {
+        if (time < this.start || time > this.end) {
+            return;
+        }
+        double v = integer ? value : Double.longBitsToDouble(value);
+        this.count++;
+        this.sum += v;
+        this.min = Math.min(this.min, v);
+        this.max = Math.max(this.max, v);
+        this.integer &= integer;
+        if (time >= this.lastTime) {
+            this.lastTime = time;
+            this.lastTimestamp = timestamp;
+            this.lastValue = value;
+            this.lastInteger = integer;
+        }
+    }
+
+    /**
+     * @return The metric.
+     */
+    public String getMetric() {
+        return this.metric;
+    }
+
+    /**
+     * @return The tags.
+     */
+    public Map<String, String> getTags() {
+        return this.tags;
+    }
+
+    /**
+     * @return Start of the range in milliseconds.
+     */
+    public long getStart() {
+        return this.start;
+    }
+
+    /**
+     * @return End of the range in milliseconds.
+     */
+    public long getEnd() {
+        return this.end;
+    }
+
+    /**
+     * @return Number of points found in the range.
+     */
+    public long getCount() {
+        return this.count;
+    }
+
+    /**
+     * @return Timestamp of the latest point or null if no point was found.
+     */
+    public Long getLastTimestamp() {
+        return this.count > 0 ? this.lastTimestamp : null;
+    }
+
+    /**
+     * @return Value of the latest point ( Long or Double ) or null if no point was found.
+     */
+    public Number getLastValue() {
+        if (this.count == 0) {
+            return null;
+        }
+        return this.lastInteger ? (Number) this.lastValue : (Number) Double.longBitsToDouble(this.lastValue);
+    }
+
+    /**
+     * @param aggregate The aggregate to compute.
+     * @return The aggregate ( Long or Double ) or null if no point was found.
+     */
+    public Number getValue(OpenTsdbAggregate aggregate) {
+        if (this.count == 0) {
+            return null;
+        }
+        switch (aggregate) {
+            case COUNT:
+                return this.count;
+            case SUM:
+                return this.integer ? (Number) (long) this.sum : (Number) this.sum;
+            case MIN:
+                return this.integer ? (Number) (long) this.min : (Number) this.min;
+            case MAX:
+                return this.integer ? (Number) (long) this.max : (Number) this.max;
+            case AVG:
+                return this.sum / this.count;
+            default:
+                return this.getLastValue();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.model;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * <p>
+ * Compact immutable OpenTSDB tags.
+ * </p>
+ * <p>
+ * The tags are stored in two parallel arrays sorted by tag name and the
+ * hash is computed once. A tag set is a regular Map so it can be used
+ * anywhere tags are expected, it is equal to any map holding the same
+ * tags and has the same hash.<br/>
+ * Use OpenTsdbTagSetCache to share one instance between identical tag sets,
+ * two shared instances are compared by identity.
+ * </p>
+ * <pre>
+ *     Map<String, String> tags = OpenTsdbTagSet.of("host", "web01", "dc", "rbx");
+ * </pre>
+ */
+public final class OpenTsdbTagSet extends AbstractMap<String, String> implements Serializable {
+    private final String[] keys;
+    private final String[] values;
+    private transient int hash;
+    private transient Set<Map.Entry<String, String>> entries;
+
+    private OpenTsdbTagSet(String[] keys, String[] values) {
+        this.keys = keys;
+        this.values = values;
+    }
+
+    /**
+     * @param tags The tags.
+     * @return The tags as a tag set, the same instance if it already is one.
+     */
+    public static OpenTsdbTagSet of(Map<String, String> tags) {
+        if (tags instanceof OpenTsdbTagSet) {
+            return (OpenTsdbTagSet) tags;
+        }
+        String[] keys = new String[tags.size()];
+        String[] values = new String[tags.size()];
+        int i = 0;
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            keys[i] = tag.getKey();
+            values[i] = tag.getValue();
+            i++;
+        }
+        return sort(keys, values);
+    }
+
+    /**
+     * @param tags Tag names and values : name1, value1, name2, value2, ...
+     * @return A new tag set.
+     */
+    public static OpenTsdbTagSet of(String... tags) {
+        if (tags.length % 2 != 0) {
+            throw new IllegalArgumentException("Tags must be given as name, value pairs");
+        }
+        String[] keys = new String[tags.length / 2];
+        String[] values = new String[tags.length / 2];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = tags[2 * i];
+            values[i] = tags[2 * i + 1];
+        }
+        return sort(keys, values);
+    }
+
+    private static OpenTsdbTagSet sort(String[] keys, String[] values) {
+        // Tag sets are small, a plain insertion sort keeps both arrays aligned
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == null || values[i] == null) {
+                throw new IllegalArgumentException("Null tag name or value");
+            }
+            String key = keys[i];
+            String value = values[i];
+            int j = i - 1;
+            while (j >= 0 && keys[j].compareTo(key) > 0) {
+                keys[j + 1] = keys[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            if (j >= 0 && keys[j].equals(key)) {
+                throw new IllegalArgumentException("Duplicate tag " + key);
+            }
+            keys[j + 1] = key;
+            values[j + 1] = value;
+        }
+        return new OpenTsdbTagSet(keys, values);
+    }
+
+    /**
+     * @param i Index of the tag.
+     * @return The i-th tag name in tag name order.
+     */
+    public String getKey(int i) {
+        return this.keys[i];
+    }
+
+    /**
+     * @param i Index of the tag.
+     * @return The i-th tag value in tag name order.
+     */
+    public String getValue(int i) {
+        return this.values[i];
+    }
+
+    @Override
+    public int size() {
+        return this.keys.length;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return this.keys.length == 0;
+    }
+
+    private int indexOf(Object key) {
+        if (!(key instanceof String)) {
+            return -1;
+        }
+        return Arrays.binarySearch(this.keys, key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return this.indexOf(key) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        int i = this.indexOf(key);
+        return i >= 0 ? this.values[i] : null;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        if (this.entries == null) {
+            this.entries = new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return OpenTsdbTagSet.this.keys.length;
+                }
+            };
+        }
+        return this.entries;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = this.hash;
+        if (hash == 0) {
+            for (int i = 0; i < this.keys.length; i++) {
+                hash += this.keys[i].hashCode() ^ this.values[i].hashCode();
+            }
+            this.hash = hash;
+        }
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o instanceof OpenTsdbTagSet) {
+            OpenTsdbTagSet other = (OpenTsdbTagSet) o;
+            return this.hashCode() == other.hashCode() &&
+                Arrays.equals(this.keys, other.keys) &&
+                Arrays.equals(this.values, other.values);
+        }
+        return super.equals(o);
+    }
+
+    /**
+     * Iterate over the tags in tag name order.
+     */
+    class EntryIterator implements Iterator<Map.Entry<String, String>> {
+        int i = 0;
+
+        @Override
+        public boolean hasNext() {
+            return this.i < OpenTsdbTagSet.this.keys.length;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!this.hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> entry = new SimpleImmutableEntry<>(
+                OpenTsdbTagSet.this.keys[this.i], OpenTsdbTagSet.this.values[this.i]);
+            this.i++;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("OpenTsdbTagSet is immutable");
+        }
+    }
+}
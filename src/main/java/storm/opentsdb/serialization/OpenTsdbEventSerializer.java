@@ -0,0 +1,73 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.serialization;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import storm.opentsdb.model.OpenTsdbEvent;
+
+/**
+ * <p>
+ * Compact Kryo serializer for OpenTsdbEvent.
+ * </p>
+ * <p>
+ * Layout : metric, varint timestamp, value type byte, value, tags.<br/>
+ * The metric and the tags strings are encoded with the dictionary.
+ * Integral values are written as a zigzag varint ( type 0 ), other
+ * values as an 8 bytes double ( type 1 ). The tags are read back as
+ * an interned OpenTsdbTagSet, so the tags of a deserialized event are
+ * immutable. Tags with a null name or value are dropped.
+ * </p>
+ */
+public class OpenTsdbEventSerializer extends Serializer<OpenTsdbEvent> {
+    private static final byte LONG = 0;
+    private static final byte DOUBLE = 1;
+
+    private final OpenTsdbKryoDictionary dictionary;
+    private final OpenTsdbTagSetSerializer tagsSerializer;
+
+    /**
+     * @param dictionary     The string dictionary.
+     * @param tagsSerializer The tags serializer.
+     */
+    public OpenTsdbEventSerializer(OpenTsdbKryoDictionary dictionary, OpenTsdbTagSetSerializer tagsSerializer) {
+        this.dictionary = dictionary;
+        this.tagsSerializer = tagsSerializer;
+    }
+
+    @Override
+    public void write(Kryo kryo, Output output, OpenTsdbEvent event) {
+        this.dictionary.writeString(output, event.getMetric());
+        output.writeLong(event.getTimestamp(), true);
+        double value = event.getValue();
+        // -0.0 has to be written as a double to keep its sign
+        if (value == (long) value && (value != 0 || Double.doubleToRawLongBits(value) == 0)) {
+            output.writeByte(LONG);
+            output.writeLong((long) value, false);
+        } else {
+            output.writeByte(DOUBLE);
+            output.writeDouble(value);
+        }
+        this.tagsSerializer.writeTags(output, event.getTags());
+    }
+
+    @Override
+    public OpenTsdbEvent read(Kryo kryo, Input input, Class<OpenTsdbEvent> type) {
+        String metric = this.dictionary.readString(input);
+        long timestamp = input.readLong(true);
+        double value;
+        byte valueType = input.readByte();
+        if (valueType == LONG) {
+            value = input.readLong(false);
+        } else if (valueType == DOUBLE) {
+            value = input.readDouble();
+        } else {
+            throw new IllegalStateException("Unknown value type " + valueType);
+        }
+        return new OpenTsdbEvent(metric, timestamp, value, this.tagsSerializer.readTags(input));
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.serialization;
+
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * <p>
+ * Static string dictionary shared by every worker of a topology.
+ * </p>
+ * <p>
+ * A string is written as a varint code : 0 for null, 1 followed by
+ * the string itself, or 2 + its position in the dictionary.<br/>
+ * Storm serializes each tuple on its own and tuples may be dropped or
+ * replayed, so a dictionary learnt along a connection could not be
+ * decoded reliably. The dictionary is instead taken from the topology
+ * configuration so every worker builds the same one.
+ * </p>
+ */
+public class OpenTsdbKryoDictionary {
+    private final String[] strings;
+    private final HashMap<String, Integer> codes;
+
+    /**
+     * @param strings The most frequent metrics, tag names and tag values.
+     */
+    public OpenTsdbKryoDictionary(List<String> strings) {
+        this.strings = strings == null ? new String[0] : strings.toArray(new String[strings.size()]);
+        this.codes = new HashMap<>(this.strings.length * 2);
+        for (int i = 0; i < this.strings.length; i++) {
+            if (!this.codes.containsKey(this.strings[i])) {
+                this.codes.put(this.strings[i], i + 2);
+            }
+        }
+    }
+
+    /**
+     * @param output The output to write to.
+     * @param string The string to write.
+     */
+    public void writeString(Output output, String string) {
+        if (string == null) {
+            output.writeVarInt(0, true);
+            return;
+        }
+        Integer code = this.codes.get(string);
+        if (code != null) {
+            output.writeVarInt(code, true);
+        } else {
+            output.writeVarInt(1, true);
+            output.writeString(string);
+        }
+    }
+
+    /**
+     * @param input The input to read from.
+     * @return The string.
+     */
+    public String readString(Input input) {
+        int code = input.readVarInt(true);
+        if (code == 0) {
+            return null;
+        }
+        if (code == 1) {
+            return input.readString();
+        }
+        if (code - 2 >= this.strings.length) {
+            throw new IllegalStateException("Unknown dictionary code " + code +
+                ", check that all the workers use the same dictionary");
+        }
+        return this.strings[code - 2];
+    }
+
+    /**
+     * @return Number of dictionary strings.
+     */
+    public int size() {
+        return this.strings.length;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.serialization;
+
+import backtype.storm.Config;
+import backtype.storm.serialization.DefaultKryoFactory;
+import com.esotericsoftware.kryo.Kryo;
+import storm.opentsdb.model.OpenTsdbEvent;
+import storm.opentsdb.model.OpenTsdbTagSet;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Storm Kryo factory registering the compact OpenTsdbEvent and
+ * OpenTsdbTagSet serializers.
+ * </p>
+ * <p>
+ * Storm only instantiates registered serializers with their class and Kryo
+ * so a factory is needed to hand them the dictionary from the topology
+ * configuration. The registrations happen after the topology ones, at the
+ * same point on every worker, so the Kryo class ids match.
+ * </p>
+ * <pre>
+ *     Config conf = new Config();
+ *     OpenTsdbKryoFactory.register(conf, Arrays.asList("cpu.usage", "host", "dc", "rbx"));
+ * </pre>
+ */
+public class OpenTsdbKryoFactory extends DefaultKryoFactory {
+    public static final String DICTIONARY = "storm.opentsdb.kryo.dictionary";
+    public static final String TAGSET_CACHE_SIZE = "storm.opentsdb.kryo.tagSetCacheSize";
+
+    /**
+     * <p>
+     * Use this factory in the topology. It replaces any other Kryo factory.
+     * </p>
+     *
+     * @param conf            The topology configuration.
+     * @param dictionary      The most frequent metrics, tag names and tag values,
+     *                        may be null.
+     * @param tagSetCacheSize Number of distinct tag sets to intern on read,
+     *                        0 to disable ( default 1000 ).
+     */
+    public static void register(Config conf, List<String> dictionary, int tagSetCacheSize) {
+        register(conf, dictionary);
+        conf.put(TAGSET_CACHE_SIZE, tagSetCacheSize);
+    }
+
+    /**
+     * <p>
+     * Use this factory in the topology. It replaces any other Kryo factory.
+     * </p>
+     *
+     * @param conf       The topology configuration.
+     * @param dictionary The most frequent metrics, tag names and tag values,
+     *                   may be null.
+     */
+    public static void register(Config conf, List<String> dictionary) {
+        Object factory = conf.get(Config.TOPOLOGY_KRYO_FACTORY);
+        if (factory != null && !factory.equals(DefaultKryoFactory.class.getName()) &&
+            !factory.equals(OpenTsdbKryoFactory.class.getName())) {
+            throw new IllegalArgumentException("A Kryo factory is already configured : " + factory);
+        }
+        conf.setKryoFactory(OpenTsdbKryoFactory.class);
+        if (dictionary != null) {
+            conf.put(DICTIONARY, dictionary);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void postRegister(Kryo k, Map conf) {
+        super.postRegister(k, conf);
+        OpenTsdbKryoDictionary dictionary = new OpenTsdbKryoDictionary((List<String>) conf.get(DICTIONARY));
+        int tagSetCacheSize = conf.containsKey(TAGSET_CACHE_SIZE) ?
+            ((Number) conf.get(TAGSET_CACHE_SIZE)).intValue() : 1000;
+
+        OpenTsdbTagSetSerializer tagsSerializer = new OpenTsdbTagSetSerializer(dictionary, tagSetCacheSize);
+        k.register(OpenTsdbTagSet.class, tagsSerializer);
+        k.register(OpenTsdbEvent.class, new OpenTsdbEventSerializer(dictionary, tagsSerializer));
+    }
+}
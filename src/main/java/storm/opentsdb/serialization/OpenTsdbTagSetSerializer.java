@@ -0,0 +1,106 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.serialization;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import storm.opentsdb.model.OpenTsdbTagSet;
+import storm.opentsdb.utils.OpenTsdbTagSetCache;
+import storm.opentsdb.utils.OpenTsdbTagsProbe;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * Kryo serializer for OpenTsdbTagSet.
+ * </p>
+ * <p>
+ * Tags are written as a varint count followed by the tag names and values
+ * encoded with the dictionary. Tags with a null name or value can not be
+ * part of a tag set, they are dropped on write.<br/>
+ * Read tag sets are immutable and interned so the receiving executor shares
+ * one instance per distinct tag set, the cache is probed before any tag set
+ * is allocated. Kryo instances are not shared between threads so neither is
+ * the cache.
+ * </p>
+ */
+public class OpenTsdbTagSetSerializer extends Serializer<OpenTsdbTagSet> {
+    private final OpenTsdbKryoDictionary dictionary;
+    private final OpenTsdbTagSetCache tagSets;
+    private final OpenTsdbTagsProbe probe = new OpenTsdbTagsProbe();
+
+    /**
+     * @param dictionary      The string dictionary.
+     * @param tagSetCacheSize Number of distinct tag sets to intern on read.
+     */
+    public OpenTsdbTagSetSerializer(OpenTsdbKryoDictionary dictionary, int tagSetCacheSize) {
+        this.dictionary = dictionary;
+        this.tagSets = new OpenTsdbTagSetCache(tagSetCacheSize);
+        this.setImmutable(true);
+    }
+
+    @Override
+    public void write(Kryo kryo, Output output, OpenTsdbTagSet tags) {
+        this.writeTags(output, tags);
+    }
+
+    @Override
+    public OpenTsdbTagSet read(Kryo kryo, Input input, Class<OpenTsdbTagSet> type) {
+        return this.readTags(input);
+    }
+
+    /**
+     * @param output The output to write to.
+     * @param tags   The tags to write, may be null.
+     */
+    void writeTags(Output output, Map<String, String> tags) {
+        if (tags == null) {
+            output.writeVarInt(0, true);
+            return;
+        }
+        int size = 0;
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            if (isValid(tag)) {
+                size++;
+            }
+        }
+        output.writeVarInt(size + 1, true);
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            if (isValid(tag)) {
+                this.dictionary.writeString(output, tag.getKey());
+                this.dictionary.writeString(output, tag.getValue());
+            }
+        }
+    }
+
+    private static boolean isValid(Map.Entry<String, String> tag) {
+        return tag.getKey() != null && tag.getValue() != null;
+    }
+
+    /**
+     * @param input The input to read from.
+     * @return The interned tags or null.
+     */
+    OpenTsdbTagSet readTags(Input input) {
+        int size = input.readVarInt(true) - 1;
+        if (size < 0) {
+            return null;
+        }
+        try {
+            for (int i = 0; i < size; i++) {
+                String key = this.dictionary.readString(input);
+                String value = this.dictionary.readString(input);
+                if (key == null || value == null || !this.probe.add(key, value)) {
+                    throw new IllegalStateException("Invalid serialized tag " + key + "=" + value);
+                }
+            }
+            return this.tagSets.intern(this.probe);
+        } finally {
+            this.probe.clear();
+        }
+    }
+}
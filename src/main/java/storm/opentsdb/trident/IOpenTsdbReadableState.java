@@ -0,0 +1,22 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.trident;
+
+import storm.opentsdb.utils.OpenTsdbPointReader;
+import storm.trident.state.State;
+
+/**
+ * <p>
+ * This interface describes a state which can be queried
+ * with an OpenTsdbStateQuery.
+ * </p>
+ */
+public interface IOpenTsdbReadableState extends State {
+
+    /**
+     * @return The point reader to query the state with.
+     */
+    OpenTsdbPointReader getPointReader();
+}
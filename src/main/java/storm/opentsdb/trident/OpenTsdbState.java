@@ -4,16 +4,26 @@
 
 package storm.opentsdb.trident;
 
+import backtype.storm.topology.FailedException;
+import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
 import net.opentsdb.core.TSDB;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import storm.opentsdb.trident.mapper.IOpenTsdbTridentFieldMapper;
 import storm.opentsdb.trident.mapper.IOpenTsdbTridentMapper;
-import storm.trident.state.State;
+import storm.opentsdb.utils.OpenTsdbClientFactory;
+import storm.opentsdb.utils.OpenTsdbPointReader;
+import storm.opentsdb.utils.OpenTsdbPointWriter;
+import storm.opentsdb.utils.OpenTsdbRowBatch;
+import storm.opentsdb.utils.OpenTsdbRowCache;
+import storm.opentsdb.utils.OpenTsdbSeriesCache;
+import storm.opentsdb.utils.OpenTsdbTxidStore;
 import storm.trident.tuple.TridentTuple;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * <p>
@@ -21,6 +31,22 @@ import java.util.ArrayList;
  * You should only use this state if your update is idempotent regarding batch replay.
  * </p>
  * <p>
+ * With a transaction id store the state is transactional : commit waits
+ * for the points of the batch to be written and then records the batch
+ * transaction id, a failed write fails the batch. A replayed batch whose
+ * transaction id was already committed is not written again. This is exact
+ * with a transactional spout, an opaque spout may replay a committed batch
+ * with other tuples which would then be dropped.
+ * </p>
+ * <p>
+ * With setMaxPendingBatches(n) commit only waits until at most n - 1 of the
+ * previous batches writes are still in flight, so the writes of a batch
+ * overlap with the next batches. A failed write fails the batch being
+ * committed, if it belongs to a previous batch its points are not replayed.
+ * Use 1 to wait for the writes of each batch. A transactional state only
+ * allows 1 : a batch is never recorded before its own writes completed.
+ * </p>
+ * <p>
  * Use storm.opentsdb.trident.state.StateFactory to handle state creation<br/>
  * Use storm.opentsdb.trident.state.StateUpdater to update state<br/>
  * Use storm.opentsdb.trident.state.StateQuery to query state<br/>
@@ -30,29 +56,266 @@ import java.util.ArrayList;
  * for a concrete use case.
  * </p>
  */
-public class OpenTsdbState implements State {
+public class OpenTsdbState implements IOpenTsdbReadableState {
     public static final Logger log = LoggerFactory.getLogger(OpenTsdbState.class);
 
     private final TSDB tsdb;
+    private final OpenTsdbPointWriter writer;
+    private final OpenTsdbRowCache readCache;
+    private OpenTsdbPointReader reader;
+    private OpenTsdbRowBatch rowBatch;
+
+    private final OpenTsdbTxidStore txidStore;
+    private long txidTimeout = 60000;
+    private int maxPendingBatches = 0;
+    private List<Deferred<Object>> pending = new ArrayList<>();
+    private final ArrayDeque<PendingBatch> batches = new ArrayDeque<>();
+    private boolean txidLoaded = false;
+    private Long lastTxid;
+    private boolean replay = false;
+
+    /**
+     * @param tsdb      Initialized OpenTSDB client ( used by the factory ).
+     * @param writer    Point writer to use ( used by the factory ).
+     * @param readCache Read cache for the state queries, may be null ( used by the factory ).
+     * @param txidStore Store of the last committed transaction id, may be null ( used by the factory ).
+     */
+    public OpenTsdbState(TSDB tsdb, OpenTsdbPointWriter writer, OpenTsdbRowCache readCache, OpenTsdbTxidStore txidStore) {
+        this.tsdb = tsdb;
+        this.writer = writer;
+        this.readCache = readCache;
+        this.txidStore = txidStore;
+    }
+
+    /**
+     * @param tsdb      Initialized OpenTSDB client ( used by the factory ).
+     * @param writer    Point writer to use ( used by the factory ).
+     * @param readCache Read cache for the state queries, may be null ( used by the factory ).
+     */
+    public OpenTsdbState(TSDB tsdb, OpenTsdbPointWriter writer, OpenTsdbRowCache readCache) {
+        this(tsdb, writer, readCache, null);
+    }
+
+    /**
+     * @param tsdb   Initialized OpenTSDB client ( used by the factory ).
+     * @param writer Point writer to use ( used by the factory ).
+     */
+    public OpenTsdbState(TSDB tsdb, OpenTsdbPointWriter writer) {
+        this(tsdb, writer, null);
+    }
 
     /**
      * @param tsdb   Initialized OpenTSDB client ( used by the factory ).
      */
     public OpenTsdbState(TSDB tsdb) {
-        this.tsdb = tsdb;
+        this(tsdb, new OpenTsdbPointWriter(tsdb));
     }
 
     public TSDB getOpenTsdbClient() {
         return this.tsdb;
     }
 
+    /**
+     * @return The point writer to use to write to this state.
+     */
+    public OpenTsdbPointWriter getPointWriter() {
+        return this.writer;
+    }
+
+    /**
+     * @return A row batch reused from one Trident batch to the next.
+     */
+    public OpenTsdbRowBatch getRowBatch() {
+        if (this.rowBatch == null) {
+            this.rowBatch = new OpenTsdbRowBatch(this.writer);
+        }
+        return this.rowBatch;
+    }
+
+    /**
+     * @return The read cache updated by the state updater or null.
+     */
+    public OpenTsdbRowCache getReadCache() {
+        return this.readCache;
+    }
+
+    /**
+     * @return A point reader sharing the writer series cache if any.
+     */
+    public OpenTsdbPointReader getPointReader() {
+        if (this.reader == null) {
+            OpenTsdbSeriesCache seriesCache = this.writer.getSeriesCache();
+            if (seriesCache == null) {
+                seriesCache = new OpenTsdbSeriesCache(this.tsdb, 10000);
+            }
+            this.reader = new OpenTsdbPointReader(this.tsdb, seriesCache, this.readCache);
+        }
+        return this.reader;
+    }
+
+    /**
+     * @param txidTimeout How long to wait for the batch writes and the
+     *                    transaction id store on commit (in millisecond).
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbState setTxidTimeout(long txidTimeout) {
+        this.txidTimeout = txidTimeout;
+        return this;
+    }
+
+    /**
+     * @param maxPendingBatches Number of batches whose writes can be in
+     *                          flight when commit returns, plus one.
+     *                          Use 0 to not wait unless transactional.
+     * @return This so you can do method chaining.
+     * @throws IllegalArgumentException If more than one pending batch is allowed on a transactional state.
+     */
+    public OpenTsdbState setMaxPendingBatches(int maxPendingBatches) {
+        if (maxPendingBatches > 1 && this.txidStore != null) {
+            throw new IllegalArgumentException("A transactional state can not have more than one pending batch");
+        }
+        this.maxPendingBatches = maxPendingBatches;
+        return this;
+    }
+
+    private int getPendingLimit() {
+        if (this.maxPendingBatches > 0) {
+            return this.maxPendingBatches;
+        }
+        return this.txidStore != null ? 1 : 0;
+    }
+
+    /**
+     * @return Whether the state records the committed transaction ids.
+     */
+    public boolean isTransactional() {
+        return this.txidStore != null;
+    }
+
+    /**
+     * @return Whether the current batch was already committed and must not be written again.
+     */
+    public boolean isReplay() {
+        return this.replay;
+    }
+
+    /**
+     * <p>
+     * Add the results of the current batch writes, commit
+     * waits for them before recording the transaction id.
+     * </p>
+     *
+     * @param results The write results.
+     */
+    public void addPending(List<Deferred<Object>> results) {
+        if (this.getPendingLimit() > 0) {
+            this.pending.addAll(results);
+        }
+    }
+
     @Override
     public void beginCommit(Long txid) {
         log.debug("Beginning commit for tx " + txid);
+        this.replay = false;
+        this.pending.clear();
+        if (this.txidStore == null || txid == null) {
+            return;
+        }
+        if (!this.txidLoaded) {
+            try {
+                this.lastTxid = this.txidStore.get(this.txidTimeout);
+            } catch (Exception ex) {
+                log.warn("Unable to read the last committed tx : " + ex.getMessage());
+                throw new FailedException(ex);
+            }
+            this.txidLoaded = true;
+        }
+        if (this.lastTxid != null && txid <= this.lastTxid) {
+            log.info("Skipping replayed tx " + txid + ", last committed tx is " + this.lastTxid);
+            this.replay = true;
+        }
     }
 
     @Override
     public void commit(Long txid) {
         log.debug("Commit tx " + txid);
+        int limit = this.getPendingLimit();
+        if (limit == 0 || this.replay) {
+            return;
+        }
+
+        PendingBatch batch = new PendingBatch(txid, Deferred.group(this.pending));
+        this.pending = new ArrayList<>();
+        this.batches.addLast(batch);
+
+        // Wait for the oldest batches until fewer than limit are in flight
+        Long confirmed = null;
+        PendingBatch failed = null;
+        try {
+            while (!this.batches.isEmpty()) {
+                PendingBatch oldest = this.batches.peekFirst();
+                if (!oldest.done && this.batches.size() < limit) {
+                    break;
+                }
+                failed = oldest;
+                oldest.result.joinUninterruptibly(this.txidTimeout);
+                failed = null;
+                this.batches.removeFirst();
+                if (oldest.txid != null) {
+                    confirmed = oldest.txid;
+                }
+            }
+            if (this.txidStore != null && confirmed != null) {
+                this.txidStore.put(confirmed, this.txidTimeout);
+                this.lastTxid = confirmed;
+            }
+        } catch (Exception ex) {
+            if (failed != null && failed != batch) {
+                log.warn("Unable to write tx " + failed.txid + ", failing tx " + txid + " : " + ex.getMessage());
+                this.batches.remove(failed);
+            } else {
+                log.warn("Unable to commit tx " + txid + " : " + ex.getMessage());
+            }
+            // This batch will be replayed
+            this.batches.remove(batch);
+            throw new FailedException(ex);
+        }
+    }
+
+    /**
+     * The writes of a committed batch.
+     */
+    static class PendingBatch {
+        final Long txid;
+        final Deferred<ArrayList<Object>> result;
+        volatile boolean done = false;
+
+        PendingBatch(Long txid, Deferred<ArrayList<Object>> result) {
+            this.txid = txid;
+            this.result = result;
+            this.result.addCallbacks(new Callback<Object, ArrayList<Object>>() {
+                @Override
+                public Object call(ArrayList<Object> results) throws Exception {
+                    PendingBatch.this.done = true;
+                    return results;
+                }
+            }, new Callback<Object, Exception>() {
+                @Override
+                public Object call(Exception ex) throws Exception {
+                    PendingBatch.this.done = true;
+                    return ex;
+                }
+            });
+        }
+    }
+
+    /**
+     * <p>
+     * Release the OpenTSDB client. Trident states have no shutdown hook
+     * so this is called by the state updater cleanup.
+     * </p>
+     */
+    public void cleanup() {
+        OpenTsdbClientFactory.releaseTsdbClient(this.tsdb);
     }
 }
@@ -5,10 +5,15 @@
 package storm.opentsdb.trident;
 
 import backtype.storm.task.IMetricsContext;
+import net.opentsdb.core.TSDB;
 import storm.opentsdb.trident.mapper.IOpenTsdbTridentMapper;
 import storm.opentsdb.trident.mapper.OpenTsdbTridentMapper;
 import storm.opentsdb.trident.mapper.OpenTsdbTridentTupleFieldMapper;
 import storm.opentsdb.utils.OpenTsdbClientFactory;
+import storm.opentsdb.utils.OpenTsdbPointWriter;
+import storm.opentsdb.utils.OpenTsdbRowCache;
+import storm.opentsdb.utils.OpenTsdbSeriesCache;
+import storm.opentsdb.utils.OpenTsdbTxidStore;
 import storm.trident.state.State;
 import storm.trident.state.StateFactory;
 
@@ -20,6 +25,13 @@ import java.util.Map;
 public class OpenTsdbStateFactory implements StateFactory {
     private final String cluster;
     private final String name;
+    private int seriesCacheSize = 0;
+    private int readCacheSize = 0;
+    private long readCacheTtl = 60000;
+    private String txidTable;
+    private String txidId;
+    private long txidTimeout = 60000;
+    private int maxPendingBatches = 0;
 
     /**
      * @param cluster The HBase cluster to use.
@@ -30,6 +42,85 @@ public class OpenTsdbStateFactory implements StateFactory {
         this.name = name;
     }
 
+    /**
+     * @param seriesCacheSize Number of series row keys to cache.
+     *                        Use 0 to write with TSDB.addPoint.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbStateFactory setSeriesCacheSize(int seriesCacheSize) {
+        this.seriesCacheSize = seriesCacheSize;
+        return this;
+    }
+
+    /**
+     * @param readCacheSize Number of rows to cache for the state queries.
+     *                      Use 0 to disable.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbStateFactory setReadCacheSize(int readCacheSize) {
+        this.readCacheSize = readCacheSize;
+        return this;
+    }
+
+    /**
+     * @param readCacheTtl How long a cached row stays valid (in millisecond).
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbStateFactory setReadCacheTtl(long readCacheTtl) {
+        this.readCacheTtl = readCacheTtl;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Make the state transactional, see OpenTsdbState.<br/>
+     * It can not be combined with more than one pending batch.
+     * </p>
+     *
+     * @param txidTable The HBase table where to store the committed transaction ids.
+     * @param txidId    Identifier of this state in the table, unique per topology state.
+     * @return This so you can do method chaining.
+     * @throws IllegalArgumentException If more than one pending batch is allowed.
+     */
+    public OpenTsdbStateFactory setTxidTable(String txidTable, String txidId) {
+        if (this.maxPendingBatches > 1) {
+            throw new IllegalArgumentException("A transactional state can not have more than one pending batch");
+        }
+        this.txidTable = txidTable;
+        this.txidId = txidId;
+        return this;
+    }
+
+    /**
+     * @param txidTimeout How long to wait for the batch writes and the
+     *                    transaction id store on commit (in millisecond).
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbStateFactory setTxidTimeout(long txidTimeout) {
+        this.txidTimeout = txidTimeout;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Make commit wait for the batch writes, see OpenTsdbState.<br/>
+     * A transactional state only allows 1.
+     * </p>
+     *
+     * @param maxPendingBatches Number of batches whose writes can be in
+     *                          flight when commit returns, plus one.
+     *                          Use 1 to wait for the writes of each batch.
+     * @return This so you can do method chaining.
+     * @throws IllegalArgumentException If more than one pending batch is allowed on a transactional state.
+     */
+    public OpenTsdbStateFactory setMaxPendingBatches(int maxPendingBatches) {
+        if (maxPendingBatches > 1 && this.txidTable != null) {
+            throw new IllegalArgumentException("A transactional state can not have more than one pending batch");
+        }
+        this.maxPendingBatches = maxPendingBatches;
+        return this;
+    }
+
     /**
      * <p>
      * Factory method to create a OpenTsdbState object
@@ -43,7 +134,26 @@ public class OpenTsdbStateFactory implements StateFactory {
      */
     @Override
     public State makeState(Map conf, IMetricsContext metrics, int partitionIndex, int numPartitions) {
-        return new OpenTsdbState(OpenTsdbClientFactory
-            .getTsdbClient(conf, this.cluster, this.name));
+        TSDB tsdb = OpenTsdbClientFactory.getTsdbClient(conf, this.cluster, this.name);
+        OpenTsdbRowCache readCache = null;
+        if (this.readCacheSize > 0) {
+            readCache = new OpenTsdbRowCache(this.readCacheSize, this.readCacheTtl);
+            metrics.registerMetric("opentsdb-read-cache", readCache, 60);
+        }
+        OpenTsdbTxidStore txidStore = null;
+        if (this.txidTable != null) {
+            txidStore = new OpenTsdbTxidStore(tsdb.getClient(), this.txidTable, this.txidId, partitionIndex);
+        }
+        OpenTsdbPointWriter writer;
+        if (this.seriesCacheSize > 0) {
+            OpenTsdbSeriesCache seriesCache = new OpenTsdbSeriesCache(tsdb, this.seriesCacheSize);
+            metrics.registerMetric("opentsdb-series-cache", seriesCache, 60);
+            writer = new OpenTsdbPointWriter(tsdb, seriesCache);
+        } else {
+            writer = new OpenTsdbPointWriter(tsdb);
+        }
+        return new OpenTsdbState(tsdb, writer, readCache, txidStore)
+            .setTxidTimeout(this.txidTimeout)
+            .setMaxPendingBatches(this.maxPendingBatches);
     }
 }
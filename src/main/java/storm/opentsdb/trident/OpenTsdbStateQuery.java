@@ -4,29 +4,157 @@
 
 package storm.opentsdb.trident;
 
-import com.stumbleupon.async.Deferred;
-import org.hbase.async.KeyValue;
+import backtype.storm.topology.FailedException;
+import backtype.storm.tuple.Values;
+import net.opentsdb.core.Const;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.opentsdb.model.OpenTsdbAggregate;
+import storm.opentsdb.model.OpenTsdbSeriesQuery;
 import storm.trident.operation.TridentCollector;
 import storm.trident.state.BaseQueryFunction;
 import storm.trident.tuple.TridentTuple;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * <p>
- * TODO implements queries for trident
+ * Query an OpenTsdbState or an OpenTsdbLightState for the latest value or
+ * an aggregate of a series.
  * </p>
+ * <p>
+ * Each tuple gives a metric, tags and optionally a time range ( start and
+ * end timestamps in seconds or milliseconds, null for open ). All the tuples
+ * of a batch are resolved together by an OpenTsdbPointReader : one GetRequest
+ * per distinct series and hour sent at once through the shared HBase client.
+ * </p>
+ * <p>
+ * By default the latest point of the range is returned, looking back at most
+ * lookback hours from the range end ( now if none ). With setAggregate the
+ * aggregate of all the points of the range is returned instead, the range
+ * defaults to the last lookback hours and at most the lookback hours ending
+ * at the range end are read.<br/>
+ * Each tuple emits two fields : the timestamp of the latest point and the
+ * value ( Long or Double ), both null if the series has no point.
+ * </p>
+ * <pre>
+ *     stream.stateQuery(state, new Fields("metric", "tags"),
+ *         new OpenTsdbStateQuery("metric", "tags"), new Fields("last_timestamp", "last_value"));
+ * </pre>
+ * A failed HBase read fails the batch so that it is replayed.
  */
-public class OpenTsdbStateQuery extends BaseQueryFunction<OpenTsdbState, Deferred<ArrayList<KeyValue>>> {
+public class OpenTsdbStateQuery extends BaseQueryFunction<IOpenTsdbReadableState, OpenTsdbSeriesQuery> {
+    public static final Logger log = LoggerFactory.getLogger(OpenTsdbStateQuery.class);
+
+    private final String metricField;
+    private final String tagsField;
+    private String startField;
+    private String endField;
+    private OpenTsdbAggregate aggregate;
+    private int lookback = 2;
+    private long timeout = 0;
+
+    /**
+     * @param metricField The tuple field containing the metric.
+     * @param tagsField   The tuple field containing the tags.
+     */
+    public OpenTsdbStateQuery(String metricField, String tagsField) {
+        this.metricField = metricField;
+        this.tagsField = tagsField;
+    }
+
+    /**
+     * Default constructor for tuples with fields named metric and tags.
+     */
+    public OpenTsdbStateQuery() {
+        this("metric", "tags");
+    }
+
+    /**
+     * @param startField The tuple field containing the range start.
+     * @param endField   The tuple field containing the range end.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbStateQuery setRangeFields(String startField, String endField) {
+        this.startField = startField;
+        this.endField = endField;
+        return this;
+    }
+
+    /**
+     * @param aggregate The aggregate to compute over the range, null for the latest value.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbStateQuery setAggregate(OpenTsdbAggregate aggregate) {
+        this.aggregate = aggregate;
+        return this;
+    }
+
+    /**
+     * @param lookback Maximum number of hours to read per series, for both
+     *                 the latest value and the aggregates.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbStateQuery setLookback(int lookback) {
+        this.lookback = lookback;
+        return this;
+    }
+
+    /**
+     * @param timeout how long to wait for HBase (in millisecond).
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbStateQuery setTimeout(long timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
     @Override
-    public List<Deferred<ArrayList<KeyValue>>> batchRetrieve(OpenTsdbState state, List<TridentTuple> args) {
-        //TODO
-        return null;
+    public List<OpenTsdbSeriesQuery> batchRetrieve(IOpenTsdbReadableState state, List<TridentTuple> args) {
+        long now = System.currentTimeMillis();
+        List<OpenTsdbSeriesQuery> queries = new ArrayList<>(args.size());
+        for (TridentTuple tuple : args) {
+            queries.add(this.query(tuple, now));
+        }
+        try {
+            if (this.aggregate == null || this.aggregate == OpenTsdbAggregate.LAST) {
+                state.getPointReader().last(queries, this.lookback, this.timeout);
+            } else {
+                state.getPointReader().aggregate(queries, this.lookback, this.timeout);
+            }
+        } catch (Exception ex) {
+            log.error("OpenTSDB query exception : " + ex.toString());
+            throw new FailedException(ex);
+        }
+        return queries;
     }
 
     @Override
-    public void execute(TridentTuple tuple, Deferred<ArrayList<KeyValue>> result, TridentCollector collector) {
-        //TODO
+    public void execute(TridentTuple tuple, OpenTsdbSeriesQuery query, TridentCollector collector) {
+        Number value = this.aggregate == null ? query.getLastValue() : query.getValue(this.aggregate);
+        collector.emit(new Values(query.getLastTimestamp(), value));
+    }
+
+    @SuppressWarnings("unchecked")
+    private OpenTsdbSeriesQuery query(TridentTuple tuple, long now) {
+        Long start = this.startField == null ? null : tuple.getLongByField(this.startField);
+        Long end = this.endField == null ? null : tuple.getLongByField(this.endField);
+        long to = end == null ? now : toMillis(end);
+        long from;
+        if (start != null) {
+            from = toMillis(start);
+        } else if (this.aggregate == null || this.aggregate == OpenTsdbAggregate.LAST) {
+            from = 0;
+        } else {
+            from = Math.max(0, to - this.lookback * Const.MAX_TIMESPAN * 1000L);
+        }
+        return new OpenTsdbSeriesQuery(tuple.getStringByField(this.metricField),
+            (Map<String, String>) tuple.getValueByField(this.tagsField), from, to);
+    }
+
+    private static long toMillis(long timestamp) {
+        return (timestamp & Const.SECOND_MASK) != 0 ? timestamp : timestamp * 1000;
     }
-}
\ No newline at end of file
+}
@@ -6,12 +6,20 @@ package storm.opentsdb.trident;
 
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
-import net.opentsdb.core.TSDB;
-import org.hbase.async.PleaseThrottleException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import storm.opentsdb.trident.mapper.IOpenTsdbTridentFieldMapper;
+import storm.opentsdb.model.OpenTsdbPoint;
+import storm.opentsdb.trident.mapper.IOpenTsdbTridentContextAware;
 import storm.opentsdb.trident.mapper.IOpenTsdbTridentMapper;
+import storm.opentsdb.trident.mapper.IOpenTsdbTridentMultiPointMapper;
+import storm.opentsdb.trident.mapper.IOpenTsdbTridentPointMapper;
+import storm.opentsdb.trident.mapper.OpenTsdbTridentMapper;
+import storm.opentsdb.utils.OpenTsdbConcurrencyLimiter;
+import storm.opentsdb.utils.OpenTsdbMetrics;
+import storm.opentsdb.utils.OpenTsdbPointCompressor;
+import storm.opentsdb.utils.OpenTsdbPointWriter;
+import storm.opentsdb.utils.OpenTsdbRowBatch;
+import storm.opentsdb.utils.OpenTsdbRowCache;
 import storm.trident.operation.TridentCollector;
 import storm.trident.operation.TridentOperationContext;
 import storm.trident.state.BaseStateUpdater;
@@ -24,14 +32,61 @@ import java.util.Map;
 /**
  * Update an OpenTsdbState<br/>
  * Use this function with Stream.partitionAggregate(State,Aggregator,StateUpdater,...)
+ * <p>
+ * The number of points in flight is controlled by an adaptive
+ * OpenTsdbConcurrencyLimiter which shrinks on PleaseThrottleException
+ * or latency increase and slowly grows back otherwise.
+ * </p>
+ * <p>
+ * With setCoalesceRows(true) the points of a batch are grouped by OpenTSDB
+ * row and each row is written with a single PutRequest. This requires the
+ * state factory to be configured with a series cache, otherwise the points
+ * are written one by one once the whole batch is mapped.
+ * </p>
+ * <p>
+ * With setCompressor the points of flat series are suppressed before
+ * they are written, see OpenTsdbPointCompressor. The points held by the
+ * swinging door for longer than the compressor maxHoldTime are written
+ * with the next batch, and all of them on cleanup. A transactional state
+ * writes all the held points with each batch so a committed batch never
+ * leaves a point behind. A replayed batch is written again as points older
+ * than the last written one are never suppressed.
+ * </p>
+ * <p>
+ * Written points are also added to the state read cache if the state
+ * factory enables one. A failed write invalidates the read cache.
+ * </p>
+ * <p>
+ * If the state is transactional the batches it already committed are
+ * skipped. The write results are handed to the state, which waits for
+ * them on commit if transactional or configured with setMaxPendingBatches.
+ * Tuples that fail to map are only reported, they don't fail the batch.
+ * Use setAsync(true) then, the default, or each batch is waited for twice.
+ * </p>
+ * <p>
+ * The updater registers an "opentsdb" Storm metric reporting the write
+ * rate, latency, errors and the limiter state.
+ * </p>
+ * <p>
+ * On cleanup the OpenTSDB client is flushed and the updater waits up to
+ * the shutdown timeout for the points in flight to complete.
+ * </p>
  */
 public class OpenTsdbStateUpdater extends BaseStateUpdater<OpenTsdbState> {
     public static final Logger log = LoggerFactory.getLogger(storm.opentsdb.trident.OpenTsdbStateUpdater.class);
 
     private final IOpenTsdbTridentMapper mapper;
 
-    private boolean throttle = false;
     private boolean async = true;
+    private boolean coalesceRows = false;
+    private OpenTsdbConcurrencyLimiter limiter = new OpenTsdbConcurrencyLimiter();
+    private long shutdownTimeout = 10000;
+    private OpenTsdbPointCompressor compressor;
+    private transient OpenTsdbMetrics metrics;
+    private transient OpenTsdbPoint point;
+    private transient List<IOpenTsdbTridentPointMapper> pointMappers;
+    private transient List<IOpenTsdbTridentMultiPointMapper> multiPointMappers;
+    private transient OpenTsdbState state;
 
     public OpenTsdbStateUpdater(IOpenTsdbTridentMapper mapper) {
         this.mapper = mapper;
@@ -46,18 +101,60 @@ public class OpenTsdbStateUpdater extends BaseStateUpdater<OpenTsdbState> {
         return this;
     }
 
+    /**
+     * @param limiter The limiter to use to control the number of points in flight.
+     * @return this so you can do method chaining
+     */
+    public OpenTsdbStateUpdater setLimiter(OpenTsdbConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+        return this;
+    }
+
+    /**
+     * @param coalesceRows Whether to write one PutRequest per OpenTSDB row.
+     * @return this so you can do method chaining
+     */
+    public OpenTsdbStateUpdater setCoalesceRows(boolean coalesceRows) {
+        this.coalesceRows = coalesceRows;
+        return this;
+    }
+
+    /**
+     * @param compressor Suppress points per series before they are written.
+     * @return this so you can do method chaining
+     */
+    public OpenTsdbStateUpdater setCompressor(OpenTsdbPointCompressor compressor) {
+        this.compressor = compressor;
+        return this;
+    }
+
+    /**
+     * @param shutdownTimeout how long to wait for in flight points on cleanup
+     *                        (in millisecond).
+     * @return this so you can do method chaining
+     */
+    public OpenTsdbStateUpdater setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+        return this;
+    }
+
     @Override
     public void updateState(OpenTsdbState state, List<TridentTuple> tuples,
                             final TridentCollector collector) {
-        log.info("OpenTsdbStateUpdater : " + "Saving " + tuples.size() + " tuples to OpenTSDB");
+        log.debug("OpenTsdbStateUpdater : " + "Saving " + tuples.size() + " tuples to OpenTSDB");
         long start_time = System.currentTimeMillis();
+        this.state = state;
+
+        if (state.isReplay()) {
+            log.debug("OpenTsdbStateUpdater : " + "Skipping " + tuples.size() + " tuples of a committed batch");
+            return;
+        }
 
         Callback<Object, Exception> errback = new Callback<Object, Exception>() {
             @Override
             public Object call(Exception ex) throws Exception {
                 log.warn("OpenTSDB failure : " + ex.getMessage());
-                if (ex instanceof PleaseThrottleException) {
-                    throttle = true;
+                if (OpenTsdbConcurrencyLimiter.isThrottle(ex)) {
                     return ex;
                 }
                 synchronized (collector) {
@@ -67,62 +164,109 @@ public class OpenTsdbStateUpdater extends BaseStateUpdater<OpenTsdbState> {
             }
         };
 
-        TSDB tsdb = state.getOpenTsdbClient();
+        final OpenTsdbRowCache readCache = state.getReadCache();
+        Callback<Object, Exception> invalidate = null;
+        if (readCache != null) {
+            // The points were added to the cached rows before being written
+            invalidate = new Callback<Object, Exception>() {
+                @Override
+                public Object call(Exception ex) throws Exception {
+                    readCache.invalidate();
+                    return ex;
+                }
+            };
+        }
 
         List<Deferred<Object>> results = new ArrayList<>();
-        for (final TridentTuple tuple : tuples) {
-            for (IOpenTsdbTridentFieldMapper fieldMapper : mapper.getFieldMappers()) {
-                if ( ! fieldMapper.isFiltered(tuple) ) {
-                    double value = fieldMapper.getValue(tuple);
-                    if (value == (long) value) {
-                        try {
-                            results.add(tsdb.addPoint(
-                                fieldMapper.getMetric(tuple),
-                                fieldMapper.getTimestamp(tuple),
-                                (long) value,
-                                fieldMapper.getTags(tuple)
-                            ).addErrback(errback));
-                        } catch (Exception ex) {
-                            results.add(Deferred.fromError(ex).addErrback(errback));
+        if (coalesceRows) {
+            OpenTsdbRowBatch batch = state.getRowBatch();
+            for (final TridentTuple tuple : tuples) {
+                for (IOpenTsdbTridentPointMapper pointMapper : pointMappers) {
+                    try {
+                        if (pointMapper.map(tuple, point) && accept(readCache)) {
+                            batch.add(point);
                         }
-                    } else {
-                        try {
-                            results.add(tsdb.addPoint(
-                                fieldMapper.getMetric(tuple),
-                                fieldMapper.getTimestamp(tuple),
-                                (long) value,
-                                fieldMapper.getTags(tuple)
-                            ).addErrback(errback));
-                        } catch (Exception ex) {
-                            results.add(Deferred.fromError(ex).addErrback(errback));
+                    } catch (Exception ex) {
+                        mappingError(ex, errback);
+                    }
+                }
+                for (IOpenTsdbTridentMultiPointMapper multiPointMapper : multiPointMappers) {
+                    try {
+                        if (multiPointMapper.start(tuple)) {
+                            while (multiPointMapper.next(point)) {
+                                if (accept(readCache)) {
+                                    batch.add(point);
+                                }
+                            }
                         }
+                    } catch (Exception ex) {
+                        mappingError(ex, errback);
                     }
                 }
             }
-        }
-
-        if (throttle) {
-            log.warn("Throttling...");
-            long throttle_time = System.nanoTime();
-            try {
-                Deferred.group(results).joinUninterruptibly();
-            } catch (Exception ex) {
-                log.error("AsyncHBase exception : " + ex.getMessage());
-                collector.reportError(ex);
-            } finally {
-                throttle_time = System.nanoTime() - throttle_time;
-                if (throttle_time < 1000000000L) {
-                    log.info("Got throttled for only " + throttle_time + "ns, sleeping a bit now");
+            if (compressor != null) {
+                long now = holdTime(state);
+                while (compressor.pollExpired(now, point)) {
+                    if (readCache != null) {
+                        readCache.update(point);
+                    }
+                    batch.add(point);
+                }
+            }
+            int points = batch.size();
+            limiter.acquireUninterruptibly(points);
+            Deferred<Object> result = written(batch.flush(), invalidate);
+            results.add(metrics.track(limiter.track(result, points), points).addErrback(errback));
+        } else {
+            OpenTsdbPointWriter writer = state.getPointWriter();
+            for (final TridentTuple tuple : tuples) {
+                for (IOpenTsdbTridentPointMapper pointMapper : pointMappers) {
+                    try {
+                        if (!pointMapper.map(tuple, point) || !accept(readCache)) {
+                            continue;
+                        }
+                    } catch (Exception ex) {
+                        mappingError(ex, errback);
+                        continue;
+                    }
+                    limiter.acquireUninterruptibly(1);
+                    Deferred<Object> result = written(writer.addPoint(point), invalidate);
+                    results.add(metrics.track(limiter.track(result, 1), 1).addErrback(errback));
+                }
+                for (IOpenTsdbTridentMultiPointMapper multiPointMapper : multiPointMappers) {
                     try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException ex) {
-                        log.error("AsyncHBase exception : " + ex.getMessage());
+                        if (!multiPointMapper.start(tuple)) {
+                            continue;
+                        }
+                        while (multiPointMapper.next(point)) {
+                            if (!accept(readCache)) {
+                                continue;
+                            }
+                            limiter.acquireUninterruptibly(1);
+                            Deferred<Object> result = written(writer.addPoint(point), invalidate);
+                            results.add(metrics.track(limiter.track(result, 1), 1).addErrback(errback));
+                        }
+                    } catch (Exception ex) {
+                        mappingError(ex, errback);
+                    }
+                }
+            }
+            if (compressor != null) {
+                long now = holdTime(state);
+                while (compressor.pollExpired(now, point)) {
+                    if (readCache != null) {
+                        readCache.update(point);
                     }
+                    limiter.acquireUninterruptibly(1);
+                    Deferred<Object> result = written(writer.addPoint(point), invalidate);
+                    results.add(metrics.track(limiter.track(result, 1), 1).addErrback(errback));
                 }
-                log.info("Done throttling...");
-                this.throttle = false;
             }
-        } else if (!async) {
+        }
+        point.clear();
+        state.addPending(results);
+
+        if (!async) {
             try {
                 Deferred.group(results).joinUninterruptibly();
             } catch (InterruptedException ex) {
@@ -133,12 +277,94 @@ public class OpenTsdbStateUpdater extends BaseStateUpdater<OpenTsdbState> {
         }
 
         long elapsed = System.currentTimeMillis() - start_time;
-        log.info("OpenTsdbStateUpdater : " + tuples.size() + " tuples saved to OpenTSDB in " + elapsed + "ms");
+        log.debug("OpenTsdbStateUpdater : " + tuples.size() + " tuples saved to OpenTSDB in " + elapsed + "ms");
     }
 
     @Override
     public void prepare(Map conf, TridentOperationContext context) {
         super.prepare(conf, context);
-        mapper.prepare(conf);
+        if (mapper instanceof IOpenTsdbTridentContextAware) {
+            ((IOpenTsdbTridentContextAware) mapper).prepare(conf, context);
+        } else {
+            mapper.prepare(conf);
+        }
+        pointMappers = OpenTsdbTridentMapper.pointMappersOf(mapper);
+        multiPointMappers = OpenTsdbTridentMapper.multiPointMappersOf(mapper);
+        point = new OpenTsdbPoint();
+        limiter.prepare();
+        metrics = new OpenTsdbMetrics(limiter).register(context, 60);
+        if (compressor != null) {
+            compressor.prepare();
+            context.registerMetric("opentsdb-compressor", compressor, 60);
+        }
+    }
+
+    /**
+     * <p>
+     * Accepted points are added to the state read cache so the
+     * state queries see them.
+     * </p>
+     *
+     * @param readCache The state read cache, may be null.
+     * @return False if the compressor suppressed the current point.
+     */
+    private boolean accept(OpenTsdbRowCache readCache) {
+        if (compressor != null && !compressor.compress(point)) {
+            return false;
+        }
+        if (readCache != null) {
+            readCache.update(point);
+        }
+        return true;
+    }
+
+    /**
+     * <p>
+     * Mapping errors are reported but kept out of the pending write results,
+     * the state would otherwise fail every replay of the batch.
+     * </p>
+     *
+     * @param ex      The mapping error.
+     * @param errback The errback reporting it.
+     */
+    private void mappingError(Exception ex, Callback<Object, Exception> errback) {
+        metrics.track(Deferred.fromError(ex), 1).addErrback(errback);
+    }
+
+    /**
+     * @param result     A write result.
+     * @param invalidate Errback invalidating the read cache, may be null.
+     * @return The write result.
+     */
+    private static Deferred<Object> written(Deferred<Object> result, Callback<Object, Exception> invalidate) {
+        if (invalidate != null) {
+            result.addErrback(invalidate);
+        }
+        return result;
+    }
+
+    /**
+     * @param state The state being updated.
+     * @return The time to write the expired held points at, a transactional
+     * state writes all of them with each batch.
+     */
+    private long holdTime(OpenTsdbState state) {
+        return state.isTransactional() ? Long.MAX_VALUE : System.currentTimeMillis();
+    }
+
+    @Override
+    public void cleanup() {
+        if (this.state != null) {
+            if (compressor != null) {
+                OpenTsdbPointWriter writer = this.state.getPointWriter();
+                while (compressor.pollExpired(Long.MAX_VALUE, point)) {
+                    limiter.acquireUninterruptibly(1);
+                    limiter.track(writer.addPoint(point), 1);
+                }
+                point.clear();
+            }
+            this.limiter.drain(this.state.getOpenTsdbClient(), this.shutdownTimeout);
+            this.state.cleanup();
+        }
     }
 }
@@ -8,10 +8,23 @@ import com.stumbleupon.async.Deferred;
 import net.opentsdb.core.TSDB;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import storm.opentsdb.model.OpenTsdbPoint;
+import storm.opentsdb.trident.IOpenTsdbReadableState;
 import storm.opentsdb.trident.mapper.IOpenTsdbTridentFieldMapper;
-import storm.trident.state.State;
+import storm.opentsdb.trident.mapper.IOpenTsdbTridentPointMapper;
+import storm.opentsdb.trident.mapper.OpenTsdbTridentFieldPointMapper;
+import storm.opentsdb.utils.OpenTsdbClientFactory;
+import storm.opentsdb.utils.OpenTsdbPointReader;
+import storm.opentsdb.utils.OpenTsdbPointWriter;
+import storm.opentsdb.utils.OpenTsdbRowBatch;
+import storm.opentsdb.utils.OpenTsdbSeriesCache;
+import storm.trident.operation.TridentOperationContext;
 import storm.trident.tuple.TridentTuple;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
 /**
  * <p>
  * This is a TridentState implementation to persist a partition to OpenTSDB.<br/>
@@ -23,56 +36,137 @@ import storm.trident.tuple.TridentTuple;
  * Use storm.opentsdb.trident.state.StateQuery to query state<br/>
  * </p>
  * <p>
+ * Tuples are written one by one with put, or a whole batch at once with
+ * putBatch and flush : the points are grouped by row into a row batch
+ * reused from one Trident batch to the next and completed by a single
+ * Deferred. Tuples which could not be mapped are kept apart so the
+ * flush result only reports the writes.
+ * </p>
+ * <p>
  * Please look at storm.opentsdb.example.topology.OpenTsdbTridentExampleTopology
  * for a concrete use case.
  * </p>
  */
-public class OpenTsdbLightState implements State {
+public class OpenTsdbLightState implements IOpenTsdbReadableState {
     public static final Logger log = LoggerFactory.getLogger(OpenTsdbLightState.class);
 
     private final TSDB tsdb;
-    private final IOpenTsdbTridentFieldMapper mapper;
+    private final IOpenTsdbTridentPointMapper mapper;
+    private final OpenTsdbPoint point = new OpenTsdbPoint();
+    private final OpenTsdbPointWriter writer;
+    private OpenTsdbPointReader reader;
+    private OpenTsdbRowBatch rowBatch;
+    private final ArrayList<Exception> mappingErrors = new ArrayList<>();
 
     /**
      * @param tsdb   Initialized OpenTSDB client ( used by the factory ).
      * @param mapper A mapper containing mapping from tuple to puts.
+     * @param writer Point writer to use ( used by the factory ).
      */
-    public OpenTsdbLightState(TSDB tsdb, IOpenTsdbTridentFieldMapper mapper) {
+    public OpenTsdbLightState(TSDB tsdb, IOpenTsdbTridentFieldMapper mapper, OpenTsdbPointWriter writer) {
         this.tsdb = tsdb;
-        this.mapper = mapper;
+        this.mapper = OpenTsdbTridentFieldPointMapper.adapt(mapper);
+        this.writer = writer;
+    }
+
+    /**
+     * @param tsdb   Initialized OpenTSDB client ( used by the factory ).
+     * @param mapper A mapper containing mapping from tuple to puts.
+     */
+    public OpenTsdbLightState(TSDB tsdb, IOpenTsdbTridentFieldMapper mapper) {
+        this(tsdb, mapper, new OpenTsdbPointWriter(tsdb));
+    }
+
+    public TSDB getOpenTsdbClient() {
+        return this.tsdb;
+    }
+
+    /**
+     * <p>
+     * Let the mapper resolve the tuple fields positions.
+     * </p>
+     *
+     * @param conf    Topology configuration.
+     * @param context Trident operation context of the state updater.
+     */
+    public void prepare(Map conf, TridentOperationContext context) {
+        this.mapper.prepare(conf, context);
     }
 
     /**
      * @param tuple Trident tuple to process.
-     * @return A deferred list of void results.
+     * @return A deferred result, or null if the tuple is filtered.
      */
     public Deferred<Object> put(final TridentTuple tuple) {
-        double value = mapper.getValue(tuple);
-        if (value == (long) value) {
-            try {
-                return tsdb.addPoint(
-                    mapper.getMetric(tuple),
-                    mapper.getTimestamp(tuple),
-                    (long) value,
-                    mapper.getTags(tuple)
-                );
-            } catch (Exception ex) {
-                Deferred.fromError(ex);
+        try {
+            if (!this.mapper.map(tuple, this.point)) {
+                return null;
             }
-        } else {
+            return this.writer.addPoint(this.point);
+        } catch (Exception ex) {
+            return Deferred.fromError(ex);
+        } finally {
+            this.point.clear();
+        }
+    }
+
+    /**
+     * <p>
+     * Map a batch of tuples to the row batch, nothing is sent before flush.
+     * The errors of the tuples which could not be mapped are available
+     * with getMappingErrors until the next call.
+     * </p>
+     *
+     * @param tuples Trident tuples to process.
+     * @return Number of points to flush.
+     */
+    public int putBatch(List<TridentTuple> tuples) {
+        if (this.rowBatch == null) {
+            this.rowBatch = new OpenTsdbRowBatch(this.writer);
+        }
+        this.mappingErrors.clear();
+        for (TridentTuple tuple : tuples) {
             try {
-                return tsdb.addPoint(
-                    mapper.getMetric(tuple),
-                    mapper.getTimestamp(tuple),
-                    (long) value,
-                    mapper.getTags(tuple)
-                );
+                if (this.mapper.map(tuple, this.point)) {
+                    this.rowBatch.add(this.point);
+                }
             } catch (Exception ex) {
-                Deferred.fromError(ex);
+                this.mappingErrors.add(ex);
+            } finally {
+                this.point.clear();
             }
         }
+        return this.rowBatch.size();
+    }
 
-        return Deferred.fromError(new RuntimeException("void"));
+    /**
+     * @return The errors of the tuples the last putBatch could not map.
+     */
+    public List<Exception> getMappingErrors() {
+        return this.mappingErrors;
+    }
+
+    /**
+     * @return A Deferred called back when all the points of the
+     * batch are written, or with the first exception.
+     */
+    public Deferred<Object> flush() {
+        if (this.rowBatch == null) {
+            return Deferred.fromResult(null);
+        }
+        return this.rowBatch.flush();
+    }
+
+    /**
+     * @return A point reader sharing the writer series cache if any.
+     */
+    public OpenTsdbPointReader getPointReader() {
+        if (this.reader == null) {
+            OpenTsdbSeriesCache seriesCache = this.writer.getSeriesCache();
+            this.reader = seriesCache != null ?
+                new OpenTsdbPointReader(this.tsdb, seriesCache) : new OpenTsdbPointReader(this.tsdb);
+        }
+        return this.reader;
     }
 
     @Override
@@ -84,4 +178,14 @@ public class OpenTsdbLightState implements State {
     public void commit(Long txid) {
         log.debug("Commit tx " + txid);
     }
+
+    /**
+     * <p>
+     * Release the OpenTSDB client. Trident states have no shutdown hook
+     * so this is called by the state updater cleanup.
+     * </p>
+     */
+    public void cleanup() {
+        OpenTsdbClientFactory.releaseTsdbClient(this.tsdb);
+    }
 }
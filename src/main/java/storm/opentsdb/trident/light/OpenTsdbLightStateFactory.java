@@ -5,9 +5,12 @@
 package storm.opentsdb.trident.light;
 
 import backtype.storm.task.IMetricsContext;
+import net.opentsdb.core.TSDB;
 import storm.opentsdb.trident.mapper.IOpenTsdbTridentFieldMapper;
 import storm.opentsdb.trident.mapper.OpenTsdbTridentTupleFieldMapper;
 import storm.opentsdb.utils.OpenTsdbClientFactory;
+import storm.opentsdb.utils.OpenTsdbPointWriter;
+import storm.opentsdb.utils.OpenTsdbSeriesCache;
 import storm.trident.state.State;
 import storm.trident.state.StateFactory;
 
@@ -20,6 +23,7 @@ public class OpenTsdbLightStateFactory implements StateFactory {
     private final String cluster;
     private final String name;
     private final IOpenTsdbTridentFieldMapper mapper;
+    private int seriesCacheSize = 0;
 
     /**
      * @param cluster The HBase cluster to use.
@@ -40,6 +44,16 @@ public class OpenTsdbLightStateFactory implements StateFactory {
         this(cluster, name, new OpenTsdbTridentTupleFieldMapper());
     }
 
+    /**
+     * @param seriesCacheSize Number of series row keys to cache.
+     *                        Use 0 to write with TSDB.addPoint.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbLightStateFactory setSeriesCacheSize(int seriesCacheSize) {
+        this.seriesCacheSize = seriesCacheSize;
+        return this;
+    }
+
     /**
      * <p>
      * Factory method to create a OpenTsdbState object
@@ -53,7 +67,13 @@ public class OpenTsdbLightStateFactory implements StateFactory {
      */
     @Override
     public State makeState(Map conf, IMetricsContext metrics, int partitionIndex, int numPartitions) {
-        return new OpenTsdbLightState(OpenTsdbClientFactory
-            .getTsdbClient(conf, this.cluster, this.name), this.mapper);
+        TSDB tsdb = OpenTsdbClientFactory.getTsdbClient(conf, this.cluster, this.name);
+        this.mapper.prepare(conf);
+        if (this.seriesCacheSize > 0) {
+            OpenTsdbSeriesCache seriesCache = new OpenTsdbSeriesCache(tsdb, this.seriesCacheSize);
+            metrics.registerMetric("opentsdb-series-cache", seriesCache, 60);
+            return new OpenTsdbLightState(tsdb, this.mapper, new OpenTsdbPointWriter(tsdb, seriesCache));
+        }
+        return new OpenTsdbLightState(tsdb, this.mapper);
     }
 }
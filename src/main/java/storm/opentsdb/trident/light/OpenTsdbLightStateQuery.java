@@ -4,29 +4,35 @@
 
 package storm.opentsdb.trident.light;
 
-import com.stumbleupon.async.Deferred;
-import org.hbase.async.KeyValue;
-import storm.trident.operation.TridentCollector;
-import storm.trident.state.BaseQueryFunction;
-import storm.trident.tuple.TridentTuple;
-
-import java.util.ArrayList;
-import java.util.List;
+import storm.opentsdb.trident.OpenTsdbStateQuery;
 
 /**
  * <p>
- * TODO implements queries for trident
+ * Query an OpenTsdbLightState for the latest value or an aggregate of a series.
+ * </p>
+ * <p>
+ * This is an OpenTsdbStateQuery, which works on any IOpenTsdbReadableState,
+ * see it for details.
  * </p>
+ * <pre>
+ *     stream.stateQuery(state, new Fields("metric", "tags"),
+ *         new OpenTsdbLightStateQuery("metric", "tags"), new Fields("last_timestamp", "last_value"));
+ * </pre>
  */
-public class OpenTsdbLightStateQuery extends BaseQueryFunction<OpenTsdbLightState, Deferred<ArrayList<KeyValue>>> {
-    @Override
-    public List<Deferred<ArrayList<KeyValue>>> batchRetrieve(OpenTsdbLightState state, List<TridentTuple> args) {
-        //TODO
-        return null;
+public class OpenTsdbLightStateQuery extends OpenTsdbStateQuery {
+
+    /**
+     * @param metricField The tuple field containing the metric.
+     * @param tagsField   The tuple field containing the tags.
+     */
+    public OpenTsdbLightStateQuery(String metricField, String tagsField) {
+        super(metricField, tagsField);
     }
 
-    @Override
-    public void execute(TridentTuple tuple, Deferred<ArrayList<KeyValue>> result, TridentCollector collector) {
-        //TODO
+    /**
+     * Default constructor for tuples with fields named metric and tags.
+     */
+    public OpenTsdbLightStateQuery() {
+        super();
     }
-}
\ No newline at end of file
+}
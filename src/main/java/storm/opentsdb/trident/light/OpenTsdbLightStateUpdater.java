@@ -6,25 +6,54 @@ package storm.opentsdb.trident.light;
 
 import com.stumbleupon.async.Callback;
 import com.stumbleupon.async.Deferred;
-import org.hbase.async.PleaseThrottleException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import storm.opentsdb.utils.OpenTsdbConcurrencyLimiter;
+import storm.opentsdb.utils.OpenTsdbMetrics;
 import storm.trident.operation.TridentCollector;
+import storm.trident.operation.TridentOperationContext;
 import storm.trident.state.BaseStateUpdater;
 import storm.trident.tuple.TridentTuple;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Update an OpenTsdbState<br/>
  * Use this function with Stream.partitionAggregate or Stream.partitionPersist
+ * <p>
+ * The number of points in flight is controlled by an adaptive
+ * OpenTsdbConcurrencyLimiter.
+ * </p>
+ * <p>
+ * With setBatched(true) the whole batch is mapped and written at once with
+ * OpenTsdbLightState.putBatch, the points are grouped by OpenTSDB row if the
+ * state factory is configured with a series cache. The batch has a single
+ * completion so no Deferred nor callback is allocated per tuple. Tuples
+ * which could not be mapped are reported on their own and don't fail the
+ * batch completion.
+ * </p>
+ * <p>
+ * The updater registers an "opentsdb" Storm metric reporting the write
+ * rate, latency, errors and the limiter state.
+ * </p>
+ * <p>
+ * On cleanup the OpenTSDB client is flushed and the updater waits up to
+ * the shutdown timeout for the points in flight to complete.
+ * </p>
  */
 public class OpenTsdbLightStateUpdater extends BaseStateUpdater<OpenTsdbLightState> {
     public static final Logger log = LoggerFactory.getLogger(OpenTsdbLightStateUpdater.class);
 
-    private boolean throttle = true;
     private boolean async = true;
+    private boolean batched = false;
+    private OpenTsdbConcurrencyLimiter limiter = new OpenTsdbConcurrencyLimiter();
+    private long shutdownTimeout = 10000;
+    private transient OpenTsdbMetrics metrics;
+    private transient OpenTsdbLightState state;
+    private transient Map conf;
+    private transient TridentOperationContext context;
 
     /**
      * @param async Whether or not to wait for
@@ -35,18 +64,49 @@ public class OpenTsdbLightStateUpdater extends BaseStateUpdater<OpenTsdbLightSta
         return this;
     }
 
+    /**
+     * @param batched Whether to write the whole batch with a single completion.
+     * @return this so you can do method chaining
+     */
+    public OpenTsdbLightStateUpdater setBatched(boolean batched) {
+        this.batched = batched;
+        return this;
+    }
+
+    /**
+     * @param limiter The limiter to use to control the number of points in flight.
+     * @return this so you can do method chaining
+     */
+    public OpenTsdbLightStateUpdater setLimiter(OpenTsdbConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+        return this;
+    }
+
+    /**
+     * @param shutdownTimeout how long to wait for in flight points on cleanup
+     *                        (in millisecond).
+     * @return this so you can do method chaining
+     */
+    public OpenTsdbLightStateUpdater setShutdownTimeout(long shutdownTimeout) {
+        this.shutdownTimeout = shutdownTimeout;
+        return this;
+    }
+
     @Override
     public void updateState(OpenTsdbLightState state, List<TridentTuple> tuples,
                             final TridentCollector collector) {
-        log.info("OpenTsdbStateUpdater : " + "Saving " + tuples.size() + " tuples to OpenTSDB");
+        log.debug("OpenTsdbStateUpdater : " + "Saving " + tuples.size() + " tuples to OpenTSDB");
         long start_time = System.currentTimeMillis();
+        if (this.state != state) {
+            state.prepare(this.conf, this.context);
+            this.state = state;
+        }
 
         Callback<Object, Exception> errback = new Callback<Object, Exception>() {
             @Override
             public Object call(Exception ex) throws Exception {
                 log.warn("OpenTSDB failure ", ex);
-                if (ex instanceof PleaseThrottleException) {
-                    throttle = true;
+                if (OpenTsdbConcurrencyLimiter.isThrottle(ex)) {
                     return ex;
                 }
                 synchronized (collector) {
@@ -57,32 +117,26 @@ public class OpenTsdbLightStateUpdater extends BaseStateUpdater<OpenTsdbLightSta
         };
 
         List<Deferred<Object>> results = new ArrayList<>();
-        for (final TridentTuple tuple : tuples) {
-            results.add(state.put(tuple).addErrback(errback));
-        }
-
-        if (throttle) {
-            log.warn("Throttling...");
-            long throttle_time = System.nanoTime();
-            try {
-                Deferred.group(results).join();
-            } catch (Exception ex) {
-                log.error("AsyncHBase exception : " + ex.toString());
-                collector.reportError(ex);
-            } finally {
-                throttle_time = System.nanoTime() - throttle_time;
-                if (throttle_time < 1000000000L) {
-                    log.info("Got throttled for only " + throttle_time + "ns, sleeping a bit now");
-                    try {
-                        Thread.sleep(1000);
-                    } catch (InterruptedException ex) {
-                        log.error("AsyncHBase exception : " + ex.toString());
-                    }
+        if (batched) {
+            int points = state.putBatch(tuples);
+            for (Exception ex : state.getMappingErrors()) {
+                metrics.track(Deferred.fromError(ex), 1).addErrback(errback);
+            }
+            limiter.acquireUninterruptibly(points);
+            results.add(metrics.track(limiter.track(state.flush(), points), points).addErrback(errback));
+        } else {
+            for (final TridentTuple tuple : tuples) {
+                limiter.acquireUninterruptibly(1);
+                Deferred<Object> result = state.put(tuple);
+                if (result == null) {
+                    limiter.cancel(1);
+                    continue;
                 }
-                log.info("Done throttling...");
-                this.throttle = false;
+                results.add(metrics.track(limiter.track(result, 1), 1).addErrback(errback));
             }
-        } else if (!async) {
+        }
+
+        if (!async) {
             try {
                 Deferred.group(results).join();
             } catch (InterruptedException ex) {
@@ -93,6 +147,23 @@ public class OpenTsdbLightStateUpdater extends BaseStateUpdater<OpenTsdbLightSta
         }
 
         long elapsed = System.currentTimeMillis() - start_time;
-        log.info("OpenTsdbStateUpdater : " + tuples.size() + " tuples saved to OpenTSDB in " + elapsed + "ms");
+        log.debug("OpenTsdbStateUpdater : " + tuples.size() + " tuples saved to OpenTSDB in " + elapsed + "ms");
+    }
+
+    @Override
+    public void prepare(Map conf, TridentOperationContext context) {
+        super.prepare(conf, context);
+        this.conf = conf;
+        this.context = context;
+        limiter.prepare();
+        metrics = new OpenTsdbMetrics(limiter).register(context, 60);
+    }
+
+    @Override
+    public void cleanup() {
+        if (this.state != null) {
+            this.limiter.drain(this.state.getOpenTsdbClient(), this.shutdownTimeout);
+            this.state.cleanup();
+        }
     }
 }
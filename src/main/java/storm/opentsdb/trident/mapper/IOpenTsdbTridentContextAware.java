@@ -0,0 +1,31 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.trident.mapper;
+
+import storm.trident.operation.TridentOperationContext;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * This interface describes a mapper which can use the Trident operation
+ * context of the state updater to resolve the tuple fields positions once.
+ * </p>
+ * <p>
+ * State updaters call prepare(conf, context) on the mappers implementing it
+ * and prepare(conf) on the others.
+ * </p>
+ */
+public interface IOpenTsdbTridentContextAware {
+    /**
+     * <p>
+     * Initialize the mapper from a state updater.
+     * </p>
+     *
+     * @param conf    Topology configuration.
+     * @param context Trident operation context of the state updater.
+     */
+    void prepare(Map conf, TridentOperationContext context);
+}
@@ -30,4 +30,4 @@ public interface IOpenTsdbTridentMapper extends Serializable {
      * @param conf Topology configuration.
      */
     void prepare(Map conf);
-}
\ No newline at end of file
+}
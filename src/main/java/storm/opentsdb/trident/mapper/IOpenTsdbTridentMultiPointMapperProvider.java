@@ -0,0 +1,24 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.trident.mapper;
+
+import java.util.List;
+
+/**
+ * <p>
+ * This interface describes a mapper which provides multi point mappers.
+ * </p>
+ * <p>
+ * The state updater only run multi point mappers of mappers which implement
+ * this interface, see OpenTsdbTridentMapper.multiPointMappersOf.
+ * </p>
+ */
+public interface IOpenTsdbTridentMultiPointMapperProvider extends IOpenTsdbTridentMapper {
+
+    /**
+     * @return List of multi point mappers to execute, each tuple may map to any number of points.
+     */
+    List<IOpenTsdbTridentMultiPointMapper> getMultiPointMappers();
+}
@@ -0,0 +1,38 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.trident.mapper;
+
+import storm.opentsdb.model.OpenTsdbPoint;
+import storm.trident.tuple.TridentTuple;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * <p>
+ * This interface describes a mapper that maps a trident
+ * tuple to an OpenTSDB point in a single call.
+ * </p>
+ * <p>
+ * The point is owned and reused by the caller.
+ * </p>
+ */
+public interface IOpenTsdbTridentPointMapper extends Serializable, IOpenTsdbTridentContextAware {
+    /**
+     * @param tuple The trident tuple to process.
+     * @param point The point to fill.
+     * @return False if the tuple is filtered.
+     */
+    boolean map(TridentTuple tuple, OpenTsdbPoint point);
+
+    /**
+     * <p>
+     * Initialize the mapper.
+     * </p>
+     *
+     * @param conf Topology configuration.
+     */
+    void prepare(Map conf);
+}
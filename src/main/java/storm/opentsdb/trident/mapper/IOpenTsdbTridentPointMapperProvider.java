@@ -0,0 +1,25 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.trident.mapper;
+
+import java.util.List;
+
+/**
+ * <p>
+ * This interface describes a mapper which provides point mappers.
+ * </p>
+ * <p>
+ * The state updater uses them instead of the field mappers. The field
+ * mappers of mappers which do not implement this interface are adapted,
+ * see OpenTsdbTridentMapper.pointMappersOf.
+ * </p>
+ */
+public interface IOpenTsdbTridentPointMapperProvider extends IOpenTsdbTridentMapper {
+
+    /**
+     * @return List of point mappers to execute, field mappers are adapted.
+     */
+    List<IOpenTsdbTridentPointMapper> getPointMappers();
+}
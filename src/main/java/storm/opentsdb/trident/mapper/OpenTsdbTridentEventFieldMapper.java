@@ -4,13 +4,17 @@
 
 package storm.opentsdb.trident.mapper;
 
+import backtype.storm.tuple.Fields;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import storm.opentsdb.model.IOpenTsdbEvent;
+import storm.opentsdb.model.OpenTsdbPoint;
+import storm.opentsdb.utils.OpenTsdbTagSetCache;
 import storm.opentsdb.utils.OpenTsdbTupleFilter;
+import storm.trident.operation.TridentOperationContext;
 import storm.trident.tuple.TridentTuple;
+import storm.trident.tuple.TridentTupleView.ProjectionFactory;
 
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -24,17 +28,32 @@ import java.util.Map;
  * It can clean the tags map to keep only those you need.<br/>
  * As of OpenTSDB v2.1 you still need to have at least one tag
  * so providing an empty map will result in this mapper to add
- * a foo=bar tag to your put.
+ * a foo=bar tag to your put.<br/>
+ * The tags are never modified in place, the cleaned tags are interned
+ * as a shared immutable OpenTsdbTagSet.
+ * </p>
+ * <p>
+ * When prepared with the state updater context the event field position
+ * is resolved once with a ProjectionFactory instead of a name lookup per get.
+ * </p>
+ * <p>
+ * Use OpenTsdbKryoFactory to serialize the OpenTsdbEvent and its
+ * OpenTsdbTagSet compactly between the workers.
  * </p>
- * TODO implements serializers
  */
-public class OpenTsdbTridentEventFieldMapper implements IOpenTsdbTridentFieldMapper {
+public class OpenTsdbTridentEventFieldMapper implements IOpenTsdbTridentFieldMapper, IOpenTsdbTridentPointMapper {
     public static final Logger log = LoggerFactory.getLogger(OpenTsdbTridentEventFieldMapper.class);
 
     private String eventField;
     private List<String> validTags;
+    private int tagSetCacheSize = 10000;
+    private transient OpenTsdbTagSetCache tagSets;
     private OpenTsdbTupleFilter filter;
 
+    private transient ProjectionFactory projection;
+    private transient TridentTuple lastTuple;
+    private transient TridentTuple projected;
+
     /**
      * @param eventField The tuple field containing the event
      */
@@ -51,6 +70,16 @@ public class OpenTsdbTridentEventFieldMapper implements IOpenTsdbTridentFieldMap
         return this;
     }
 
+    /**
+     * @param tagSetCacheSize Number of distinct tag sets to intern, 0 to disable interning.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbTridentEventFieldMapper setTagSetCacheSize(int tagSetCacheSize) {
+        this.tagSetCacheSize = tagSetCacheSize;
+        this.tagSets = null;
+        return this;
+    }
+
     /**
      * @param filter execute the filter on each tuple
      * @return This so you can do method chaining.
@@ -75,7 +104,7 @@ public class OpenTsdbTridentEventFieldMapper implements IOpenTsdbTridentFieldMap
      * @return The metric from the OpenTsdbEvent.
      */
     public String getMetric(TridentTuple tuple) {
-        IOpenTsdbEvent event = (IOpenTsdbEvent) tuple.getValueByField(this.eventField);
+        IOpenTsdbEvent event = this.getEvent(tuple);
         return event.getMetric();
     }
 
@@ -84,7 +113,7 @@ public class OpenTsdbTridentEventFieldMapper implements IOpenTsdbTridentFieldMap
      * @return The timestamp from the OpenTsdbEvent.
      */
     public long getTimestamp(TridentTuple tuple) {
-        IOpenTsdbEvent event = (IOpenTsdbEvent) tuple.getValueByField(this.eventField);
+        IOpenTsdbEvent event = this.getEvent(tuple);
         return event.getTimestamp();
     }
 
@@ -93,7 +122,7 @@ public class OpenTsdbTridentEventFieldMapper implements IOpenTsdbTridentFieldMap
      * @return The value from the OpenTsdbEvent.
      */
     public double getValue(TridentTuple tuple) {
-        IOpenTsdbEvent event = (IOpenTsdbEvent) tuple.getValueByField(this.eventField);
+        IOpenTsdbEvent event = this.getEvent(tuple);
         return event.getValue();
     }
 
@@ -102,25 +131,56 @@ public class OpenTsdbTridentEventFieldMapper implements IOpenTsdbTridentFieldMap
      * @return the tags from the OpenTsdbEvent.
      */
     public Map<String, String> getTags(TridentTuple tuple) {
-        IOpenTsdbEvent event = (IOpenTsdbEvent) tuple.getValueByField(this.eventField);
-        Map<String, String> tags = event.getTags();
+        return this.cleanTags(this.getEvent(tuple).getTags());
+    }
 
-        if (tags.size() == 0) {
-            tags.put("foo", "bar");
+    /**
+     * <p>
+     * Fetch the event once and fill the point.
+     * </p>
+     *
+     * @param tuple The trident tuple to process.
+     * @param point The point to fill.
+     * @return False if the tuple is filtered.
+     */
+    @Override
+    public boolean map(TridentTuple tuple, OpenTsdbPoint point) {
+        if (this.isFiltered(tuple)) {
+            return false;
         }
+        IOpenTsdbEvent event = this.getEvent(tuple);
+        point.set(event.getMetric(), event.getTimestamp(), event.getValue(), this.cleanTags(event.getTags()));
+        return true;
+    }
 
-        if (this.validTags != null) {
-            for (Iterator<Map.Entry<String, String>> it = tags.entrySet().iterator(); it.hasNext(); ) {
-                Map.Entry<String, String> tag = it.next();
-                if (validTags.contains(tag.getKey())) {
-                    if (tag.getValue() == null || tag.getValue().isEmpty()) {
-                        it.remove();
-                    }
-                }
-            }
+    private Map<String, String> cleanTags(Map<String, String> tags) {
+        if (this.tagSets == null) {
+            this.tagSets = new OpenTsdbTagSetCache(this.tagSetCacheSize);
         }
+        return this.tagSets.intern(tags, this.validTags);
+    }
 
-        return tags;
+    /**
+     * @param tuple The trident tuple to process.
+     * @return The event.
+     */
+    private IOpenTsdbEvent getEvent(TridentTuple tuple) {
+        if (this.projection == null) {
+            return (IOpenTsdbEvent) tuple.getValueByField(this.eventField);
+        }
+        return (IOpenTsdbEvent) this.project(tuple).get(0);
+    }
+
+    /**
+     * @param tuple The trident tuple to process.
+     * @return The tuple projected on the mapper fields.
+     */
+    private TridentTuple project(TridentTuple tuple) {
+        if (tuple != this.lastTuple) {
+            this.projected = this.projection.create(tuple);
+            this.lastTuple = tuple;
+        }
+        return this.projected;
     }
 
     /**
@@ -134,4 +194,23 @@ public class OpenTsdbTridentEventFieldMapper implements IOpenTsdbTridentFieldMap
     public void prepare(Map conf) {
 
     }
-}
\ No newline at end of file
+
+    /**
+     * <p>
+     * Initialize the mapper and resolve the event field position.
+     * </p>
+     *
+     * @param conf    Topology configuration.
+     * @param context Trident operation context of the state updater.
+     */
+    @Override
+    public void prepare(Map conf, TridentOperationContext context) {
+        this.prepare(conf);
+        try {
+            this.projection = context.makeProjectionFactory(new Fields(this.eventField));
+        } catch (RuntimeException ex) {
+            log.warn("Unable to resolve field " + this.eventField + " : " + ex.getMessage());
+            this.projection = null;
+        }
+    }
+}
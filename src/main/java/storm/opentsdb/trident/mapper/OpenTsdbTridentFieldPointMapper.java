@@ -0,0 +1,65 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.trident.mapper;
+
+import storm.opentsdb.model.OpenTsdbPoint;
+import storm.trident.operation.TridentOperationContext;
+import storm.trident.tuple.TridentTuple;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * Adapt an IOpenTsdbTridentFieldMapper to the IOpenTsdbTridentPointMapper interface.
+ * </p>
+ */
+public class OpenTsdbTridentFieldPointMapper implements IOpenTsdbTridentPointMapper {
+    private final IOpenTsdbTridentFieldMapper mapper;
+
+    /**
+     * @param mapper The field mapper to adapt.
+     */
+    public OpenTsdbTridentFieldPointMapper(IOpenTsdbTridentFieldMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    /**
+     * @param mapper A field mapper.
+     * @return The mapper itself if it is already a point mapper, an adapter otherwise.
+     */
+    public static IOpenTsdbTridentPointMapper adapt(IOpenTsdbTridentFieldMapper mapper) {
+        if (mapper instanceof IOpenTsdbTridentPointMapper) {
+            return (IOpenTsdbTridentPointMapper) mapper;
+        }
+        return new OpenTsdbTridentFieldPointMapper(mapper);
+    }
+
+    @Override
+    public boolean map(TridentTuple tuple, OpenTsdbPoint point) {
+        if (this.mapper.isFiltered(tuple)) {
+            return false;
+        }
+        point.set(
+            this.mapper.getMetric(tuple),
+            this.mapper.getTimestamp(tuple),
+            this.mapper.getValue(tuple),
+            this.mapper.getTags(tuple));
+        return true;
+    }
+
+    @Override
+    public void prepare(Map conf) {
+        this.mapper.prepare(conf);
+    }
+
+    @Override
+    public void prepare(Map conf, TridentOperationContext context) {
+        if (this.mapper instanceof IOpenTsdbTridentContextAware) {
+            ((IOpenTsdbTridentContextAware) this.mapper).prepare(conf, context);
+        } else {
+            this.mapper.prepare(conf);
+        }
+    }
+}
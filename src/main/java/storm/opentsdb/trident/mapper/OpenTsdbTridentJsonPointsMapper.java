@@ -0,0 +1,140 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.trident.mapper;
+
+import backtype.storm.tuple.Fields;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.opentsdb.model.OpenTsdbPoint;
+import storm.opentsdb.utils.OpenTsdbJsonDecoder;
+import storm.opentsdb.utils.OpenTsdbTupleFilter;
+import storm.trident.operation.TridentOperationContext;
+import storm.trident.tuple.TridentTuple;
+import storm.trident.tuple.TridentTupleView.ProjectionFactory;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * A mapper to map a trident tuple field holding an OpenTSDB HTTP API
+ * /api/put JSON payload ( byte[], ByteBuffer or String ) to all the
+ * data points of the payload.
+ * </p>
+ * <p>
+ * The payload is decoded lazily by an OpenTsdbJsonDecoder as points are
+ * pulled so no intermediate list of points is ever built.<br/>
+ * When prepared with the state updater context the payload field position
+ * is resolved once with a ProjectionFactory instead of a name lookup per tuple.
+ * </p>
+ */
+public class OpenTsdbTridentJsonPointsMapper implements IOpenTsdbTridentMultiPointMapper {
+    public static final Logger log = LoggerFactory.getLogger(OpenTsdbTridentJsonPointsMapper.class);
+
+    private String payloadField;
+    private int stringCacheSize = 4096;
+    private int tagSetCacheSize = 10000;
+    private OpenTsdbTupleFilter filter;
+
+    private transient OpenTsdbJsonDecoder decoder;
+    private transient ProjectionFactory projection;
+
+    /**
+     * @param payloadField The tuple field containing the JSON payload.
+     */
+    public OpenTsdbTridentJsonPointsMapper(String payloadField) {
+        this.payloadField = payloadField;
+    }
+
+    /**
+     * @param stringCacheSize Number of metric and tag strings to cache.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbTridentJsonPointsMapper setStringCacheSize(int stringCacheSize) {
+        this.stringCacheSize = stringCacheSize;
+        this.decoder = null;
+        return this;
+    }
+
+    /**
+     * @param tagSetCacheSize Number of distinct tag sets to intern, 0 to disable interning.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbTridentJsonPointsMapper setTagSetCacheSize(int tagSetCacheSize) {
+        this.tagSetCacheSize = tagSetCacheSize;
+        this.decoder = null;
+        return this;
+    }
+
+    /**
+     * @param filter execute the filter on each tuple
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbTridentJsonPointsMapper setFilter(OpenTsdbTupleFilter filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * @param tuple The trident tuple to process.
+     * @return False if the tuple is filtered or has no payload.
+     */
+    @Override
+    public boolean start(TridentTuple tuple) {
+        if (this.filter != null && this.filter.filter(tuple)) {
+            return false;
+        }
+        Object payload = this.projection == null ?
+            tuple.getValueByField(this.payloadField) : this.projection.create(tuple).get(0);
+        if (payload == null) {
+            return false;
+        }
+        if (this.decoder == null) {
+            this.decoder = new OpenTsdbJsonDecoder(this.stringCacheSize, this.tagSetCacheSize);
+        }
+        this.decoder.reset(payload);
+        return true;
+    }
+
+    /**
+     * @param point The point to fill.
+     * @return False when the payload has no more point.
+     * @throws IllegalArgumentException If the payload is malformed.
+     */
+    @Override
+    public boolean next(OpenTsdbPoint point) {
+        return this.decoder != null && this.decoder.next(point);
+    }
+
+    /**
+     * <p>
+     * Initialize the mapper.
+     * </p>
+     *
+     * @param conf Topology configuration.
+     */
+    @Override
+    public void prepare(Map conf) {
+        this.decoder = new OpenTsdbJsonDecoder(this.stringCacheSize, this.tagSetCacheSize);
+    }
+
+    /**
+     * <p>
+     * Initialize the mapper and resolve the payload field position.
+     * </p>
+     *
+     * @param conf    Topology configuration.
+     * @param context Trident operation context of the state updater.
+     */
+    @Override
+    public void prepare(Map conf, TridentOperationContext context) {
+        this.prepare(conf);
+        try {
+            this.projection = context.makeProjectionFactory(new Fields(this.payloadField));
+        } catch (RuntimeException ex) {
+            log.warn("Unable to resolve field " + this.payloadField + " : " + ex.getMessage());
+            this.projection = null;
+        }
+    }
+}
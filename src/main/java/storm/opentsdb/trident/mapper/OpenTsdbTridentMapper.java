@@ -6,19 +6,26 @@ package storm.opentsdb.trident.mapper;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import storm.trident.operation.TridentOperationContext;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
 /**
  * This mapper maps a storm tuple to
- * one or more fields mappers
+ * one or more fields mappers<br/>
+ * Field mappers which are not point mappers are adapted
+ * with an OpenTsdbTridentFieldPointMapper.
  */
-public class OpenTsdbTridentMapper implements IOpenTsdbTridentMapper {
+public class OpenTsdbTridentMapper implements IOpenTsdbTridentPointMapperProvider, IOpenTsdbTridentMultiPointMapperProvider,
+        IOpenTsdbTridentContextAware {
     public static final Logger log = LoggerFactory.getLogger(OpenTsdbTridentMapper.class);
 
     private ArrayList<IOpenTsdbTridentFieldMapper> fieldMappers;
+    private ArrayList<IOpenTsdbTridentPointMapper> pointMappers = new ArrayList<>();
+    private ArrayList<IOpenTsdbTridentMultiPointMapper> multiPointMappers = new ArrayList<>();
 
     /**
      * @param fieldMapper Add a FieldMapper to the mapper list.
@@ -29,6 +36,25 @@ public class OpenTsdbTridentMapper implements IOpenTsdbTridentMapper {
             this.fieldMappers = new ArrayList<>();
         }
         this.fieldMappers.add(fieldMapper);
+        this.pointMappers.add(OpenTsdbTridentFieldPointMapper.adapt(fieldMapper));
+        return this;
+    }
+
+    /**
+     * @param pointMapper Add a PointMapper to the mapper list.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbTridentMapper addPointMapper(IOpenTsdbTridentPointMapper pointMapper) {
+        this.pointMappers.add(pointMapper);
+        return this;
+    }
+
+    /**
+     * @param multiPointMapper Add a MultiPointMapper to the mapper list.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbTridentMapper addMultiPointMapper(IOpenTsdbTridentMultiPointMapper multiPointMapper) {
+        this.multiPointMappers.add(multiPointMapper);
         return this;
     }
 
@@ -40,6 +66,52 @@ public class OpenTsdbTridentMapper implements IOpenTsdbTridentMapper {
         return fieldMappers;
     }
 
+    /**
+     * @return The list of point mappers to execute.
+     */
+    @Override
+    public List<IOpenTsdbTridentPointMapper> getPointMappers() {
+        return pointMappers;
+    }
+
+    /**
+     * @return The list of multi point mappers to execute.
+     */
+    @Override
+    public List<IOpenTsdbTridentMultiPointMapper> getMultiPointMappers() {
+        return multiPointMappers;
+    }
+
+    /**
+     * @param mapper A mapper.
+     * @return The point mappers of the mapper if it provides some,
+     * its field mappers adapted otherwise.
+     */
+    public static List<IOpenTsdbTridentPointMapper> pointMappersOf(IOpenTsdbTridentMapper mapper) {
+        if (mapper instanceof IOpenTsdbTridentPointMapperProvider) {
+            return ((IOpenTsdbTridentPointMapperProvider) mapper).getPointMappers();
+        }
+        List<IOpenTsdbTridentPointMapper> pointMappers = new ArrayList<>();
+        if (mapper.getFieldMappers() != null) {
+            for (IOpenTsdbTridentFieldMapper fieldMapper : mapper.getFieldMappers()) {
+                pointMappers.add(OpenTsdbTridentFieldPointMapper.adapt(fieldMapper));
+            }
+        }
+        return pointMappers;
+    }
+
+    /**
+     * @param mapper A mapper.
+     * @return The multi point mappers of the mapper if it provides some,
+     * an empty list otherwise.
+     */
+    public static List<IOpenTsdbTridentMultiPointMapper> multiPointMappersOf(IOpenTsdbTridentMapper mapper) {
+        if (mapper instanceof IOpenTsdbTridentMultiPointMapperProvider) {
+            return ((IOpenTsdbTridentMultiPointMapperProvider) mapper).getMultiPointMappers();
+        }
+        return Collections.emptyList();
+    }
+
     /**
      * <p>
      * This method will initialize all mappers and serializers.<br/>
@@ -50,8 +122,30 @@ public class OpenTsdbTridentMapper implements IOpenTsdbTridentMapper {
      */
     @Override
     public void prepare(Map conf) {
-        for (IOpenTsdbTridentFieldMapper mapper : this.fieldMappers) {
+        for (IOpenTsdbTridentPointMapper mapper : this.pointMappers) {
+            mapper.prepare(conf);
+        }
+        for (IOpenTsdbTridentMultiPointMapper mapper : this.multiPointMappers) {
             mapper.prepare(conf);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * <p>
+     * This method will initialize all mappers and serializers.<br/>
+     * It will typically has to be called by the state updater prepare method.
+     * </p>
+     *
+     * @param conf    Topology configuration.
+     * @param context Trident operation context of the state updater.
+     */
+    @Override
+    public void prepare(Map conf, TridentOperationContext context) {
+        for (IOpenTsdbTridentPointMapper mapper : this.pointMappers) {
+            mapper.prepare(conf, context);
+        }
+        for (IOpenTsdbTridentMultiPointMapper mapper : this.multiPointMappers) {
+            mapper.prepare(conf, context);
+        }
+    }
+}
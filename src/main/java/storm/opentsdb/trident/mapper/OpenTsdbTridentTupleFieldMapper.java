@@ -4,16 +4,24 @@
 
 package storm.opentsdb.trident.mapper;
 
+import backtype.storm.tuple.Fields;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import storm.opentsdb.model.OpenTsdbPoint;
+import storm.opentsdb.utils.OpenTsdbTagSetCache;
 import storm.opentsdb.utils.OpenTsdbTupleFilter;
+import storm.opentsdb.utils.serializer.OpenTsdbDoubleValueSerializer;
+import storm.opentsdb.utils.serializer.OpenTsdbLongTimestampSerializer;
+import storm.opentsdb.utils.serializer.OpenTsdbLongValueSerializer;
 import storm.opentsdb.utils.serializer.OpenTsdbMetricSerializer;
 import storm.opentsdb.utils.serializer.OpenTsdbTagsSerializer;
 import storm.opentsdb.utils.serializer.OpenTsdbTimestampSerializer;
 import storm.opentsdb.utils.serializer.OpenTsdbValueSerializer;
+import storm.trident.operation.TridentOperationContext;
 import storm.trident.tuple.TridentTuple;
+import storm.trident.tuple.TridentTupleView.ProjectionFactory;
 
-import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -26,12 +34,29 @@ import java.util.Map;
  * It can clean the tags map to keep only those you need.<br/>
  * As of OpenTSDB v2.1 you still need to have at least one tag
  * so providing an empty map will result in this mapper to add
- * a foo=bar tag to your put.
+ * a foo=bar tag to your put.<br/>
+ * The tags are never modified in place, the cleaned tags are interned
+ * as a shared immutable OpenTsdbTagSet.
+ * </p>
+ * <p>
+ * When prepared with the state updater context the fields positions are
+ * resolved once with a ProjectionFactory instead of a name lookup per get.
+ * </p>
+ * <p>
+ * Integer values ( Long, Integer, Short, Byte ) are written as OpenTSDB
+ * integers without going through a double. The long and double value
+ * serializers read the value field with the typed tuple accessors so
+ * that no intermediate Object is involved.
  * </p>
  */
-public class OpenTsdbTridentTupleFieldMapper implements IOpenTsdbTridentFieldMapper {
+public class OpenTsdbTridentTupleFieldMapper implements IOpenTsdbTridentFieldMapper, IOpenTsdbTridentPointMapper {
     public static final Logger log = LoggerFactory.getLogger(OpenTsdbTridentTupleFieldMapper.class);
 
+    private static final int METRIC = 0;
+    private static final int TIMESTAMP = 1;
+    private static final int VALUE = 2;
+    private static final int TAGS = 3;
+
     private String metric;
     private String metricField;
     private OpenTsdbMetricSerializer metricSerializer;
@@ -39,16 +64,27 @@ public class OpenTsdbTridentTupleFieldMapper implements IOpenTsdbTridentFieldMap
     private Long timestamp;
     private String timestampField;
     private OpenTsdbTimestampSerializer timestampSerializer;
+    private OpenTsdbLongTimestampSerializer longTimestampSerializer;
 
     private Double value;
+    private Long longValue;
     private String valueField;
     private OpenTsdbValueSerializer valueSerializer;
+    private OpenTsdbLongValueSerializer longValueSerializer;
+    private OpenTsdbDoubleValueSerializer doubleValueSerializer;
 
     private Map<String, String> tags;
     private String tagsField;
     private OpenTsdbTagsSerializer tagsSerializer;
 
     private List<String> validTags;
+    private int tagSetCacheSize = 10000;
+    private transient OpenTsdbTagSetCache tagSets;
+
+    private transient ProjectionFactory projection;
+    private transient int[] indexes;
+    private transient TridentTuple lastTuple;
+    private transient TridentTuple projected;
     private OpenTsdbTupleFilter filter;
 
     /**
@@ -83,6 +119,16 @@ public class OpenTsdbTridentTupleFieldMapper implements IOpenTsdbTridentFieldMap
         return this;
     }
 
+    /**
+     * @param tagSetCacheSize Number of distinct tag sets to intern, 0 to disable interning.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbTridentTupleFieldMapper setTagSetCacheSize(int tagSetCacheSize) {
+        this.tagSetCacheSize = tagSetCacheSize;
+        this.tagSets = null;
+        return this;
+    }
+
     /**
      * @param filter execute the filter on each tuple
      * @return This so you can do method chaining.
@@ -148,9 +194,9 @@ public class OpenTsdbTridentTupleFieldMapper implements IOpenTsdbTridentFieldMap
             return this.metric;
         }
         if (this.metricSerializer != null) {
-            return this.metricSerializer.serialize(tuple.getValueByField(this.metricField));
+            return this.metricSerializer.serialize(this.get(tuple, METRIC, this.metricField));
         }
-        return tuple.getStringByField(this.metricField);
+        return (String) this.get(tuple, METRIC, this.metricField);
     }
 
     /**
@@ -190,6 +236,20 @@ public class OpenTsdbTridentTupleFieldMapper implements IOpenTsdbTridentFieldMap
         return this;
     }
 
+    /**
+     * <p>
+     * The timestamp field is read as a long and given to this serializer.
+     * It takes precedence over setTimestampSerializer.
+     * </p>
+     *
+     * @param longTimestampSerializer The long timestamp serializer to use.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbTridentTupleFieldMapper setLongTimestampSerializer(OpenTsdbLongTimestampSerializer longTimestampSerializer) {
+        this.longTimestampSerializer = longTimestampSerializer;
+        return this;
+    }
+
     /**
      * @param tuple The storm tuple to process.
      * @return The timestamp to use.
@@ -198,10 +258,13 @@ public class OpenTsdbTridentTupleFieldMapper implements IOpenTsdbTridentFieldMap
         if (this.timestamp != null) {
             return this.timestamp;
         }
+        if (this.longTimestampSerializer != null) {
+            return this.longTimestampSerializer.serialize(this.getLong(tuple, TIMESTAMP, this.timestampField));
+        }
         if (this.timestampSerializer != null) {
-            return this.timestampSerializer.serialize(tuple.getValueByField(this.timestampField));
+            return this.timestampSerializer.serialize(this.get(tuple, TIMESTAMP, this.timestampField));
         }
-        return tuple.getLongByField(this.timestampField);
+        return this.getLong(tuple, TIMESTAMP, this.timestampField);
     }
 
     /**
@@ -209,21 +272,14 @@ public class OpenTsdbTridentTupleFieldMapper implements IOpenTsdbTridentFieldMap
      * @return This so you can do method chaining.
      */
     public OpenTsdbTridentTupleFieldMapper setValue(Object value) {
+        this.longValue = null;
         if (this.valueSerializer != null) {
             this.value = this.valueSerializer.serialize(value);
-        } else {
-            this.value = (Double) value;
-        }
-        if (value instanceof Short) {
-            this.value = new Double((Short) value);
-        } else if (value instanceof Integer) {
-            this.value = new Double((Integer) value);
-        } else if (value instanceof Long) {
-            this.value = new Double((Long) value);
-        } else if (value instanceof Float) {
-            this.value = new Double((Float) value);
-        } else if (value instanceof Double) {
-            this.value = (Double) value;
+        } else if (isInteger(value)) {
+            this.longValue = ((Number) value).longValue();
+            this.value = this.longValue.doubleValue();
+        } else if (value instanceof Float || value instanceof Double) {
+            this.value = ((Number) value).doubleValue();
         } else {
             throw new IllegalArgumentException("Invalid value type");
         }
@@ -254,18 +310,81 @@ public class OpenTsdbTridentTupleFieldMapper implements IOpenTsdbTridentFieldMap
         return this;
     }
 
+    /**
+     * <p>
+     * The value field is read as a long and the result is written as an
+     * OpenTSDB integer. It takes precedence over the other value serializers.
+     * </p>
+     *
+     * @param longValueSerializer The long value serializer to use.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbTridentTupleFieldMapper setLongValueSerializer(OpenTsdbLongValueSerializer longValueSerializer) {
+        this.longValueSerializer = longValueSerializer;
+        return this;
+    }
+
+    /**
+     * <p>
+     * The value field is read as a double and the result is written as an
+     * OpenTSDB float. It takes precedence over setValueSerializer.
+     * </p>
+     *
+     * @param doubleValueSerializer The double value serializer to use.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbTridentTupleFieldMapper setDoubleValueSerializer(OpenTsdbDoubleValueSerializer doubleValueSerializer) {
+        this.doubleValueSerializer = doubleValueSerializer;
+        return this;
+    }
+
     /**
      * @param tuple The storm tuple to process.
      * @return The value to use.
      */
     public double getValue(TridentTuple tuple) {
-        if( this.value != null) {
+        if (this.value != null) {
             return this.value;
         }
+        if (this.longValueSerializer != null) {
+            return this.longValueSerializer.serialize(this.getLong(tuple, VALUE, this.valueField));
+        }
+        if (this.doubleValueSerializer != null) {
+            return this.doubleValueSerializer.serialize(this.getDouble(tuple, VALUE, this.valueField));
+        }
         if (this.valueSerializer != null) {
-            return this.valueSerializer.serialize(tuple.getValueByField(this.valueField));
+            return this.valueSerializer.serialize(this.get(tuple, VALUE, this.valueField));
         }
-        return tuple.getDoubleByField(this.valueField);
+        return ((Number) this.get(tuple, VALUE, this.valueField)).doubleValue();
+    }
+
+    /**
+     * @param tuple The storm tuple to process.
+     * @param point The point to set the value of.
+     */
+    private void mapValue(TridentTuple tuple, OpenTsdbPoint point) {
+        if (this.longValue != null) {
+            point.setValue(this.longValue.longValue());
+        } else if (this.value != null) {
+            point.setValue(this.value.doubleValue());
+        } else if (this.longValueSerializer != null) {
+            point.setValue(this.longValueSerializer.serialize(this.getLong(tuple, VALUE, this.valueField)));
+        } else if (this.doubleValueSerializer != null) {
+            point.setValue(this.doubleValueSerializer.serialize(this.getDouble(tuple, VALUE, this.valueField)));
+        } else if (this.valueSerializer != null) {
+            point.setValue(this.valueSerializer.serialize(this.get(tuple, VALUE, this.valueField)));
+        } else {
+            Object value = this.get(tuple, VALUE, this.valueField);
+            if (isInteger(value)) {
+                point.setValue(((Number) value).longValue());
+            } else {
+                point.setValue(((Number) value).doubleValue());
+            }
+        }
+    }
+
+    private static boolean isInteger(Object value) {
+        return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
     }
 
     /**
@@ -317,28 +436,84 @@ public class OpenTsdbTridentTupleFieldMapper implements IOpenTsdbTridentFieldMap
             tags = this.tags;
         } else {
             if (this.tagsSerializer != null) {
-                tags = this.tagsSerializer.serialize(tuple.getValueByField(this.tagsField));
+                tags = this.tagsSerializer.serialize(this.get(tuple, TAGS, this.tagsField));
             } else {
-                tags = (Map<String, String>) tuple.getValueByField(this.tagsField);
+                tags = (Map<String, String>) this.get(tuple, TAGS, this.tagsField);
             }
         }
 
-        if (this.validTags != null) {
-            for (Iterator<Map.Entry<String, String>> it = tags.entrySet().iterator(); it.hasNext(); ) {
-                Map.Entry<String, String> tag = it.next();
-                if (validTags.contains(tag.getKey())) {
-                    if (tag.getValue() == null || tag.getValue().isEmpty()) {
-                        it.remove();
-                    }
-                }
-            }
+        if (this.tagSets == null) {
+            this.tagSets = new OpenTsdbTagSetCache(this.tagSetCacheSize);
+        }
+        return this.tagSets.intern(tags, this.validTags);
+    }
+
+    /**
+     * @param tuple The trident tuple to process.
+     * @param field The field to get.
+     * @param name  The field name.
+     * @return The field value.
+     */
+    private Object get(TridentTuple tuple, int field, String name) {
+        if (this.projection == null || this.indexes[field] < 0) {
+            return tuple.getValueByField(name);
+        }
+        return this.project(tuple).get(this.indexes[field]);
+    }
+
+    /**
+     * @param tuple The trident tuple to process.
+     * @param field The field to get.
+     * @param name  The field name.
+     * @return The field value as a long.
+     */
+    private long getLong(TridentTuple tuple, int field, String name) {
+        if (this.projection == null || this.indexes[field] < 0) {
+            return tuple.getLongByField(name);
+        }
+        return this.project(tuple).getLong(this.indexes[field]);
+    }
+
+    /**
+     * @param tuple The trident tuple to process.
+     * @param field The field to get.
+     * @param name  The field name.
+     * @return The field value as a double.
+     */
+    private double getDouble(TridentTuple tuple, int field, String name) {
+        if (this.projection == null || this.indexes[field] < 0) {
+            return tuple.getDoubleByField(name);
         }
+        return this.project(tuple).getDouble(this.indexes[field]);
+    }
 
-        if (tags.size() == 0) {
-            tags.put("foo", "bar");
+    /**
+     * @param tuple The trident tuple to process.
+     * @return The tuple projected on the mapper fields.
+     */
+    private TridentTuple project(TridentTuple tuple) {
+        if (tuple != this.lastTuple) {
+            this.projected = this.projection.create(tuple);
+            this.lastTuple = tuple;
         }
+        return this.projected;
+    }
 
-        return tags;
+    /**
+     * @param tuple The trident tuple to process.
+     * @param point The point to fill.
+     * @return False if the tuple is filtered.
+     */
+    @Override
+    public boolean map(TridentTuple tuple, OpenTsdbPoint point) {
+        if (this.isFiltered(tuple)) {
+            return false;
+        }
+        point.setMetric(this.getMetric(tuple));
+        point.setTimestamp(this.getTimestamp(tuple));
+        this.mapValue(tuple, point);
+        point.setTags(this.getTags(tuple));
+        return true;
     }
 
     /**
@@ -356,11 +531,51 @@ public class OpenTsdbTridentTupleFieldMapper implements IOpenTsdbTridentFieldMap
         if (this.timestampSerializer != null) {
             this.timestampSerializer.prepare(conf);
         }
+        if (this.longTimestampSerializer != null) {
+            this.longTimestampSerializer.prepare(conf);
+        }
         if (this.valueSerializer != null) {
             this.valueSerializer.prepare(conf);
         }
+        if (this.longValueSerializer != null) {
+            this.longValueSerializer.prepare(conf);
+        }
+        if (this.doubleValueSerializer != null) {
+            this.doubleValueSerializer.prepare(conf);
+        }
         if (this.tagsSerializer != null) {
             this.tagsSerializer.prepare(conf);
         }
     }
+
+    /**
+     * <p>
+     * Initialize the mapper and resolve the tuple fields positions.
+     * </p>
+     *
+     * @param conf    Topology configuration.
+     * @param context Trident operation context of the state updater.
+     */
+    @Override
+    public void prepare(Map conf, TridentOperationContext context) {
+        this.prepare(conf);
+        List<String> names = new ArrayList<>();
+        this.indexes = new int[]{
+            this.metric == null ? add(names, this.metricField) : -1,
+            this.timestamp == null ? add(names, this.timestampField) : -1,
+            this.value == null ? add(names, this.valueField) : -1,
+            this.tags == null ? add(names, this.tagsField) : -1
+        };
+        try {
+            this.projection = context.makeProjectionFactory(new Fields(names));
+        } catch (RuntimeException ex) {
+            log.warn("Unable to resolve fields " + names + " : " + ex.getMessage());
+            this.projection = null;
+        }
+    }
+
+    private static int add(List<String> names, String name) {
+        names.add(name);
+        return names.size() - 1;
+    }
 }
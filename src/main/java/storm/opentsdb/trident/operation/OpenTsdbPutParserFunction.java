@@ -0,0 +1,79 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.trident.operation;
+
+import backtype.storm.tuple.Values;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.opentsdb.bolt.OpenTsdbPutParserBolt;
+import storm.opentsdb.model.IOpenTsdbEvent;
+import storm.opentsdb.utils.OpenTsdbPutParser;
+import storm.trident.operation.BaseFunction;
+import storm.trident.operation.TridentCollector;
+import storm.trident.operation.TridentOperationContext;
+import storm.trident.tuple.TridentTuple;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+/**
+ * <p>
+ * Trident function parsing OpenTSDB telnet "put" lines and emitting
+ * one OpenTsdbEvent per line. See OpenTsdbPutParserBolt.
+ * </p>
+ * <pre>
+ *     stream.each(new Fields("line"), new OpenTsdbPutParserFunction(), new Fields("event"))
+ * </pre>
+ */
+public class OpenTsdbPutParserFunction extends BaseFunction {
+    public static final Logger log = LoggerFactory.getLogger(OpenTsdbPutParserFunction.class);
+
+    private int stringCacheSize = 4096;
+    private int tagSetCacheSize = 10000;
+
+    private transient OpenTsdbPutParser parser;
+    private transient ArrayList<IOpenTsdbEvent> events;
+
+    /**
+     * @param stringCacheSize Number of metric and tag strings to cache.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbPutParserFunction setStringCacheSize(int stringCacheSize) {
+        this.stringCacheSize = stringCacheSize;
+        return this;
+    }
+
+    /**
+     * @param tagSetCacheSize Number of distinct tag sets to intern.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbPutParserFunction setTagSetCacheSize(int tagSetCacheSize) {
+        this.tagSetCacheSize = tagSetCacheSize;
+        return this;
+    }
+
+    @Override
+    public void prepare(Map conf, TridentOperationContext context) {
+        super.prepare(conf, context);
+        this.parser = new OpenTsdbPutParser(this.stringCacheSize, this.tagSetCacheSize);
+        this.events = new ArrayList<>();
+        context.registerMetric(OpenTsdbPutParserBolt.METRIC, this.parser, 60);
+    }
+
+    @Override
+    public void execute(TridentTuple tuple, TridentCollector collector) {
+        try {
+            this.parser.parseLines(tuple.getValue(0), this.events);
+            for (IOpenTsdbEvent event : this.events) {
+                collector.emit(new Values(event));
+            }
+        } catch (IllegalArgumentException ex) {
+            log.warn("Unable to parse tuple : " + ex.getMessage());
+            collector.reportError(ex);
+        } finally {
+            this.events.clear();
+        }
+    }
+}
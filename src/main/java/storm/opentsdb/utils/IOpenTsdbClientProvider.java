@@ -0,0 +1,30 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import net.opentsdb.core.TSDB;
+
+import java.util.Map;
+
+/**
+ * <p>
+ * Build the OpenTSDB clients instead of OpenTsdbClientFactory.
+ * </p>
+ * <p>
+ * Set the implementation class name in the "storm.opentsdb.client.provider"
+ * topology config key. It must have a public no argument constructor.
+ * The returned clients are still shared and reference counted by the factory.
+ * </p>
+ */
+public interface IOpenTsdbClientProvider {
+    /**
+     * @param config       Topology config.
+     * @param conf         The OpenTSDB client config.
+     * @param hBaseCluster The HBase cluster to use.
+     * @param name         Topology config key.
+     * @return A new OpenTSDB client.
+     */
+    TSDB getTsdbClient(Map config, Map<String, String> conf, String hBaseCluster, String name);
+}
@@ -4,6 +4,7 @@
 
 package storm.opentsdb.utils;
 
+import com.stumbleupon.async.Deferred;
 import net.opentsdb.core.TSDB;
 import net.opentsdb.utils.Config;
 import org.slf4j.Logger;
@@ -12,7 +13,10 @@ import storm.asynchbase.utils.AsyncHBaseClientFactory;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * <p>
@@ -21,25 +25,95 @@ import java.util.Map;
  * AsyncHBase client per application storm-opentsdb uses
  * the storm-asynchbase client factory.
  * </p>
+ * <p>
+ * Clients are shared by all the bolts and states of the worker using
+ * the same HBase cluster, OpenTSDB instance name and configuration, so
+ * that UID caches are shared and the tables are only checked once.<br/>
+ * Each call to getTsdbClient must be balanced by a call to releaseTsdbClient.
+ * The client is flushed and forgotten when the last user releases it. It is
+ * not shutdown as TSDB.shutdown would also shutdown the HBase client which
+ * is owned by the storm-asynchbase factory.
+ * </p>
+ * <p>
+ * The clients can be built by another IOpenTsdbClientProvider by setting
+ * the class name in the "storm.opentsdb.client.provider" topology config
+ * key. This is used by benchmarks and load tests to run without HBase.
+ * </p>
  */
 public class OpenTsdbClientFactory implements Serializable {
     public static final Logger log = LoggerFactory.getLogger(OpenTsdbClientFactory.class);
+    public static final String PROVIDER = "storm.opentsdb.client.provider";
+
+    private static final Map<String, SharedClient> clients = new HashMap<>();
+    private static final Map<TSDB, SharedClient> references = new IdentityHashMap<>();
 
     /**
      * @param config       Topology config.
      * @param hBaseCluster The HBase cluster to use.
      * @param name         Topology config key.
-     * @return
+     * @return The shared OpenTSDB client.
      */
     @SuppressWarnings("unchecked")
     public synchronized static TSDB getTsdbClient(Map config, String hBaseCluster, String name) {
-        log.info("New OpenTSDB client : " + name);
-        try {
-            Map<String, String> conf = (Map<String, String>) config.get(name);
-            if (conf == null) {
-                throw new RuntimeException("Missing configuration for OpenTsdb client : " + name);
+        Map<String, String> conf = (Map<String, String>) config.get(name);
+        if (conf == null) {
+            throw new RuntimeException("Missing configuration for OpenTsdb client : " + name);
+        }
+
+        String key = hBaseCluster + "/" + name + "/" + new TreeMap<>(conf).toString();
+        SharedClient client = clients.get(key);
+        if (client == null) {
+            TSDB tsdb = config.containsKey(PROVIDER) ?
+                newProvider((String) config.get(PROVIDER)).getTsdbClient(config, conf, hBaseCluster, name) :
+                newTsdbClient(config, conf, hBaseCluster, name);
+            if (tsdb == null) {
+                return null;
             }
+            client = new SharedClient(key, tsdb);
+            clients.put(key, client);
+            references.put(client.tsdb, client);
+        }
+        client.references++;
+        return client.tsdb;
+    }
+
+    /**
+     * <p>
+     * Release a client obtained with getTsdbClient.
+     * The client is flushed when the last user releases it.
+     * </p>
+     *
+     * @param tsdb The client to release.
+     * @return A Deferred called back when the client is flushed.
+     */
+    public synchronized static Deferred<Object> releaseTsdbClient(TSDB tsdb) {
+        SharedClient client = references.get(tsdb);
+        if (client == null) {
+            log.warn("Releasing an unknown OpenTSDB client");
+            return Deferred.fromResult(null);
+        }
+        if (--client.references > 0) {
+            return Deferred.fromResult(null);
+        }
 
+        log.info("Releasing OpenTSDB client : " + client.key);
+        clients.remove(client.key);
+        references.remove(tsdb);
+        return tsdb.flush();
+    }
+
+    private static IOpenTsdbClientProvider newProvider(String className) {
+        try {
+            return (IOpenTsdbClientProvider) Class.forName(className).newInstance();
+        } catch (ReflectiveOperationException ex) {
+            throw new RuntimeException("Invalid OpenTSDB client provider : " + className, ex);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static TSDB newTsdbClient(Map config, Map<String, String> conf, String hBaseCluster, String name) {
+        log.info("New OpenTSDB client : " + name);
+        try {
             Config openTsdbConfig = new net.opentsdb.utils.Config(true);
             for (String key : conf.keySet()) {
                 openTsdbConfig.overrideConfig(key, conf.get(key));
@@ -62,4 +136,18 @@ public class OpenTsdbClientFactory implements Serializable {
             throw ex;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * A reference counted client.
+     */
+    static class SharedClient {
+        final String key;
+        final TSDB tsdb;
+        int references = 0;
+
+        SharedClient(String key, TSDB tsdb) {
+            this.key = key;
+            this.tsdb = tsdb;
+        }
+    }
+}
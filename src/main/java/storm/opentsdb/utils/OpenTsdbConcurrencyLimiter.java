@@ -0,0 +1,357 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import backtype.storm.metric.api.IMetric;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import net.opentsdb.core.TSDB;
+import org.hbase.async.PleaseThrottleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Adaptive limit of the number of OpenTSDB points in flight.
+ * </p>
+ * <p>
+ * The limit grows additively ( about +1 per limit worth of completed points )
+ * as long as the observed latency stays close to the baseline latency and HBase
+ * does not complain. It shrinks multiplicatively when a PleaseThrottleException
+ * is received or when the latency goes beyond latencyTolerance times the baseline.
+ * The limit is decreased at most once per round trip so a burst of errors for
+ * requests sent before the last decrease won't collapse it.
+ * </p>
+ * <p>
+ * The executor thread calls acquire before dispatching points and will only
+ * block as long as needed for the in flight points to complete. This replaces
+ * the old fixed one second sleep.<br/>
+ * The limiter is also an IMetric reporting the current limit, the in flight
+ * points, the throttle events count and the time spent waiting in acquire.
+ * </p>
+ */
+public class OpenTsdbConcurrencyLimiter implements IMetric, Serializable {
+    public static final Logger log = LoggerFactory.getLogger(OpenTsdbConcurrencyLimiter.class);
+
+    private int minLimit = 16;
+    private int maxLimit = 65536;
+    private int initialLimit = 1024;
+    private double backoffRatio = 0.5;
+    private double latencyBackoffRatio = 0.9;
+    private double latencyTolerance = 2.0;
+
+    private transient double limit;
+    private transient int inFlight;
+    private transient double baseline;
+    private transient long lastDecrease;
+    private transient long throttled;
+    private transient long waited;
+
+    public OpenTsdbConcurrencyLimiter() {
+        this.prepare();
+    }
+
+    /**
+     * @param minLimit Minimum number of points in flight.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbConcurrencyLimiter setMinLimit(int minLimit) {
+        this.minLimit = minLimit;
+        return this;
+    }
+
+    /**
+     * @param maxLimit Maximum number of points in flight.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbConcurrencyLimiter setMaxLimit(int maxLimit) {
+        this.maxLimit = maxLimit;
+        return this;
+    }
+
+    /**
+     * @param initialLimit Number of points in flight to start with.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbConcurrencyLimiter setInitialLimit(int initialLimit) {
+        this.initialLimit = initialLimit;
+        return this;
+    }
+
+    /**
+     * @param backoffRatio Ratio to apply to the limit on PleaseThrottleException.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbConcurrencyLimiter setBackoffRatio(double backoffRatio) {
+        this.backoffRatio = backoffRatio;
+        return this;
+    }
+
+    /**
+     * @param latencyBackoffRatio Ratio to apply to the limit when the latency is too high.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbConcurrencyLimiter setLatencyBackoffRatio(double latencyBackoffRatio) {
+        this.latencyBackoffRatio = latencyBackoffRatio;
+        return this;
+    }
+
+    /**
+     * @param latencyTolerance How many times the baseline latency is acceptable.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbConcurrencyLimiter setLatencyTolerance(double latencyTolerance) {
+        this.latencyTolerance = latencyTolerance;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Reset the limiter state. It will typically has to be called by
+     * the bolt or state updater prepare method.
+     * </p>
+     */
+    public synchronized void prepare() {
+        this.limit = Math.max(this.minLimit, Math.min(this.maxLimit, this.initialLimit));
+        this.inFlight = 0;
+        this.baseline = 0;
+        this.lastDecrease = 0;
+        this.throttled = 0;
+        this.waited = 0;
+    }
+
+    /**
+     * <p>
+     * Wait until n more points can be dispatched.<br/>
+     * A request bigger than the limit is admitted when nothing else is in flight.
+     * </p>
+     *
+     * @param n       Number of points to dispatch.
+     * @param timeout Maximum time to wait in milliseconds, 0 means forever.
+     * @return False if the timeout expired before the points could be admitted.
+     * @throws InterruptedException
+     */
+    public synchronized boolean acquire(int n, long timeout) throws InterruptedException {
+        long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+        while (this.inFlight > 0 && this.inFlight + n > (int) this.limit) {
+            long wait = 1000;
+            if (deadline > 0) {
+                wait = Math.min(wait, deadline - System.currentTimeMillis());
+                if (wait <= 0) {
+                    return false;
+                }
+            }
+            long start = System.nanoTime();
+            this.wait(wait);
+            this.waited += System.nanoTime() - start;
+        }
+        this.inFlight += n;
+        return true;
+    }
+
+    /**
+     * <p>
+     * Same as acquire but never gives up.
+     * </p>
+     *
+     * @param n Number of points to dispatch.
+     */
+    public void acquireUninterruptibly(int n) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                this.acquire(n, 0);
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param n         Number of completed points.
+     * @param start     System.nanoTime() when the points were dispatched.
+     * @param throttled Whether HBase asked us to throttle.
+     */
+    public synchronized void release(int n, long start, boolean throttled) {
+        if (n == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        double latency = now - start;
+        this.inFlight = Math.max(0, this.inFlight - n);
+
+        if (this.baseline == 0 || latency < this.baseline) {
+            this.baseline = latency;
+        } else {
+            this.baseline = this.baseline * 0.99 + latency * 0.01;
+        }
+
+        if (throttled) {
+            this.throttled++;
+            this.decrease(start, now, this.backoffRatio);
+        } else if (latency > this.baseline * this.latencyTolerance) {
+            this.decrease(start, now, this.latencyBackoffRatio);
+        } else if (this.inFlight + n >= this.limit / 2) {
+            this.limit = Math.min(this.maxLimit, this.limit + (double) n / this.limit);
+        }
+
+        this.notifyAll();
+    }
+
+    /**
+     * <p>
+     * Give back points acquired but never dispatched.
+     * </p>
+     *
+     * @param n Number of points.
+     */
+    public synchronized void cancel(int n) {
+        if (n > 0) {
+            this.inFlight = Math.max(0, this.inFlight - n);
+            this.notifyAll();
+        }
+    }
+
+    private void decrease(long start, long now, double ratio) {
+        if (start > this.lastDecrease) {
+            this.limit = Math.max(this.minLimit, this.limit * ratio);
+            this.lastDecrease = now;
+            log.debug("Decreasing OpenTSDB concurrency limit to " + (int) this.limit);
+        }
+    }
+
+    /**
+     * <p>
+     * Wait for all the points in flight to complete.
+     * </p>
+     *
+     * @param timeout Maximum time to wait in milliseconds.
+     * @return The number of points still in flight.
+     * @throws InterruptedException
+     */
+    public synchronized int awaitIdle(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (this.inFlight > 0) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                break;
+            }
+            this.wait(wait);
+        }
+        return this.inFlight;
+    }
+
+    /**
+     * <p>
+     * Flush the OpenTSDB client then wait for the points in flight to
+     * complete. Log how many points were flushed and abandoned.
+     * </p>
+     *
+     * @param tsdb    The OpenTSDB client to flush.
+     * @param timeout Maximum time to wait in milliseconds.
+     * @return The number of abandoned points.
+     */
+    public int drain(TSDB tsdb, long timeout) {
+        int pending = this.getInFlight();
+        log.info("Draining " + pending + " OpenTSDB points in flight");
+        tsdb.flush();
+
+        int remaining;
+        try {
+            remaining = this.awaitIdle(timeout);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            remaining = this.getInFlight();
+        }
+
+        if (remaining > 0) {
+            log.warn("OpenTSDB drain timeout : " + (pending - remaining) + " points flushed, " +
+                remaining + " points abandoned");
+        } else {
+            log.info("OpenTSDB drain done : " + pending + " points flushed");
+        }
+        return remaining;
+    }
+
+    /**
+     * @return The current number of points allowed in flight.
+     */
+    public synchronized int getLimit() {
+        return (int) this.limit;
+    }
+
+    /**
+     * @return The current number of points in flight.
+     */
+    public synchronized int getInFlight() {
+        return this.inFlight;
+    }
+
+    /**
+     * <p>
+     * Release the points when the request completes.
+     * </p>
+     *
+     * @param request The request to track.
+     * @param n       Number of points in the request.
+     * @return The request so you can do method chaining.
+     */
+    public Deferred<Object> track(Deferred<Object> request, int n) {
+        return request.addBoth(new ReleaseCallback(n, System.nanoTime()));
+    }
+
+    @Override
+    public synchronized Object getValueAndReset() {
+        Map<String, Object> value = new HashMap<>();
+        value.put("limit", (int) this.limit);
+        value.put("inflight", this.inFlight);
+        value.put("throttled", this.throttled);
+        value.put("throttle-time-ms", this.waited / 1000000);
+        this.throttled = 0;
+        this.waited = 0;
+        return value;
+    }
+
+    /**
+     * @param ex The exception to check.
+     * @return Whether the exception is or wraps a PleaseThrottleException.
+     */
+    public static boolean isThrottle(Throwable ex) {
+        while (ex != null) {
+            if (ex instanceof PleaseThrottleException) {
+                return true;
+            }
+            ex = ex.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * Release points on request completion.
+     */
+    class ReleaseCallback implements Callback<Object, Object> {
+        final int n;
+        final long start;
+
+        ReleaseCallback(int n, long start) {
+            this.n = n;
+            this.start = start;
+        }
+
+        @Override
+        public Object call(Object result) throws Exception {
+            release(n, start, result instanceof Exception && isThrottle((Exception) result));
+            return result;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Aggregate the completion of many OpenTSDB put requests into
+ * a single Deferred.<br/>
+ * Unlike Deferred.group it does not keep a list of the results and
+ * it registers the same callback instance on every request so it
+ * does not allocate anything per request.
+ * </p>
+ * <p>
+ * Add all the requests then call seal() to get the aggregated result.
+ * The result is called back with null once every request succeeded,
+ * or with the first exception if at least one request failed.
+ * </p>
+ */
+public class OpenTsdbDeferredCounter implements Callback<Object, Object> {
+    private final AtomicInteger pending = new AtomicInteger(1);
+    private final Deferred<Object> result = new Deferred<>();
+    private volatile Exception error;
+    private int count = 0;
+
+    /**
+     * @param request The request to wait for.
+     */
+    public void add(Deferred<Object> request) {
+        this.count++;
+        this.pending.incrementAndGet();
+        request.addBoth(this);
+    }
+
+    /**
+     * @return Number of requests added so far.
+     */
+    public int count() {
+        return this.count;
+    }
+
+    /**
+     * <p>
+     * No more requests may be added after this call.
+     * </p>
+     *
+     * @return A Deferred called back when all requests are completed.
+     */
+    public Deferred<Object> seal() {
+        this.complete();
+        return this.result;
+    }
+
+    @Override
+    public Object call(Object arg) throws Exception {
+        if (arg instanceof Exception && this.error == null) {
+            this.error = (Exception) arg;
+        }
+        this.complete();
+        return arg;
+    }
+
+    private void complete() {
+        if (this.pending.decrementAndGet() == 0) {
+            this.result.callback(this.error);
+        }
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import storm.opentsdb.model.OpenTsdbPoint;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>
+ * Streaming decoder for OpenTSDB HTTP API /api/put payloads :
+ * <pre>
+ *     [{"metric":"sys.cpu.user","timestamp":1356998400,"value":42.5,"tags":{"host":"web01"}}, ...]
+ * </pre>
+ * A single data point object is accepted as well.
+ * </p>
+ * <p>
+ * The payload is decoded token by token, one data point per call to next,
+ * without building any object tree. Unknown fields are skipped. Strings
+ * without escape sequences come from an OpenTsdbStringCache, numbers are
+ * decoded in place and tags are interned through an OpenTsdbTagSetCache
+ * so a data point whose strings and tags were already seen is decoded
+ * without allocation. Values given as JSON strings are accepted like the
+ * OpenTSDB API does. Empty tags are replaced by foo=bar.
+ * </p>
+ * <p>
+ * A malformed payload throws an IllegalArgumentException, the data points
+ * returned before are valid.<br/>
+ * This class is not thread safe, use one instance per executor.
+ * </p>
+ */
+public class OpenTsdbJsonDecoder {
+    private static final byte[] METRIC = {'m', 'e', 't', 'r', 'i', 'c'};
+    private static final byte[] TIMESTAMP = {'t', 'i', 'm', 'e', 's', 't', 'a', 'm', 'p'};
+    private static final byte[] VALUE = {'v', 'a', 'l', 'u', 'e'};
+    private static final byte[] TAGS = {'t', 'a', 'g', 's'};
+
+    private final OpenTsdbStringCache strings;
+    private final OpenTsdbTagSetCache tagSets;
+    private final OpenTsdbTagsProbe probe = new OpenTsdbTagsProbe();
+    private final StringBuilder builder = new StringBuilder();
+    private byte[] scratch = new byte[4096];
+
+    private byte[] bytes;
+    private int pos;
+    private int end;
+    private boolean array;
+    private boolean first;
+    private boolean done = true;
+
+    // Bounds of the last string token, escapes not decoded
+    private int tokenStart;
+    private int tokenEnd;
+    private boolean escaped;
+
+    /**
+     * @param stringCacheSize Number of metric and tag strings to cache.
+     * @param tagSetCacheSize Number of distinct tag sets to intern.
+     */
+    public OpenTsdbJsonDecoder(int stringCacheSize, int tagSetCacheSize) {
+        this.strings = new OpenTsdbStringCache(stringCacheSize);
+        this.tagSets = new OpenTsdbTagSetCache(tagSetCacheSize);
+    }
+
+    public OpenTsdbJsonDecoder() {
+        this(4096, 10000);
+    }
+
+    /**
+     * @param payload A byte[], a ByteBuffer or a String.
+     */
+    public void reset(Object payload) {
+        if (payload instanceof byte[]) {
+            byte[] bytes = (byte[]) payload;
+            this.reset(bytes, 0, bytes.length);
+        } else if (payload instanceof ByteBuffer) {
+            ByteBuffer buffer = (ByteBuffer) payload;
+            if (buffer.hasArray()) {
+                this.reset(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            } else {
+                int length = buffer.remaining();
+                if (this.scratch.length < length) {
+                    this.scratch = new byte[Math.max(length, this.scratch.length * 2)];
+                }
+                buffer.duplicate().get(this.scratch, 0, length);
+                this.reset(this.scratch, 0, length);
+            }
+        } else if (payload instanceof String) {
+            byte[] bytes = ((String) payload).getBytes(OpenTsdbStringCache.UTF8);
+            this.reset(bytes, 0, bytes.length);
+        } else {
+            throw new IllegalArgumentException("Unsupported JSON payload type : " +
+                (payload == null ? null : payload.getClass().getName()));
+        }
+    }
+
+    /**
+     * @param bytes  The buffer.
+     * @param offset Start of the payload.
+     * @param length Length of the payload.
+     */
+    public void reset(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.pos = offset;
+        this.end = offset + length;
+        this.skipWhitespaces();
+        this.array = this.pos < this.end && this.bytes[this.pos] == '[';
+        if (this.array) {
+            this.pos++;
+        }
+        this.first = true;
+        this.done = this.pos >= this.end;
+    }
+
+    /**
+     * @param point The point to fill.
+     * @return False when there is no more data point.
+     */
+    public boolean next(OpenTsdbPoint point) {
+        if (this.done) {
+            return false;
+        }
+        this.skipWhitespaces();
+        if (this.array) {
+            if (this.peek() == ']') {
+                this.pos++;
+                this.finish();
+                return false;
+            }
+            if (!this.first) {
+                this.expect(',');
+                this.skipWhitespaces();
+            }
+        }
+        this.first = false;
+
+        try {
+            this.decodePoint(point);
+        } finally {
+            this.probe.clear();
+        }
+
+        if (!this.array) {
+            this.finish();
+        }
+        return true;
+    }
+
+    /**
+     * <p>
+     * Forget the payload.
+     * </p>
+     */
+    public void clear() {
+        this.bytes = null;
+        this.done = true;
+    }
+
+    private void finish() {
+        this.skipWhitespaces();
+        if (this.pos < this.end) {
+            throw this.error("Unexpected data after the payload");
+        }
+        this.clear();
+    }
+
+    private void decodePoint(OpenTsdbPoint point) {
+        this.expect('{');
+        boolean metric = false;
+        boolean timestamp = false;
+        boolean value = false;
+
+        this.skipWhitespaces();
+        if (this.peek() == '}') {
+            this.pos++;
+            throw this.error("Empty data point");
+        }
+        while (true) {
+            this.skipWhitespaces();
+            this.scanString();
+            byte[] key = this.escaped ? null : this.key();
+            this.skipWhitespaces();
+            this.expect(':');
+            this.skipWhitespaces();
+
+            if (key == METRIC) {
+                point.setMetric(this.readString());
+                metric = true;
+            } else if (key == TIMESTAMP) {
+                this.scanNumber();
+                point.setTimestamp(OpenTsdbPutParser.parseLong(this.bytes, this.tokenStart, this.tokenEnd));
+                timestamp = true;
+            } else if (key == VALUE) {
+                this.scanNumber();
+                if (OpenTsdbPutParser.isInteger(this.bytes, this.tokenStart, this.tokenEnd)) {
+                    point.setValue(OpenTsdbPutParser.parseLong(this.bytes, this.tokenStart, this.tokenEnd));
+                } else {
+                    point.setValue(OpenTsdbPutParser.parseDouble(this.bytes, this.tokenStart, this.tokenEnd));
+                }
+                value = true;
+            } else if (key == TAGS) {
+                this.decodeTags();
+            } else {
+                this.skipValue();
+            }
+
+            this.skipWhitespaces();
+            byte b = this.next();
+            if (b == '}') {
+                break;
+            }
+            if (b != ',') {
+                throw this.error("Expected ',' or '}'");
+            }
+        }
+
+        if (!metric || !timestamp || !value) {
+            throw this.error("Data point without metric, timestamp or value");
+        }
+        point.setTags(this.tagSets.intern(this.probe, null));
+    }
+
+    private void decodeTags() {
+        this.expect('{');
+        this.skipWhitespaces();
+        if (this.peek() == '}') {
+            this.pos++;
+            return;
+        }
+        while (true) {
+            this.skipWhitespaces();
+            String key = this.readString();
+            this.skipWhitespaces();
+            this.expect(':');
+            this.skipWhitespaces();
+            if (!this.probe.add(key, this.readString())) {
+                throw this.error("Duplicate tag " + key);
+            }
+            this.skipWhitespaces();
+            byte b = this.next();
+            if (b == '}') {
+                return;
+            }
+            if (b != ',') {
+                throw this.error("Expected ',' or '}'");
+            }
+        }
+    }
+
+    /**
+     * @return The known field name of the current token or null.
+     */
+    private byte[] key() {
+        int length = this.tokenEnd - this.tokenStart;
+        if (this.matches(METRIC, length)) {
+            return METRIC;
+        } else if (this.matches(TIMESTAMP, length)) {
+            return TIMESTAMP;
+        } else if (this.matches(VALUE, length)) {
+            return VALUE;
+        } else if (this.matches(TAGS, length)) {
+            return TAGS;
+        }
+        return null;
+    }
+
+    private boolean matches(byte[] name, int length) {
+        if (name.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (this.bytes[this.tokenStart + i] != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the bounds of the string at the current position.
+     */
+    private void scanString() {
+        this.expect('"');
+        this.tokenStart = this.pos;
+        this.escaped = false;
+        while (this.pos < this.end) {
+            byte b = this.bytes[this.pos];
+            if (b == '"') {
+                this.tokenEnd = this.pos;
+                this.pos++;
+                return;
+            }
+            if (b == '\\') {
+                this.escaped = true;
+                this.pos++;
+            }
+            this.pos++;
+        }
+        throw this.error("Unterminated string");
+    }
+
+    private String readString() {
+        this.scanString();
+        if (!this.escaped) {
+            return this.strings.get(this.bytes, this.tokenStart, this.tokenEnd - this.tokenStart);
+        }
+        return this.unescape();
+    }
+
+    private String unescape() {
+        // Escapes are rare in metrics and tags, decode the code points the slow way
+        String raw = new String(this.bytes, this.tokenStart, this.tokenEnd - this.tokenStart, OpenTsdbStringCache.UTF8);
+        this.builder.setLength(0);
+        for (int i = 0; i < raw.length(); i++) {
+            char c = raw.charAt(i);
+            if (c != '\\') {
+                this.builder.append(c);
+                continue;
+            }
+            c = raw.charAt(++i);
+            switch (c) {
+                case 'b':
+                    this.builder.append('\b');
+                    break;
+                case 'f':
+                    this.builder.append('\f');
+                    break;
+                case 'n':
+                    this.builder.append('\n');
+                    break;
+                case 'r':
+                    this.builder.append('\r');
+                    break;
+                case 't':
+                    this.builder.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 >= raw.length()) {
+                        throw this.error("Invalid unicode escape");
+                    }
+                    int code = 0;
+                    for (int j = i + 1; j <= i + 4; j++) {
+                        int digit = hex(raw.charAt(j));
+                        if (digit < 0) {
+                            throw this.error("Invalid unicode escape");
+                        }
+                        code = code << 4 | digit;
+                    }
+                    this.builder.append((char) code);
+                    i += 4;
+                    break;
+                case '"':
+                case '\\':
+                case '/':
+                    this.builder.append(c);
+                    break;
+                default:
+                    throw this.error("Invalid escape \\" + c);
+            }
+        }
+        return this.builder.toString();
+    }
+
+    /**
+     * @return The value of an ASCII hexadecimal digit or -1.
+     */
+    private static int hex(char c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        } else if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        } else if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        return -1;
+    }
+
+    /**
+     * Find the bounds of the number at the current position, quoted or not.
+     */
+    private void scanNumber() {
+        if (this.peek() == '"') {
+            this.scanString();
+            return;
+        }
+        this.tokenStart = this.pos;
+        while (this.pos < this.end) {
+            byte b = this.bytes[this.pos];
+            if (!((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E')) {
+                break;
+            }
+            this.pos++;
+        }
+        this.tokenEnd = this.pos;
+        if (this.tokenStart == this.tokenEnd) {
+            throw this.error("Expected a number");
+        }
+    }
+
+    private void skipValue() {
+        byte b = this.peek();
+        if (b == '"') {
+            this.scanString();
+        } else if (b == '{' || b == '[') {
+            int depth = 0;
+            do {
+                b = this.peek();
+                if (b == '"') {
+                    this.scanString();
+                    continue;
+                }
+                if (b == '{' || b == '[') {
+                    depth++;
+                } else if (b == '}' || b == ']') {
+                    depth--;
+                }
+                this.pos++;
+            } while (depth > 0);
+        } else {
+            // Number, true, false or null
+            while (this.pos < this.end) {
+                b = this.bytes[this.pos];
+                if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+                    break;
+                }
+                this.pos++;
+            }
+        }
+    }
+
+    private void skipWhitespaces() {
+        while (this.pos < this.end) {
+            byte b = this.bytes[this.pos];
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                return;
+            }
+            this.pos++;
+        }
+    }
+
+    private byte peek() {
+        if (this.pos >= this.end) {
+            throw this.error("Unexpected end of payload");
+        }
+        return this.bytes[this.pos];
+    }
+
+    private byte next() {
+        byte b = this.peek();
+        this.pos++;
+        return b;
+    }
+
+    private void expect(char c) {
+        if (this.next() != c) {
+            throw this.error("Expected '" + c + "'");
+        }
+    }
+
+    private IllegalArgumentException error(String message) {
+        this.done = true;
+        return new IllegalArgumentException(message + " at position " + this.pos);
+    }
+}
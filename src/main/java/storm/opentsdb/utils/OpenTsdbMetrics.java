@@ -0,0 +1,169 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import backtype.storm.metric.api.IMetric;
+import backtype.storm.task.IMetricsContext;
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import com.stumbleupon.async.DeferredGroupException;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>
+ * Storm metric reporting the OpenTSDB writes of a bolt or state updater.
+ * </p>
+ * <p>
+ * Reported values :
+ * <ul>
+ * <li>points : number of points written during the bucket</li>
+ * <li>points-per-second : the same divided by the bucket size</li>
+ * <li>errors : number of points in failure by exception class</li>
+ * <li>latency-ms : histogram of the request latencies, each bucket counts
+ * the requests that completed under its upper bound in milliseconds</li>
+ * <li>limit, inflight, throttled, throttle-time-ms : from the concurrency limiter</li>
+ * </ul>
+ * A request is whatever completes as a whole : a single point, the points
+ * of a tuple or a batch.<br/>
+ * Requests complete on AsyncHBase threads so record only updates atomic
+ * counters and never blocks them. getValueAndReset swaps each counter
+ * with zero, a request completing meanwhile is counted in either bucket.
+ * </p>
+ */
+public class OpenTsdbMetrics implements IMetric {
+    public static final String NAME = "opentsdb";
+
+    private static final int[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000};
+
+    private final OpenTsdbConcurrencyLimiter limiter;
+    private final AtomicLongArray latencies = new AtomicLongArray(BOUNDS.length + 1);
+    private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+    private final AtomicLong points = new AtomicLong();
+    private int bucketSize = 60;
+
+    /**
+     * @param limiter The limiter to report, may be null.
+     */
+    public OpenTsdbMetrics(OpenTsdbConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * @param context    A TopologyContext or a TridentOperationContext.
+     * @param bucketSize Reporting interval in seconds.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbMetrics register(IMetricsContext context, int bucketSize) {
+        this.bucketSize = bucketSize;
+        context.registerMetric(NAME, this, bucketSize);
+        return this;
+    }
+
+    /**
+     * @param points Number of points of the completed request.
+     * @param start  System.nanoTime() when the request was sent.
+     * @param error  The request failure or null.
+     */
+    public void record(int points, long start, Exception error) {
+        long latency = (System.nanoTime() - start) / 1000000;
+        int i = 0;
+        while (i < BOUNDS.length && latency >= BOUNDS[i]) {
+            i++;
+        }
+        this.latencies.incrementAndGet(i);
+
+        if (error == null) {
+            this.points.addAndGet(points);
+        } else {
+            String name = cause(error).getClass().getSimpleName();
+            AtomicLong count = this.errors.get(name);
+            if (count == null) {
+                count = new AtomicLong();
+                AtomicLong previous = this.errors.putIfAbsent(name, count);
+                if (previous != null) {
+                    count = previous;
+                }
+            }
+            count.addAndGet(points);
+        }
+    }
+
+    /**
+     * <p>
+     * Record the request when it completes.
+     * </p>
+     *
+     * @param request The request to track.
+     * @param points  Number of points in the request.
+     * @return The request so you can do method chaining.
+     */
+    public Deferred<Object> track(Deferred<Object> request, int points) {
+        return request.addBoth(new RecordCallback(points, System.nanoTime()));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Object getValueAndReset() {
+        Map<String, Object> value = new HashMap<>();
+        long points = this.points.getAndSet(0);
+        value.put("points", points);
+        value.put("points-per-second", (double) points / this.bucketSize);
+
+        // Error classes are few, their counters are kept and only the non zero ones reported
+        Map<String, Long> errors = new HashMap<>();
+        for (Map.Entry<String, AtomicLong> entry : this.errors.entrySet()) {
+            long count = entry.getValue().getAndSet(0);
+            if (count > 0) {
+                errors.put(entry.getKey(), count);
+            }
+        }
+        value.put("errors", errors);
+
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < BOUNDS.length; i++) {
+            histogram.put(Integer.toString(BOUNDS[i]), this.latencies.getAndSet(i, 0));
+        }
+        histogram.put("inf", this.latencies.getAndSet(BOUNDS.length, 0));
+        value.put("latency-ms", histogram);
+
+        if (this.limiter != null) {
+            value.putAll((Map<String, Object>) this.limiter.getValueAndReset());
+        }
+        return value;
+    }
+
+    private static Throwable cause(Exception ex) {
+        if (ex instanceof DeferredGroupException && ex.getCause() != null) {
+            return ex.getCause();
+        }
+        return ex;
+    }
+
+    /**
+     * Record the request on completion.
+     */
+    class RecordCallback implements Callback<Object, Object> {
+        final int points;
+        final long start;
+
+        RecordCallback(int points, long start) {
+            this.points = points;
+            this.start = start;
+        }
+
+        @Override
+        public Object call(Object result) throws Exception {
+            record(points, start, result instanceof Exception ? (Exception) result : null);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import backtype.storm.metric.api.IMetric;
+import com.stumbleupon.async.Deferred;
+import storm.opentsdb.model.OpenTsdbPoint;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Per series compression of the points before they are written.
+ * </p>
+ * <p>
+ * Deadband :<br/>
+ * The last written value of each series is kept and a point is only
+ * written when it differs from it by more than the absolute deadband
+ * or the relative deadband times the last written value. Flat series
+ * are still written once every maxInterval seconds if set.
+ * </p>
+ * <p>
+ * Swinging door :<br/>
+ * With setSwingingDoor(true) the deadband is the swinging door compression
+ * deviation. The last received point is held back and the corridor of slopes
+ * going through the last written point and every point since, plus or minus
+ * the deviation, is narrowed on each point. When a point falls outside the
+ * corridor the held point is written instead, so the line drawn between the
+ * written points stays within the deviation of every suppressed point.
+ * </p>
+ * <p>
+ * Held points :<br/>
+ * A held point is written when the door closes, or by pollExpired once it
+ * was held for maxHoldTime milliseconds so the last point of a series that
+ * stops sending is not lost. The held point of an evicted series is
+ * returned by the next pollExpired call. A caller may give a hold Deferred
+ * with each point : it is called back with null when the held point is
+ * superseded by a later one, and chained to the write of the held point
+ * otherwise ( see getWrittenHold ), so the tuple of a held point can be
+ * acked or failed with its write.
+ * </p>
+ * <p>
+ * The series state lives in direct mapped primitive arrays. A series
+ * colliding with another one evicts it, the next point of an evicted
+ * series is always written. Points older than the last written one
+ * are written as is, so a replayed point is always written again.<br/>
+ * This class is not thread safe, use one instance per executor.<br/>
+ * The compressor is also an IMetric reporting the number of points,
+ * the suppressed points, the suppression ratio and the evictions.
+ * </p>
+ * <pre>
+ *     new OpenTsdbBolt("hbase-cluster", "test-tsdb", mapper)
+ *         .setCompressor(new OpenTsdbPointCompressor()
+ *             .setDeadband(0.5)
+ *             .setSwingingDoor(true)
+ *             .setMaxInterval(600));
+ * </pre>
+ */
+public class OpenTsdbPointCompressor implements IMetric, Serializable {
+    // Same test as OpenTSDB to tell milliseconds from seconds
+    private static final long SECOND_MASK = 0xFFFFFFFF00000000L;
+
+    private double deadband = 0;
+    private double relativeDeadband = 0;
+    private boolean swingingDoor = false;
+    private long maxInterval = 0;
+    private int maxSeries = 65536;
+    private long maxHoldTime = 10000;
+
+    private transient String[] metrics;
+    private transient Map[] tags;
+    private transient int[] hashes;
+    private transient long[] timestamps;
+    private transient double[] values;
+    private transient double[] uppers;
+    private transient double[] lowers;
+    private transient boolean[] held;
+    private transient long[] heldTimestamps;
+    private transient long[] heldValues;
+    private transient boolean[] heldIntegers;
+    private transient long[] heldSince;
+    private transient Deferred[] holds;
+    private transient int mask;
+    private transient ArrayList<OpenTsdbPoint> evicted;
+    private transient ArrayList<Deferred<Object>> evictedHolds;
+    private transient int cursor;
+    private transient boolean lastHeld;
+    private transient Deferred<Object> writtenHold;
+
+    private transient long points;
+    private transient long suppressed;
+    private transient long evictions;
+
+    /**
+     * @param deadband Absolute deviation under which points are suppressed.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbPointCompressor setDeadband(double deadband) {
+        this.deadband = deadband;
+        return this;
+    }
+
+    /**
+     * @param relativeDeadband Deviation under which points are suppressed,
+     *                         as a ratio of the last written value.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbPointCompressor setRelativeDeadband(double relativeDeadband) {
+        this.relativeDeadband = relativeDeadband;
+        return this;
+    }
+
+    /**
+     * @param swingingDoor Whether to use swinging door compression.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbPointCompressor setSwingingDoor(boolean swingingDoor) {
+        this.swingingDoor = swingingDoor;
+        return this;
+    }
+
+    /**
+     * @param maxInterval Write a point at least every maxInterval seconds
+     *                    for each series. Use 0 to disable.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbPointCompressor setMaxInterval(long maxInterval) {
+        this.maxInterval = maxInterval;
+        return this;
+    }
+
+    /**
+     * @param maxSeries Number of series to track, rounded up to a power of two.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbPointCompressor setMaxSeries(int maxSeries) {
+        this.maxSeries = maxSeries;
+        return this;
+    }
+
+    /**
+     * @param maxHoldTime Write a held point once it was held that long
+     *                    (in millisecond), see pollExpired. Keep it well
+     *                    under topology.message.timeout.secs as the bolt
+     *                    acks the tuple of a held point once it is written.
+     * @return This so you can do method chaining.
+     */
+    public OpenTsdbPointCompressor setMaxHoldTime(long maxHoldTime) {
+        this.maxHoldTime = maxHoldTime;
+        return this;
+    }
+
+    /**
+     * <p>
+     * Allocate the series state. It will typically has to be called by
+     * the bolt or state updater prepare method.
+     * </p>
+     */
+    public void prepare() {
+        int slots = Integer.highestOneBit(Math.max(this.maxSeries, 16) - 1) << 1;
+        this.metrics = new String[slots];
+        this.tags = new Map[slots];
+        this.hashes = new int[slots];
+        this.timestamps = new long[slots];
+        this.values = new double[slots];
+        this.uppers = new double[slots];
+        this.lowers = new double[slots];
+        this.held = new boolean[slots];
+        this.heldTimestamps = new long[slots];
+        this.heldValues = new long[slots];
+        this.heldIntegers = new boolean[slots];
+        this.heldSince = new long[slots];
+        this.holds = new Deferred[slots];
+        this.mask = slots - 1;
+        this.evicted = new ArrayList<>();
+        this.evictedHolds = new ArrayList<>();
+        this.cursor = 0;
+        this.points = 0;
+        this.suppressed = 0;
+        this.evictions = 0;
+    }
+
+    /**
+     * <p>
+     * In swinging door mode the point to write may be the previously
+     * held point of the series, the point is then updated in place.
+     * </p>
+     *
+     * @param point The point to compress.
+     * @return False if no point has to be written.
+     */
+    public boolean compress(OpenTsdbPoint point) {
+        return this.compress(point, null);
+    }
+
+    /**
+     * <p>
+     * In swinging door mode the point to write may be the previously
+     * held point of the series, the point is then updated in place and
+     * getWrittenHold returns the hold Deferred of the written point.
+     * </p>
+     *
+     * @param point The point to compress.
+     * @param hold  Deferred to complete once the point is written or
+     *              superseded if it is held, may be null.
+     * @return False if no point has to be written.
+     */
+    public boolean compress(OpenTsdbPoint point, Deferred<Object> hold) {
+        if (this.metrics == null) {
+            this.prepare();
+        }
+        this.points++;
+        this.lastHeld = false;
+        this.writtenHold = null;
+
+        String metric = point.getMetric();
+        Map<String, String> tags = point.getTags();
+        int hash = 31 * metric.hashCode() + tags.hashCode();
+        int i = (hash ^ (hash >>> 16)) & this.mask;
+
+        long timestamp = point.getTimestamp();
+        boolean integer = point.isInteger();
+        double value = integer ? point.getLongValue() : point.getValue();
+
+        if (this.metrics[i] == null || this.hashes[i] != hash ||
+            !(this.metrics[i] == metric || this.metrics[i].equals(metric)) ||
+            !(this.tags[i] == tags || this.tags[i].equals(tags))) {
+            if (this.metrics[i] != null) {
+                this.evictions++;
+                if (this.held[i]) {
+                    this.evict(i);
+                }
+            }
+            this.metrics[i] = metric;
+            this.tags[i] = tags;
+            this.hashes[i] = hash;
+            this.archive(i, timestamp, value);
+            return true;
+        }
+
+        if (timestamp <= this.timestamps[i]) {
+            return true;
+        }
+
+        boolean heartbeat = false;
+        if (this.maxInterval > 0) {
+            long interval = (timestamp & SECOND_MASK) != 0 ? this.maxInterval * 1000 : this.maxInterval;
+            heartbeat = timestamp - this.timestamps[i] >= interval;
+        }
+        double deviation = this.deviation(this.values[i]);
+
+        if (!this.swingingDoor) {
+            if (heartbeat || Math.abs(value - this.values[i]) > deviation) {
+                this.archive(i, timestamp, value);
+                return true;
+            }
+            this.suppressed++;
+            return false;
+        }
+
+        double elapsed = timestamp - this.timestamps[i];
+        double upper = Math.min(this.uppers[i], (value + deviation - this.values[i]) / elapsed);
+        double lower = Math.max(this.lowers[i], (value - deviation - this.values[i]) / elapsed);
+
+        if (lower > upper && this.held[i]) {
+            // The door closed, write the held point and open a new corridor from it
+            long heldTimestamp = this.heldTimestamps[i];
+            long heldValue = this.heldValues[i];
+            boolean heldInteger = this.heldIntegers[i];
+            double archived = heldInteger ? heldValue : Double.longBitsToDouble(heldValue);
+            this.writtenHold = this.take(i);
+            this.archive(i, heldTimestamp, archived);
+
+            deviation = this.deviation(archived);
+            elapsed = timestamp - heldTimestamp;
+            this.uppers[i] = (value + deviation - archived) / elapsed;
+            this.lowers[i] = (value - deviation - archived) / elapsed;
+            this.hold(i, timestamp, value, integer, point, hold);
+
+            point.setTimestamp(heldTimestamp);
+            if (heldInteger) {
+                point.setValue(heldValue);
+            } else {
+                point.setValue(Double.longBitsToDouble(heldValue));
+            }
+            return true;
+        }
+
+        if (heartbeat) {
+            this.archive(i, timestamp, value);
+            return true;
+        }
+
+        this.uppers[i] = upper;
+        this.lowers[i] = lower;
+        this.release(i);
+        this.hold(i, timestamp, value, integer, point, hold);
+        this.suppressed++;
+        return false;
+    }
+
+    /**
+     * @return Whether the last compressed point was held, its hold
+     * Deferred will be completed later.
+     */
+    public boolean isHeld() {
+        return this.lastHeld;
+    }
+
+    /**
+     * @return The hold Deferred of the point to write returned by the last
+     * compress or pollExpired call, or null. The caller has to chain
+     * the write result to it.
+     */
+    public Deferred<Object> getWrittenHold() {
+        return this.writtenHold;
+    }
+
+    /**
+     * <p>
+     * Return the next held point to write, either the held point of an
+     * evicted series or a point held for more than maxHoldTime. Call it
+     * in a loop until it returns false, periodically and on shutdown with
+     * Long.MAX_VALUE to write every held point.
+     * </p>
+     *
+     * @param now   Current time in milliseconds.
+     * @param point The point to set.
+     * @return False if there is no more held point to write.
+     */
+    public boolean pollExpired(long now, OpenTsdbPoint point) {
+        this.writtenHold = null;
+        if (this.metrics == null) {
+            return false;
+        }
+        if (!this.evicted.isEmpty()) {
+            OpenTsdbPoint spilled = this.evicted.remove(this.evicted.size() - 1);
+            this.writtenHold = this.evictedHolds.remove(this.evictedHolds.size() - 1);
+            if (spilled.isInteger()) {
+                point.set(spilled.getMetric(), spilled.getTimestamp(), spilled.getLongValue(), spilled.getTags());
+            } else {
+                point.set(spilled.getMetric(), spilled.getTimestamp(), spilled.getValue(), spilled.getTags());
+            }
+            return true;
+        }
+        for (; this.cursor < this.held.length; this.cursor++) {
+            int i = this.cursor;
+            if (this.held[i] && now - this.heldSince[i] >= this.maxHoldTime) {
+                this.writtenHold = this.take(i);
+                double archived = this.set(i, point);
+                this.archive(i, this.heldTimestamps[i], archived);
+                this.cursor++;
+                return true;
+            }
+        }
+        this.cursor = 0;
+        return false;
+    }
+
+    /**
+     * @param i     The slot of the held point.
+     * @param point The point to set to the held point.
+     * @return The held value.
+     */
+    private double set(int i, OpenTsdbPoint point) {
+        long heldValue = this.heldValues[i];
+        if (this.heldIntegers[i]) {
+            point.set(this.metrics[i], this.heldTimestamps[i], heldValue, this.tags[i]);
+            return heldValue;
+        }
+        double value = Double.longBitsToDouble(heldValue);
+        point.set(this.metrics[i], this.heldTimestamps[i], value, this.tags[i]);
+        return value;
+    }
+
+    /**
+     * Keep the held point of a slot taken by another series for the next pollExpired call.
+     */
+    private void evict(int i) {
+        OpenTsdbPoint spilled = new OpenTsdbPoint();
+        this.set(i, spilled);
+        this.evicted.add(spilled);
+        this.evictedHolds.add(this.take(i));
+        this.held[i] = false;
+    }
+
+    /**
+     * @return The hold Deferred of the slot, which is forgotten.
+     */
+    @SuppressWarnings("unchecked")
+    private Deferred<Object> take(int i) {
+        Deferred<Object> hold = this.holds[i];
+        this.holds[i] = null;
+        return hold;
+    }
+
+    /**
+     * Complete the hold Deferred of a superseded held point.
+     */
+    private void release(int i) {
+        Deferred<Object> hold = this.take(i);
+        if (hold != null) {
+            hold.callback(null);
+        }
+    }
+
+    private double deviation(double value) {
+        return Math.max(this.deadband, this.relativeDeadband * Math.abs(value));
+    }
+
+    private void archive(int i, long timestamp, double value) {
+        this.timestamps[i] = timestamp;
+        this.values[i] = value;
+        this.uppers[i] = Double.POSITIVE_INFINITY;
+        this.lowers[i] = Double.NEGATIVE_INFINITY;
+        this.held[i] = false;
+        this.release(i);
+    }
+
+    private void hold(int i, long timestamp, double value, boolean integer, OpenTsdbPoint point,
+                      Deferred<Object> hold) {
+        this.held[i] = true;
+        this.heldSince[i] = System.currentTimeMillis();
+        this.holds[i] = hold;
+        this.lastHeld = hold != null;
+        this.heldTimestamps[i] = timestamp;
+        this.heldValues[i] = integer ? point.getLongValue() : Double.doubleToRawLongBits(value);
+        this.heldIntegers[i] = integer;
+    }
+
+    @Override
+    public Object getValueAndReset() {
+        Map<String, Object> value = new HashMap<>();
+        value.put("points", this.points);
+        value.put("suppressed", this.suppressed);
+        value.put("ratio", this.points > 0 ? (double) this.suppressed / this.points : 0.0);
+        value.put("evictions", this.evictions);
+        this.points = 0;
+        this.suppressed = 0;
+        this.evictions = 0;
+        return value;
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import com.stumbleupon.async.Deferred;
+import net.opentsdb.core.Const;
+import net.opentsdb.core.TSDB;
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.KeyValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.opentsdb.model.OpenTsdbSeriesQuery;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Read OpenTSDB points directly from HBase for a batch of series queries.
+ * </p>
+ * <p>
+ * Series row keys are resolved with an OpenTsdbSeriesCache without ever
+ * creating UIDs, unknown series simply have no point. The rows of all the
+ * queries are fetched with one GetRequest per distinct series and hour, all
+ * sent at once through the shared HBase client, and the cells are decoded
+ * using the OpenTSDB 2.1 storage format ( second and millisecond qualifiers,
+ * compacted cells, annotations are skipped ).
+ * </p>
+ * <p>
+ * Latest value queries walk back one hour per round only for the series
+ * that have no point yet, up to the lookback hours.<br/>
+ * With an OpenTsdbRowCache the decoded rows are cached and only the
+ * missing rows are read from HBase.<br/>
+ * This class is not thread safe, use one instance per executor.
+ * </p>
+ */
+public class OpenTsdbPointReader {
+    public static final Logger log = LoggerFactory.getLogger(OpenTsdbPointReader.class);
+
+    private final TSDB tsdb;
+    private final OpenTsdbSeriesCache seriesCache;
+    private final OpenTsdbRowCache rowCache;
+    private final byte[] table;
+
+    /**
+     * @param tsdb        Initialized OpenTSDB client.
+     * @param seriesCache Series cache to resolve the row keys.
+     * @param rowCache    Read cache of the decoded rows, may be null.
+     */
+    public OpenTsdbPointReader(TSDB tsdb, OpenTsdbSeriesCache seriesCache, OpenTsdbRowCache rowCache) {
+        this.tsdb = tsdb;
+        this.seriesCache = seriesCache;
+        this.rowCache = rowCache;
+        this.table = tsdb.getConfig().getString("tsd.storage.hbase.data_table").getBytes(OpenTsdbPointWriter.CHARSET);
+    }
+
+    /**
+     * @param tsdb        Initialized OpenTSDB client.
+     * @param seriesCache Series cache to resolve the row keys.
+     */
+    public OpenTsdbPointReader(TSDB tsdb, OpenTsdbSeriesCache seriesCache) {
+        this(tsdb, seriesCache, null);
+    }
+
+    /**
+     * @param tsdb Initialized OpenTSDB client.
+     */
+    public OpenTsdbPointReader(TSDB tsdb) {
+        this(tsdb, new OpenTsdbSeriesCache(tsdb, 10000));
+    }
+
+    /**
+     * @return The read cache or null.
+     */
+    public OpenTsdbRowCache getRowCache() {
+        return this.rowCache;
+    }
+
+    /**
+     * <p>
+     * Aggregate every point of each query range, reading at most
+     * lookback hours from the range end.
+     * </p>
+     *
+     * @param queries  The queries to fill.
+     * @param lookback Maximum number of hours to read per series.
+     * @param timeout  How long to wait for HBase (in millisecond), 0 means forever.
+     * @throws Exception If a row could not be read.
+     */
+    public void aggregate(List<OpenTsdbSeriesQuery> queries, int lookback, long timeout) throws Exception {
+        Batch batch = new Batch();
+        for (OpenTsdbSeriesQuery query : queries) {
+            long last = OpenTsdbPointWriter.baseTime(query.getEnd() / 1000);
+            long first = Math.max(OpenTsdbPointWriter.baseTime(Math.max(query.getStart(), 0) / 1000),
+                last - (long) (lookback - 1) * Const.MAX_TIMESPAN);
+            for (long base = first; base <= last; base += Const.MAX_TIMESPAN) {
+                batch.add(query, base);
+            }
+        }
+        batch.run(timeout);
+    }
+
+    /**
+     * <p>
+     * Find the latest point of each query range, looking back at most
+     * lookback hours from the range end.
+     * </p>
+     *
+     * @param queries  The queries to fill.
+     * @param lookback Maximum number of hours to read per series.
+     * @param timeout  How long to wait for HBase for each round (in millisecond), 0 means forever.
+     * @throws Exception If a row could not be read.
+     */
+    public void last(List<OpenTsdbSeriesQuery> queries, int lookback, long timeout) throws Exception {
+        int n = queries.size();
+        long[] bases = new long[n];
+        long[] firsts = new long[n];
+        for (int i = 0; i < n; i++) {
+            OpenTsdbSeriesQuery query = queries.get(i);
+            bases[i] = OpenTsdbPointWriter.baseTime(query.getEnd() / 1000);
+            firsts[i] = Math.max(OpenTsdbPointWriter.baseTime(Math.max(query.getStart(), 0) / 1000),
+                bases[i] - (long) (lookback - 1) * Const.MAX_TIMESPAN);
+        }
+
+        for (int round = 0; round < lookback; round++) {
+            Batch batch = new Batch();
+            boolean pending = false;
+            for (int i = 0; i < n; i++) {
+                if (queries.get(i).getCount() == 0 && bases[i] >= firsts[i]) {
+                    batch.add(queries.get(i), bases[i]);
+                    bases[i] -= Const.MAX_TIMESPAN;
+                    pending = true;
+                }
+            }
+            if (!pending) {
+                return;
+            }
+            batch.run(timeout);
+        }
+    }
+
+    private byte[] findRowKeyTemplate(OpenTsdbSeriesQuery query) {
+        try {
+            return this.seriesCache.findRowKeyTemplate(query.getMetric(), query.getTags());
+        } catch (IllegalArgumentException ex) {
+            log.debug("Invalid series " + query.getMetric() + " " + query.getTags() + " : " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * The rows to read for a round of queries, one GetRequest per distinct row.
+     */
+    class Batch {
+        final Map<ByteBuffer, Deferred<ArrayList<KeyValue>>> requests = new HashMap<>();
+        final Map<ByteBuffer, OpenTsdbSeriesQuery> owners = new HashMap<>();
+        final ArrayList<OpenTsdbSeriesQuery> targets = new ArrayList<>();
+        final ArrayList<ByteBuffer> keys = new ArrayList<>();
+
+        /**
+         * Feed the query right away from the cache or schedule the row read.
+         */
+        void add(OpenTsdbSeriesQuery query, long baseTime) {
+            if (rowCache != null) {
+                OpenTsdbRow row = rowCache.get(query.getMetric(), query.getTags(), baseTime);
+                if (row != null) {
+                    row.addTo(query);
+                    return;
+                }
+            }
+            byte[] template = findRowKeyTemplate(query);
+            if (template == null) {
+                // Unknown series, remember it has no point
+                if (rowCache != null) {
+                    rowCache.put(query.getMetric(), query.getTags(), baseTime, new OpenTsdbRow());
+                }
+                return;
+            }
+            byte[] row = OpenTsdbSeriesCache.getRowKey(template, baseTime);
+            ByteBuffer key = ByteBuffer.wrap(row);
+            if (!this.requests.containsKey(key)) {
+                this.requests.put(key, tsdb.getClient().get(new GetRequest(table, row, OpenTsdbPointWriter.FAMILY)));
+                this.owners.put(key, query);
+            }
+            this.targets.add(query);
+            this.keys.add(key);
+        }
+
+        void run(long timeout) throws Exception {
+            Map<ByteBuffer, OpenTsdbRow> rows = new HashMap<>(this.requests.size() * 2);
+            for (Map.Entry<ByteBuffer, Deferred<ArrayList<KeyValue>>> request : this.requests.entrySet()) {
+                // Requests were all sent before, waiting on each one in turn costs no more than a group
+                OpenTsdbRow row = new OpenTsdbRow();
+                decode(request.getValue().joinUninterruptibly(timeout), row);
+                rows.put(request.getKey(), row);
+                if (rowCache != null) {
+                    OpenTsdbSeriesQuery owner = this.owners.get(request.getKey());
+                    long baseTime = Bytes.getUnsignedInt(request.getKey().array(), TSDB.metrics_width());
+                    rowCache.put(owner.getMetric(), owner.getTags(), baseTime, row);
+                }
+            }
+            for (int i = 0; i < this.targets.size(); i++) {
+                rows.get(this.keys.get(i)).addTo(this.targets.get(i));
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Decode the cells of an OpenTSDB 2.1 row.
+     * </p>
+     *
+     * @param cells The row cells, may be null or empty.
+     * @param row   The row to fill.
+     */
+    public static void decode(ArrayList<KeyValue> cells, OpenTsdbRow row) {
+        if (cells == null) {
+            return;
+        }
+        for (KeyValue cell : cells) {
+            byte[] key = cell.key();
+            long baseTime = Bytes.getUnsignedInt(key, TSDB.metrics_width());
+            byte[] qualifier = cell.qualifier();
+            byte[] value = cell.value();
+
+            if ((qualifier.length & 1) != 0) {
+                // Annotations and other non data point columns
+                continue;
+            }
+            if (qualifier.length == 2 || (qualifier.length == 4 && isMillis(qualifier, 0))) {
+                decode(row, baseTime, qualifier, 0, value, 0, value.length);
+                continue;
+            }
+
+            // Compacted cell : concatenated qualifiers and values, plus a meta byte
+            int q = 0;
+            int v = 0;
+            while (q < qualifier.length) {
+                int width = isMillis(qualifier, q) ? 4 : 2;
+                int length = (qualifier[q + width - 1] & Const.LENGTH_MASK) + 1;
+                if (v + length > value.length) {
+                    log.warn("Corrupted compacted cell in row " + Bytes.pretty(key));
+                    break;
+                }
+                decode(row, baseTime, qualifier, q, value, v, length);
+                q += width;
+                v += length;
+            }
+        }
+    }
+
+    private static boolean isMillis(byte[] qualifier, int offset) {
+        return (qualifier[offset] & Const.MS_BYTE_FLAG) == Const.MS_BYTE_FLAG;
+    }
+
+    private static void decode(OpenTsdbRow row, long baseTime, byte[] qualifier, int q,
+                               byte[] value, int offset, int length) {
+        long time;
+        long timestamp;
+        int flags;
+        if (isMillis(qualifier, q)) {
+            int bits = Bytes.getInt(qualifier, q);
+            long millis = (bits & 0x0FFFFFC0) >>> Const.MS_FLAG_BITS;
+            flags = bits & Const.FLAGS_MASK;
+            time = baseTime * 1000 + millis;
+            timestamp = time;
+        } else {
+            int bits = Bytes.getUnsignedShort(qualifier, q);
+            flags = bits & Const.FLAGS_MASK;
+            timestamp = baseTime + (bits >>> Const.FLAG_BITS);
+            time = timestamp * 1000;
+        }
+
+        if ((flags & Const.FLAG_FLOAT) != 0) {
+            if (length == 8 && (flags & Const.LENGTH_MASK) == 3) {
+                // Old OpenTSDB versions stored floats on 8 bytes
+                offset += 4;
+                length = 4;
+            }
+            if (length == 4) {
+                double v = Float.intBitsToFloat(Bytes.getInt(value, offset));
+                row.add(time, timestamp, Double.doubleToRawLongBits(v), false);
+            } else if (length == 8) {
+                row.add(time, timestamp, Bytes.getLong(value, offset), false);
+            }
+            return;
+        }
+
+        long v;
+        switch (length) {
+            case 1:
+                v = value[offset];
+                break;
+            case 2:
+                v = Bytes.getShort(value, offset);
+                break;
+            case 4:
+                v = Bytes.getInt(value, offset);
+                break;
+            case 8:
+                v = Bytes.getLong(value, offset);
+                break;
+            default:
+                return;
+        }
+        row.add(time, timestamp, v, true);
+    }
+}
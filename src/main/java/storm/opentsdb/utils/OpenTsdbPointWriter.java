@@ -0,0 +1,186 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import com.stumbleupon.async.Deferred;
+import net.opentsdb.core.Const;
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.TSDB;
+import org.hbase.async.Bytes;
+import org.hbase.async.PutRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.opentsdb.model.OpenTsdbPoint;
+
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * <p>
+ * Write OpenTSDB points.
+ * </p>
+ * <p>
+ * Without a series cache points are written with TSDB.addPoint.<br/>
+ * With a series cache the row key is taken from the cache and the
+ * PutRequest is built and sent directly to the HBase client using
+ * the OpenTSDB 2.1 storage format. This skips the UID resolution and
+ * the row key building done by TSDB.addPoint for each point. Note
+ * that the direct path doesn't feed the OpenTSDB meta data, real time
+ * publisher and compaction queue.
+ * </p>
+ * <p>
+ * Integer values are written as long and decimal values as double.
+ * Errors are always returned as a failed Deferred.
+ * </p>
+ */
+public class OpenTsdbPointWriter {
+    public static final Logger log = LoggerFactory.getLogger(OpenTsdbPointWriter.class);
+    public static final Charset CHARSET = Charset.forName("ISO-8859-1");
+    public static final byte[] FAMILY = {'t'};
+    public static final short DOUBLE_FLAGS = Const.FLAG_FLOAT | 0x7;
+
+    private final TSDB tsdb;
+    private final OpenTsdbSeriesCache seriesCache;
+    private final byte[] table;
+
+    /**
+     * @param tsdb        Initialized OpenTSDB client.
+     * @param seriesCache Series cache to use, null to use TSDB.addPoint.
+     */
+    public OpenTsdbPointWriter(TSDB tsdb, OpenTsdbSeriesCache seriesCache) {
+        this.tsdb = tsdb;
+        this.seriesCache = seriesCache;
+        this.table = tsdb.getConfig().getString("tsd.storage.hbase.data_table").getBytes(CHARSET);
+    }
+
+    /**
+     * @param tsdb Initialized OpenTSDB client.
+     */
+    public OpenTsdbPointWriter(TSDB tsdb) {
+        this(tsdb, null);
+    }
+
+    /**
+     * @return The OpenTSDB client.
+     */
+    public TSDB getOpenTsdbClient() {
+        return this.tsdb;
+    }
+
+    /**
+     * @return The series cache or null.
+     */
+    public OpenTsdbSeriesCache getSeriesCache() {
+        return this.seriesCache;
+    }
+
+    /**
+     * @return The OpenTSDB data table.
+     */
+    public byte[] getTable() {
+        return this.table;
+    }
+
+    /**
+     * @param metric    The metric.
+     * @param timestamp The timestamp in seconds or milliseconds.
+     * @param value     The value.
+     * @param tags      The tags.
+     * @return A deferred result.
+     */
+    public Deferred<Object> addPoint(String metric, long timestamp, double value, Map<String, String> tags) {
+        if (value == (long) value) {
+            return this.addPoint(metric, timestamp, (long) value, tags);
+        }
+        try {
+            if (this.seriesCache == null) {
+                return this.tsdb.addPoint(metric, timestamp, value, tags);
+            }
+            return this.put(metric, timestamp, tags, DOUBLE_FLAGS, encode(value));
+        } catch (Exception ex) {
+            return Deferred.fromError(ex);
+        }
+    }
+
+    /**
+     * @param metric    The metric.
+     * @param timestamp The timestamp in seconds or milliseconds.
+     * @param value     The integer value.
+     * @param tags      The tags.
+     * @return A deferred result.
+     */
+    public Deferred<Object> addPoint(String metric, long timestamp, long value, Map<String, String> tags) {
+        try {
+            if (this.seriesCache == null) {
+                return this.tsdb.addPoint(metric, timestamp, value, tags);
+            }
+            byte[] encoded = encode(value);
+            return this.put(metric, timestamp, tags, (short) (encoded.length - 1), encoded);
+        } catch (Exception ex) {
+            return Deferred.fromError(ex);
+        }
+    }
+
+    /**
+     * @param point The point to write.
+     * @return A deferred result.
+     */
+    public Deferred<Object> addPoint(OpenTsdbPoint point) {
+        if (point.isInteger()) {
+            return this.addPoint(point.getMetric(), point.getTimestamp(), point.getLongValue(), point.getTags());
+        }
+        return this.addPoint(point.getMetric(), point.getTimestamp(), point.getValue(), point.getTags());
+    }
+
+    private Deferred<Object> put(String metric, long timestamp, Map<String, String> tags, short flags, byte[] value) {
+        byte[] row = OpenTsdbSeriesCache.getRowKey(
+            this.seriesCache.getRowKeyTemplate(metric, tags), baseTime(timestamp));
+        PutRequest put = new PutRequest(this.table, row, FAMILY, Internal.buildQualifier(timestamp, flags), value);
+        return this.tsdb.getClient().put(put);
+    }
+
+    /**
+     * @param timestamp The timestamp in seconds or milliseconds.
+     * @return The base time of the row holding this timestamp in seconds.
+     */
+    public static long baseTime(long timestamp) {
+        if (timestamp < 0) {
+            throw new IllegalArgumentException("Invalid timestamp : " + timestamp);
+        }
+        if ((timestamp & Const.SECOND_MASK) != 0) {
+            if (timestamp > 9999999999999L) {
+                throw new IllegalArgumentException("Invalid timestamp : " + timestamp);
+            }
+            timestamp = timestamp / 1000;
+        }
+        return timestamp - (timestamp % Const.MAX_TIMESPAN);
+    }
+
+    /**
+     * @param value The value.
+     * @return The value encoded on the smallest number of bytes.
+     */
+    public static byte[] encode(long value) {
+        if (Byte.MIN_VALUE <= value && value <= Byte.MAX_VALUE) {
+            return new byte[]{(byte) value};
+        } else if (Short.MIN_VALUE <= value && value <= Short.MAX_VALUE) {
+            return Bytes.fromShort((short) value);
+        } else if (Integer.MIN_VALUE <= value && value <= Integer.MAX_VALUE) {
+            return Bytes.fromInt((int) value);
+        }
+        return Bytes.fromLong(value);
+    }
+
+    /**
+     * @param value The value.
+     * @return The value encoded as a double ( use DOUBLE_FLAGS ).
+     */
+    public static byte[] encode(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("Value is NaN or Infinite : " + value);
+        }
+        return Bytes.fromLong(Double.doubleToRawLongBits(value));
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import backtype.storm.metric.api.IMetric;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.opentsdb.model.IOpenTsdbEvent;
+import storm.opentsdb.model.OpenTsdbEvent;
+import storm.opentsdb.model.OpenTsdbPoint;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Parser for the OpenTSDB telnet line protocol :
+ * <pre>
+ *     put &lt;metric&gt; &lt;timestamp&gt; &lt;value&gt; &lt;tagk1=tagv1 ...&gt;
+ * </pre>
+ * The leading "put" is optional. Fields are separated by spaces or tabs and
+ * a trailing '\r' is ignored.
+ * </p>
+ * <p>
+ * Lines are parsed straight from the bytes : metric and tag strings come
+ * from an OpenTsdbStringCache, numbers are decoded in place and the tags
+ * are interned through an OpenTsdbTagSetCache using a reusable probe. Once
+ * the strings and tag sets of a stream are known a line is parsed without
+ * any allocation. Decimal values with more than 15 significant digits or
+ * a large exponent fall back to Double.parseDouble.
+ * </p>
+ * <p>
+ * The parser is also an IMetric reporting the number of parsed and
+ * malformed lines.<br/>
+ * This class is not thread safe, use one instance per executor.
+ * </p>
+ */
+public class OpenTsdbPutParser implements IMetric {
+    public static final Logger log = LoggerFactory.getLogger(OpenTsdbPutParser.class);
+
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+        1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final OpenTsdbStringCache strings;
+    private final OpenTsdbTagSetCache tagSets;
+    private final OpenTsdbTagsProbe probe = new OpenTsdbTagsProbe();
+    private final OpenTsdbPoint point = new OpenTsdbPoint();
+    private byte[] scratch = new byte[1024];
+
+    private long lines = 0;
+    private long malformed = 0;
+
+    /**
+     * @param stringCacheSize Number of metric and tag strings to cache.
+     * @param tagSetCacheSize Number of distinct tag sets to intern.
+     */
+    public OpenTsdbPutParser(int stringCacheSize, int tagSetCacheSize) {
+        this.strings = new OpenTsdbStringCache(stringCacheSize);
+        this.tagSets = new OpenTsdbTagSetCache(tagSetCacheSize);
+    }
+
+    public OpenTsdbPutParser() {
+        this(4096, 10000);
+    }
+
+    /**
+     * @param line   The buffer.
+     * @param offset Start of the line.
+     * @param length Length of the line without the line feed.
+     * @param point  The point to fill.
+     * @return False if the line is malformed.
+     */
+    public boolean parse(byte[] line, int offset, int length, OpenTsdbPoint point) {
+        this.lines++;
+        try {
+            if (this.parseLine(line, offset, offset + length, point)) {
+                return true;
+            }
+        } catch (IllegalArgumentException ex) {
+            log.debug("Malformed put line : " + ex.getMessage());
+        } finally {
+            this.probe.clear();
+        }
+        this.malformed++;
+        point.clear();
+        return false;
+    }
+
+    /**
+     * <p>
+     * Parse the remaining bytes of the buffer without moving its position.
+     * Direct buffers are copied to a reusable array first.
+     * </p>
+     *
+     * @param buffer The line.
+     * @param point  The point to fill.
+     * @return False if the line is malformed.
+     */
+    public boolean parse(ByteBuffer buffer, OpenTsdbPoint point) {
+        if (buffer.hasArray()) {
+            return this.parse(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining(), point);
+        }
+        int length = buffer.remaining();
+        return this.parse(this.copy(buffer, length), 0, length, point);
+    }
+
+    private byte[] copy(ByteBuffer buffer, int length) {
+        if (this.scratch.length < length) {
+            this.scratch = new byte[Math.max(length, this.scratch.length * 2)];
+        }
+        buffer.duplicate().get(this.scratch, 0, length);
+        return this.scratch;
+    }
+
+    /**
+     * <p>
+     * Parse every line of the input and add one event per valid line.
+     * Lines are separated by '\n', empty lines are skipped.
+     * </p>
+     *
+     * @param input  A byte[], a ByteBuffer or a String.
+     * @param events The list to add the events to.
+     * @return The number of malformed lines.
+     */
+    public int parseLines(Object input, List<IOpenTsdbEvent> events) {
+        byte[] bytes;
+        int offset;
+        int end;
+        if (input instanceof byte[]) {
+            bytes = (byte[]) input;
+            offset = 0;
+            end = bytes.length;
+        } else if (input instanceof ByteBuffer) {
+            ByteBuffer buffer = (ByteBuffer) input;
+            if (buffer.hasArray()) {
+                bytes = buffer.array();
+                offset = buffer.arrayOffset() + buffer.position();
+                end = offset + buffer.remaining();
+            } else {
+                end = buffer.remaining();
+                bytes = this.copy(buffer, end);
+                offset = 0;
+            }
+        } else if (input instanceof String) {
+            bytes = ((String) input).getBytes(OpenTsdbStringCache.UTF8);
+            offset = 0;
+            end = bytes.length;
+        } else {
+            throw new IllegalArgumentException("Unsupported put line type : " +
+                (input == null ? null : input.getClass().getName()));
+        }
+
+        int malformed = 0;
+        while (offset < end) {
+            int eol = offset;
+            while (eol < end && bytes[eol] != '\n') {
+                eol++;
+            }
+            if (skip(bytes, offset, eol) < eol && !(eol - offset == 1 && bytes[offset] == '\r')) {
+                if (this.parse(bytes, offset, eol - offset, this.point)) {
+                    events.add(new OpenTsdbEvent(this.point.getMetric(), this.point.getTimestamp(),
+                        this.point.getValue(), this.point.getTags()));
+                } else {
+                    malformed++;
+                }
+            }
+            offset = eol + 1;
+        }
+        this.point.clear();
+        return malformed;
+    }
+
+    private boolean parseLine(byte[] line, int start, int end, OpenTsdbPoint point) {
+        if (end > start && line[end - 1] == '\r') {
+            end--;
+        }
+
+        int from = skip(line, start, end);
+        int to = token(line, from, end);
+        if (to - from == 3 && line[from] == 'p' && line[from + 1] == 'u' && line[from + 2] == 't') {
+            from = skip(line, to, end);
+            to = token(line, from, end);
+        }
+        if (from == to) {
+            return false;
+        }
+        String metric = this.strings.get(line, from, to - from);
+
+        from = skip(line, to, end);
+        to = token(line, from, end);
+        long timestamp = parseLong(line, from, to);
+        if (timestamp <= 0) {
+            return false;
+        }
+
+        from = skip(line, to, end);
+        to = token(line, from, end);
+        if (from == to) {
+            return false;
+        }
+        if (isInteger(line, from, to)) {
+            point.setValue(parseLong(line, from, to));
+        } else {
+            point.setValue(parseDouble(line, from, to));
+        }
+
+        from = skip(line, to, end);
+        while (from < end) {
+            to = token(line, from, end);
+            int equal = from;
+            while (equal < to && line[equal] != '=') {
+                equal++;
+            }
+            if (equal == from || equal >= to - 1) {
+                return false;
+            }
+            if (!this.probe.add(this.strings.get(line, from, equal - from),
+                this.strings.get(line, equal + 1, to - equal - 1))) {
+                return false;
+            }
+            from = skip(line, to, end);
+        }
+
+        point.setMetric(metric);
+        point.setTimestamp(timestamp);
+        point.setTags(this.tagSets.intern(this.probe));
+        return true;
+    }
+
+    private static int skip(byte[] line, int from, int end) {
+        while (from < end && (line[from] == ' ' || line[from] == '\t')) {
+            from++;
+        }
+        return from;
+    }
+
+    private static int token(byte[] line, int from, int end) {
+        while (from < end && line[from] != ' ' && line[from] != '\t') {
+            from++;
+        }
+        return from;
+    }
+
+    static boolean isInteger(byte[] line, int from, int to) {
+        for (int i = from; i < to; i++) {
+            byte b = line[i];
+            if (b == '.' || b == 'e' || b == 'E') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static long parseLong(byte[] line, int from, int to) {
+        int start = from;
+        boolean negative = false;
+        if (from < to && (line[from] == '-' || line[from] == '+')) {
+            negative = line[from] == '-';
+            from++;
+        }
+        if (from == to) {
+            throw new IllegalArgumentException("Invalid integer");
+        }
+        if (to - from > 18) {
+            // Might overflow, let the JDK check it with the sign for Long.MIN_VALUE
+            return Long.parseLong(new String(line, start, to - start, OpenTsdbPointWriter.CHARSET));
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            int digit = line[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new IllegalArgumentException("Invalid integer");
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    static double parseDouble(byte[] line, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (line[i] == '-' || line[i] == '+')) {
+            negative = line[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean dot = false;
+        boolean any = false;
+        for (; i < to; i++) {
+            byte b = line[i];
+            if (b == '.') {
+                if (dot) {
+                    throw new IllegalArgumentException("Invalid number");
+                }
+                dot = true;
+            } else if (b >= '0' && b <= '9') {
+                any = true;
+                if (mantissa == 0 && b == '0') {
+                    // Leading zeros are not significant
+                    if (dot) {
+                        scale--;
+                    }
+                } else if (digits < 18) {
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                    if (dot) {
+                        scale--;
+                    }
+                } else {
+                    digits++;
+                    if (!dot) {
+                        scale++;
+                    }
+                }
+            } else if (b == 'e' || b == 'E') {
+                break;
+            } else {
+                throw new IllegalArgumentException("Invalid number");
+            }
+        }
+        if (!any) {
+            throw new IllegalArgumentException("Invalid number");
+        }
+        if (i < to) {
+            // Clamp so a huge exponent can not wrap around, Double.parseDouble handles it
+            long exponent = parseLong(line, i + 1, to);
+            scale += (int) Math.max(-10000, Math.min(10000, exponent));
+        }
+
+        if (mantissa == 0) {
+            return negative ? -0.0 : 0.0;
+        }
+        if (digits <= 15 && scale >= -22 && scale <= 22) {
+            // Both operands are exact so the result is correctly rounded
+            double value = scale < 0 ? mantissa / POWERS_OF_TEN[-scale] : mantissa * POWERS_OF_TEN[scale];
+            return negative ? -value : value;
+        }
+        double value = Double.parseDouble(new String(line, from, to - from, OpenTsdbPointWriter.CHARSET));
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException("Invalid number");
+        }
+        return value;
+    }
+
+    @Override
+    public Object getValueAndReset() {
+        Map<String, Object> value = new HashMap<>();
+        value.put("lines", this.lines);
+        value.put("malformed", this.malformed);
+        this.lines = 0;
+        this.malformed = 0;
+        return value;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import storm.opentsdb.model.OpenTsdbSeriesQuery;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * The decoded points of one OpenTSDB row ( one series for one hour ).
+ * </p>
+ * <p>
+ * Points are stored in parallel primitive arrays : the time in milliseconds,
+ * the timestamp as stored, the value ( the raw bits of the double for
+ * decimal values ) and whether the value is an integer.
+ * </p>
+ */
+public class OpenTsdbRow {
+    private long[] times = new long[8];
+    private long[] timestamps = new long[8];
+    private long[] values = new long[8];
+    private boolean[] integers = new boolean[8];
+    private int size = 0;
+    private long loaded;
+
+    /**
+     * <p>
+     * Points are kept sorted by time, a point with the same time as
+     * another one replaces it like an HBase cell would. Appending in
+     * time order, as the row cells are decoded, is the fast path.
+     * </p>
+     *
+     * @param time      The point time in milliseconds.
+     * @param timestamp The point timestamp as stored.
+     * @param value     The value, the raw bits of the double if not integer.
+     * @param integer   Whether the value is an integer.
+     */
+    public void add(long time, long timestamp, long value, boolean integer) {
+        int i = this.size;
+        if (i > 0 && this.times[i - 1] >= time) {
+            i = Arrays.binarySearch(this.times, 0, this.size, time);
+        }
+        if (i < 0 || i == this.size) {
+            if (i < 0) {
+                i = -i - 1;
+            }
+            if (this.size == this.times.length) {
+                this.times = Arrays.copyOf(this.times, this.size * 2);
+                this.timestamps = Arrays.copyOf(this.timestamps, this.size * 2);
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+                this.integers = Arrays.copyOf(this.integers, this.size * 2);
+            }
+            int moved = this.size - i;
+            if (moved > 0) {
+                System.arraycopy(this.times, i, this.times, i + 1, moved);
+                System.arraycopy(this.timestamps, i, this.timestamps, i + 1, moved);
+                System.arraycopy(this.values, i, this.values, i + 1, moved);
+                System.arraycopy(this.integers, i, this.integers, i + 1, moved);
+            }
+            this.size++;
+        }
+        this.times[i] = time;
+        this.timestamps[i] = timestamp;
+        this.values[i] = value;
+        this.integers[i] = integer;
+    }
+
+    /**
+     * @param query The query to feed with every point of the row.
+     */
+    public void addTo(OpenTsdbSeriesQuery query) {
+        for (int i = 0; i < this.size; i++) {
+            query.add(this.times[i], this.timestamps[i], this.values[i], this.integers[i]);
+        }
+    }
+
+    /**
+     * @return Number of points.
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return When the row was read from HBase in milliseconds.
+     */
+    public long getLoaded() {
+        return this.loaded;
+    }
+
+    /**
+     * @param loaded When the row was read from HBase in milliseconds.
+     */
+    public void setLoaded(long loaded) {
+        this.loaded = loaded;
+    }
+}
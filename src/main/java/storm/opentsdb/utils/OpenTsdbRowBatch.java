@@ -0,0 +1,250 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import com.stumbleupon.async.Deferred;
+import net.opentsdb.core.Internal;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.PutRequest;
+import storm.opentsdb.model.OpenTsdbPoint;
+import storm.opentsdb.model.OpenTsdbTagSet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Group OpenTSDB points by row and write each row with
+ * a single multi column PutRequest.
+ * </p>
+ * <p>
+ * OpenTSDB stores one row per series per hour. Coalescing the points of a
+ * batch by row key divides the number of RPCs and HBase WAL entries by the
+ * number of points per series-hour in the batch. The cells are written in
+ * the OpenTSDB 2.1 format, one column per point, exactly like TSDB.addPoint
+ * would have done.
+ * </p>
+ * <p>
+ * The row keys come from the writer series cache. If the writer has no
+ * series cache the points are buffered and written one by one with
+ * TSDB.addPoint on flush, interned OpenTsdbTagSet tags are kept as is and
+ * other tags are copied. In both cases nothing is sent before flush.<br/>
+ * A batch can be reused after flush, row buffers are recycled.
+ * This class is not thread safe.
+ * </p>
+ */
+public class OpenTsdbRowBatch {
+    private final OpenTsdbPointWriter writer;
+    private final HashMap<RowKey, Row> rows = new HashMap<>();
+    private final ArrayList<Row> pool = new ArrayList<>();
+    private final RowKey probe = new RowKey();
+    private final ArrayList<OpenTsdbPoint> buffered = new ArrayList<>();
+    private final ArrayList<OpenTsdbPoint> pointPool = new ArrayList<>();
+    private OpenTsdbDeferredCounter counter = new OpenTsdbDeferredCounter();
+    private int points = 0;
+
+    /**
+     * @param writer The writer to use.
+     */
+    public OpenTsdbRowBatch(OpenTsdbPointWriter writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * @param metric    The metric.
+     * @param timestamp The timestamp in seconds or milliseconds.
+     * @param value     The value.
+     * @param tags      The tags.
+     */
+    public void add(String metric, long timestamp, double value, Map<String, String> tags) {
+        if (value == (long) value) {
+            this.add(metric, timestamp, (long) value, tags);
+            return;
+        }
+        this.points++;
+        if (this.writer.getSeriesCache() == null) {
+            this.buffer().set(metric, timestamp, value, retain(tags));
+            return;
+        }
+        try {
+            this.add(metric, timestamp, tags, OpenTsdbPointWriter.DOUBLE_FLAGS, OpenTsdbPointWriter.encode(value));
+        } catch (Exception ex) {
+            this.counter.add(Deferred.<Object>fromError(ex));
+        }
+    }
+
+    /**
+     * @param metric    The metric.
+     * @param timestamp The timestamp in seconds or milliseconds.
+     * @param value     The integer value.
+     * @param tags      The tags.
+     */
+    public void add(String metric, long timestamp, long value, Map<String, String> tags) {
+        this.points++;
+        if (this.writer.getSeriesCache() == null) {
+            this.buffer().set(metric, timestamp, value, retain(tags));
+            return;
+        }
+        try {
+            byte[] encoded = OpenTsdbPointWriter.encode(value);
+            this.add(metric, timestamp, tags, (short) (encoded.length - 1), encoded);
+        } catch (Exception ex) {
+            this.counter.add(Deferred.<Object>fromError(ex));
+        }
+    }
+
+    /**
+     * @param point The point to add.
+     */
+    public void add(OpenTsdbPoint point) {
+        if (point.isInteger()) {
+            this.add(point.getMetric(), point.getTimestamp(), point.getLongValue(), point.getTags());
+        } else {
+            this.add(point.getMetric(), point.getTimestamp(), point.getValue(), point.getTags());
+        }
+    }
+
+    private OpenTsdbPoint buffer() {
+        OpenTsdbPoint point = this.pointPool.isEmpty() ?
+            new OpenTsdbPoint() : this.pointPool.remove(this.pointPool.size() - 1);
+        this.buffered.add(point);
+        return point;
+    }
+
+    /**
+     * @param tags The tags of a buffered point.
+     * @return The tags if immutable, a copy otherwise.
+     */
+    private static Map<String, String> retain(Map<String, String> tags) {
+        if (tags instanceof OpenTsdbTagSet) {
+            return tags;
+        }
+        return new HashMap<>(tags);
+    }
+
+    private void add(String metric, long timestamp, Map<String, String> tags, short flags, byte[] encoded) {
+        long baseTime = OpenTsdbPointWriter.baseTime(timestamp);
+        byte[] template = this.writer.getSeriesCache().getRowKeyTemplate(metric, tags);
+
+        this.probe.set(template, baseTime);
+        Row row = this.rows.get(this.probe);
+        if (row == null) {
+            row = this.pool.isEmpty() ? new Row() : this.pool.remove(this.pool.size() - 1);
+            row.key.set(template, baseTime);
+            this.rows.put(row.key, row);
+        }
+        row.add(Internal.buildQualifier(timestamp, flags), encoded);
+    }
+
+    /**
+     * @return Number of points added since the last flush.
+     */
+    public int size() {
+        return this.points;
+    }
+
+    /**
+     * @return Number of distinct rows since the last flush.
+     */
+    public int rows() {
+        return this.rows.size();
+    }
+
+    /**
+     * <p>
+     * Send one PutRequest per row, or one TSDB.addPoint
+     * per point if the writer has no series cache.
+     * </p>
+     *
+     * @return A Deferred called back when all rows are written,
+     * or with the first exception.
+     */
+    public Deferred<Object> flush() {
+        HBaseClient client = this.writer.getOpenTsdbClient().getClient();
+        byte[] table = this.writer.getTable();
+        for (Row row : this.rows.values()) {
+            byte[] key = OpenTsdbSeriesCache.getRowKey(row.key.template, row.key.baseTime);
+            PutRequest put;
+            if (row.size == 1) {
+                put = new PutRequest(table, key, OpenTsdbPointWriter.FAMILY, row.qualifiers[0], row.values[0]);
+            } else {
+                put = new PutRequest(table, key, OpenTsdbPointWriter.FAMILY,
+                    Arrays.copyOf(row.qualifiers, row.size), Arrays.copyOf(row.values, row.size));
+            }
+            this.counter.add(client.put(put));
+            row.clear();
+            this.pool.add(row);
+        }
+        this.rows.clear();
+        for (OpenTsdbPoint point : this.buffered) {
+            this.counter.add(this.writer.addPoint(point));
+            point.clear();
+            this.pointPool.add(point);
+        }
+        this.buffered.clear();
+        this.points = 0;
+
+        Deferred<Object> result = this.counter.seal();
+        this.counter = new OpenTsdbDeferredCounter();
+        return result;
+    }
+
+    /**
+     * Row key, the series row key template is shared by the series cache
+     * so it can be compared by identity.
+     */
+    static class RowKey {
+        byte[] template;
+        long baseTime;
+
+        void set(byte[] template, long baseTime) {
+            this.template = template;
+            this.baseTime = baseTime;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(this.template) * 31 + (int) this.baseTime;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof RowKey)) {
+                return false;
+            }
+            RowKey other = (RowKey) o;
+            return this.template == other.template && this.baseTime == other.baseTime;
+        }
+    }
+
+    /**
+     * Cells of a row.
+     */
+    static class Row {
+        final RowKey key = new RowKey();
+        byte[][] qualifiers = new byte[8][];
+        byte[][] values = new byte[8][];
+        int size = 0;
+
+        void add(byte[] qualifier, byte[] value) {
+            if (this.size == this.qualifiers.length) {
+                this.qualifiers = Arrays.copyOf(this.qualifiers, this.size * 2);
+                this.values = Arrays.copyOf(this.values, this.size * 2);
+            }
+            this.qualifiers[this.size] = qualifier;
+            this.values[this.size] = value;
+            this.size++;
+        }
+
+        void clear() {
+            Arrays.fill(this.qualifiers, 0, this.size, null);
+            Arrays.fill(this.values, 0, this.size, null);
+            this.size = 0;
+            this.key.set(null, 0);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import backtype.storm.metric.api.IMetric;
+import net.opentsdb.core.Const;
+import storm.opentsdb.model.OpenTsdbPoint;
+import storm.opentsdb.model.OpenTsdbTagSet;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Bounded LRU read cache of decoded OpenTSDB rows, keyed by series
+ * ( metric + tags ) and row base time.
+ * </p>
+ * <p>
+ * Rows are cached as read by the OpenTsdbPointReader, including empty
+ * rows and rows of unknown series, and expire ttl milliseconds after
+ * they were read. Points written by this worker are added to the cached
+ * rows with update so reads see their own writes, rows which are not
+ * cached are left alone. As the points are added before their write
+ * completes, a failed write has to call invalidate : the whole cache is
+ * then cleared on its next use so the unwritten points are not served.<br/>
+ * This class is not thread safe, use one instance per executor, except
+ * invalidate which may be called from any thread.<br/>
+ * The cache is also an IMetric reporting hits, misses, evictions, expirations,
+ * invalidations and size.
+ * </p>
+ */
+public class OpenTsdbRowCache implements IMetric {
+    private final int maxSize;
+    private final long ttl;
+    private final LinkedHashMap<RowKey, OpenTsdbRow> cache;
+    private final RowKey probe = new RowKey();
+    private volatile boolean invalid = false;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long expirations = 0;
+    private long invalidations = 0;
+
+    /**
+     * @param maxSize Maximum number of rows to cache.
+     * @param ttl     How long a row stays valid after it was read (in millisecond).
+     */
+    public OpenTsdbRowCache(final int maxSize, long ttl) {
+        this.maxSize = maxSize;
+        this.ttl = ttl;
+        this.cache = new LinkedHashMap<RowKey, OpenTsdbRow>(Math.min(maxSize, 1 << 16), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<RowKey, OpenTsdbRow> eldest) {
+                if (size() > OpenTsdbRowCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param metric   The metric.
+     * @param tags     The tags.
+     * @param baseTime The row base time in seconds.
+     * @return The cached row or null if missing or expired.
+     */
+    public OpenTsdbRow get(String metric, Map<String, String> tags, long baseTime) {
+        this.validate();
+        this.probe.set(metric, tags, baseTime);
+        OpenTsdbRow row = this.cache.get(this.probe);
+        if (row != null && System.currentTimeMillis() - row.getLoaded() > this.ttl) {
+            this.cache.remove(this.probe);
+            this.expirations++;
+            row = null;
+        }
+        this.probe.set(null, null, 0);
+        if (row == null) {
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        return row;
+    }
+
+    /**
+     * @param metric   The metric.
+     * @param tags     The tags.
+     * @param baseTime The row base time in seconds.
+     * @param row      The row just read.
+     */
+    public void put(String metric, Map<String, String> tags, long baseTime, OpenTsdbRow row) {
+        this.validate();
+        row.setLoaded(System.currentTimeMillis());
+        RowKey key = new RowKey();
+        key.set(metric, tags instanceof OpenTsdbTagSet ? tags : OpenTsdbTagSet.of(tags), baseTime);
+        this.cache.put(key, row);
+    }
+
+    /**
+     * <p>
+     * Add a written point to its row if the row is cached.
+     * </p>
+     *
+     * @param point The point written.
+     */
+    public void update(OpenTsdbPoint point) {
+        this.validate();
+        long timestamp = point.getTimestamp();
+        long baseTime;
+        try {
+            baseTime = OpenTsdbPointWriter.baseTime(timestamp);
+        } catch (IllegalArgumentException ex) {
+            return;
+        }
+        this.probe.set(point.getMetric(), point.getTags(), baseTime);
+        OpenTsdbRow row = this.cache.get(this.probe);
+        this.probe.set(null, null, 0);
+        if (row == null) {
+            return;
+        }
+
+        long time = (timestamp & Const.SECOND_MASK) != 0 ? timestamp : timestamp * 1000;
+        if (point.isInteger()) {
+            row.add(time, timestamp, point.getLongValue(), true);
+        } else if (point.getValue() == (long) point.getValue()) {
+            // Same as the point writer which writes integral doubles as integers
+            row.add(time, timestamp, (long) point.getValue(), true);
+        } else {
+            row.add(time, timestamp, Double.doubleToRawLongBits(point.getValue()), false);
+        }
+    }
+
+    /**
+     * <p>
+     * Clear the cache on its next use, after a write of points
+     * already added to the cached rows failed. Thread safe.
+     * </p>
+     */
+    public void invalidate() {
+        this.invalid = true;
+    }
+
+    private void validate() {
+        if (this.invalid) {
+            this.invalid = false;
+            this.cache.clear();
+            this.invalidations++;
+        }
+    }
+
+    /**
+     * @return Number of cached rows.
+     */
+    public int size() {
+        return this.cache.size();
+    }
+
+    @Override
+    public Object getValueAndReset() {
+        Map<String, Object> value = new HashMap<>();
+        value.put("hits", this.hits);
+        value.put("misses", this.misses);
+        value.put("evictions", this.evictions);
+        value.put("expirations", this.expirations);
+        value.put("invalidations", this.invalidations);
+        value.put("size", this.cache.size());
+        this.hits = 0;
+        this.misses = 0;
+        this.evictions = 0;
+        this.expirations = 0;
+        this.invalidations = 0;
+        return value;
+    }
+
+    /**
+     * Cache key, cached keys hold an immutable OpenTsdbTagSet.
+     */
+    static class RowKey {
+        private String metric;
+        private Map<String, String> tags;
+        private long baseTime;
+        private int hash;
+
+        void set(String metric, Map<String, String> tags, long baseTime) {
+            this.metric = metric;
+            this.tags = tags;
+            this.baseTime = baseTime;
+            this.hash = metric == null ? 0 : (metric.hashCode() * 31 + tags.hashCode()) * 31 + (int) baseTime;
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof RowKey)) {
+                return false;
+            }
+            RowKey other = (RowKey) o;
+            return this.hash == other.hash &&
+                this.baseTime == other.baseTime &&
+                this.metric.equals(other.metric) &&
+                this.tags.equals(other.tags);
+        }
+    }
+}
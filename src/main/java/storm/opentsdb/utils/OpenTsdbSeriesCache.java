@@ -0,0 +1,268 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import backtype.storm.metric.api.IMetric;
+import net.opentsdb.core.Const;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.core.Tags;
+import net.opentsdb.uid.NoSuchUniqueName;
+import net.opentsdb.uid.UniqueId;
+import org.hbase.async.Bytes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import storm.opentsdb.model.OpenTsdbTagSet;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>
+ * Bounded LRU cache mapping a series ( metric + tags ) to its
+ * pre-resolved OpenTSDB row key template.
+ * </p>
+ * <p>
+ * The row key template is the OpenTSDB 2.1 row key with a zero base time :
+ * metric UID, 4 bytes base time, then the tagk/tagv UID pairs sorted by tagk UID.
+ * Resolving it requires a UID lookup per metric, tag name and tag value and
+ * a few byte array allocations, so caching it saves most of the work TSDB.addPoint
+ * does for each point.
+ * </p>
+ * <p>
+ * Missing UIDs are created like TSDB.addPoint would do : metrics only if
+ * tsd.core.auto_create_metrics is enabled, tag names and values always.<br/>
+ * This class is not thread safe, use one instance per executor.<br/>
+ * The cache is also an IMetric reporting hits, misses, evictions and size.
+ * </p>
+ */
+public class OpenTsdbSeriesCache implements IMetric {
+    public static final Logger log = LoggerFactory.getLogger(OpenTsdbSeriesCache.class);
+
+    private final TSDB tsdb;
+    private final int maxSize;
+    private final boolean autoCreateMetrics;
+    private final LinkedHashMap<SeriesKey, byte[]> cache;
+    private final SeriesKey probe = new SeriesKey();
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * @param tsdb    Initialized OpenTSDB client.
+     * @param maxSize Maximum number of series to cache.
+     */
+    public OpenTsdbSeriesCache(TSDB tsdb, final int maxSize) {
+        this.tsdb = tsdb;
+        this.maxSize = maxSize;
+        this.autoCreateMetrics = tsdb.getConfig().auto_metric();
+        this.cache = new LinkedHashMap<SeriesKey, byte[]>(Math.min(maxSize, 1 << 16), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<SeriesKey, byte[]> eldest) {
+                if (size() > OpenTsdbSeriesCache.this.maxSize) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return The OpenTSDB client used to resolve UIDs.
+     */
+    public TSDB getOpenTsdbClient() {
+        return this.tsdb;
+    }
+
+    /**
+     * <p>
+     * The returned array is shared, it must not be modified.
+     * </p>
+     *
+     * @param metric The metric.
+     * @param tags   The tags.
+     * @return The row key template of the series.
+     */
+    public byte[] getRowKeyTemplate(String metric, Map<String, String> tags) {
+        this.probe.set(metric, tags);
+        byte[] template = this.cache.get(this.probe);
+        if (template != null) {
+            this.hits++;
+            this.probe.set(null, null);
+            return template;
+        }
+        this.misses++;
+
+        template = this.resolve(metric, tags, true);
+        SeriesKey key = new SeriesKey();
+        key.set(metric, tags instanceof OpenTsdbTagSet ? tags : OpenTsdbTagSet.of(tags));
+        this.cache.put(key, template);
+        this.probe.set(null, null);
+        return template;
+    }
+
+    /**
+     * <p>
+     * Same as getRowKeyTemplate but never creates UIDs, for readers.
+     * Unknown series are not cached so they are found once written.
+     * </p>
+     *
+     * @param metric The metric.
+     * @param tags   The tags.
+     * @return The row key template of the series or null if it does not exist.
+     */
+    public byte[] findRowKeyTemplate(String metric, Map<String, String> tags) {
+        this.probe.set(metric, tags);
+        byte[] template = this.cache.get(this.probe);
+        this.probe.set(null, null);
+        if (template != null) {
+            this.hits++;
+            return template;
+        }
+        this.misses++;
+
+        try {
+            template = this.resolve(metric, tags, false);
+        } catch (NoSuchUniqueName ex) {
+            return null;
+        }
+        SeriesKey key = new SeriesKey();
+        key.set(metric, tags instanceof OpenTsdbTagSet ? tags : OpenTsdbTagSet.of(tags));
+        this.cache.put(key, template);
+        return template;
+    }
+
+    /**
+     * @param metric   The metric.
+     * @param tags     The tags.
+     * @param baseTime The row base time in seconds.
+     * @return A new row key for the series and base time.
+     */
+    public byte[] getRowKey(String metric, Map<String, String> tags, long baseTime) {
+        return getRowKey(this.getRowKeyTemplate(metric, tags), baseTime);
+    }
+
+    /**
+     * @param template The row key template.
+     * @param baseTime The row base time in seconds.
+     * @return A new row key for the given base time.
+     */
+    public static byte[] getRowKey(byte[] template, long baseTime) {
+        byte[] row = Arrays.copyOf(template, template.length);
+        Bytes.setInt(row, (int) baseTime, TSDB.metrics_width());
+        return row;
+    }
+
+    private byte[] resolve(String metric, Map<String, String> tags, boolean create) {
+        Tags.validateString("metric name", metric);
+        if (tags.size() == 0) {
+            throw new IllegalArgumentException("Need at least one tag for metric " + metric);
+        }
+        if (tags.size() > Const.MAX_NUM_TAGS) {
+            throw new IllegalArgumentException("Too many tags for metric " + metric + " : " + tags.size());
+        }
+
+        short metricWidth = TSDB.metrics_width();
+        short tagkWidth = TSDB.tagk_width();
+        short tagvWidth = TSDB.tagv_width();
+        int pairWidth = tagkWidth + tagvWidth;
+
+        byte[][] pairs = new byte[tags.size()][];
+        int i = 0;
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            Tags.validateString("tag name", tag.getKey());
+            Tags.validateString("tag value", tag.getValue());
+            byte[] pair = new byte[pairWidth];
+            System.arraycopy(this.resolve(UniqueId.UniqueIdType.TAGK, tag.getKey(), create), 0, pair, 0, tagkWidth);
+            System.arraycopy(this.resolve(UniqueId.UniqueIdType.TAGV, tag.getValue(), create), 0, pair, tagkWidth, tagvWidth);
+            pairs[i++] = pair;
+        }
+        Arrays.sort(pairs, Bytes.MEMCMP);
+
+        byte[] template = new byte[metricWidth + Const.TIMESTAMP_BYTES + pairs.length * pairWidth];
+        System.arraycopy(this.resolve(UniqueId.UniqueIdType.METRIC, metric, create && this.autoCreateMetrics), 0, template, 0, metricWidth);
+        int offset = metricWidth + Const.TIMESTAMP_BYTES;
+        for (byte[] pair : pairs) {
+            System.arraycopy(pair, 0, template, offset, pairWidth);
+            offset += pairWidth;
+        }
+        return template;
+    }
+
+    private byte[] resolve(UniqueId.UniqueIdType type, String name, boolean create) {
+        try {
+            return this.tsdb.getUID(type, name);
+        } catch (NoSuchUniqueName ex) {
+            if (!create) {
+                throw ex;
+            }
+            try {
+                return this.tsdb.assignUid(type.toString().toLowerCase(), name);
+            } catch (IllegalArgumentException iae) {
+                // Someone else assigned it in the meantime
+                return this.tsdb.getUID(type, name);
+            }
+        }
+    }
+
+    /**
+     * @return Number of cached series.
+     */
+    public int size() {
+        return this.cache.size();
+    }
+
+    @Override
+    public Object getValueAndReset() {
+        Map<String, Object> value = new HashMap<>();
+        value.put("hits", this.hits);
+        value.put("misses", this.misses);
+        value.put("evictions", this.evictions);
+        value.put("size", this.cache.size());
+        this.hits = 0;
+        this.misses = 0;
+        this.evictions = 0;
+        return value;
+    }
+
+    /**
+     * Cache key, the hash is order independent so tags don't need to be sorted.
+     * Cached keys hold an immutable OpenTsdbTagSet, when the mappers give the
+     * same interned tag set the tags comparison is an identity check.
+     */
+    static class SeriesKey {
+        private String metric;
+        private Map<String, String> tags;
+        private int hash;
+
+        void set(String metric, Map<String, String> tags) {
+            this.metric = metric;
+            this.tags = tags;
+            this.hash = metric == null ? 0 : metric.hashCode() * 31 + tags.hashCode();
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SeriesKey)) {
+                return false;
+            }
+            SeriesKey other = (SeriesKey) o;
+            return this.hash == other.hash &&
+                this.metric.equals(other.metric) &&
+                this.tags.equals(other.tags);
+        }
+    }
+}
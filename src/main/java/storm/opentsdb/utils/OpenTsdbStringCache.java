@@ -0,0 +1,69 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import java.nio.charset.Charset;
+
+/**
+ * <p>
+ * Direct mapped cache turning ASCII byte slices into Strings.
+ * </p>
+ * <p>
+ * The slice is hashed and compared to the cached String in place so a
+ * string that was already seen is returned without any allocation. A
+ * collision simply replaces the previous string. Slices containing non
+ * ASCII bytes are decoded as UTF-8 and not cached.<br/>
+ * This class is not thread safe, use one instance per executor.
+ * </p>
+ */
+public class OpenTsdbStringCache {
+    public static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String[] strings;
+    private final int mask;
+
+    /**
+     * @param size Number of cache slots, rounded up to a power of two.
+     */
+    public OpenTsdbStringCache(int size) {
+        int slots = Integer.highestOneBit(Math.max(size, 16) - 1) << 1;
+        this.strings = new String[slots];
+        this.mask = slots - 1;
+    }
+
+    /**
+     * @param bytes  The buffer.
+     * @param offset Start of the slice.
+     * @param length Length of the slice.
+     * @return The slice as a String.
+     */
+    public String get(byte[] bytes, int offset, int length) {
+        int hash = 0;
+        for (int i = offset; i < offset + length; i++) {
+            byte b = bytes[i];
+            if (b < 0) {
+                return new String(bytes, offset, length, UTF8);
+            }
+            hash = 31 * hash + b;
+        }
+
+        // Same hash as String.hashCode, spread a bit before masking
+        int slot = (hash ^ (hash >>> 16)) & this.mask;
+        String string = this.strings[slot];
+        if (string != null && string.length() == length && string.hashCode() == hash) {
+            int i = 0;
+            while (i < length && string.charAt(i) == bytes[offset + i]) {
+                i++;
+            }
+            if (i == length) {
+                return string;
+            }
+        }
+
+        string = new String(bytes, offset, length, OpenTsdbPointWriter.CHARSET);
+        this.strings[slot] = string;
+        return string;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import storm.opentsdb.model.OpenTsdbTagSet;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ * Bounded LRU canonicalizing cache of OpenTsdbTagSet.
+ * </p>
+ * <p>
+ * Any map of tags is looked up by value, so a HashMap built for each tuple
+ * upstream resolves to the shared tag set without any allocation once the
+ * tag set is known. Downstream caches keyed by tags then compare the
+ * shared instance by identity with its pre-computed hash.
+ * </p>
+ * <p>
+ * It also applies the mapper tags cleaning rules on a copy, the given map
+ * is never modified : tags listed as valid tags with an empty value are
+ * dropped and an empty tag set is replaced by foo=bar since OpenTSDB v2.1
+ * requires at least one tag. Only cleaned tags are cached so a cache must
+ * always be used with the same valid tags.<br/>
+ * This class is not thread safe, use one instance per executor.
+ * </p>
+ */
+public class OpenTsdbTagSetCache {
+    public static final OpenTsdbTagSet DEFAULT_TAGS = OpenTsdbTagSet.of("foo", "bar");
+
+    private final int maxSize;
+    private final LinkedHashMap<Map<String, String>, OpenTsdbTagSet> cache;
+    private final OpenTsdbTagsProbe probe = new OpenTsdbTagsProbe();
+
+    /**
+     * @param maxSize Maximum number of tag sets to cache, 0 to disable interning.
+     */
+    public OpenTsdbTagSetCache(final int maxSize) {
+        this.maxSize = maxSize;
+        this.cache = new LinkedHashMap<Map<String, String>, OpenTsdbTagSet>(
+            Math.min(Math.max(maxSize, 16), 1 << 16), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Map<String, String>, OpenTsdbTagSet> eldest) {
+                return size() > OpenTsdbTagSetCache.this.maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param tags The tags.
+     * @return The shared tag set equal to the tags.
+     */
+    public OpenTsdbTagSet intern(Map<String, String> tags) {
+        if (this.maxSize <= 0) {
+            return OpenTsdbTagSet.of(tags);
+        }
+        OpenTsdbTagSet tagSet = this.cache.get(tags);
+        if (tagSet == null) {
+            tagSet = OpenTsdbTagSet.of(tags);
+            this.cache.put(tagSet, tagSet);
+        }
+        return tagSet;
+    }
+
+    /**
+     * @param tags      The tags.
+     * @param validTags The tags to drop when empty, may be null.
+     * @return The shared tag set of the cleaned tags.
+     */
+    public OpenTsdbTagSet intern(Map<String, String> tags, List<String> validTags) {
+        if (tags.isEmpty()) {
+            return DEFAULT_TAGS;
+        }
+        if (validTags == null || !this.isDirty(tags, validTags)) {
+            return this.intern(tags);
+        }
+
+        // Probe the cache with the cleaned tags, they are only copied on a miss
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            if (!this.isDropped(tag, validTags)) {
+                this.probe.add(tag.getKey(), tag.getValue());
+            }
+        }
+        try {
+            return this.probe.isEmpty() ? DEFAULT_TAGS : this.intern(this.probe);
+        } finally {
+            this.probe.clear();
+        }
+    }
+
+    private boolean isDirty(Map<String, String> tags, List<String> validTags) {
+        for (Map.Entry<String, String> tag : tags.entrySet()) {
+            if (this.isDropped(tag, validTags)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isDropped(Map.Entry<String, String> tag, List<String> validTags) {
+        return (tag.getValue() == null || tag.getValue().isEmpty()) && validTags.contains(tag.getKey());
+    }
+
+    /**
+     * @return Number of cached tag sets.
+     */
+    public int size() {
+        return this.cache.size();
+    }
+}
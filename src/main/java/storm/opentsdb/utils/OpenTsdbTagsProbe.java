@@ -0,0 +1,124 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * <p>
+ * Reusable tags used to look up the interned tag set. It follows the
+ * Map hash and equality contract so it finds an equal OpenTsdbTagSet.
+ * </p>
+ * <p>
+ * Tag names and values must not be null. This class is not thread safe.
+ * </p>
+ */
+public class OpenTsdbTagsProbe extends AbstractMap<String, String> {
+    private String[] keys = new String[8];
+    private String[] values = new String[8];
+    private int size = 0;
+    private int hash = 0;
+
+    /**
+     * @param key   The tag name.
+     * @param value The tag value.
+     * @return False if the tag name is already there.
+     */
+    public boolean add(String key, String value) {
+        for (int i = 0; i < this.size; i++) {
+            if (this.keys[i].equals(key)) {
+                return false;
+            }
+        }
+        if (this.size == this.keys.length) {
+            this.keys = Arrays.copyOf(this.keys, this.size * 2);
+            this.values = Arrays.copyOf(this.values, this.size * 2);
+        }
+        this.keys[this.size] = key;
+        this.values[this.size] = value;
+        this.size++;
+        this.hash += key.hashCode() ^ value.hashCode();
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(this.keys, 0, this.size, null);
+        Arrays.fill(this.values, 0, this.size, null);
+        this.size = 0;
+        this.hash = 0;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public int hashCode() {
+        return this.hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Map)) {
+            return false;
+        }
+        Map<?, ?> other = (Map<?, ?>) o;
+        if (other.size() != this.size) {
+            return false;
+        }
+        for (int i = 0; i < this.size; i++) {
+            if (!this.values[i].equals(other.get(this.keys[i]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        return new AbstractSet<Map.Entry<String, String>>() {
+            @Override
+            public Iterator<Map.Entry<String, String>> iterator() {
+                return new Iterator<Map.Entry<String, String>>() {
+                    int i = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return this.i < OpenTsdbTagsProbe.this.size;
+                    }
+
+                    @Override
+                    public Map.Entry<String, String> next() {
+                        if (!this.hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Map.Entry<String, String> entry = new SimpleImmutableEntry<>(
+                            OpenTsdbTagsProbe.this.keys[this.i], OpenTsdbTagsProbe.this.values[this.i]);
+                        this.i++;
+                        return entry;
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return OpenTsdbTagsProbe.this.size;
+            }
+        };
+    }
+}
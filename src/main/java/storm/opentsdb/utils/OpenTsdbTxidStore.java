@@ -0,0 +1,72 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import org.hbase.async.Bytes;
+import org.hbase.async.GetRequest;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.KeyValue;
+import org.hbase.async.PutRequest;
+
+import java.util.ArrayList;
+
+/**
+ * <p>
+ * Store the last committed Trident transaction id of a state partition
+ * in a cell of an HBase side table.
+ * </p>
+ * <p>
+ * The table has to be created beforehand with a "t" column family, each
+ * partition uses one row ( state id + "/" + partition index ) with a
+ * single 8 bytes "txid" cell :
+ * </p>
+ * <pre>
+ *     create 'tsdb-txid', 't'
+ * </pre>
+ */
+public class OpenTsdbTxidStore {
+    public static final byte[] FAMILY = {'t'};
+    public static final byte[] QUALIFIER = {'t', 'x', 'i', 'd'};
+
+    private final HBaseClient client;
+    private final byte[] table;
+    private final byte[] row;
+
+    /**
+     * @param client         The HBase client to use.
+     * @param table          The side table name.
+     * @param id             Identifier of the state, unique per topology state.
+     * @param partitionIndex The state partition index.
+     */
+    public OpenTsdbTxidStore(HBaseClient client, String table, String id, int partitionIndex) {
+        this.client = client;
+        this.table = table.getBytes(OpenTsdbPointWriter.CHARSET);
+        this.row = (id + "/" + partitionIndex).getBytes(OpenTsdbPointWriter.CHARSET);
+    }
+
+    /**
+     * @param timeout How long to wait for HBase (in millisecond), 0 means forever.
+     * @return The last committed transaction id or null if none was ever committed.
+     * @throws Exception If the cell could not be read.
+     */
+    public Long get(long timeout) throws Exception {
+        ArrayList<KeyValue> cells = this.client.get(new GetRequest(this.table, this.row, FAMILY, QUALIFIER))
+            .joinUninterruptibly(timeout);
+        if (cells == null || cells.isEmpty()) {
+            return null;
+        }
+        return Bytes.getLong(cells.get(0).value());
+    }
+
+    /**
+     * @param txid    The committed transaction id.
+     * @param timeout How long to wait for HBase (in millisecond), 0 means forever.
+     * @throws Exception If the cell could not be written.
+     */
+    public void put(long txid, long timeout) throws Exception {
+        this.client.put(new PutRequest(this.table, this.row, FAMILY, QUALIFIER, Bytes.fromLong(txid)))
+            .joinUninterruptibly(timeout);
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils.serializer;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Transform your decimal values without boxing them.
+ */
+public interface OpenTsdbDoubleValueSerializer extends Serializable {
+    /**
+     * @param value The value read from the tuple.
+     * @return The value.
+     */
+    double serialize(double value);
+
+    /**
+     * <p>
+     * Initialize the serializer
+     * </p>
+     *
+     * @param conf Topology configuration
+     */
+    void prepare(Map conf);
+}
@@ -0,0 +1,28 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils.serializer;
+
+import java.io.Serializable;
+import java.util.Map;
+
+/**
+ * Transform your timestamps without boxing them ( e.g. milliseconds to seconds ).
+ */
+public interface OpenTsdbLongTimestampSerializer extends Serializable {
+    /**
+     * @param timestamp The timestamp read from the tuple.
+     * @return The timestamp.
+     */
+    long serialize(long timestamp);
+
+    /**
+     * <p>
+     * Initialize the serializer
+     * </p>
+     *
+     * @param conf Topology configuration
+     */
+    void prepare(Map conf);
+}
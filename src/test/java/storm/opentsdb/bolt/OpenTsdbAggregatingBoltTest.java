@@ -0,0 +1,219 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.bolt;
+
+import backtype.storm.task.IOutputCollector;
+import backtype.storm.task.OutputCollector;
+import backtype.storm.tuple.Tuple;
+import junit.framework.TestCase;
+import storm.opentsdb.bolt.mapper.IOpenTsdbPointMapper;
+import storm.opentsdb.bolt.mapper.OpenTsdbMapper;
+import storm.opentsdb.model.OpenTsdbAggregate;
+import storm.opentsdb.model.OpenTsdbPoint;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Window close, late points and replay of the aggregating bolt.
+ */
+public class OpenTsdbAggregatingBoltTest extends TestCase {
+    private static final Map<String, String> TAGS = Collections.singletonMap("host", "web01");
+
+    private final List<List<Object>> emitted = new ArrayList<>();
+    private final List<Collection<Tuple>> anchors = new ArrayList<>();
+    private final List<Tuple> acked = new ArrayList<>();
+    private final List<Tuple> failed = new ArrayList<>();
+
+    /**
+     * Map the (timestamp, value) tuples to sys.cpu.user points, a null value fails.
+     */
+    private static class PointMapper implements IOpenTsdbPointMapper {
+        @Override
+        public boolean map(Tuple tuple, OpenTsdbPoint point) {
+            Object value = tuple.getValue(1);
+            if (value == null) {
+                throw new IllegalArgumentException("No value");
+            }
+            point.set("sys.cpu.user", (Long) tuple.getValue(0), (Long) value, TAGS);
+            return true;
+        }
+
+        @Override
+        public void prepare(Map conf) {
+        }
+    }
+
+    private OpenTsdbAggregatingBolt prepare(OpenTsdbAggregatingBolt bolt) {
+        bolt.prepare(new HashMap(), new OutputCollector(new IOutputCollector() {
+            @Override
+            public List<Integer> emit(String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+                emitted.add(tuple);
+                OpenTsdbAggregatingBoltTest.this.anchors.add(anchors);
+                return null;
+            }
+
+            @Override
+            public void emitDirect(int taskId, String streamId, Collection<Tuple> anchors, List<Object> tuple) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void ack(Tuple input) {
+                acked.add(input);
+            }
+
+            @Override
+            public void fail(Tuple input) {
+                failed.add(input);
+            }
+
+            @Override
+            public void reportError(Throwable error) {
+            }
+        }));
+        return bolt;
+    }
+
+    private static OpenTsdbAggregatingBolt bolt() {
+        return new OpenTsdbAggregatingBolt(new OpenTsdbMapper().addPointMapper(new PointMapper()), 60)
+            .setAggregates(OpenTsdbAggregate.COUNT, OpenTsdbAggregate.AVG, OpenTsdbAggregate.MAX);
+    }
+
+    /**
+     * @return A tuple of the given values, only getValue and the source are implemented.
+     */
+    private static Tuple tuple(final Object... values) {
+        return (Tuple) Proxy.newProxyInstance(Tuple.class.getClassLoader(), new Class[]{Tuple.class},
+            new InvocationHandler() {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    switch (method.getName()) {
+                        case "getValue":
+                            return values[(Integer) args[0]];
+                        case "getSourceComponent":
+                            return "events";
+                        case "getSourceStreamId":
+                            return "default";
+                        case "equals":
+                            return proxy == args[0];
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "toString":
+                            return Arrays.toString(values);
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                }
+            });
+    }
+
+    private void assertWindow(int i, long window, long count, double avg, long max) {
+        assertEquals(Arrays.<Object>asList("sys.cpu.user.count", window, count, TAGS), this.emitted.get(i * 3));
+        assertEquals(Arrays.<Object>asList("sys.cpu.user.avg", window, avg, TAGS), this.emitted.get(i * 3 + 1));
+        assertEquals(Arrays.<Object>asList("sys.cpu.user.max", window, max, TAGS), this.emitted.get(i * 3 + 2));
+    }
+
+    public void testClose() {
+        OpenTsdbAggregatingBolt bolt = this.prepare(bolt());
+        Tuple first = tuple(120L, 1L);
+        Tuple second = tuple(179L, 3L);
+        Tuple next = tuple(180L, 5L);
+        bolt.execute(first);
+        bolt.execute(second);
+        bolt.execute(next);
+
+        bolt.close(179);
+        assertTrue(this.emitted.isEmpty());
+        assertTrue(this.acked.isEmpty());
+
+        bolt.close(180);
+        assertEquals(3, this.emitted.size());
+        assertWindow(0, 120, 2, 2.0, 3);
+        assertEquals(Arrays.asList(first, second), this.anchors.get(0));
+        assertEquals(Arrays.asList(first, second), this.acked);
+
+        bolt.close(240);
+        assertEquals(6, this.emitted.size());
+        assertWindow(1, 180, 1, 5.0, 5);
+        assertEquals(Arrays.asList(first, second, next), this.acked);
+    }
+
+    public void testLateness() {
+        OpenTsdbAggregatingBolt bolt = this.prepare(bolt().setLateness(10));
+        bolt.execute(tuple(120L, 1L));
+        bolt.close(189);
+        assertTrue(this.emitted.isEmpty());
+        bolt.close(190);
+        assertWindow(0, 120, 1, 1.0, 1);
+    }
+
+    public void testMilliseconds() {
+        OpenTsdbAggregatingBolt bolt = this.prepare(bolt());
+        bolt.execute(tuple(1356998400500L, 1L));
+        bolt.execute(tuple(1356998459999L, 2L));
+        bolt.close(1356998459);
+        assertTrue(this.emitted.isEmpty());
+        bolt.close(1356998460);
+        assertWindow(0, 1356998400000L, 2, 1.5, 2);
+    }
+
+    public void testLateDroppedUnanchored() {
+        OpenTsdbAggregatingBolt bolt = this.prepare(bolt().setAnchored(false));
+        Tuple tuple = tuple(120L, 1L);
+        bolt.execute(tuple);
+        assertEquals(Collections.singletonList(tuple), this.acked);
+        bolt.close(180);
+        assertEquals(3, this.emitted.size());
+        assertNull(this.anchors.get(0));
+
+        Tuple late = tuple(150L, 2L);
+        bolt.execute(late);
+        assertEquals(Arrays.asList(tuple, late), this.acked);
+        bolt.close(Long.MAX_VALUE);
+        assertEquals(3, this.emitted.size());
+    }
+
+    public void testReplay() {
+        OpenTsdbAggregatingBolt bolt = this.prepare(bolt().setLateness(5));
+        Tuple first = tuple(120L, 1L);
+        Tuple second = tuple(130L, 3L);
+        bolt.execute(first);
+        bolt.execute(second);
+        bolt.close(200);
+        assertEquals(3, this.emitted.size());
+        assertEquals(Arrays.asList(first, second), this.acked);
+
+        // The write failed, the spout replays both tuples
+        bolt.execute(first);
+        bolt.execute(second);
+        assertEquals(2, this.acked.size());
+        bolt.close(204);
+        assertEquals(3, this.emitted.size());
+
+        bolt.close(205);
+        assertEquals(6, this.emitted.size());
+        assertWindow(1, 120, 2, 2.0, 3);
+        assertEquals(Arrays.asList(first, second), this.anchors.get(3));
+        assertEquals(Arrays.asList(first, second, first, second), this.acked);
+    }
+
+    public void testMappingFailure() {
+        OpenTsdbAggregatingBolt bolt = this.prepare(bolt());
+        Tuple tuple = tuple(120L, null);
+        bolt.execute(tuple);
+        assertEquals(Collections.singletonList(tuple), this.failed);
+        bolt.close(Long.MAX_VALUE);
+        assertTrue(this.emitted.isEmpty());
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.bolt;
+
+import junit.framework.TestCase;
+import storm.opentsdb.model.OpenTsdbPoint;
+import storm.opentsdb.model.OpenTsdbTagSet;
+
+/**
+ * Truncation and size estimation of the point buffer.
+ */
+public class OpenTsdbPointBufferTest extends TestCase {
+    private static final long BASE_TIME = 1356998400;
+
+    public void testTruncate() {
+        OpenTsdbPointBuffer buffer = new OpenTsdbPointBuffer(2);
+        OpenTsdbPoint point = new OpenTsdbPoint();
+        point.set("sys.cpu.user", BASE_TIME, 1L, OpenTsdbTagSet.of("host", "web01"));
+        buffer.add(point, true);
+        int mark = buffer.size();
+        long bytesMark = buffer.bytes();
+        // metric + timestamp + value + tags
+        assertEquals(12 + 16 + 9, bytesMark);
+
+        // A partially mapped tuple
+        for (int i = 1; i <= 20; i++) {
+            point.set("sys.cpu.user", BASE_TIME + i, 0.5 * i, OpenTsdbTagSet.of("host", "web01"));
+            buffer.add(point, true);
+        }
+        assertEquals(21, buffer.size());
+        buffer.truncate(mark, bytesMark);
+        assertEquals(1, buffer.size());
+        assertEquals(bytesMark, buffer.bytes());
+
+        // The buffer is reused from the mark
+        point.set("sys.cpu.system", BASE_TIME + 1, 2.5, OpenTsdbTagSet.of("host", "web02"));
+        buffer.add(point, true);
+        assertEquals(2, buffer.size());
+        assertEquals(2 * bytesMark + 2, buffer.bytes());
+        OpenTsdbPoint read = buffer.get(0, new OpenTsdbPoint());
+        assertEquals("sys.cpu.user", read.getMetric());
+        assertEquals(1L, read.getLongValue());
+        assertTrue(read.isInteger());
+        read = buffer.get(1, read);
+        assertEquals("sys.cpu.system", read.getMetric());
+        assertEquals(2.5, read.getValue(), 0);
+        assertFalse(read.isInteger());
+    }
+
+    public void testTruncateWithoutEstimation() {
+        OpenTsdbPointBuffer buffer = new OpenTsdbPointBuffer(16);
+        OpenTsdbPoint point = new OpenTsdbPoint();
+        point.set("sys.cpu.user", BASE_TIME, 1L, OpenTsdbTagSet.of("host", "web01"));
+        buffer.add(point, false);
+        buffer.truncate(0, 0);
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.bytes());
+    }
+}
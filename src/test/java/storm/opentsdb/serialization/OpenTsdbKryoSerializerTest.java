@@ -0,0 +1,128 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.serialization;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import junit.framework.TestCase;
+import storm.opentsdb.model.OpenTsdbEvent;
+import storm.opentsdb.model.OpenTsdbTagSet;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Round trip of the dictionary, tag set and event Kryo serializers.
+ */
+public class OpenTsdbKryoSerializerTest extends TestCase {
+    private OpenTsdbKryoDictionary dictionary;
+    private Kryo kryo;
+
+    @Override
+    protected void setUp() {
+        this.dictionary = new OpenTsdbKryoDictionary(Arrays.asList("cpu.usage", "host", "dc", "rbx", "host"));
+        OpenTsdbTagSetSerializer tagsSerializer = new OpenTsdbTagSetSerializer(this.dictionary, 16);
+        this.kryo = new Kryo();
+        this.kryo.register(OpenTsdbTagSet.class, tagsSerializer);
+        this.kryo.register(OpenTsdbEvent.class, new OpenTsdbEventSerializer(this.dictionary, tagsSerializer));
+    }
+
+    private <T> T roundTrip(T object, Class<T> type) {
+        Output output = new Output(256, -1);
+        this.kryo.writeObjectOrNull(output, object, type);
+        return this.kryo.readObjectOrNull(new Input(output.toBytes()), type);
+    }
+
+    public void testDictionary() {
+        Output output = new Output(256, -1);
+        String[] strings = {"cpu.usage", "host", "rbx", "web01", "", null};
+        for (String string : strings) {
+            this.dictionary.writeString(output, string);
+        }
+        Input input = new Input(output.toBytes());
+        for (String string : strings) {
+            assertEquals(string, this.dictionary.readString(input));
+        }
+        assertEquals(0, input.available());
+    }
+
+    public void testDictionaryCode() {
+        Output output = new Output(16, -1);
+        this.dictionary.writeString(output, "cpu.usage");
+        assertEquals(1, output.position());
+    }
+
+    public void testUnknownDictionaryCode() {
+        Output output = new Output(16, -1);
+        this.dictionary.writeString(output, "rbx");
+        OpenTsdbKryoDictionary smaller = new OpenTsdbKryoDictionary(Arrays.asList("cpu.usage"));
+        try {
+            smaller.readString(new Input(output.toBytes()));
+            fail("Read an unknown dictionary code");
+        } catch (IllegalStateException ex) {
+            // Expected
+        }
+    }
+
+    public void testTagSet() {
+        OpenTsdbTagSet tags = OpenTsdbTagSet.of("host", "web01", "dc", "rbx");
+        OpenTsdbTagSet read = this.roundTrip(tags, OpenTsdbTagSet.class);
+        assertEquals(tags, read);
+        assertEquals("web01", read.get("host"));
+        assertEquals("rbx", read.get("dc"));
+        assertSame(read, this.roundTrip(tags, OpenTsdbTagSet.class));
+
+        assertEquals(0, this.roundTrip(OpenTsdbTagSet.of(), OpenTsdbTagSet.class).size());
+        assertNull(this.roundTrip(null, OpenTsdbTagSet.class));
+    }
+
+    public void testEvent() {
+        Map<String, String> tags = new HashMap<>();
+        tags.put("host", "web01");
+        tags.put("dc", "rbx");
+        double[] values = {0, -0.0, 1, -1, 42.5, Long.MAX_VALUE, Long.MIN_VALUE, 1e300, Double.MIN_VALUE, Double.NaN};
+        for (double value : values) {
+            OpenTsdbEvent read = this.roundTrip(new OpenTsdbEvent("cpu.usage", 1356998400L, value, tags),
+                OpenTsdbEvent.class);
+            assertEquals("cpu.usage", read.getMetric());
+            assertEquals(1356998400L, read.getTimestamp());
+            assertEquals("Value " + value,
+                Double.doubleToRawLongBits(value), Double.doubleToRawLongBits(read.getValue()));
+            assertTrue(read.getTags() instanceof OpenTsdbTagSet);
+            assertEquals(tags, read.getTags());
+        }
+    }
+
+    public void testNullTagsDropped() {
+        Map<String, String> tags = new HashMap<>();
+        tags.put("host", "web01");
+        tags.put("dc", null);
+        tags.put(null, "rbx");
+        OpenTsdbEvent read = this.roundTrip(new OpenTsdbEvent("cpu.usage", 1356998400L, 1, tags), OpenTsdbEvent.class);
+        assertEquals(OpenTsdbTagSet.of("host", "web01"), read.getTags());
+    }
+
+    public void testTagsImmutable() {
+        Map<String, String> tags = new HashMap<>();
+        tags.put("host", "web01");
+        OpenTsdbEvent read = this.roundTrip(new OpenTsdbEvent("cpu.usage", 1356998400L, 1, tags), OpenTsdbEvent.class);
+        try {
+            read.getTags().put("dc", "rbx");
+            fail("Modified deserialized tags");
+        } catch (UnsupportedOperationException ex) {
+            // Expected
+        }
+    }
+
+    public void testEventWithoutMetricAndTags() {
+        OpenTsdbEvent read = this.roundTrip(new OpenTsdbEvent(null, 1356998400123L, 1.5, null), OpenTsdbEvent.class);
+        assertNull(read.getMetric());
+        assertEquals(1356998400123L, read.getTimestamp());
+        assertEquals(1.5, read.getValue(), 0);
+        assertNull(read.getTags());
+    }
+}
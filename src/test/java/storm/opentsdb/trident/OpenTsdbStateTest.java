@@ -0,0 +1,220 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.trident;
+
+import backtype.storm.topology.FailedException;
+import com.stumbleupon.async.Deferred;
+import junit.framework.TestCase;
+import storm.opentsdb.utils.OpenTsdbTxidStore;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Replay detection, transaction id recording and pipelined batches of the state commit.
+ */
+public class OpenTsdbStateTest extends TestCase {
+
+    /**
+     * Transaction id store keeping the last committed transaction id in memory.
+     */
+    static class RecordingTxidStore extends OpenTsdbTxidStore {
+        Long last;
+        int gets = 0;
+        final List<Long> puts = new ArrayList<>();
+
+        RecordingTxidStore(Long last) {
+            super(null, "tsdb-txid", "test", 0);
+            this.last = last;
+        }
+
+        @Override
+        public Long get(long timeout) throws Exception {
+            this.gets++;
+            return this.last;
+        }
+
+        @Override
+        public void put(long txid, long timeout) throws Exception {
+            this.puts.add(txid);
+            this.last = txid;
+        }
+    }
+
+    private static List<Deferred<Object>> results(Deferred<Object> result) {
+        return Collections.singletonList(result);
+    }
+
+    private static List<Deferred<Object>> succeeded() {
+        return results(Deferred.fromResult(null));
+    }
+
+    private static List<Deferred<Object>> failed() {
+        return results(Deferred.<Object>fromError(new IllegalStateException("Write failed")));
+    }
+
+    public void testCommitRecordsTxid() {
+        RecordingTxidStore store = new RecordingTxidStore(null);
+        OpenTsdbState state = new OpenTsdbState(null, null, null, store);
+        assertTrue(state.isTransactional());
+
+        state.beginCommit(1L);
+        assertFalse(state.isReplay());
+        state.addPending(succeeded());
+        state.commit(1L);
+        assertEquals(Collections.singletonList(1L), store.puts);
+
+        state.beginCommit(2L);
+        assertFalse(state.isReplay());
+        state.commit(2L);
+        assertEquals(2, store.puts.size());
+        assertEquals(Long.valueOf(2), store.last);
+        // The last transaction id is only read once
+        assertEquals(1, store.gets);
+    }
+
+    public void testReplaySkipped() {
+        RecordingTxidStore store = new RecordingTxidStore(5L);
+        OpenTsdbState state = new OpenTsdbState(null, null, null, store);
+
+        state.beginCommit(4L);
+        assertTrue(state.isReplay());
+        state.commit(4L);
+        state.beginCommit(5L);
+        assertTrue(state.isReplay());
+        state.commit(5L);
+        assertTrue(store.puts.isEmpty());
+
+        state.beginCommit(6L);
+        assertFalse(state.isReplay());
+        state.addPending(succeeded());
+        state.commit(6L);
+        assertEquals(Collections.singletonList(6L), store.puts);
+        assertEquals(1, store.gets);
+    }
+
+    public void testFailedWrite() {
+        RecordingTxidStore store = new RecordingTxidStore(null);
+        OpenTsdbState state = new OpenTsdbState(null, null, null, store);
+
+        state.beginCommit(1L);
+        state.addPending(succeeded());
+        state.addPending(failed());
+        try {
+            state.commit(1L);
+            fail("A failed write must fail the batch");
+        } catch (FailedException ex) {
+            // The batch is replayed
+        }
+        assertTrue(store.puts.isEmpty());
+
+        state.beginCommit(1L);
+        assertFalse(state.isReplay());
+        state.addPending(succeeded());
+        state.commit(1L);
+        assertEquals(Collections.singletonList(1L), store.puts);
+    }
+
+    public void testWriteTimeout() {
+        RecordingTxidStore store = new RecordingTxidStore(null);
+        OpenTsdbState state = new OpenTsdbState(null, null, null, store).setTxidTimeout(10);
+
+        state.beginCommit(1L);
+        state.addPending(results(new Deferred<Object>()));
+        try {
+            state.commit(1L);
+            fail("A pending write must fail the batch once the timeout expired");
+        } catch (FailedException ex) {
+            // The batch is replayed
+        }
+        assertTrue(store.puts.isEmpty());
+    }
+
+    public void testTxidStoreFailure() {
+        RecordingTxidStore store = new RecordingTxidStore(null) {
+            @Override
+            public Long get(long timeout) throws Exception {
+                this.gets++;
+                if (this.gets == 1) {
+                    throw new IllegalStateException("HBase unavailable");
+                }
+                return this.last;
+            }
+        };
+        OpenTsdbState state = new OpenTsdbState(null, null, null, store);
+
+        try {
+            state.beginCommit(1L);
+            fail("The batch can not be written without the last committed transaction id");
+        } catch (FailedException ex) {
+            // The batch is replayed
+        }
+        state.beginCommit(1L);
+        assertFalse(state.isReplay());
+        assertEquals(2, store.gets);
+    }
+
+    public void testPipelinedCommit() {
+        OpenTsdbState state = new OpenTsdbState(null, null).setMaxPendingBatches(2);
+
+        // The writes of batch 1 overlap with batch 2
+        Deferred<Object> first = new Deferred<>();
+        state.beginCommit(1L);
+        state.addPending(results(first));
+        state.commit(1L);
+
+        first.callback(null);
+        state.beginCommit(2L);
+        state.addPending(succeeded());
+        state.commit(2L);
+    }
+
+    public void testPreviousBatchFailure() {
+        OpenTsdbState state = new OpenTsdbState(null, null).setMaxPendingBatches(2).setTxidTimeout(1000);
+
+        Deferred<Object> first = new Deferred<>();
+        state.beginCommit(1L);
+        state.addPending(results(first));
+        state.commit(1L);
+
+        // Batch 1 fails while batch 2 is processed, batch 2 fails in its place
+        first.callback(new IllegalStateException("Write failed"));
+        state.beginCommit(2L);
+        state.addPending(succeeded());
+        try {
+            state.commit(2L);
+            fail("A failed write of the previous batch must fail the batch");
+        } catch (FailedException ex) {
+            // Batch 2 is replayed
+        }
+
+        // The failed batch is forgotten
+        state.beginCommit(2L);
+        state.addPending(succeeded());
+        state.commit(2L);
+        state.beginCommit(3L);
+        state.addPending(succeeded());
+        state.commit(3L);
+    }
+
+    public void testUnboundedPending() {
+        OpenTsdbState state = new OpenTsdbState(null, null);
+        state.beginCommit(1L);
+        state.addPending(failed());
+        state.commit(1L);
+    }
+
+    public void testTransactionalPipelineRejected() {
+        OpenTsdbState state = new OpenTsdbState(null, null, null, new RecordingTxidStore(null));
+        state.setMaxPendingBatches(1);
+        try {
+            state.setMaxPendingBatches(2);
+            fail("A transactional state must wait for the writes of each batch");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import com.stumbleupon.async.Deferred;
+import junit.framework.TestCase;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.utils.Config;
+import org.hbase.async.HBaseClient;
+
+/**
+ * Admission, AIMD limit and drain of the concurrency limiter.
+ */
+public class OpenTsdbConcurrencyLimiterTest extends TestCase {
+    private static final long MILLIS = 1000000;
+
+    /**
+     * @return A limiter ignoring the latency, the test latencies are too short to be stable.
+     */
+    private static OpenTsdbConcurrencyLimiter limiter(int initialLimit) {
+        OpenTsdbConcurrencyLimiter limiter = new OpenTsdbConcurrencyLimiter()
+            .setMinLimit(16)
+            .setInitialLimit(initialLimit)
+            .setLatencyTolerance(Double.MAX_VALUE);
+        limiter.prepare();
+        return limiter;
+    }
+
+    public void testAcquireRelease() throws Exception {
+        OpenTsdbConcurrencyLimiter limiter = limiter(32);
+        assertTrue(limiter.acquire(30, 10));
+        assertTrue(limiter.acquire(2, 10));
+        assertEquals(32, limiter.getInFlight());
+        assertFalse(limiter.acquire(1, 10));
+        assertEquals(32, limiter.getInFlight());
+
+        limiter.release(2, System.nanoTime(), false);
+        assertEquals(30, limiter.getInFlight());
+        assertTrue(limiter.acquire(1, 10));
+        assertEquals(31, limiter.getInFlight());
+    }
+
+    public void testOversizedRequestAdmittedWhenIdle() throws Exception {
+        OpenTsdbConcurrencyLimiter limiter = limiter(32);
+        assertTrue(limiter.acquire(100, 10));
+        assertEquals(100, limiter.getInFlight());
+        assertFalse(limiter.acquire(1, 10));
+    }
+
+    public void testCancel() throws Exception {
+        OpenTsdbConcurrencyLimiter limiter = limiter(32);
+        limiter.acquireUninterruptibly(32);
+        limiter.cancel(12);
+        assertEquals(20, limiter.getInFlight());
+        limiter.cancel(100);
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(32, limiter.getLimit());
+    }
+
+    public void testBlockedAcquireWakesUpOnRelease() throws Exception {
+        final OpenTsdbConcurrencyLimiter limiter = limiter(32);
+        limiter.acquireUninterruptibly(32);
+        final boolean[] acquired = new boolean[1];
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    acquired[0] = limiter.acquire(8, 10000);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.start();
+        Thread.sleep(50);
+        assertTrue(thread.isAlive());
+
+        limiter.release(8, System.nanoTime(), false);
+        thread.join(10000);
+        assertFalse(thread.isAlive());
+        assertTrue(acquired[0]);
+        assertEquals(32, limiter.getInFlight());
+    }
+
+    public void testAdditiveIncrease() {
+        OpenTsdbConcurrencyLimiter limiter = limiter(16).setMaxLimit(17);
+        for (int i = 0; i < 4; i++) {
+            limiter.acquireUninterruptibly(16);
+            limiter.release(16, System.nanoTime(), false);
+        }
+        assertEquals(17, limiter.getLimit());
+    }
+
+    public void testThrottleDecreasesOncePerRoundTrip() {
+        OpenTsdbConcurrencyLimiter limiter = limiter(1024);
+        long start = System.nanoTime();
+        limiter.acquireUninterruptibly(3);
+
+        // Requests sent before the first decrease don't decrease the limit again
+        limiter.release(1, start, true);
+        assertEquals(512, limiter.getLimit());
+        limiter.release(1, start, true);
+        assertEquals(512, limiter.getLimit());
+
+        limiter.release(1, System.nanoTime(), true);
+        assertEquals(256, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    public void testMinLimit() {
+        OpenTsdbConcurrencyLimiter limiter = limiter(32);
+        for (int i = 0; i < 10; i++) {
+            limiter.acquireUninterruptibly(1);
+            limiter.release(1, System.nanoTime(), true);
+        }
+        assertEquals(16, limiter.getLimit());
+    }
+
+    public void testLatencyDecrease() {
+        OpenTsdbConcurrencyLimiter limiter = limiter(1000).setLatencyTolerance(2.0).setLatencyBackoffRatio(0.9);
+        limiter.acquireUninterruptibly(2);
+        limiter.release(1, System.nanoTime() - MILLIS, false);
+        assertEquals(1000, limiter.getLimit());
+        limiter.release(1, System.nanoTime() - 100 * MILLIS, false);
+        assertEquals(900, limiter.getLimit());
+    }
+
+    public void testTrack() throws Exception {
+        OpenTsdbConcurrencyLimiter limiter = limiter(32);
+        limiter.acquireUninterruptibly(10);
+        Deferred<Object> success = new Deferred<>();
+        Deferred<Object> failure = new Deferred<>();
+        limiter.track(success, 4);
+        limiter.track(failure, 6);
+        assertEquals(10, limiter.getInFlight());
+
+        success.callback(null);
+        assertEquals(6, limiter.getInFlight());
+        failure.callback(new IllegalStateException("Write failed"));
+        assertEquals(0, limiter.getInFlight());
+        // Only throttling and latency decrease the limit
+        assertEquals(32, limiter.getLimit());
+    }
+
+    public void testDrain() throws Exception {
+        final OpenTsdbConcurrencyLimiter limiter = limiter(32);
+        limiter.acquireUninterruptibly(10);
+        Config config = new Config(false);
+        config.overrideConfig("tsd.storage.enable_compaction", "false");
+        TSDB tsdb = new TSDB(new HBaseClient("localhost"), config) {
+            @Override
+            public Deferred<Object> flush() {
+                // The flushed points complete
+                limiter.release(4, System.nanoTime(), false);
+                return Deferred.fromResult(null);
+            }
+        };
+
+        assertEquals(6, limiter.drain(tsdb, 10));
+        limiter.release(6, System.nanoTime(), false);
+        assertEquals(0, limiter.drain(tsdb, 10));
+    }
+
+    public void testAwaitIdle() throws Exception {
+        final OpenTsdbConcurrencyLimiter limiter = limiter(32);
+        assertEquals(0, limiter.awaitIdle(10));
+        limiter.acquireUninterruptibly(5);
+        assertEquals(5, limiter.awaitIdle(10));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                limiter.release(5, System.nanoTime(), false);
+            }
+        });
+        thread.start();
+        assertEquals(0, limiter.awaitIdle(10000));
+        thread.join();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import junit.framework.TestCase;
+import storm.opentsdb.model.OpenTsdbPoint;
+
+/**
+ * String escapes of the /api/put JSON decoder.
+ */
+public class OpenTsdbJsonDecoderTest extends TestCase {
+
+    private static OpenTsdbPoint decode(String metric, String tagValue) {
+        OpenTsdbJsonDecoder decoder = new OpenTsdbJsonDecoder();
+        decoder.reset("{\"metric\":\"" + metric + "\",\"timestamp\":1356998400,\"value\":42," +
+            "\"tags\":{\"host\":\"" + tagValue + "\"}}");
+        OpenTsdbPoint point = new OpenTsdbPoint();
+        assertTrue(decoder.next(point));
+        assertFalse(decoder.next(point));
+        return point;
+    }
+
+    public void testPlainString() {
+        OpenTsdbPoint point = decode("sys.cpu.user", "web01");
+        assertEquals("sys.cpu.user", point.getMetric());
+        assertEquals(1356998400L, point.getTimestamp());
+        assertEquals(42L, point.getLongValue());
+        assertEquals("web01", point.getTags().get("host"));
+    }
+
+    public void testSimpleEscapes() {
+        assertEquals("a\"b", decode("a\\\"b", "web01").getMetric());
+        assertEquals("a\\b", decode("a\\\\b", "web01").getMetric());
+        assertEquals("a/b", decode("a\\/b", "web01").getMetric());
+        assertEquals("a\bb", decode("a\\bb", "web01").getMetric());
+        assertEquals("a\fb", decode("a\\fb", "web01").getMetric());
+        assertEquals("a\nb", decode("a\\nb", "web01").getMetric());
+        assertEquals("a\rb", decode("a\\rb", "web01").getMetric());
+        assertEquals("a\tb", decode("a\\tb", "web01").getMetric());
+    }
+
+    public void testUnicodeEscapes() {
+        assertEquals("web01", decode("sys.cpu.user", "\\u0077eb01").getTags().get("host"));
+        assertEquals("été", decode("\\u00E9t\\u00e9", "web01").getMetric());
+        assertEquals("😀", decode("\\ud83d\\ude00", "web01").getMetric());
+    }
+
+    public void testEscapeAtBounds() {
+        assertEquals("\"", decode("\\\"", "web01").getMetric());
+        assertEquals("\\x", decode("\\\\x", "web01").getMetric());
+        assertEquals("xA", decode("x\\u0041", "web01").getMetric());
+    }
+
+    public void testUnescapedUtf8() {
+        assertEquals("été\\n", decode("été\\\\n", "web01").getMetric());
+    }
+
+    public void testInvalidEscapes() {
+        String[] invalids = {"a\\xb", "a\\u12", "a\\u12g4", "a\\u+123", "a\\u-123", "a\\", "a\\u"};
+        for (String invalid : invalids) {
+            try {
+                decode(invalid, "web01");
+                fail("Decoded " + invalid);
+            } catch (IllegalArgumentException ex) {
+                // Expected
+            }
+        }
+    }
+}
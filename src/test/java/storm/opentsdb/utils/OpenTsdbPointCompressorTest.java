@@ -0,0 +1,195 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import com.stumbleupon.async.Callback;
+import com.stumbleupon.async.Deferred;
+import junit.framework.TestCase;
+import storm.opentsdb.model.OpenTsdbPoint;
+import storm.opentsdb.model.OpenTsdbTagSet;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Deadband, swinging door and held points of the point compressor.
+ */
+public class OpenTsdbPointCompressorTest extends TestCase {
+    private static final long BASE_TIME = 1356998400;
+    private static final OpenTsdbTagSet TAGS = OpenTsdbTagSet.of("host", "web01");
+
+    private final OpenTsdbPoint point = new OpenTsdbPoint();
+
+    private boolean compress(OpenTsdbPointCompressor compressor, long timestamp, double value) {
+        return this.compress(compressor, "sys.cpu.user", timestamp, value, null);
+    }
+
+    private boolean compress(OpenTsdbPointCompressor compressor, String metric, long timestamp, double value,
+                             Deferred<Object> hold) {
+        if (value == (long) value) {
+            this.point.set(metric, timestamp, (long) value, TAGS);
+        } else {
+            this.point.set(metric, timestamp, value, TAGS);
+        }
+        return compressor.compress(this.point, hold);
+    }
+
+    private static double value(OpenTsdbPoint point) {
+        return point.isInteger() ? point.getLongValue() : point.getValue();
+    }
+
+    /**
+     * @return A Deferred recording its result in the given array.
+     */
+    private static Deferred<Object> hold(final Object[] result) {
+        Deferred<Object> hold = new Deferred<>();
+        hold.addBoth(new Callback<Object, Object>() {
+            @Override
+            public Object call(Object arg) throws Exception {
+                result[0] = arg == null ? "superseded" : arg;
+                return arg;
+            }
+        });
+        return hold;
+    }
+
+    public void testDeadband() {
+        OpenTsdbPointCompressor compressor = new OpenTsdbPointCompressor().setDeadband(0.5);
+        assertTrue(this.compress(compressor, BASE_TIME, 10));
+        assertFalse(this.compress(compressor, BASE_TIME + 1, 10.3));
+        assertFalse(this.compress(compressor, BASE_TIME + 2, 9.6));
+        assertTrue(this.compress(compressor, BASE_TIME + 3, 10.6));
+        assertFalse(this.compress(compressor, BASE_TIME + 4, 10.9));
+        assertTrue(this.compress(compressor, BASE_TIME + 5, 11.2));
+        assertEquals(11.2, value(this.point), 0);
+        assertEquals(BASE_TIME + 5, this.point.getTimestamp());
+
+        Map<?, ?> metrics = (Map<?, ?>) compressor.getValueAndReset();
+        assertEquals(6L, metrics.get("points"));
+        assertEquals(3L, metrics.get("suppressed"));
+    }
+
+    public void testRelativeDeadband() {
+        OpenTsdbPointCompressor compressor = new OpenTsdbPointCompressor().setRelativeDeadband(0.1);
+        assertTrue(this.compress(compressor, BASE_TIME, 100));
+        assertFalse(this.compress(compressor, BASE_TIME + 1, 109));
+        assertTrue(this.compress(compressor, BASE_TIME + 2, 111));
+    }
+
+    public void testMaxInterval() {
+        OpenTsdbPointCompressor compressor = new OpenTsdbPointCompressor().setDeadband(1).setMaxInterval(60);
+        assertTrue(this.compress(compressor, BASE_TIME, 1));
+        assertFalse(this.compress(compressor, BASE_TIME + 59, 1));
+        assertTrue(this.compress(compressor, BASE_TIME + 60, 1));
+
+        // The interval is in seconds for millisecond timestamps too
+        assertTrue(this.compress(compressor, "sys.cpu.system", BASE_TIME * 1000, 1, null));
+        assertFalse(this.compress(compressor, "sys.cpu.system", (BASE_TIME + 59) * 1000, 1, null));
+        assertTrue(this.compress(compressor, "sys.cpu.system", (BASE_TIME + 60) * 1000, 1, null));
+    }
+
+    public void testOlderPointsWritten() {
+        OpenTsdbPointCompressor compressor = new OpenTsdbPointCompressor().setDeadband(1);
+        assertTrue(this.compress(compressor, BASE_TIME + 10, 1));
+        assertTrue(this.compress(compressor, BASE_TIME + 10, 1));
+        assertTrue(this.compress(compressor, BASE_TIME, 1));
+    }
+
+    public void testSwingingDoor() {
+        OpenTsdbPointCompressor compressor = new OpenTsdbPointCompressor().setDeadband(1).setSwingingDoor(true);
+        Object[] first = new Object[1];
+        Object[] second = new Object[1];
+        Object[] third = new Object[1];
+        assertTrue(this.compress(compressor, "sys.cpu.user", BASE_TIME, 0, hold(new Object[1])));
+        assertNull(compressor.getWrittenHold());
+
+        // On the line, held then superseded
+        assertFalse(this.compress(compressor, "sys.cpu.user", BASE_TIME + 10, 1, hold(first)));
+        assertTrue(compressor.isHeld());
+        assertFalse(this.compress(compressor, "sys.cpu.user", BASE_TIME + 20, 2, hold(second)));
+        assertEquals("superseded", first[0]);
+        assertNull(second[0]);
+
+        // Out of the corridor, the door closes and the held point is written instead
+        Deferred<Object> thirdHold = hold(third);
+        assertTrue(this.compress(compressor, "sys.cpu.user", BASE_TIME + 30, 10, thirdHold));
+        assertEquals(BASE_TIME + 20, this.point.getTimestamp());
+        assertEquals(2L, this.point.getLongValue());
+        assertTrue(this.point.isInteger());
+        Deferred<Object> written = compressor.getWrittenHold();
+        assertNotNull(written);
+        assertNull(second[0]);
+        written.callback("written");
+        assertEquals("written", second[0]);
+        assertTrue(compressor.isHeld());
+        assertNull(third[0]);
+
+        // The new corridor starts from the written point
+        assertFalse(this.compress(compressor, "sys.cpu.user", BASE_TIME + 40, 18, null));
+        assertEquals("superseded", third[0]);
+    }
+
+    public void testPollExpired() {
+        OpenTsdbPointCompressor compressor = new OpenTsdbPointCompressor()
+            .setDeadband(1)
+            .setSwingingDoor(true)
+            .setMaxHoldTime(1000);
+        Object[] held = new Object[1];
+        assertTrue(this.compress(compressor, "sys.cpu.user", BASE_TIME, 0, null));
+        assertFalse(this.compress(compressor, "sys.cpu.user", BASE_TIME + 10, 0.5, hold(held)));
+
+        OpenTsdbPoint expired = new OpenTsdbPoint();
+        assertFalse(compressor.pollExpired(System.currentTimeMillis(), expired));
+        assertNull(compressor.getWrittenHold());
+
+        assertTrue(compressor.pollExpired(System.currentTimeMillis() + 1000, expired));
+        assertEquals("sys.cpu.user", expired.getMetric());
+        assertEquals(BASE_TIME + 10, expired.getTimestamp());
+        assertEquals(0.5, expired.getValue(), 0);
+        assertSame(TAGS, expired.getTags());
+        assertNotNull(compressor.getWrittenHold());
+        assertFalse(compressor.pollExpired(Long.MAX_VALUE, expired));
+
+        // The polled point is the last written one, the corridor starts from it
+        assertFalse(this.compress(compressor, "sys.cpu.user", BASE_TIME + 20, 1, null));
+        assertTrue(compressor.pollExpired(Long.MAX_VALUE, expired));
+        assertEquals(BASE_TIME + 20, expired.getTimestamp());
+    }
+
+    public void testEvictedHeldPoints() {
+        OpenTsdbPointCompressor compressor = new OpenTsdbPointCompressor()
+            .setDeadband(1)
+            .setSwingingDoor(true)
+            .setMaxSeries(16);
+        // More series than slots, some series evict others
+        int series = 40;
+        for (int i = 0; i < series; i++) {
+            String metric = "sys.cpu." + i;
+            assertTrue(this.compress(compressor, metric, BASE_TIME, i, null));
+            assertFalse(this.compress(compressor, metric, BASE_TIME + 10, i, null));
+        }
+        Map<?, ?> metrics = (Map<?, ?>) compressor.getValueAndReset();
+        assertTrue((Long) metrics.get("evictions") > 0);
+
+        // The held points of the evicted series come first, then the others once expired
+        Set<String> polled = new HashSet<>();
+        OpenTsdbPoint held = new OpenTsdbPoint();
+        int evicted = 0;
+        while (compressor.pollExpired(0, held)) {
+            assertEquals(BASE_TIME + 10, held.getTimestamp());
+            assertEquals("sys.cpu." + (long) value(held), held.getMetric());
+            assertTrue(polled.add(held.getMetric()));
+            evicted++;
+        }
+        assertTrue(evicted > 0);
+        while (compressor.pollExpired(Long.MAX_VALUE, held)) {
+            assertEquals(BASE_TIME + 10, held.getTimestamp());
+            assertEquals("sys.cpu." + (long) value(held), held.getMetric());
+            assertTrue(polled.add(held.getMetric()));
+        }
+        assertEquals(series, polled.size());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import junit.framework.TestCase;
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.TSDB;
+import org.hbase.async.KeyValue;
+import storm.opentsdb.model.OpenTsdbAggregate;
+import storm.opentsdb.model.OpenTsdbSeriesQuery;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Round trip of the OpenTSDB 2.1 cell encoding through the row decoder.
+ */
+public class OpenTsdbPointReaderTest extends TestCase {
+    private static final long BASE_TIME = 1356998400;
+
+    /**
+     * Record every point fed by the row.
+     */
+    private static class RecordingQuery extends OpenTsdbSeriesQuery {
+        private final List<Long> times = new ArrayList<>();
+        private final List<Number> values = new ArrayList<>();
+
+        public RecordingQuery() {
+            super("sys.cpu.user", new HashMap<String, String>(), 0, Long.MAX_VALUE);
+        }
+
+        @Override
+        public void add(long time, long timestamp, long value, boolean integer) {
+            super.add(time, timestamp, value, integer);
+            this.times.add(time);
+            this.values.add(integer ? (Number) value : (Number) Double.longBitsToDouble(value));
+        }
+    }
+
+    private static byte[] key() {
+        // Metric uid, base time and one tag pair
+        byte[] template = new byte[TSDB.metrics_width() + 4 + 6];
+        template[TSDB.metrics_width() - 1] = 1;
+        return OpenTsdbSeriesCache.getRowKey(template, OpenTsdbPointWriter.baseTime(BASE_TIME));
+    }
+
+    private static KeyValue cell(long timestamp, long value) {
+        byte[] encoded = OpenTsdbPointWriter.encode(value);
+        byte[] qualifier = Internal.buildQualifier(timestamp, (short) (encoded.length - 1));
+        return new KeyValue(key(), OpenTsdbPointWriter.FAMILY, qualifier, encoded);
+    }
+
+    private static KeyValue cell(long timestamp, double value) {
+        byte[] qualifier = Internal.buildQualifier(timestamp, OpenTsdbPointWriter.DOUBLE_FLAGS);
+        return new KeyValue(key(), OpenTsdbPointWriter.FAMILY, qualifier, OpenTsdbPointWriter.encode(value));
+    }
+
+    private static RecordingQuery decode(KeyValue... cells) {
+        OpenTsdbRow row = new OpenTsdbRow();
+        OpenTsdbPointReader.decode(new ArrayList<>(Arrays.asList(cells)), row);
+        RecordingQuery query = new RecordingQuery();
+        row.addTo(query);
+        assertEquals(row.size(), query.times.size());
+        return query;
+    }
+
+    public void testIntegerWidths() {
+        long[] values = {0, -1, Byte.MAX_VALUE, Short.MIN_VALUE, Integer.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE};
+        KeyValue[] cells = new KeyValue[values.length];
+        for (int i = 0; i < values.length; i++) {
+            cells[i] = cell(BASE_TIME + i, values[i]);
+        }
+        RecordingQuery query = decode(cells);
+        assertEquals(values.length, query.times.size());
+        for (int i = 0; i < values.length; i++) {
+            assertEquals((BASE_TIME + i) * 1000, (long) query.times.get(i));
+            assertEquals(values[i], query.values.get(i));
+        }
+    }
+
+    public void testDouble() {
+        RecordingQuery query = decode(cell(BASE_TIME, 1.5), cell(BASE_TIME + 1, -0.001));
+        assertEquals(Arrays.<Number>asList(1.5, -0.001), query.values);
+        assertEquals(1.499, query.getValue(OpenTsdbAggregate.SUM).doubleValue(), 1e-9);
+    }
+
+    public void testMilliseconds() {
+        long millis = BASE_TIME * 1000 + 3599999;
+        RecordingQuery query = decode(cell(millis, 42L), cell(BASE_TIME + 1, 1L));
+        assertEquals(Arrays.asList((BASE_TIME + 1) * 1000, millis), query.times);
+        assertEquals(Long.valueOf(millis), query.getLastTimestamp());
+        assertEquals(42L, query.getLastValue());
+    }
+
+    public void testSortedByTime() {
+        RecordingQuery query = decode(cell(BASE_TIME + 30, 3L), cell(BASE_TIME + 10, 1L),
+            cell(BASE_TIME + 20, 2.5), cell(BASE_TIME + 40, 4L), cell(BASE_TIME, 0L));
+        assertEquals(Arrays.asList(BASE_TIME * 1000, (BASE_TIME + 10) * 1000, (BASE_TIME + 20) * 1000,
+            (BASE_TIME + 30) * 1000, (BASE_TIME + 40) * 1000), query.times);
+        assertEquals(Arrays.<Number>asList(0L, 1L, 2.5, 3L, 4L), query.values);
+    }
+
+    public void testSameTimeReplaced() {
+        // The same time in seconds and in milliseconds is one point
+        RecordingQuery query = decode(cell(BASE_TIME + 10, 1L), cell(BASE_TIME + 20, 2L),
+            cell(BASE_TIME + 10, 3.5), cell((BASE_TIME + 20) * 1000, 4L));
+        assertEquals(Arrays.asList((BASE_TIME + 10) * 1000, (BASE_TIME + 20) * 1000), query.times);
+        assertEquals(Arrays.<Number>asList(3.5, 4L), query.values);
+        assertEquals(2, query.getCount());
+    }
+
+    public void testCompactedCell() {
+        KeyValue first = cell(BASE_TIME + 1, 1L);
+        KeyValue second = cell(BASE_TIME + 2, 300L);
+        KeyValue third = cell(BASE_TIME + 3, 0.5);
+        byte[] qualifier = concat(first.qualifier(), second.qualifier(), third.qualifier());
+        // Compacted values end with a meta data byte
+        byte[] value = concat(first.value(), second.value(), third.value(), new byte[]{0});
+        RecordingQuery query = decode(new KeyValue(key(), OpenTsdbPointWriter.FAMILY, qualifier, value));
+        assertEquals(Arrays.<Number>asList(1L, 300L, 0.5), query.values);
+    }
+
+    public void testAnnotationSkipped() {
+        byte[] qualifier = {1, 0, 0};
+        KeyValue annotation = new KeyValue(key(), OpenTsdbPointWriter.FAMILY, qualifier, new byte[]{'{', '}'});
+        RecordingQuery query = decode(annotation, cell(BASE_TIME, 7L));
+        assertEquals(Arrays.<Number>asList(7L), query.values);
+    }
+
+    private static byte[] concat(byte[]... arrays) {
+        int length = 0;
+        for (byte[] array : arrays) {
+            length += array.length;
+        }
+        byte[] result = new byte[length];
+        int offset = 0;
+        for (byte[] array : arrays) {
+            System.arraycopy(array, 0, result, offset, array.length);
+            offset += array.length;
+        }
+        return result;
+    }
+}
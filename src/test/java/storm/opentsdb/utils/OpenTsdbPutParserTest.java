@@ -0,0 +1,114 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import junit.framework.TestCase;
+import storm.opentsdb.model.OpenTsdbPoint;
+
+/**
+ * Number decoding edge cases of the put line parser.
+ */
+public class OpenTsdbPutParserTest extends TestCase {
+
+    private static long parseLong(String s) {
+        byte[] bytes = s.getBytes(OpenTsdbPointWriter.CHARSET);
+        return OpenTsdbPutParser.parseLong(bytes, 0, bytes.length);
+    }
+
+    private static double parseDouble(String s) {
+        byte[] bytes = s.getBytes(OpenTsdbPointWriter.CHARSET);
+        return OpenTsdbPutParser.parseDouble(bytes, 0, bytes.length);
+    }
+
+    public void testParseLong() {
+        assertEquals(0, parseLong("0"));
+        assertEquals(42, parseLong("42"));
+        assertEquals(42, parseLong("+42"));
+        assertEquals(-42, parseLong("-42"));
+        assertEquals(999999999999999999L, parseLong("999999999999999999"));
+    }
+
+    public void testParseLongBounds() {
+        assertEquals(Long.MAX_VALUE, parseLong("9223372036854775807"));
+        assertEquals(Long.MIN_VALUE, parseLong("-9223372036854775808"));
+        assertEquals(-1234567890123456789L, parseLong("-1234567890123456789"));
+    }
+
+    public void testParseLongInvalid() {
+        String[] invalids = {"", "-", "+", "12a", "1.5", "9223372036854775808", "-9223372036854775809"};
+        for (String invalid : invalids) {
+            try {
+                parseLong(invalid);
+                fail("Parsed " + invalid);
+            } catch (IllegalArgumentException ex) {
+                // Expected
+            }
+        }
+    }
+
+    public void testParseDouble() {
+        assertEquals(1.5, parseDouble("1.5"), 0);
+        assertEquals(-1.5, parseDouble("-1.5"), 0);
+        assertEquals(0.1, parseDouble("0.1"), 0);
+        assertEquals(0.001, parseDouble(".001"), 0);
+        assertEquals(10.0, parseDouble("10."), 0);
+        assertEquals(123.456, parseDouble("123.456"), 0);
+        assertEquals(0.0, parseDouble("0.000"), 0);
+        assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits(parseDouble("-0.0")));
+    }
+
+    public void testParseDoubleExponent() {
+        assertEquals(1.5e10, parseDouble("1.5e10"), 0);
+        assertEquals(1.5e-10, parseDouble("1.5E-10"), 0);
+        assertEquals(1e22, parseDouble("1e22"), 0);
+        assertEquals(1e-300, parseDouble("1e-300"), 0);
+        assertEquals(1.7976931348623157e308, parseDouble("1.7976931348623157e308"), 0);
+    }
+
+    public void testParseDoubleLongExponent() {
+        // The exponent used to be truncated to an int : 2^32 + 1 became 1
+        assertEquals(0.0, parseDouble("1e-4294967297"), 0);
+        try {
+            parseDouble("1e4294967297");
+            fail("Parsed an infinite value");
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+
+    public void testParseDoubleManyDigits() {
+        assertEquals(Double.parseDouble("3.14159265358979323846"), parseDouble("3.14159265358979323846"), 0);
+        assertEquals(Double.parseDouble("12345678901234567890.5"), parseDouble("12345678901234567890.5"), 0);
+        assertEquals(Double.parseDouble("0.000000000000000000001234"), parseDouble("0.000000000000000000001234"), 0);
+    }
+
+    public void testParseDoubleInvalid() {
+        String[] invalids = {"", "-", ".", "1.2.3", "1e", "1e+", "abc", "1,5", "NaN", "Infinity"};
+        for (String invalid : invalids) {
+            try {
+                parseDouble(invalid);
+                fail("Parsed " + invalid);
+            } catch (IllegalArgumentException ex) {
+                // Expected
+            }
+        }
+    }
+
+    public void testParseLine() {
+        OpenTsdbPutParser parser = new OpenTsdbPutParser();
+        OpenTsdbPoint point = new OpenTsdbPoint();
+        byte[] line = "put sys.cpu.user 1356998400 -9223372036854775808 host=web01\r".getBytes(OpenTsdbPointWriter.CHARSET);
+        assertTrue(parser.parse(line, 0, line.length, point));
+        assertEquals("sys.cpu.user", point.getMetric());
+        assertEquals(1356998400, point.getTimestamp());
+        assertTrue(point.isInteger());
+        assertEquals(Long.MIN_VALUE, point.getLongValue());
+        assertEquals("web01", point.getTags().get("host"));
+
+        line = "sys.cpu.user 1356998400 1e-4294967297 host=web01".getBytes(OpenTsdbPointWriter.CHARSET);
+        assertTrue(parser.parse(line, 0, line.length, point));
+        assertEquals(0.0, point.getValue(), 0);
+    }
+}
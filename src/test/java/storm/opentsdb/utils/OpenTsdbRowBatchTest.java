@@ -0,0 +1,187 @@
+/*
+ * Charles-Antoine Mathieu <charles-antoine.mathieu@ovh.net>
+ */
+
+package storm.opentsdb.utils;
+
+import com.stumbleupon.async.Deferred;
+import junit.framework.TestCase;
+import net.opentsdb.core.Internal;
+import net.opentsdb.core.TSDB;
+import net.opentsdb.uid.UniqueId;
+import net.opentsdb.utils.Config;
+import org.hbase.async.Bytes;
+import org.hbase.async.HBaseClient;
+import org.hbase.async.PutRequest;
+import storm.opentsdb.model.OpenTsdbPoint;
+import storm.opentsdb.model.OpenTsdbTagSet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Row coalescing of the row batch, with and without a series cache.
+ */
+public class OpenTsdbRowBatchTest extends TestCase {
+    private static final long BASE_TIME = 1356998400;
+    private static final OpenTsdbTagSet WEB01 = OpenTsdbTagSet.of("host", "web01");
+    private static final OpenTsdbTagSet WEB02 = OpenTsdbTagSet.of("host", "web02");
+
+    /**
+     * Record the PutRequests instead of sending them.
+     */
+    private static class RecordingHBaseClient extends HBaseClient {
+        final List<PutRequest> puts = new ArrayList<>();
+
+        RecordingHBaseClient() {
+            super("localhost");
+        }
+
+        @Override
+        public Deferred<Object> put(PutRequest request) {
+            this.puts.add(request);
+            return Deferred.fromResult(null);
+        }
+    }
+
+    /**
+     * Derive the UIDs from the names and record the points written with addPoint.
+     */
+    private static class RecordingTsdb extends TSDB {
+        final List<OpenTsdbPoint> points = new ArrayList<>();
+
+        RecordingTsdb(HBaseClient client, Config config) {
+            super(client, config);
+        }
+
+        @Override
+        public Deferred<Object> addPoint(String metric, long timestamp, long value, Map<String, String> tags) {
+            this.points.add(new OpenTsdbPoint().set(metric, timestamp, value, tags));
+            return Deferred.fromResult(null);
+        }
+
+        @Override
+        public Deferred<Object> addPoint(String metric, long timestamp, double value, Map<String, String> tags) {
+            this.points.add(new OpenTsdbPoint().set(metric, timestamp, value, tags));
+            return Deferred.fromResult(null);
+        }
+
+        @Override
+        public byte[] getUID(UniqueId.UniqueIdType type, String name) {
+            short width = type == UniqueId.UniqueIdType.METRIC ? TSDB.metrics_width() :
+                type == UniqueId.UniqueIdType.TAGK ? TSDB.tagk_width() : TSDB.tagv_width();
+            byte[] uid = new byte[width];
+            uid[width - 1] = (byte) name.hashCode();
+            uid[width - 2] = (byte) name.length();
+            return uid;
+        }
+    }
+
+    private RecordingHBaseClient client;
+    private RecordingTsdb tsdb;
+
+    @Override
+    protected void setUp() throws Exception {
+        Config config = new Config(false);
+        config.overrideConfig("tsd.storage.enable_compaction", "false");
+        this.client = new RecordingHBaseClient();
+        this.tsdb = new RecordingTsdb(this.client, config);
+    }
+
+    private OpenTsdbRowBatch batch(boolean seriesCache) {
+        return new OpenTsdbRowBatch(seriesCache ?
+            new OpenTsdbPointWriter(this.tsdb, new OpenTsdbSeriesCache(this.tsdb, 16)) :
+            new OpenTsdbPointWriter(this.tsdb));
+    }
+
+    private static void assertCell(PutRequest put, int i, long timestamp, short flags, byte[] value) {
+        assertTrue(Bytes.equals(Internal.buildQualifier(timestamp, flags), put.qualifiers()[i]));
+        assertTrue(Bytes.equals(value, put.values()[i]));
+    }
+
+    public void testSameRowMerged() throws Exception {
+        OpenTsdbRowBatch batch = this.batch(true);
+        batch.add("sys.cpu.user", BASE_TIME, 1L, WEB01);
+        batch.add("sys.cpu.user", BASE_TIME + 10, 1.5, WEB01);
+        batch.add("sys.cpu.user", (BASE_TIME + 20) * 1000, 300L, new HashMap<>(WEB01));
+        assertEquals(3, batch.size());
+        assertEquals(1, batch.rows());
+        assertTrue(this.client.puts.isEmpty());
+
+        batch.flush().join(1000);
+        assertEquals(1, this.client.puts.size());
+        PutRequest put = this.client.puts.get(0);
+        assertEquals(3, put.qualifiers().length);
+        assertCell(put, 0, BASE_TIME, (short) 0, new byte[]{1});
+        assertCell(put, 1, BASE_TIME + 10, OpenTsdbPointWriter.DOUBLE_FLAGS, OpenTsdbPointWriter.encode(1.5));
+        assertCell(put, 2, (BASE_TIME + 20) * 1000, (short) 1, OpenTsdbPointWriter.encode(300L));
+        assertEquals(BASE_TIME, Bytes.getUnsignedInt(put.key(), TSDB.metrics_width()));
+        assertEquals(0, batch.size());
+        assertEquals(0, batch.rows());
+    }
+
+    public void testDistinctRowsSplit() throws Exception {
+        OpenTsdbRowBatch batch = this.batch(true);
+        batch.add("sys.cpu.user", BASE_TIME, 1L, WEB01);
+        batch.add("sys.cpu.user", BASE_TIME + 3600, 2L, WEB01);
+        batch.add("sys.cpu.user", BASE_TIME + 1, 3L, WEB02);
+        batch.add("sys.cpu.system", BASE_TIME + 2, 4L, WEB01);
+        batch.add("sys.cpu.user", BASE_TIME + 3599, 5L, WEB01);
+        assertEquals(5, batch.size());
+        assertEquals(4, batch.rows());
+
+        batch.flush().join(1000);
+        assertEquals(4, this.client.puts.size());
+        int cells = 0;
+        for (int i = 0; i < this.client.puts.size(); i++) {
+            PutRequest put = this.client.puts.get(i);
+            cells += put.qualifiers().length;
+            for (int j = 0; j < i; j++) {
+                assertFalse(Bytes.equals(put.key(), this.client.puts.get(j).key()));
+            }
+        }
+        assertEquals(5, cells);
+    }
+
+    public void testReusedAfterFlush() throws Exception {
+        OpenTsdbRowBatch batch = this.batch(true);
+        batch.add("sys.cpu.user", BASE_TIME, 1L, WEB01);
+        batch.add("sys.cpu.user", BASE_TIME + 1, 2L, WEB01);
+        batch.flush().join(1000);
+        batch.add("sys.cpu.user", BASE_TIME + 2, 3L, WEB01);
+        batch.flush().join(1000);
+        assertEquals(2, this.client.puts.size());
+        assertEquals(2, this.client.puts.get(0).qualifiers().length);
+        assertEquals(1, this.client.puts.get(1).qualifiers().length);
+        assertCell(this.client.puts.get(1), 0, BASE_TIME + 2, (short) 0, new byte[]{3});
+    }
+
+    public void testBufferedWithoutSeriesCache() throws Exception {
+        OpenTsdbRowBatch batch = this.batch(false);
+        HashMap<String, String> tags = new HashMap<>(WEB02);
+        batch.add("sys.cpu.user", BASE_TIME, 1L, WEB01);
+        batch.add("sys.cpu.user", BASE_TIME + 1, 2.5, tags);
+        tags.put("host", "web03");
+        assertEquals(2, batch.size());
+        assertTrue(this.tsdb.points.isEmpty());
+
+        batch.flush().join(1000);
+        assertTrue(this.client.puts.isEmpty());
+        assertEquals(2, this.tsdb.points.size());
+        OpenTsdbPoint first = this.tsdb.points.get(0);
+        assertEquals(BASE_TIME, first.getTimestamp());
+        assertEquals(1L, first.getLongValue());
+        assertSame(WEB01, first.getTags());
+        OpenTsdbPoint second = this.tsdb.points.get(1);
+        assertEquals(2.5, second.getValue(), 0);
+        assertEquals(WEB02, second.getTags());
+        assertEquals(0, batch.size());
+
+        batch.add("sys.cpu.user", BASE_TIME + 2, 3L, WEB01);
+        batch.flush().join(1000);
+        assertEquals(3, this.tsdb.points.size());
+        assertEquals(3L, this.tsdb.points.get(2).getLongValue());
+    }
+}